@@ -0,0 +1,455 @@
+package fraclac.writers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe writing of results files, used when
+ * {@link ResultsFilesWriter#bWriteAtomically} is set.
+ * <p>
+ * A file that is written whole is {@link #replace replaced} by writing the
+ * text to a temporary file in the same directory, forcing it to disk, and
+ * renaming it over the old file, so that the file on disk is always either
+ * the old one or the new one, never half of each.
+ * <p>
+ * A file that is appended to is made of segments, one per append, each
+ * written as
+ * <pre>
+ * int n, int CRC-32 of the n bytes, n bytes of UTF-8 text
+ * </pre>
+ * in little-endian order. A crash part way through an append leaves a last
+ * segment whose length or checksum does not match, which
+ * {@link #readSegments} and {@link #validLength} detect and leave out.
+ * <p>
+ * Neither path copies the data more than the plain writers do: the text is
+ * encoded once and the bytes are written straight to the file.
+ * <p>
+ * Text too big to hold in memory is written as one segment by a
+ * {@link SegmentWriter}, which streams it to a temporary file and appends it
+ * to the results file, or renames it into place, only once it is complete.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class AtomicResultsFiles
+{
+
+  /**
+   * Bytes before the text of each segment. {@value}
+   */
+  public static final int SEGMENT_HEADER_BYTES = 8;
+  /**
+   * Suffix of the temporary files written before renaming. {@value}
+   */
+  static final String TEMP_SUFFIX = ".tmp";
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private AtomicResultsFiles()
+  {
+  }
+
+  /**
+   * Streams text into one segment of a results file. The text is written, as
+   * it comes, to a temporary file beside the results file, after room for
+   * the segment header, while its length and CRC-32 are counted. On
+   * {@link #commit} the header is filled in and the segment is renamed into
+   * place if the results file is new, or else appended to it; until then the
+   * results file is not touched, so a crash leaves it as it was. Closing
+   * without committing deletes the temporary file.
+   * <p>
+   * A segment holds at most {@link Integer#MAX_VALUE} bytes.
+   */
+  public static final class SegmentWriter extends Writer
+  {
+
+    private final File fResults;
+    private final File fTemp;
+    private final RandomAccessFile raf;
+    private final CRC32 crc = new CRC32();
+    private final Writer writer;
+    private long lBytes;
+
+    /**
+     * @param psPath path of the results file the segment is for
+     * @throws IOException if the temporary file cannot be made
+     */
+    public SegmentWriter(String psPath) throws IOException
+    {
+      fResults = new File(psPath).getAbsoluteFile();
+      fTemp = File.createTempFile(fResults.getName(),
+                                  TEMP_SUFFIX,
+                                  fResults.getParentFile());
+      raf = new RandomAccessFile(fTemp,
+                                 "rw");
+      raf.write(new byte[SEGMENT_HEADER_BYTES]);
+      writer = new BufferedWriter(new OutputStreamWriter(new TempStream(),
+                                                         UTF8),
+                                  64 * 1024);
+    }
+
+    /**
+     * Writes the encoded text to the temporary file, counting its length and
+     * CRC-32.
+     */
+    private final class TempStream extends OutputStream
+    {
+
+      @Override
+      public void write(int pi) throws IOException
+      {
+        write(new byte[]{(byte) pi},
+              0,
+              1);
+      }
+
+      @Override
+      public void write(byte[] pba,
+                        int piOff,
+                        int piLength) throws IOException
+      {
+        crc.update(pba,
+                   piOff,
+                   piLength);
+        lBytes += piLength;
+        raf.write(pba,
+                  piOff,
+                  piLength);
+      }
+    }
+
+    @Override
+    public void write(char[] pca,
+                      int piOff,
+                      int piLength) throws IOException
+    {
+      writer.write(pca,
+                   piOff,
+                   piLength);
+    }
+
+    @Override
+    public void write(String ps,
+                      int piOff,
+                      int piLength) throws IOException
+    {
+      writer.write(ps,
+                   piOff,
+                   piLength);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      writer.flush();
+    }
+
+    /**
+     * Writes the segment to the results file, as described for the class.
+     *
+     * @throws IOException if the segment is too long or cannot be written;
+     * the results file is then left as it was, unless the append itself
+     * failed, in which case the cut-off segment is left out on reading
+     */
+    public void commit() throws IOException
+    {
+      writer.flush();
+      if (lBytes > Integer.MAX_VALUE) {
+        throw new IOException(lBytes + " bytes are too many for one segment"
+            + " of " + fResults);
+      }
+      FileChannel lTemp = raf.getChannel();
+      ByteBuffer lHeader = segmentHeader((int) lBytes,
+                                         (int) crc.getValue());
+      long llPos = 0;
+      while (lHeader.hasRemaining()) {
+        llPos += lTemp.write(lHeader,
+                             llPos);
+      }
+      lTemp.force(true);
+      // Anything still being appended to the results file is written first.
+      ResultsFileAppender.close(fResults.getPath());
+      if (!fResults.exists() || (fResults.length() == 0)) {
+        raf.close();
+        moveIntoPlace(fTemp,
+                      fResults);
+        return;
+      }
+      FileOutputStream lStream = new FileOutputStream(fResults,
+                                                      true);
+      try {
+        FileChannel lResults = lStream.getChannel();
+        long llSize = lTemp.size();
+        for (long ll = 0; ll < llSize;) {
+          ll += lTemp.transferTo(ll,
+                                 llSize - ll,
+                                 lResults);
+        }
+        lResults.force(true);
+      } finally {
+        lStream.close();
+      }
+      close();
+    }
+
+    /**
+     * Closes and deletes the temporary file. Called by {@link #commit}; call
+     * it in a finally block in case commit is not reached.
+     *
+     * @throws IOException if it cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+      try {
+        raf.close();
+      } finally {
+        // Gone already if it was renamed into place.
+        fTemp.delete();
+      }
+    }
+  }
+
+  // ===========================================================================
+  //                              WRITING
+  // ===========================================================================
+  /**
+   * Replaces the file at the passed path with the passed text, as UTF-8, by
+   * writing a temporary file beside it, forcing it to disk and renaming it
+   * into place.
+   *
+   * @param psPath path of the file
+   * @param psText new contents of the file
+   * @throws IOException if the file cannot be written or renamed; the old file
+   * is then left as it was
+   */
+  public static void replace(String psPath,
+                             String psText) throws IOException
+  {
+    // Anything still being appended to the old file is written first.
+    ResultsFileAppender.close(psPath);
+    File lFile = new File(psPath).getAbsoluteFile();
+    File lTemp = newTempFile(lFile);
+    boolean lbMoved = false;
+    try {
+      RandomAccessFile lRaf = new RandomAccessFile(lTemp,
+                                                   "rw");
+      try {
+        ByteBuffer lBuffer = ByteBuffer.wrap(psText.getBytes(UTF8));
+        FileChannel lChannel = lRaf.getChannel();
+        while (lBuffer.hasRemaining()) {
+          lChannel.write(lBuffer);
+        }
+        lChannel.force(true);
+      } finally {
+        lRaf.close();
+      }
+      moveIntoPlace(lTemp,
+                    lFile);
+      lbMoved = true;
+    } finally {
+      if (!lbMoved) {
+        lTemp.delete();
+      }
+    }
+  }
+
+  /**
+   * Makes an empty temporary file beside the passed file, for a caller that
+   * writes a whole file itself, e.g., in binary, and then
+   * {@link #replaceWith renames} it into place.
+   *
+   * @param pFile File the temporary file will replace
+   * @return File of the temporary file
+   * @throws IOException if it cannot be made
+   */
+  static File newTempFile(File pFile) throws IOException
+  {
+    File lFile = pFile.getAbsoluteFile();
+    return File.createTempFile(lFile.getName(),
+                               TEMP_SUFFIX,
+                               lFile.getParentFile());
+  }
+
+  /**
+   * Forces the passed temporary file, made by {@link #newTempFile}, to disk
+   * and renames it over the passed file, as {@link #replace} does. The
+   * temporary file is deleted if this fails, leaving the old file as it was.
+   *
+   * @param pTemp File written in full
+   * @param pFile File to replace
+   * @throws IOException if the file cannot be forced or renamed
+   */
+  static void replaceWith(File pTemp,
+                          File pFile) throws IOException
+  {
+    // Anything still being appended to the old file is written first.
+    ResultsFileAppender.close(pFile.getPath());
+    boolean lbMoved = false;
+    try {
+      RandomAccessFile lRaf = new RandomAccessFile(pTemp,
+                                                   "rw");
+      try {
+        lRaf.getChannel().force(true);
+      } finally {
+        lRaf.close();
+      }
+      moveIntoPlace(pTemp,
+                    pFile.getAbsoluteFile());
+      lbMoved = true;
+    } finally {
+      if (!lbMoved) {
+        pTemp.delete();
+      }
+    }
+  }
+
+  /**
+   * Renames the passed temporary file over the passed file, atomically if the
+   * file system can.
+   */
+  private static void moveIntoPlace(File pTemp,
+                                    File pFile) throws IOException
+  {
+    try {
+      Files.move(pTemp.toPath(),
+                 pFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(pTemp.toPath(),
+                 pFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Returns the header for a segment holding the passed bytes: their length
+   * and CRC-32, little-endian, ready to be written.
+   *
+   * @param pba bytes of the segment
+   * @return ByteBuffer of {@link #SEGMENT_HEADER_BYTES} bytes
+   */
+  static ByteBuffer segmentHeader(byte[] pba)
+  {
+    CRC32 lCrc = new CRC32();
+    lCrc.update(pba,
+                0,
+                pba.length);
+    return segmentHeader(pba.length,
+                         (int) lCrc.getValue());
+  }
+
+  /**
+   * Returns the header for a segment of the passed length and CRC-32.
+   */
+  static ByteBuffer segmentHeader(int piLength,
+                                  int piCrc)
+  {
+    ByteBuffer lHeader = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+    lHeader.order(ByteOrder.LITTLE_ENDIAN);
+    lHeader.putInt(piLength);
+    lHeader.putInt(piCrc);
+    lHeader.flip();
+    return lHeader;
+  }
+
+  // ===========================================================================
+  //                              READING
+  // ===========================================================================
+  /**
+   * Returns the text of every complete segment of the passed file, in order,
+   * stopping at the first segment that was cut off or fails its checksum.
+   *
+   * @param pFile File written in segments
+   * @return String of the text of the valid segments
+   * @throws IOException if the file cannot be read
+   */
+  public static String readSegments(File pFile) throws IOException
+  {
+    StringBuilder lsb = new StringBuilder();
+    scan(pFile,
+         lsb);
+    return lsb.toString();
+  }
+
+  /**
+   * Returns the number of bytes at the start of the passed file that are
+   * complete, valid segments. A file can be truncated to this length to drop
+   * a segment cut off by a crash.
+   *
+   * @param pFile File written in segments
+   * @return long number of bytes
+   * @throws IOException if the file cannot be read
+   */
+  public static long validLength(File pFile) throws IOException
+  {
+    return scan(pFile,
+                null);
+  }
+
+  /**
+   * Walks the segments of the file, appending their text to the passed
+   * StringBuilder if it is not null, and returns the end of the last valid
+   * one.
+   */
+  private static long scan(File pFile,
+                           StringBuilder psb) throws IOException
+  {
+    RandomAccessFile lRaf = new RandomAccessFile(pFile,
+                                                 "r");
+    try {
+      FileChannel lChannel = lRaf.getChannel();
+      MappedByteBuffer lMap = lChannel.map(FileChannel.MapMode.READ_ONLY,
+                                           0,
+                                           lChannel.size());
+      lMap.order(ByteOrder.LITTLE_ENDIAN);
+      CRC32 lCrc = new CRC32();
+      byte[] lba = new byte[0];
+      long llValid = 0;
+      while (lMap.remaining() >= SEGMENT_HEADER_BYTES) {
+        int liLength = lMap.getInt();
+        int liCrc = lMap.getInt();
+        if ((liLength < 0) || (liLength > lMap.remaining())) {
+          break;
+        }
+        if (lba.length < liLength) {
+          lba = new byte[liLength];
+        }
+        lMap.get(lba,
+                 0,
+                 liLength);
+        lCrc.reset();
+        lCrc.update(lba,
+                    0,
+                    liLength);
+        if ((int) lCrc.getValue() != liCrc) {
+          break;
+        }
+        if (psb != null) {
+          psb.append(new String(lba,
+                                0,
+                                liLength,
+                                UTF8));
+        }
+        llValid = lMap.position();
+      }
+      return llValid;
+    } finally {
+      lRaf.close();
+    }
+  }
+}
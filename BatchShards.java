@@ -0,0 +1,246 @@
+package fraclac.writers;
+
+import ij.IJ;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Writes batch results files in shards, one per image, so that images
+ * analyzed in parallel do not wait on each other to append to the same file,
+ * and {@link #mergeAll merges} the shards into the real files at the end of
+ * the batch.
+ * <p>
+ * Each shard holds only the data rows written for one image, in a
+ * {@link #SHARD_DIRECTORY} under the results directory, named for the file
+ * it belongs to and the image's number in the batch. Only the thread
+ * analyzing an image writes to its shard, through its own buffered stream,
+ * kept open until the shard is merged, so images neither wait on each
+ * other's rows nor share a lock. Merging appends the shards to each file in
+ * order of image number, whatever order the images finished in, through
+ * {@link ResultsFilesWriter#saveDataFileOrAppend}, so the headings are written
+ * once, when the file is made, and the compression and atomic options apply
+ * as usual.
+ * <p>
+ * Used by {@link ResultsFilesWriter} when
+ * {@link ResultsFilesWriter#bShardBatchFiles} is set, which merges the shards
+ * in {@link ResultsFilesWriter#finishBatch} once the last image of the batch
+ * is {@link ResultsFilesWriter#finishImage finished}.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class BatchShards
+{
+
+  /**
+   * Name of the directory under the results directory that holds the shards.
+   * {@value}
+   */
+  public static final String SHARD_DIRECTORY = "shards";
+  /**
+   * Suffix of shard files. {@value}
+   */
+  static final String SHARD_SUFFIX = ".part";
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * One image's shard of a results file, and the stream it is written by,
+   * opened when first written.
+   */
+  private static final class Shard
+  {
+
+    final File file;
+    Writer writer;
+
+    Shard(File pFile)
+    {
+      file = pFile;
+    }
+
+    synchronized void append(CharSequence pcs) throws IOException
+    {
+      if (writer == null) {
+        writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file,
+                                                        true),
+                                   UTF8),
+            64 * 1024);
+      }
+      writer.append(pcs);
+    }
+
+    synchronized void close() throws IOException
+    {
+      if (writer != null) {
+        writer.close();
+        writer = null;
+      }
+    }
+  }
+
+  /**
+   * The shards of one results file.
+   */
+  private static final class ShardedFile
+  {
+
+    final String sPath;
+    final String sFileName;
+    final String sHeadings;
+    /**
+     * Shards by image number, in order.
+     */
+    final ConcurrentSkipListMap<Integer, Shard> mapShards
+        = new ConcurrentSkipListMap<Integer, Shard>();
+
+    ShardedFile(String psPath,
+                String psFileName,
+                String psHeadings)
+    {
+      sPath = psPath;
+      sFileName = psFileName;
+      sHeadings = psHeadings;
+    }
+  }
+
+  /**
+   * Files with shards waiting to be merged, keyed by path and name.
+   */
+  private static final ConcurrentHashMap<String, ShardedFile> mapFiles
+      = new ConcurrentHashMap<String, ShardedFile>();
+
+  private BatchShards()
+  {
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Appends data rows for one image to its shard of a results file. The
+   * headings for the file are those passed the first time the file is
+   * sharded.
+   *
+   * @param psPath path of the directory of the results file, ending with a
+   * file separator
+   * @param psFileName name of the results file
+   * @param piImage number of the image in the batch, which orders the shards
+   * when merged
+   * @param psHeadings tab-separated headings for the results file
+   * @param psbData data rows to append
+   * @throws IOException if the shard cannot be written
+   */
+  public static void append(String psPath,
+                            String psFileName,
+                            int piImage,
+                            String psHeadings,
+                            CharSequence psbData) throws IOException
+  {
+    String lsKey = psPath + psFileName;
+    ShardedFile lFile = mapFiles.get(lsKey);
+    if (lFile == null) {
+      ShardedFile lNew = new ShardedFile(psPath,
+                                         psFileName,
+                                         psHeadings);
+      lFile = mapFiles.putIfAbsent(lsKey,
+                                   lNew);
+      if (lFile == null) {
+        lFile = lNew;
+      }
+    }
+    Shard lShard = lFile.mapShards.get(piImage);
+    if (lShard == null) {
+      File lDirectory = new File(psPath,
+                                 SHARD_DIRECTORY);
+      if (!lDirectory.isDirectory() && !lDirectory.mkdirs()
+          && !lDirectory.isDirectory()) {
+        throw new IOException("Cannot make " + lDirectory);
+      }
+      File lShardFile = new File(lDirectory,
+                                 psFileName + "." + piImage + SHARD_SUFFIX);
+      // Left over from a batch that was not merged.
+      lShardFile.delete();
+      lShard = new Shard(lShardFile);
+      lFile.mapShards.put(piImage,
+                          lShard);
+    }
+    lShard.append(psbData);
+  }
+
+  /**
+   * Merges the shards of every sharded results file into the file, in order
+   * of image number, and deletes them. Call once at the end of a batch, after
+   * every image has been written; rows still being written to a shard while
+   * it is merged may be lost. {@link IJ#log logs} IOException; a shard
+   * that cannot be read is left in place.
+   */
+  public static void mergeAll()
+  {
+    ArrayList<String> lalKeys = new ArrayList<String>(mapFiles.keySet());
+    Collections.sort(lalKeys);
+    for (String lsKey : lalKeys) {
+      ShardedFile lFile = mapFiles.remove(lsKey);
+      if (lFile != null) {
+        merge(lFile);
+      }
+    }
+  }
+
+  private static void merge(ShardedFile pFile)
+  {
+    for (Map.Entry<Integer, Shard> lEntry : pFile.mapShards.entrySet()) {
+      File lShard = lEntry.getValue().file;
+      try {
+        // Write out and close the shard before it is read.
+        lEntry.getValue().close();
+        // Append one shard at a time, so only one image's rows are in memory.
+        StringBuilder lsbData = read(lShard);
+        if (ResultsFilesWriter.saveDataFileOrAppend(pFile.sPath,
+                                                    pFile.sFileName,
+                                                    pFile.sHeadings,
+                                                    lsbData)) {
+          lShard.delete();
+        }
+      } catch (IOException ex) {
+        IJ.log(ex.toString() + " Error merging " + lShard + " "
+            + BatchShards.class.getSimpleName()
+            + (ex.getStackTrace()[0].getLineNumber()));
+      }
+    }
+    new File(pFile.sPath,
+             SHARD_DIRECTORY).delete();
+  }
+
+  private static StringBuilder read(File pShard) throws IOException
+  {
+    StringBuilder lsb = new StringBuilder((int) pShard.length());
+    BufferedReader lReader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(pShard),
+        UTF8));
+    try {
+      char[] lca = new char[8192];
+      int liRead;
+      while ((liRead = lReader.read(lca)) != -1) {
+        lsb.append(lca,
+                   0,
+                   liRead);
+      }
+    } finally {
+      lReader.close();
+    }
+    return lsb;
+  }
+}
@@ -0,0 +1,367 @@
+package fraclac.writers;
+
+import fraclac.analyzer.BoxCount;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A binary file of the raw box masses from a scan, for re-analysis without
+ * rescanning the image or parsing the tab-delimited masses files.
+ * <p>
+ * The file is little-endian. A header gives the layout, then each GRID lists
+ * its SIZEs followed by one block of masses per SIZE:
+ * <pre>
+ * header: int MAGIC, int VERSION, int precision, int number of GRIDs
+ * GRID:   int number of SIZEs, int SIZE for each
+ * block:  int number of masses, int compression, int n, n bytes of masses
+ * </pre>
+ * Masses are stored as doubles, or as floats if {@link #FLOAT} precision is
+ * asked for, which halves the file for masses that are whole pixel counts.
+ * When compression is asked for, each block is deflated and kept deflated
+ * only if that makes it smaller, so the compression of each block is given in
+ * the block.
+ * <p>
+ * {@link #open Opening} a file maps it into memory and notes where each block
+ * starts; {@link #boxCount} then reads one GRID straight into a
+ * {@link BoxCount}.
+ *
+ * @see ResultsFilesWriter#bSaveMassesAsBinary
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class BinaryMassFile
+{
+
+  /**
+   * Marks a binary mass file. {@value}
+   */
+  static final int MAGIC = 0x464c424d;
+  /**
+   * Version of the file layout. {@value}
+   */
+  static final int VERSION = 1;
+  /**
+   * Precision of masses stored as 8-byte doubles. {@value}
+   */
+  public static final int DOUBLE = 8;
+  /**
+   * Precision of masses stored as 4-byte floats. {@value}
+   */
+  public static final int FLOAT = 4;
+  /**
+   * Compression of a block stored as is. {@value}
+   */
+  static final int RAW = 0;
+  /**
+   * Compression of a deflated block. {@value}
+   */
+  static final int DEFLATED = 1;
+  /**
+   * Suffix for binary mass files. {@value}
+   */
+  public static final String SUFFIX = ".flm";
+
+  final MappedByteBuffer map;
+  final int iPrecision;
+  /**
+   * SIZEs on each GRID.
+   */
+  final int[][] i2dSIZEs;
+  /**
+   * Offset in the file of the block for each SIZE on each GRID.
+   */
+  final int[][] i2dBlockOffsets;
+
+  private BinaryMassFile(MappedByteBuffer pMap)
+  {
+    map = pMap;
+    map.order(ByteOrder.LITTLE_ENDIAN);
+    if ((map.getInt() != MAGIC) || (map.getInt() != VERSION)) {
+      throw new IllegalArgumentException("Not a binary mass file.");
+    }
+    iPrecision = map.getInt();
+    int liNumGrids = map.getInt();
+    i2dSIZEs = new int[liNumGrids][];
+    i2dBlockOffsets = new int[liNumGrids][];
+    for (int liGRID = 0; liGRID < liNumGrids; liGRID++) {
+      int liNumSIZEs = map.getInt();
+      i2dSIZEs[liGRID] = new int[liNumSIZEs];
+      i2dBlockOffsets[liGRID] = new int[liNumSIZEs];
+      for (int i = 0; i < liNumSIZEs; i++) {
+        i2dSIZEs[liGRID][i] = map.getInt();
+      }
+      for (int i = 0; i < liNumSIZEs; i++) {
+        i2dBlockOffsets[liGRID][i] = map.position();
+        map.getInt();
+        map.getInt();
+        int liBytes = map.getInt();
+        map.position(map.position() + liBytes);
+      }
+    }
+  }
+
+  // ===========================================================================
+  //                              WRITING
+  // ===========================================================================
+  /**
+   * Writes the passed masses to the passed file, replacing it if it exists.
+   * Only one block is held in memory at a time besides the passed arrays.
+   *
+   * @param pFile File to write
+   * @param pi2dSIZEs SIZEs on each GRID
+   * @param pd3dMasses masses at each SIZE on each GRID; each GRID must have
+   * masses for at least as many SIZEs as it has SIZEs
+   * @param piPrecision {@link #DOUBLE} or {@link #FLOAT}
+   * @param pbCompress true to deflate blocks that get smaller
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(File pFile,
+                           int[][] pi2dSIZEs,
+                           double[][][] pd3dMasses,
+                           int piPrecision,
+                           boolean pbCompress) throws IOException
+  {
+    if ((piPrecision != DOUBLE) && (piPrecision != FLOAT)) {
+      throw new IllegalArgumentException("Precision must be DOUBLE or FLOAT: "
+          + piPrecision);
+    }
+    RandomAccessFile lFile = new RandomAccessFile(pFile,
+                                                  "rw");
+    Deflater lDeflater = pbCompress ? new Deflater(Deflater.BEST_SPEED) : null;
+    try {
+      FileChannel lChannel = lFile.getChannel();
+      lChannel.truncate(0);
+      ByteBuffer lHeader = littleEndian(16);
+      lHeader.putInt(MAGIC).putInt(VERSION).putInt(piPrecision).putInt(
+          pd3dMasses.length);
+      write(lChannel,
+            lHeader);
+      ByteBuffer lBlock = littleEndian(0);
+      byte[] lbaDeflated = new byte[0];
+      for (int liGRID = 0; liGRID < pd3dMasses.length; liGRID++) {
+        int liNumSIZEs = pi2dSIZEs[liGRID].length;
+        ByteBuffer lSIZEs = littleEndian(4 + 4 * liNumSIZEs);
+        lSIZEs.putInt(liNumSIZEs);
+        for (int i = 0; i < liNumSIZEs; i++) {
+          lSIZEs.putInt(pi2dSIZEs[liGRID][i]);
+        }
+        write(lChannel,
+              lSIZEs);
+        for (int liSIZE = 0; liSIZE < liNumSIZEs; liSIZE++) {
+          double[] ldaMasses = pd3dMasses[liGRID][liSIZE];
+          // -------------------------------------------------------------------
+          // Put the masses into a reused block, then deflate it if asked.
+          // -------------------------------------------------------------------
+          int liRawBytes = 12 + piPrecision * ldaMasses.length;
+          if (lBlock.capacity() < liRawBytes) {
+            lBlock = littleEndian(liRawBytes);
+          }
+          lBlock.clear();
+          lBlock.position(12);
+          for (double ld : ldaMasses) {
+            if (piPrecision == FLOAT) {
+              lBlock.putFloat((float) ld);
+            } else {
+              lBlock.putDouble(ld);
+            }
+          }
+          int liCompression = RAW;
+          int liBytes = liRawBytes - 12;
+          if (lDeflater != null && liBytes > 0) {
+            if (lbaDeflated.length < liBytes) {
+              lbaDeflated = new byte[liBytes];
+            }
+            lDeflater.reset();
+            lDeflater.setInput(lBlock.array(),
+                               12,
+                               liBytes);
+            lDeflater.finish();
+            int liDeflated = lDeflater.deflate(lbaDeflated);
+            if (lDeflater.finished() && (liDeflated < liBytes)) {
+              System.arraycopy(lbaDeflated,
+                               0,
+                               lBlock.array(),
+                               12,
+                               liDeflated);
+              liCompression = DEFLATED;
+              liBytes = liDeflated;
+            }
+          }
+          lBlock.putInt(0,
+                        ldaMasses.length);
+          lBlock.putInt(4,
+                        liCompression);
+          lBlock.putInt(8,
+                        liBytes);
+          lBlock.position(0);
+          lBlock.limit(12 + liBytes);
+          write(lChannel,
+                lBlock);
+        }
+      }
+    } finally {
+      if (lDeflater != null) {
+        lDeflater.end();
+      }
+      lFile.close();
+    }
+  }
+
+  // ===========================================================================
+  //                              READING
+  // ===========================================================================
+  /**
+   * Maps the passed file into memory and notes where each block starts.
+   *
+   * @param pFile File written by {@link #write}
+   * @return BinaryMassFile
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if the file is not a binary mass file
+   */
+  public static BinaryMassFile open(File pFile) throws IOException
+  {
+    RandomAccessFile lFile = new RandomAccessFile(pFile,
+                                                  "r");
+    try {
+      FileChannel lChannel = lFile.getChannel();
+      return new BinaryMassFile(lChannel.map(FileChannel.MapMode.READ_ONLY,
+                                             0,
+                                             lChannel.size()));
+    } finally {
+      // The map stays valid after the file is closed.
+      lFile.close();
+    }
+  }
+
+  /**
+   * Returns the number of GRIDs in the file.
+   *
+   * @return int
+   */
+  public int getNumGrids()
+  {
+    return i2dSIZEs.length;
+  }
+
+  /**
+   * Returns the SIZEs on the passed GRID.
+   *
+   * @param piGRID int index of the GRID
+   * @return int [] that must not be modified
+   */
+  public int[] getSIZEs(int piGRID)
+  {
+    return i2dSIZEs[piGRID];
+  }
+
+  /**
+   * Returns the masses at one SIZE on one GRID.
+   *
+   * @param piGRID int index of the GRID
+   * @param piSIZE int index of the SIZE
+   * @return new double []
+   */
+  public double[] masses(int piGRID,
+                         int piSIZE)
+  {
+    ByteBuffer lBlock = map.duplicate();
+    lBlock.order(ByteOrder.LITTLE_ENDIAN);
+    lBlock.position(i2dBlockOffsets[piGRID][piSIZE]);
+    int liNumMasses = lBlock.getInt();
+    int liCompression = lBlock.getInt();
+    int liBytes = lBlock.getInt();
+    if (liCompression == DEFLATED) {
+      byte[] lbaDeflated = new byte[liBytes];
+      lBlock.get(lbaDeflated);
+      byte[] lbaRaw = new byte[liNumMasses * iPrecision];
+      Inflater lInflater = new Inflater();
+      try {
+        lInflater.setInput(lbaDeflated);
+        lInflater.inflate(lbaRaw);
+      } catch (DataFormatException ex) {
+        throw new IllegalArgumentException("Corrupt block of masses at GRID "
+            + piGRID + ", SIZE " + piSIZE,
+                                           ex);
+      } finally {
+        lInflater.end();
+      }
+      lBlock = ByteBuffer.wrap(lbaRaw);
+      lBlock.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    double[] ldaMasses = new double[liNumMasses];
+    if (iPrecision == FLOAT) {
+      for (int i = 0; i < liNumMasses; i++) {
+        ldaMasses[i] = lBlock.getFloat();
+      }
+    } else {
+      lBlock.asDoubleBuffer().get(ldaMasses);
+    }
+    return ldaMasses;
+  }
+
+  /**
+   * Makes a {@link BoxCount} holding the SIZEs, masses and counts of the
+   * passed GRID, as the masses {@link BoxCount#BoxCount(int[], double[][])
+   * constructor} would, without copying the masses again.
+   *
+   * @param piGRID int index of the GRID
+   * @return new BoxCount
+   */
+  public BoxCount boxCount(int piGRID)
+  {
+    int liNumSIZEs = i2dSIZEs[piGRID].length;
+    BoxCount lBoxCount = new BoxCount();
+    lBoxCount.daSIZEs = new double[liNumSIZEs];
+    lBoxCount.daCountsAtSIZEs = new double[liNumSIZEs];
+    lBoxCount.d2dPixArraysAtSIZEs = new double[liNumSIZEs][];
+    for (int i = 0; i < liNumSIZEs; i++) {
+      lBoxCount.daSIZEs[i] = i2dSIZEs[piGRID][i];
+      lBoxCount.d2dPixArraysAtSIZEs[i] = masses(piGRID,
+                                                i);
+      lBoxCount.daCountsAtSIZEs[i] = lBoxCount.d2dPixArraysAtSIZEs[i].length;
+    }
+    return lBoxCount;
+  }
+
+  /**
+   * Makes a {@link #boxCount BoxCount} for every GRID in the file.
+   *
+   * @return new BoxCount [] indexed by GRID
+   */
+  public BoxCount[] boxCounts()
+  {
+    BoxCount[] laBoxCounts = new BoxCount[getNumGrids()];
+    for (int liGRID = 0; liGRID < laBoxCounts.length; liGRID++) {
+      laBoxCounts[liGRID] = boxCount(liGRID);
+    }
+    return laBoxCounts;
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  private static ByteBuffer littleEndian(int piCapacity)
+  {
+    ByteBuffer lBuffer = ByteBuffer.allocate(piCapacity);
+    lBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    return lBuffer;
+  }
+
+  private static void write(FileChannel pChannel,
+                            ByteBuffer pBuffer) throws IOException
+  {
+    if (pBuffer.position() != 0) {
+      pBuffer.flip();
+    }
+    while (pBuffer.hasRemaining()) {
+      pChannel.write(pBuffer);
+    }
+  }
+}
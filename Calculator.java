@@ -932,6 +932,67 @@ public class Calculator extends Symbols
     return V[0];
   }
 
+  /**
+   * Returns the slope of the {@link #logVsLogPowerRegression power law
+   * regression} line from the log of each passed array of Y versus the log of
+   * the one passed array of X, the same values {@link #slopeOfPowerRegression}
+   * returns for each array on its own.
+   * <p>
+   * The method keeps no state, so no instance is made and it can be called
+   * from several threads at once. The sums of the log of X are found once and
+   * shared by all of the arrays of Y; they are summed in the same order as in
+   * {@link #logVsLogPowerRegression}, so the slopes are identical.
+   *
+   *
+   * @param pd2dY double [][] of arrays of y-values; a null array gives NaN
+   * @param pdaX double [] of x-values shared by every array of Y
+   * @param piNumSizes int for the number of entries to use in the passed X
+   * and each Y; an array of Y with fewer entries uses all of its entries
+   *
+   *
+   * @return double [] of the slope for each array of Y
+   */
+  public static double[] slopesOfPowerRegressions(final double[][] pd2dY,
+                                                  final double[] pdaX,
+                                                  final int piNumSizes)
+  {
+    // .........................................................................
+    // Running sums of the log of X, so each array of Y can use its own number
+    // of entries.
+    // .........................................................................
+    int liNumX = Math.min(piNumSizes,
+                          pdaX.length);
+    double[] ldaLogX = new double[liNumX];
+    double[] ldaSumS = new double[liNumX + 1];
+    double[] ldaSumSSq = new double[liNumX + 1];
+    for (int q = 0; q < liNumX; q++) {
+      ldaLogX[q] = Math.log(pdaX[q]);
+      ldaSumS[q + 1] = ldaSumS[q] + ldaLogX[q];
+      ldaSumSSq[q + 1] = ldaSumSSq[q] + ldaLogX[q] * ldaLogX[q];
+    }
+
+    double[] ldaSlopes = new double[pd2dY.length];
+    for (int liArray = 0; liArray < pd2dY.length; liArray++) {
+      double[] ldaY = pd2dY[liArray];
+      if (ldaY == null) {
+        ldaSlopes[liArray] = Double.NaN;
+        continue;
+      }
+      int liN = Math.min(piNumSizes,
+                         ldaY.length);
+      double ldSumSC = 0, ldSumC = 0;
+      for (int q = 0; q < liN; q++) {
+        double ldLogY = Math.log(ldaY[q]);
+        ldSumSC += ldaLogX[q] * ldLogY;
+        ldSumC += ldLogY;
+      }
+      double ldN = (double) liN;
+      ldaSlopes[liArray] = ((ldN * ldSumSC) - (ldaSumS[liN] * ldSumC))
+          / ((ldN * ldaSumSSq[liN]) - (ldaSumS[liN] * ldaSumS[liN]));
+    }
+    return ldaSlopes;
+  }
+
   /**
    * Returns the y-intercept of the {@link #logVsLogPowerRegression power law
    * regression} line from the log of Y versus the log of X
@@ -0,0 +1,270 @@
+package fraclac.writers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link ResultsSink} that keeps results in memory, one table per title,
+ * with each table's values stored by column so that a whole column can be
+ * read at once.
+ * <p>
+ * Each value is parsed once, when it is received. Numbers are kept in a
+ * primitive double array per column; a column gets an array of text only
+ * when it receives a value that is not a number, e.g., a file name or
+ * {@value fraclac.utilities.Symbols#NC}, and that array holds only such
+ * values. A column of numbers therefore takes 8 bytes a row, less than the
+ * text it was made from.
+ * <p>
+ * Rows passed for a title that already has a table are added to it, as they
+ * would have been appended to the window. Methods are synchronized so
+ * several threads can share the sink.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class ColumnStoreSink implements ResultsSink
+{
+
+  /**
+   * Rows a column has room for when it is made. {@value}
+   */
+  static final int INITIAL_ROWS = 64;
+
+  /**
+   * The values of one column.
+   */
+  static final class Column
+  {
+
+    /**
+     * Value of each row; NaN where the row is empty or holds text.
+     */
+    double[] daValues;
+    /**
+     * Text of each row that is not a number; null until the column receives
+     * such a value, and null at rows that hold numbers or are empty.
+     */
+    String[] saText;
+
+    Column(int piRows)
+    {
+      daValues = new double[Math.max(INITIAL_ROWS,
+                                     piRows)];
+      Arrays.fill(daValues,
+                  Double.NaN);
+    }
+
+    void set(int piRow,
+             CharSequence pcsData,
+             int piStart,
+             int piEnd)
+    {
+      ensure(piRow + 1);
+      if (piEnd == piStart) {
+        return;
+      }
+      String lsValue = pcsData.subSequence(piStart,
+                                           piEnd).toString();
+      if (looksNumeric(pcsData.charAt(piStart))) {
+        try {
+          daValues[piRow] = Double.parseDouble(lsValue);
+          return;
+        } catch (NumberFormatException ex) {
+          // Not a number after all; kept as text below.
+        }
+      }
+      if (saText == null) {
+        saText = new String[daValues.length];
+      }
+      saText[piRow] = lsValue;
+    }
+
+    void ensure(int piRows)
+    {
+      if (piRows <= daValues.length) {
+        return;
+      }
+      int liOld = daValues.length;
+      int liNew = Math.max(piRows,
+                           liOld + (liOld >> 1));
+      daValues = Arrays.copyOf(daValues,
+                               liNew);
+      Arrays.fill(daValues,
+                  liOld,
+                  liNew,
+                  Double.NaN);
+      if (saText != null) {
+        saText = Arrays.copyOf(saText,
+                               liNew);
+      }
+    }
+
+    private static boolean looksNumeric(char pc)
+    {
+      return ((pc >= '0') && (pc <= '9')) || (pc == '-') || (pc == '+')
+          || (pc == '.') || (pc == 'N') || (pc == 'I');
+    }
+  }
+
+  /**
+   * The values for one title.
+   */
+  static class Table
+  {
+
+    String[] saHeadings;
+    Column[] aColumns = new Column[0];
+    int iNumRows;
+  }
+
+  private final Map<String, Table> mapTables
+      = new LinkedHashMap<String, Table>();
+
+  @Override
+  public synchronized void accept(String psTitle,
+                                  CharSequence pcsHeadings,
+                                  CharSequence pcsData)
+  {
+    Table lTable = mapTables.get(psTitle);
+    if (lTable == null) {
+      lTable = new Table();
+      lTable.saHeadings = pcsHeadings.toString().split("\t",
+                                                       -1);
+      mapTables.put(psTitle,
+                    lTable);
+    }
+    // -------------------------------------------------------------------------
+    // Split the rows at new lines and the values at TABs, putting each value
+    // into its column; short rows leave the rest of their columns empty.
+    // -------------------------------------------------------------------------
+    int liLength = pcsData.length();
+    int liStart = 0;
+    while (liStart < liLength) {
+      int liEnd = liStart;
+      while ((liEnd < liLength) && (pcsData.charAt(liEnd) != '\n')) {
+        liEnd++;
+      }
+      int liRowEnd = ((liEnd > liStart) && (pcsData.charAt(liEnd - 1) == '\r'))
+          ? liEnd - 1 : liEnd;
+      if (liRowEnd > liStart) {
+        addRow(lTable,
+               pcsData,
+               liStart,
+               liRowEnd);
+      }
+      liStart = liEnd + 1;
+    }
+  }
+
+  private static void addRow(Table pTable,
+                             CharSequence pcsData,
+                             int piStart,
+                             int piEnd)
+  {
+    int liColumn = 0;
+    int liValueStart = piStart;
+    for (int i = piStart; i <= piEnd; i++) {
+      if ((i == piEnd) || (pcsData.charAt(i) == '\t')) {
+        if (liColumn == pTable.aColumns.length) {
+          pTable.aColumns = Arrays.copyOf(pTable.aColumns,
+                                          liColumn + 1);
+          pTable.aColumns[liColumn] = new Column(pTable.iNumRows + 1);
+        }
+        pTable.aColumns[liColumn].set(pTable.iNumRows,
+                                      pcsData,
+                                      liValueStart,
+                                      i);
+        liColumn++;
+        liValueStart = i + 1;
+      }
+    }
+    pTable.iNumRows++;
+  }
+
+  /**
+   * Returns the titles received, in the order first received.
+   *
+   * @return Set of titles that cannot be changed
+   */
+  public synchronized Set<String> getTitles()
+  {
+    return Collections.unmodifiableSet(mapTables.keySet());
+  }
+
+  /**
+   * Returns the headings received for the passed title.
+   *
+   * @param psTitle title of the table
+   * @return String [] of headings, or null if there is no such table
+   */
+  public synchronized String[] getHeadings(String psTitle)
+  {
+    Table lTable = mapTables.get(psTitle);
+    return (lTable == null) ? null : lTable.saHeadings.clone();
+  }
+
+  /**
+   * Returns the number of rows received for the passed title.
+   *
+   * @param psTitle title of the table
+   * @return int number of rows, 0 if there is no such table
+   */
+  public synchronized int getNumRows(String psTitle)
+  {
+    Table lTable = mapTables.get(psTitle);
+    return (lTable == null) ? 0 : lTable.iNumRows;
+  }
+
+  /**
+   * Returns the numbers in one column of the table for the passed title.
+   *
+   * @param psTitle title of the table
+   * @param piColumn int 0-based index of the column
+   * @return double [] copy of the column, one value per row, NaN where the
+   * row is empty or holds {@link #getText text}; empty if there is no such
+   * table or column
+   */
+  public synchronized double[] getValues(String psTitle,
+                                         int piColumn)
+  {
+    Table lTable = mapTables.get(psTitle);
+    if ((lTable == null) || (piColumn >= lTable.aColumns.length)) {
+      return new double[0];
+    }
+    return Arrays.copyOf(lTable.aColumns[piColumn].daValues,
+                         lTable.iNumRows);
+  }
+
+  /**
+   * Returns the values in one column of the table for the passed title that
+   * are not numbers.
+   *
+   * @param psTitle title of the table
+   * @param piColumn int 0-based index of the column
+   * @return String [] copy of the column, one value per row, null where the
+   * row is empty or holds a {@link #getValues number}; empty if there is no
+   * such table or column
+   */
+  public synchronized String[] getText(String psTitle,
+                                       int piColumn)
+  {
+    Table lTable = mapTables.get(psTitle);
+    if ((lTable == null) || (piColumn >= lTable.aColumns.length)) {
+      return new String[0];
+    }
+    String[] lsaText = lTable.aColumns[piColumn].saText;
+    return (lsaText == null) ? new String[lTable.iNumRows]
+        : Arrays.copyOf(lsaText,
+                        lTable.iNumRows);
+  }
+
+  /**
+   * Drops every table.
+   */
+  public synchronized void clear()
+  {
+    mapTables.clear();
+  }
+}
@@ -2,6 +2,7 @@ package fraclac.writers;
 
 import fraclac.analyzer.DataProcessor;
 import fraclac.utilities.Utils;
+import java.io.IOException;
 
 /**
  * Methods for generating Strings and StringBuilders using processed data from
@@ -17,6 +18,19 @@ import fraclac.utilities.Utils;
  */
 public class DLCWriter extends DataStringFormatter {
 
+	/**
+	 * Characters of rows held by
+	 * {@link #writeDlcDataFileTabbedRowsEachGRIDThisSlice} before they are
+	 * passed on. {@value}
+	 */
+	public static final int STREAM_CHUNK_CHARS = 64 * 1024;
+
+	/**
+	 * Most characters {@link #getDlcDataFileTabbedRowsEachGRIDThisSlice}
+	 * reserves for its buffer before the rows are made. {@value}
+	 */
+	public static final int PRESIZE_MAX_CHARS = 1 << 22;
+
 	/**
    *
    */
@@ -31,6 +45,9 @@ public class DLCWriter extends DataStringFormatter {
 	 * Is called by the
 	 * {@link fraclac.analyzer.Scan#appendDataFileStringsForEachGRIDOnThisSlice
 	 * scanner} for a local connected fractal dimension scan.
+	 * When the file is being saved rather than shown, use
+	 * {@link ResultsFilesWriter#streamDlcDataFile} instead, which writes the
+	 * same rows without holding them all.
 	 * 
 	 * <h5>Basic Structure</h5>
 	 * <ol>
@@ -56,35 +73,232 @@ public class DLCWriter extends DataStringFormatter {
 			double[][] pd2dMatchedConnectedMassAtPixandSIZE,
 			double[][] pd2dTotalMassAtPixandSIZE) {
 
-		StringBuilder r = new StringBuilder("Masses for Matched Connected Sets")
-				.append(newline);
+		int liNumPixels = pd2dDlcPix[0].length;
+		int liNumSIZEs = pi2dSIZEs[0].length;
+		// Every row is appended straight into this one buffer. It starts small
+		// and, once the first row is made, is grown to what that row's length
+		// predicts for the whole file, up to PRESIZE_MAX_CHARS; past that it
+		// grows as rows are added.
+		StringBuilder r = new StringBuilder(1024);
 
-		for (int i = 0; i < pd2dDlcPix[0].length; i++) {
-			r.append(
-					tabbedRowOfMatchedDlcDataAtThisPixel(i, pi2dSIZEs,
-							pd2dDlcPix, pd2dMatchedConnectedMassAtPixandSIZE,
-							piBorder)).append(newline);
+		r.append("Masses for Matched Connected Sets").append(newline);
+
+		for (int i = 0; i < liNumPixels; i++) {
+			appendTabbedRowOfMassesAtPixel(r, i, liNumSIZEs, pd2dDlcPix,
+					piBorder / 2d, pd2dMatchedConnectedMassAtPixandSIZE)
+					.append(newline);
+			if (i == 0) {
+				r.ensureCapacity((int) Math.min(PRESIZE_MAX_CHARS, 3L
+						* liNumPixels * r.length() + 128));
+			}
 		}
 
 		r.append("Masses for All Connected Sets").append(newline);
 
-		for (int i = 0; i < pd2dDlcPix[0].length; i++) {
-
-			r.append(
-					allDlcDataAtThisPixel(i, pi2dSIZEs, pd2dDlcPix, piBorder,
-							pd2dAllConnectedMassAtPixandSIZE)).append(newline);
+		for (int i = 0; i < liNumPixels; i++) {
+			// The integer half border is kept from allDlcDataAtThisPixel.
+			appendTabbedRowOfMassesAtPixel(r, i, liNumSIZEs, pd2dDlcPix,
+					piBorder / 2, pd2dAllConnectedMassAtPixandSIZE).append(
+					newline);
 		}
 
 		r.append("Total Masses").append(newline);
 
+		for (int i = 0; i < liNumPixels; i++) {
+			appendTabbedRowOfMassesAtPixel(r, i, liNumSIZEs, pd2dDlcPix,
+					piBorder / 2d, pd2dTotalMassAtPixandSIZE).append(newline);
+		} // followed by lines of slopes and columns of data
+		return r;
+	}
+
+	/**
+	 * Writes the same rows as {@link #getDlcDataFileTabbedRowsEachGRIDThisSlice}
+	 * to the passed Appendable as they are made, instead of building them all
+	 * first, so memory stays bounded however many pixels there are. Each
+	 * section is one pass over the pixels; rows are built in one reused buffer
+	 * and passed on in chunks of about {@link #STREAM_CHUNK_CHARS}.
+	 * 
+	 * @param pOut
+	 *            Appendable the rows are written to, e.g., a Writer
+	 * @param pd2dDlcPix
+	 * @param pi2dSIZEs
+	 * @param piBorder
+	 * @param pd2dAllConnectedMassAtPixandSIZE
+	 * @param pd2dMatchedConnectedMassAtPixandSIZE
+	 * @param pd2dTotalMassAtPixandSIZE
+	 * 
+	 * @throws IOException
+	 *             if pOut throws it
+	 */
+	public static void writeDlcDataFileTabbedRowsEachGRIDThisSlice(
+			Appendable pOut, double[][] pd2dDlcPix, int[][] pi2dSIZEs,
+			int piBorder, double[][] pd2dAllConnectedMassAtPixandSIZE,
+			double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+			double[][] pd2dTotalMassAtPixandSIZE) throws IOException {
+
+		StringBuilder lsbChunk = new StringBuilder(STREAM_CHUNK_CHARS + 1024);
+
+		lsbChunk.append("Masses for Matched Connected Sets").append(newline);
+		streamSection(pOut, lsbChunk, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2d, pd2dMatchedConnectedMassAtPixandSIZE);
+
+		lsbChunk.append("Masses for All Connected Sets").append(newline);
+		// The integer half border is kept from allDlcDataAtThisPixel.
+		streamSection(pOut, lsbChunk, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2, pd2dAllConnectedMassAtPixandSIZE);
+
+		lsbChunk.append("Total Masses").append(newline);
+		streamSection(pOut, lsbChunk, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2d, pd2dTotalMassAtPixandSIZE);
+
+		if (lsbChunk.length() > 0) {
+			pOut.append(lsbChunk);
+		}
+	}
+
+	/**
+	 * Writes the same rows as {@link #writeDlcDataFileTabbedRowsEachGRIDThisSlice}
+	 * to the passed encoder, one {@link #encodeTabbedRowOfMassesAtPixel row}
+	 * at a time, with no String made of any value or row. An encoder made
+	 * with a channel passes the bytes on each time its buffer is full, so
+	 * memory stays bounded however many pixels there are.
+	 * 
+	 * @param pEncoder
+	 *            encoder written to
+	 * @param pd2dDlcPix
+	 * @param pi2dSIZEs
+	 * @param piBorder
+	 * @param pd2dAllConnectedMassAtPixandSIZE
+	 * @param pd2dMatchedConnectedMassAtPixandSIZE
+	 * @param pd2dTotalMassAtPixandSIZE
+	 * 
+	 * @throws IOException
+	 *             if pEncoder throws it
+	 */
+	public static void encodeDlcDataFileTabbedRowsEachGRIDThisSlice(
+			TabbedRecordEncoder pEncoder, double[][] pd2dDlcPix,
+			int[][] pi2dSIZEs, int piBorder,
+			double[][] pd2dAllConnectedMassAtPixandSIZE,
+			double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+			double[][] pd2dTotalMassAtPixandSIZE) throws IOException {
+
+		pEncoder.append("Masses for Matched Connected Sets").newline();
+		encodeSection(pEncoder, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2d, pd2dMatchedConnectedMassAtPixandSIZE);
+
+		pEncoder.append("Masses for All Connected Sets").newline();
+		// The integer half border is kept from allDlcDataAtThisPixel.
+		encodeSection(pEncoder, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2, pd2dAllConnectedMassAtPixandSIZE);
+
+		pEncoder.append("Total Masses").newline();
+		encodeSection(pEncoder, pd2dDlcPix, pi2dSIZEs[0].length,
+				piBorder / 2d, pd2dTotalMassAtPixandSIZE);
+	}
+
+	/**
+	 * Writes one row per pixel to the encoder.
+	 */
+	private static void encodeSection(TabbedRecordEncoder pEncoder,
+			double[][] pd2dDlcPix, int piNumSIZEs, double pdHalfBorder,
+			double[][] pd2dMassAtPixAndSIZE) throws IOException {
 		for (int i = 0; i < pd2dDlcPix[0].length; i++) {
+			encodeTabbedRowOfMassesAtPixel(pEncoder, i, piNumSIZEs,
+					pd2dDlcPix, pdHalfBorder, pd2dMassAtPixAndSIZE).newline();
+		}
+	}
 
-			r.append(
-					tabbedRowOfDlcMassForPixel(i, pi2dSIZEs, piBorder,
-							pd2dDlcPix, pd2dTotalMassAtPixandSIZE)).append(
+	/**
+	 * Appends one row per pixel to the chunk, passing the chunk on to pOut and
+	 * emptying it whenever it reaches {@link #STREAM_CHUNK_CHARS}.
+	 */
+	private static void streamSection(Appendable pOut,
+			StringBuilder psbChunk, double[][] pd2dDlcPix, int piNumSIZEs,
+			double pdHalfBorder, double[][] pd2dMassAtPixAndSIZE)
+			throws IOException {
+		for (int i = 0; i < pd2dDlcPix[0].length; i++) {
+			appendTabbedRowOfMassesAtPixel(psbChunk, i, piNumSIZEs,
+					pd2dDlcPix, pdHalfBorder, pd2dMassAtPixAndSIZE).append(
 					newline);
-		} // followed by lines of slopes and columns of data
-		return r;
+			if (psbChunk.length() >= STREAM_CHUNK_CHARS) {
+				pOut.append(psbChunk);
+				psbChunk.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Appends to the passed StringBuilder one TAB-delimited row for a pixel:
+	 * its x and y coordinates, shifted by - pdHalfBorder, then its mass at
+	 * each size. Each value is followed by a TAB. Used for every section of
+	 * the {@link #getDlcDataFileTabbedRowsEachGRIDThisSlice data file}, so the
+	 * rows are built in one buffer without intermediate Strings.
+	 * 
+	 * @param psb
+	 *            StringBuilder appended to
+	 * @param piPixelIndex
+	 *            int index of the pixel in pd2dDlcPix[0] and [1]
+	 * @param piNumSIZEs
+	 *            int number of sizes
+	 * @param pd2dDlcPix
+	 *            double [][] of x and y coordinates
+	 * @param pdHalfBorder
+	 *            double subtracted from the coordinates
+	 * @param pd2dMassAtPixAndSIZE
+	 *            double [][] of mass at [pixel][size]
+	 * 
+	 * @return the passed StringBuilder
+	 */
+	public static StringBuilder appendTabbedRowOfMassesAtPixel(
+			StringBuilder psb, int piPixelIndex, int piNumSIZEs,
+			double[][] pd2dDlcPix, double pdHalfBorder,
+			double[][] pd2dMassAtPixAndSIZE) {
+		psb.append(Utils.fnum(pd2dDlcPix[0][piPixelIndex] - pdHalfBorder))
+				.append(TAB)
+				.append(Utils.fnum(pd2dDlcPix[1][piPixelIndex] - pdHalfBorder))
+				.append(TAB);
+		double[] ldaMasses = pd2dMassAtPixAndSIZE[piPixelIndex];
+		for (int i = 0; i < piNumSIZEs; i++) {
+			psb.append(ldaMasses[i]).append(TAB);
+		}
+		return psb;
+	}
+
+	/**
+	 * Writes the row made by {@link #appendTabbedRowOfMassesAtPixel} to the
+	 * passed encoder. The coordinates are written as fnum writes them and the
+	 * masses as {@link StringBuilder#append(double)} does, as in the text
+	 * row, so rows from either method can be in one file.
+	 * 
+	 * @param pEncoder
+	 *            encoder written to
+	 * @param piPixelIndex
+	 *            int index of the pixel in pd2dDlcPix[0] and [1]
+	 * @param piNumSIZEs
+	 *            int number of sizes
+	 * @param pd2dDlcPix
+	 *            double [][] of x and y coordinates
+	 * @param pdHalfBorder
+	 *            double subtracted from the coordinates
+	 * @param pd2dMassAtPixAndSIZE
+	 *            double [][] of mass at [pixel][size]
+	 * 
+	 * @return the passed encoder
+	 * 
+	 * @throws IOException
+	 *             if pEncoder throws it
+	 */
+	public static TabbedRecordEncoder encodeTabbedRowOfMassesAtPixel(
+			TabbedRecordEncoder pEncoder, int piPixelIndex, int piNumSIZEs,
+			double[][] pd2dDlcPix, double pdHalfBorder,
+			double[][] pd2dMassAtPixAndSIZE) throws IOException {
+		pEncoder.field(pd2dDlcPix[0][piPixelIndex] - pdHalfBorder).field(
+				pd2dDlcPix[1][piPixelIndex] - pdHalfBorder);
+		double[] ldaMasses = pd2dMassAtPixAndSIZE[piPixelIndex];
+		for (int i = 0; i < piNumSIZEs; i++) {
+			pEncoder.fieldAsAppended(ldaMasses[i]);
+		}
+		return pEncoder;
 	}
 
 	/**
@@ -104,16 +318,10 @@ public class DLCWriter extends DataStringFormatter {
 														// pixel
 		int liNumBoxSizes = pi2dSIZEs[0].length;// the number of epsilons
 		double ldHalfBorder = piBorder / 2;
-		String lsDataString = Utils.fnum(pd2dDlcPix[0][piPixelIndex]
-				- ldHalfBorder)
-				+ TAB
-				+ Utils.fnum(pd2dDlcPix[1][piPixelIndex] - ldHalfBorder)
-				+ TAB;
-		for (int i = 0; i < liNumBoxSizes; i++) {
-			lsDataString = lsDataString
-					+ pd2dAllConnMassAtPixAndSIZE[piPixelIndex][i] + TAB;
-		}
-		return lsDataString;
+		return appendTabbedRowOfMassesAtPixel(
+				new StringBuilder((liNumBoxSizes + 2) * 12), piPixelIndex,
+				liNumBoxSizes, pd2dDlcPix, ldHalfBorder,
+				pd2dAllConnMassAtPixAndSIZE).toString();
 	}
 
 	/**
@@ -157,6 +365,72 @@ public class DLCWriter extends DataStringFormatter {
 		return lsbData;
 	}
 
+	/**
+	 * Appends to the passed StringBuilder the same row as
+	 * {@link #tabbedRowOfDlcSummaryByPixel}, taking the values from arrays in
+	 * the order of {@link DlcRasterFile#BAND_NAMES} instead of from a
+	 * DataProcessor, so rows can be made from results computed elsewhere, e.g.,
+	 * by {@link DlcTiles#regressPerPixel}.
+	 * 
+	 * @param psb
+	 *            StringBuilder appended to
+	 * @param piIndex
+	 *            int for this pixel location
+	 * @param piBorder
+	 *            int
+	 * @param d2dDlcPix
+	 *            double [][] of x and y coordinates
+	 * @param pd2dBands
+	 *            double [band][pixel] of the eight values
+	 * 
+	 * @return the passed StringBuilder
+	 */
+	public static StringBuilder appendTabbedRowOfDlcSummaryByPixel(
+			StringBuilder psb, int piIndex, int piBorder, double[][] d2dDlcPix,
+			double[][] pd2dBands) {
+		int jj = piBorder / 2;
+		psb.append(d2dDlcPix[0][piIndex] - jj).append(TAB)
+				.append(d2dDlcPix[1][piIndex] - jj).append(TAB);
+		for (int liBand = 0; liBand < pd2dBands.length; liBand++) {
+			psb.append(Utils.fnum(pd2dBands[liBand][piIndex])).append(TAB);
+		}
+		return psb;
+	}
+
+	/**
+	 * Writes the row made by {@link #appendTabbedRowOfDlcSummaryByPixel} to
+	 * the passed encoder. As in the text row, the coordinates are written as
+	 * {@link StringBuilder#append(double)} writes them and the other values
+	 * as fnum does.
+	 * 
+	 * @param pEncoder
+	 *            encoder written to
+	 * @param piIndex
+	 *            int for this pixel location
+	 * @param piBorder
+	 *            int
+	 * @param d2dDlcPix
+	 *            double [][] of x and y coordinates
+	 * @param pd2dBands
+	 *            double [band][pixel] of the eight values
+	 * 
+	 * @return the passed encoder
+	 * 
+	 * @throws IOException
+	 *             if pEncoder throws it
+	 */
+	public static TabbedRecordEncoder encodeTabbedRowOfDlcSummaryByPixel(
+			TabbedRecordEncoder pEncoder, int piIndex, int piBorder,
+			double[][] d2dDlcPix, double[][] pd2dBands) throws IOException {
+		int jj = piBorder / 2;
+		pEncoder.fieldAsAppended(d2dDlcPix[0][piIndex] - jj).fieldAsAppended(
+				d2dDlcPix[1][piIndex] - jj);
+		for (int liBand = 0; liBand < pd2dBands.length; liBand++) {
+			pEncoder.field(pd2dBands[liBand][piIndex]);
+		}
+		return pEncoder;
+	}
+
 	/**
 	 * Returns a tab-delimited string of the values in
 	 * pd2dLCFDpix[0][p]-border/2 and [1][p]-border/2 for the xy coordinates of
@@ -196,21 +470,10 @@ public class DLCWriter extends DataStringFormatter {
 																				// pixel
 		int liNumBoxSizes = pi2dSIZEs[0].length;// the number of epsilons
 		double ldHalfBorder = piBorder / 2d;
-		StringBuilder lsDataString = new StringBuilder("");
-
-		lsDataString.append(Utils.fnum(pd2dDlcPix[0][piGRID] - ldHalfBorder))
-				.append(TAB)
-				.append(Utils.fnum(pd2dDlcPix[1][piGRID] - ldHalfBorder))
-				.append(TAB);
-
-		for (int liSIZEIndex = 0; liSIZEIndex < liNumBoxSizes; liSIZEIndex++) {
-
-			lsDataString
-					.append(pd2dMassInConnSetAndMaxSetAtPixAndSIZE[piGRID][liSIZEIndex])
-					.append(TAB);
-
-		}
-		return lsDataString;
+		return appendTabbedRowOfMassesAtPixel(
+				new StringBuilder((liNumBoxSizes + 2) * 12), piGRID,
+				liNumBoxSizes, pd2dDlcPix, ldHalfBorder,
+				pd2dMassInConnSetAndMaxSetAtPixAndSIZE);
 	}
 
 	/**
@@ -242,15 +505,9 @@ public class DLCWriter extends DataStringFormatter {
 		int liNumSizes = pi2dSIZEs[0].length;
 		// assumes all iGRID are the same as first
 		double ldHalfBorder = piBorder / 2d;
-		StringBuilder lSb = new StringBuilder("");
-		lSb.append(Utils.fnum(pd2dDlcPix[0][piIndex] - ldHalfBorder))
-				.append(TAB)
-				.append(Utils.fnum(pd2dDlcPix[1][piIndex] - ldHalfBorder))
-				.append(TAB);
-		for (int iTab = 0; iTab < liNumSizes; iTab++) {
-			lSb.append(d2dMassAtPixAndSIZE[piIndex][iTab]).append(TAB);
-		}
-		return lSb;
+		return appendTabbedRowOfMassesAtPixel(
+				new StringBuilder((liNumSizes + 2) * 12), piIndex, liNumSizes,
+				pd2dDlcPix, ldHalfBorder, d2dMassAtPixAndSIZE);
 
 	}
 
@@ -5,10 +5,14 @@ import fraclac.analyzer.Data;
 import fraclac.analyzer.DataProcessor;
 import fraclac.utilities.ArrayMethods;
 import fraclac.utilities.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Methods that return Strings or StringBuilders for writing results from null
@@ -55,6 +59,17 @@ public class DataStringFormatter extends WriteUtilities
    */
   static String nextColumn = TAB;
 
+  /**
+   * Worker threads the rows for each {@link fraclac.analyzer.Vars#iNumGrids
+   * GRID} of a slice are formatted on, each by its own
+   * {@link GRIDRowFormatter}; 1, the default, formats on the calling thread.
+   * <p>
+   * The rows are formatted with {@link fraclac.utilities.Utils#fnum}; set
+   * this above 1 only where fnum is known to be safe to call from several
+   * threads at once, i.e., does not share one DecimalFormat between them.
+   */
+  public static int iGRIDWorkerThreads = 1;
+
   /**
    * A tabbed string of 6 headings that ends with a TAB; is used for data file
    * {@link #part2ADataFileSlopeColumnsF_SS_ matrices}.
@@ -179,20 +194,42 @@ public class DataStringFormatter extends WriteUtilities
     lsbData[0] = new StringBuilder();
     lsbData[1] = new StringBuilder();
     lsbData[2] = new StringBuilder();
+    // .....Each GRID is formatted by its own GRIDRowFormatter, so the GRIDs
+    // .....can be done at once; the rows are joined in GRID order. Only the
+    // .....first GRID makes headings.
+    List<Callable<StringBuilder[]>> lalTasks
+        = new ArrayList<Callable<StringBuilder[]>>(pDP.scan.vars.iNumGrids);
+    for (int g = 0; g < pDP.scan.vars.iNumGrids; g++) {
+      final int liGRID = g;
+      final String lsTitle = psbaTitles[g].toString();
+      final String lsScanType = psScanType;
+      final DataProcessor lDP = pDP;
+      final boolean lbHeadings = (g == 0);
+      lalTasks.add(new Callable<StringBuilder[]>()
+      {
+        @Override
+        public StringBuilder[] call()
+        {
+          GRIDRowFormatter lFormatter = new GRIDRowFormatter(liGRID,
+                                                             lsTitle,
+                                                             lsScanType,
+                                                             lDP);
+          return new StringBuilder[]{
+            lFormatter.appendData(new StringBuilder()),
+            lbHeadings ? new StringBuilder(HeadingCache.dataFilePart1Headings(
+                lDP.scan.vars.iMaxFrequencies > 0,
+                lFormatter)) : null};
+        }
+      });
+    }
 
-    for (int liGRID = 0; liGRID < pDP.scan.vars.iNumGrids; liGRID++) {
-
-      String[] lsArray
-          = part1DataFileRowsThisGRID(liGRID,
-                                      psbaTitles[liGRID].toString(),
-                                      psScanType,
-                                      pDP);
-
-      lsbData[0].append(lsArray[0])
+    for (StringBuilder[] lsbaRows
+        : GRIDRowFormatter.callInOrder(lalTasks,
+                                       iGRIDWorkerThreads)) {
+      lsbData[0].append(lsbaRows[0])
           .append(newline);
-
-      if (liGRID == 0) {
-        lsbData[1].append(lsArray[1]);
+      if (lsbaRows[1] != null) {
+        lsbData[1].append(lsbaRows[1]);
       }
     }
     // .........................................................................
@@ -285,12 +322,25 @@ public class DataStringFormatter extends WriteUtilities
 
     StringBuilder lsbFilteredSmoothed = new StringBuilder("");
     // ============= append a summary string for each scan location=============
+    List<Callable<String>> lalTasks = new ArrayList<Callable<String>>(liGRIDs);
     for (int g = 0; g < liGRIDs; g++) {
-      lsbFilteredSmoothed
-          .append(
-              part1DataFileRowsF_SS_AndFsBAtThisGRID(g,
-                                                     sbaTitles[g].toString(),
-                                                     pDP))
+      final int liGRID = g;
+      final String lsTitle = sbaTitles[g].toString();
+      final DataProcessor lDP = pDP;
+      lalTasks.add(new Callable<String>()
+      {
+        @Override
+        public String call()
+        {
+          return part1DataFileRowsF_SS_AndFsBAtThisGRID(liGRID,
+                                                        lsTitle,
+                                                        lDP);
+        }
+      });
+    }
+    for (String lsRow : GRIDRowFormatter.callInOrder(lalTasks,
+                                                      iGRIDWorkerThreads)) {
+      lsbFilteredSmoothed.append(lsRow)
           .append(newline);
     }
     // ===== append lines of slopes and columns of data for each filter=========
@@ -311,9 +361,8 @@ public class DataStringFormatter extends WriteUtilities
    * and one of headings in the second, holding data for one
    * {@link fraclac.analyzer.Vars#iNumGrids GRID}.
    *
-   * Prior to making the enumStrings it calls {@link #loadMaps}, then it calls
-   * {@link #appendTabbedHeadingsForSingleGrid} for each map in the class and
-   * appends the values to a StringBuilder.
+   * The maps are those of a new {@link GRIDRowFormatter} for the GRID, not the
+   * static maps in this class, so GRIDs can be formatted at the same time.
    *
    *
    * @param piGRID int for the current {@link fraclac.analyzer.Vars#iNumGrids
@@ -330,75 +379,57 @@ public class DataStringFormatter extends WriteUtilities
                                                    String psScanType,
                                                    DataProcessor pDP)
   {
-    // .........................................................................
-    //                  Prepare maps and StringBuilders
-    // .........................................................................
-    loadMaps(psImageInfo,
-             psScanType,
-             pDP,
-             piGRID);
-
-    StringBuilder lsbData = new StringBuilder();
-    StringBuilder lsbHeadings = new StringBuilder();
-    // .........................................................................
-    //  Make a string of data and one of headings.
-    //  The headings string is only needed once, when the
-    //  file is written or shown in a TextWindow, but is
-    // generated with each call in case there is only one
-    // string written before the file is made.
-    // FIXME to flag the method to only make the headings when needed.
-    // ================== append file name and info ============================
-    lsbData.append(infoMap.get(Headings.EnumInfoData.INFO)).append(TAB);
-    lsbHeadings.append(Headings.EnumInfoData.INFO).append(TAB);
-    // ======================= append count data================================
-    lsbData.append(appendTabbedData(dataFileCountMap));
-    lsbHeadings
-        .append(appendTabbedHeadingsForSingleGrid(
-                dataFileCountMap.get(Headings.EnumDataFile.NAME).toString(),
-                dataFileCountMap.keySet()));
-    // ==================== append mass data====================================
-    lsbData.append(appendTabbedData(dataFileMassMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(dataFileMassMap
-        .get(Headings.EnumDataFile.NAME).toString(),
-                                                         dataFileMassMap
-                                                         .keySet()));
-    // ================append smoothed smallest filtered data===================
-    lsbData.append(appendTabbedData(dataFileSSMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(
-        dataFileSSMap.get(Headings.EnumDataFile.NAME).toString(),
-        dataFileSSMap.keySet()));
-    // ============ append smoothed biggest filtered map========================
-    lsbData.append(appendTabbedData(dataFileSBMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(
-        dataFileSBMap.get(Headings.EnumDataFile.NAME).toString(),
-        dataFileSBMap.keySet()));
-    // ================= append lacunarity data=================================
-    lsbData.append(appendTabbedData(dataFileLacMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(dataFileLacMap
-        .get(Headings.EnumLacData.NAME).toString(),
-                                                         dataFileLacMap
-                                                         .keySet()));
-    // =================== append probabilities lacunarity data=================
-    lsbData.append(appendTabbedData(dataFileProbMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(dataFileProbMap
-        .get(Headings.EnumLacData.NAME).toString(),
-                                                         dataFileProbMap
-                                                         .keySet()));
-    // ============ append probability distribution lacunarity data=============
-    lsbData.append(appendTabbedData(dataFilePDMap));
-    lsbHeadings.append(appendTabbedHeadingsForSingleGrid(
-        dataFilePDMap.get(Headings.EnumLacData.NAME).toString(),
-        dataFilePDMap.keySet()));
+    GRIDRowFormatter lFormatter = new GRIDRowFormatter(piGRID,
+                                                       psImageInfo,
+                                                       psScanType,
+                                                       pDP);
     // .........................................................................
     // ................return an array of data and headings.....................
     // .........................................................................
-    return new String[]{lsbData.toString(), lsbHeadings.toString()};
+    return new String[]{
+      lFormatter.appendData(new StringBuilder()).toString(),
+      HeadingCache.dataFilePart1Headings(pDP.scan.vars.iMaxFrequencies > 0,
+                                         lFormatter)};
 
   }
 
+  /**
+   * Writes the data row made by {@link #part1DataFileRowsThisGRID} to the
+   * passed encoder instead of a String, for writing with
+   * {@link ResultsFilesWriter#writeToEndOfTextFile(String, TabbedRecordEncoder)}.
+   * The headings do not change with the data and are got from the
+   * {@link HeadingCache}.
+   *
+   * @param pEncoder encoder written to
+   * @param piGRID int for the current {@link fraclac.analyzer.Vars#iNumGrids
+   *            GRID}
+   * @param psImageInfo String for the file information column
+   * @param psScanType String for the type of scan
+   * @param pDP {@link DataProcessor} containing preprocessed statistics
+   *
+   * @return the passed encoder
+   *
+   * @throws IOException if pEncoder throws it
+   */
+  public static TabbedRecordEncoder encodePart1DataFileRowThisGRID(
+      TabbedRecordEncoder pEncoder,
+      int piGRID,
+      String psImageInfo,
+      String psScanType,
+      DataProcessor pDP) throws IOException
+  {
+    return new GRIDRowFormatter(piGRID,
+                                psImageInfo,
+                                psScanType,
+                                pDP).encodeData(pEncoder);
+  }
+
   /**
    * Calls functions to load the data maps in the class using the passed
    * DataProcessor, for the passed {@link fraclac.analyzer.Vars#iNumGrids }.
+   * The values are loaded into a {@link GRIDRowFormatter} and then copied to
+   * the static maps, which are only kept for callers that read them; the data
+   * file rows are made without them.
    *
    * @param psImageInfo
    * @param psScanType
@@ -410,56 +441,37 @@ public class DataStringFormatter extends WriteUtilities
                               DataProcessor pDP,
                               int piGRID)
   {
-    infoMap.put(Headings.EnumInfoData.INFO,
-                psImageInfo);
-
-    dataFileCountMap.put(Headings.EnumDataFile.SCAN_TYPE,
-                         psScanType
-                         + " at " + sGSetMember + (piGRID + 1));
-
-    loadFractalDimensionData(piGRID,
-                             pDP);
-
-    if (pDP.scan.vars.bDoSmoothed) {
-
-      loadSmoothedFilterData(piGRID,
-                             pDP);
-    } else {
-      primeSmoothedMaps();
-    }
-
-    loadLacunarityMap(piGRID,
-                      pDP);
-
-    if (pDP.scan.vars.iMaxFrequencies > 0) {
-
-      loadProbabilityMaps(piGRID,
-                          pDP);
-      loadPDMaps(piGRID,
-                 pDP);
-    } else {
-      primeProbMaps();
-    }
-
-    loadCountVsOMEGADataInDataString(piGRID,
-                                     pDP);
-
+    GRIDRowFormatter lFormatter = new GRIDRowFormatter(piGRID,
+                                                       psImageInfo,
+                                                       psScanType,
+                                                       pDP);
+    infoMap.putAll(lFormatter.infoMap);
+    dataFileCountMap.putAll(lFormatter.countMap);
+    dataFileMassMap.putAll(lFormatter.massMap);
+    dataFileSSMap.putAll(lFormatter.ssMap);
+    dataFileSBMap.putAll(lFormatter.sbMap);
+    dataFileLacMap.putAll(lFormatter.lacMap);
+    dataFileProbMap.putAll(lFormatter.probMap);
+    dataFilePDMap.putAll(lFormatter.pdMap);
   }
 
   /**
    *
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
-  static void loadCountVsOMEGADataInDataString(int piGRID,
-                                               DataProcessor pDP)
+  static void loadCountVsOMEGADataInDataString(
+      Map<Headings.EnumInfoData, Object> pMap,
+      int piGRID,
+      DataProcessor pDP)
   {
 
-    infoMap.put(
+    pMap.put(
         Headings.EnumInfoData.MEAN_CV_FOR_COUNT_FROM_ALL_GRID_SCANS,
         (pDP.data.daCvForCountOrSumDeltaIAtGRID[piGRID]));
 
-    infoMap.put(
+    pMap.put(
         Headings.EnumInfoData.MEAN_CV_COUNT_VS_MEAN_CV_OMEGA_ALL_GRIDS,
         (pDP.data.daCvForCountOrSumDeltaIAtGRID[piGRID]
         / pDP.data.daCvForOMEGACountAtGRID[piGRID]));
@@ -469,14 +481,16 @@ public class DataStringFormatter extends WriteUtilities
   /**
    *
    * @param <EXT_EnumLacData>
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
   static <EXT_EnumLacData extends Headings.EnumLacData> void loadLacunarityMap(
+      Map<Headings.EnumLacData, Object> pMap,
       int piGRID,
       DataProcessor pDP)
   {
-    Map<Headings.EnumLacData, Object> lMap = dataFileLacMap;
+    Map<Headings.EnumLacData, Object> lMap = pMap;
 
     lMap.put(EXT_EnumLacData.NAME,
              LAMBDA_AT_grid);
@@ -521,8 +535,24 @@ public class DataStringFormatter extends WriteUtilities
   public static void loadProbabilityMaps(int piGRID,
                                          DataProcessor pDP)
   {
+    loadProbabilityMaps(dataFileProbMap,
+                        piGRID,
+                        pDP);
+  }
 
-    Map<Headings.EnumLacData, Object> lMap = dataFileProbMap;
+  /**
+   * Puts the values for the passed GRID in the passed map.
+   *
+   * @param pMap Map the values are put in
+   * @param piGRID
+   * @param pDP
+   */
+  static void loadProbabilityMaps(Map<Headings.EnumLacData, Object> pMap,
+                                  int piGRID,
+                                  DataProcessor pDP)
+  {
+
+    Map<Headings.EnumLacData, Object> lMap = pMap;
 
     lMap.put(Headings.EnumLacData.NAME,
              AllGsHeadings.PROB);
@@ -553,8 +583,24 @@ public class DataStringFormatter extends WriteUtilities
   public static void loadPDMaps(int piGRID,
                                 DataProcessor pDP)
   {
+    loadPDMaps(dataFilePDMap,
+               piGRID,
+               pDP);
+  }
+
+  /**
+   * Puts the values for the passed GRID in the passed map.
+   *
+   * @param pMap Map the values are put in
+   * @param piGRID
+   * @param pDP
+   */
+  static void loadPDMaps(Map<Headings.EnumLacData, Object> pMap,
+                         int piGRID,
+                         DataProcessor pDP)
+  {
 
-    Map<Headings.EnumLacData, Object> lMap = dataFilePDMap;
+    Map<Headings.EnumLacData, Object> lMap = pMap;
     lMap.put(Headings.EnumLacData.NAME,
              AllGsHeadings.PD);
 
@@ -583,23 +629,27 @@ public class DataStringFormatter extends WriteUtilities
   public static void loadFractalDimensionData(int piGRID,
                                               DataProcessor pDP)
   {
-    loadCountMap(piGRID,
+    loadCountMap(dataFileCountMap,
+                 piGRID,
                  pDP);
 
-    loadMassMap(piGRID,
+    loadMassMap(dataFileMassMap,
+                piGRID,
                 pDP);
 
   }
 
   /**
    *
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
-  static void loadMassMap(int piGRID,
+  static void loadMassMap(Map<Headings.EnumDataFile, Object> pMap,
+                          int piGRID,
                           DataProcessor pDP)
   {
-    Map<Headings.EnumDataFile, Object> lMap = dataFileMassMap;
+    Map<Headings.EnumDataFile, Object> lMap = pMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              Dm);
@@ -624,13 +674,15 @@ public class DataStringFormatter extends WriteUtilities
 
   /**
    *
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
-  static void loadCountMap(int piGRID,
+  static void loadCountMap(Map<Headings.EnumDataFile, Object> pMap,
+                           int piGRID,
                            DataProcessor pDP)
   {
-    Map<Headings.EnumDataFile, Object> lMap = dataFileCountMap;
+    Map<Headings.EnumDataFile, Object> lMap = pMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              Db);
@@ -663,23 +715,27 @@ public class DataStringFormatter extends WriteUtilities
                                             DataProcessor pDP)
   {
 
-    loadSSMap(piGRID,
+    loadSSMap(dataFileSSMap,
+              piGRID,
               pDP);
 
-    loadSBMap(piGRID,
+    loadSBMap(dataFileSBMap,
+              piGRID,
               pDP);
 
   }
 
   /**
    *
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
-  static void loadSSMap(int piGRID,
+  static void loadSSMap(Map<Headings.EnumDataFile, Object> pMap,
+                        int piGRID,
                         DataProcessor pDP)
   {
-    Map<Headings.EnumDataFile, Object> lMap = dataFileSSMap;
+    Map<Headings.EnumDataFile, Object> lMap = pMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              DbFSS);
@@ -706,13 +762,15 @@ public class DataStringFormatter extends WriteUtilities
 
   /**
    *
+   * @param pMap Map the values are put in
    * @param piGRID
    * @param pDP
    */
-  static void loadSBMap(int piGRID,
+  static void loadSBMap(Map<Headings.EnumDataFile, Object> pMap,
+                        int piGRID,
                         DataProcessor pDP)
   {
-    Map<Headings.EnumDataFile, Object> lMap = dataFileSBMap;
+    Map<Headings.EnumDataFile, Object> lMap = pMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              DbFSB);
@@ -738,9 +796,13 @@ public class DataStringFormatter extends WriteUtilities
   }
 
   /**
+   * Puts {@value fraclac.utilities.Symbols#NC} in the passed smoothed maps.
    *
+   * @param pSSMap Map for smoothed smallest data
+   * @param pSBMap Map for smoothed biggest data
    */
-  static void primeSmoothedMaps()
+  static void primeSmoothedMaps(Map<Headings.EnumDataFile, Object> pSSMap,
+                                Map<Headings.EnumDataFile, Object> pSBMap)
   {
     Set<Headings.EnumDataFile> keySet = EnumSet.of(
         Headings.EnumDataFile.SIZES,
@@ -750,7 +812,7 @@ public class DataStringFormatter extends WriteUtilities
         Headings.EnumDataFile.YINT_OPTIMAL,
         Headings.EnumDataFile.PREFACTOR);
 
-    Map<Headings.EnumDataFile, Object> lMap = dataFileSBMap;
+    Map<Headings.EnumDataFile, Object> lMap = pSBMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              DbFSB);
@@ -761,7 +823,7 @@ public class DataStringFormatter extends WriteUtilities
                NC);
     }
 
-    lMap = dataFileSSMap;
+    lMap = pSSMap;
 
     lMap.put(Headings.EnumDataFile.NAME,
              DbFSS);
@@ -774,11 +836,15 @@ public class DataStringFormatter extends WriteUtilities
   }
 
   /**
+   * Puts {@value fraclac.utilities.Symbols#NC} in the passed probability maps.
    *
+   * @param pProbMap Map for probability data
+   * @param pPDMap Map for probability distribution data
    */
-  static void primeProbMaps()
+  static void primeProbMaps(Map<Headings.EnumLacData, Object> pProbMap,
+                            Map<Headings.EnumLacData, Object> pPDMap)
   {
-    Map<Headings.EnumLacData, Object> lMap = dataFileProbMap;
+    Map<Headings.EnumLacData, Object> lMap = pProbMap;
 
     lMap.put(Headings.EnumLacData.NAME,
              AllGsHeadings.PROB);
@@ -795,7 +861,7 @@ public class DataStringFormatter extends WriteUtilities
                NC);
     }
 
-    lMap = dataFilePDMap;
+    lMap = pPDMap;
 
     lMap.put(Headings.EnumLacData.NAME,
              AllGsHeadings.PD);
@@ -1344,14 +1410,16 @@ public class DataStringFormatter extends WriteUtilities
     // .....Continue making the first row, putting the slope for................
     // .........each data type array in the dependent variables array...........
     // ............against the independent variables array......................
+    // ............All of the slopes are found in one batch.....................
     // .........................................................................
+    double[] ldaSlopes = Calculator.slopesOfPowerRegressions(
+        pd2dDependentVariables,
+        pdaIndependentVariable,
+        pdaIndependentVariable.length);
     for (int liArrayNumber = 0;
         liArrayNumber < pd2dDependentVariables.length; liArrayNumber++) {
-      Calculator lFS = new Calculator();
       lsbMatrix.append(nextColumn)
-          .append(Utils.fnum(lFS.slopeOfPowerRegress(
-                      pd2dDependentVariables[liArrayNumber],
-                      pdaIndependentVariable)));
+          .append(Utils.fnum(ldaSlopes[liArrayNumber]));
     }
     // .........................................................................
     // ......Write a newline then a row with the headings for the independent ..
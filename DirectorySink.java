@@ -0,0 +1,40 @@
+package fraclac.writers;
+
+/**
+ * A {@link ResultsSink} that saves results to a directory, with the title as
+ * the file name, as {@link ResultsFilesWriter#saveDataFileOrAppend} does when
+ * results are being saved.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class DirectorySink implements ResultsSink
+{
+
+  final String sDirectory;
+  final String sSuffix;
+
+  /**
+   * @param psDirectory path of the directory, ending with a file separator
+   * @param psSuffix suffix added to each title to make the file name, e.g.,
+   * ".txt"
+   */
+  public DirectorySink(String psDirectory,
+                       String psSuffix)
+  {
+    sDirectory = psDirectory;
+    sSuffix = psSuffix;
+  }
+
+  @Override
+  public void accept(String psTitle,
+                     CharSequence pcsHeadings,
+                     CharSequence pcsData)
+  {
+    ResultsFilesWriter.saveDataFileOrAppend(
+        sDirectory,
+        psTitle + sSuffix,
+        pcsHeadings.toString(),
+        (pcsData instanceof StringBuilder) ? (StringBuilder) pcsData
+            : new StringBuilder(pcsData));
+  }
+}
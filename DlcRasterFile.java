@@ -0,0 +1,313 @@
+package fraclac.writers;
+
+import fraclac.analyzer.DataProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A binary raster of the per-pixel results of a local connected fractal
+ * dimension scan: the same values {@link DLCWriter#tabbedRowOfDlcSummaryByPixel}
+ * writes as text, stored as one float32 band per value, with each pixel's
+ * coordinates given by its place in the band instead of being written out.
+ * <p>
+ * The file is little-endian, a header and then the bands, one after another,
+ * each a row-by-row width &times; height grid of floats:
+ * <pre>
+ * header: int MAGIC, int VERSION, int width, int height, int number of bands,
+ *         int x of column 0, int y of row 0, int 0
+ * band:   width &times; height floats
+ * </pre>
+ * Places with no scanned pixel hold NaN. The bands are in the order of
+ * {@link #BAND_NAMES}. The header is {@link #HEADER_BYTES} long, so every
+ * float is aligned and the file can be mapped and read as floats directly,
+ * as {@link #open} does, one map per band. The file can be bigger than 2 GiB,
+ * but each band must fit in one map, at most {@link #MAX_BAND_BYTES}.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class DlcRasterFile
+{
+
+  /**
+   * Marks a DLC raster file. {@value}
+   */
+  static final int MAGIC = 0x52444c46;
+  /**
+   * Version of the file layout. {@value}
+   */
+  static final int VERSION = 1;
+  /**
+   * Bytes before the first band. {@value}
+   */
+  public static final int HEADER_BYTES = 32;
+  /**
+   * Most bytes in one band, the most one map can hold. {@value}
+   */
+  public static final long MAX_BAND_BYTES = Integer.MAX_VALUE;
+  /**
+   * Suffix for DLC raster files. {@value}
+   */
+  public static final String SUFFIX = ".fld";
+  /**
+   * What each band holds, in order: the same as the columns after X and Y in
+   * {@link DLCWriter#saDlcPixelSummaryHeadings}.
+   */
+  public static final String[] BAND_NAMES = {"Dlc", "Dlc r^2",
+                                             "Dlc Standard Error",
+                                             "Dlc y-intercept",
+                                             "Local Fractal Dimension",
+                                             "Local r^2",
+                                             "Local Standard Error",
+                                             "Local y-intercept"};
+
+  /**
+   * One map per band.
+   */
+  final MappedByteBuffer[] maps;
+  final int iWidth, iHeight, iNumBands, iOriginX, iOriginY;
+
+  private DlcRasterFile(ByteBuffer pHeader,
+                        MappedByteBuffer[] pMaps)
+  {
+    maps = pMaps;
+    iWidth = pHeader.getInt(8);
+    iHeight = pHeader.getInt(12);
+    iNumBands = pHeader.getInt(16);
+    iOriginX = pHeader.getInt(20);
+    iOriginY = pHeader.getInt(24);
+  }
+
+  // ===========================================================================
+  //                              WRITING
+  // ===========================================================================
+  /**
+   * Writes the per-pixel DLC results held by the passed DataProcessor.
+   *
+   * @param pFile File to write, replaced if it exists
+   * @param pd2dDlcPix x coordinates at [0] and y coordinates at [1] of each
+   * pixel, as stored by the scan
+   * @param piBorder border added to the coordinates during the scan
+   * @param pDP DataProcessor holding the per-pixel results
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(File pFile,
+                           double[][] pd2dDlcPix,
+                           int piBorder,
+                           DataProcessor pDP) throws IOException
+  {
+    write(pFile,
+          pd2dDlcPix,
+          piBorder,
+          new double[][]{pDP.data.daDlcPerPixel,
+                         pDP.data.daRSqForDlcPerPixel,
+                         pDP.data.daStdErrForDlcPerPixel,
+                         pDP.data.daYIntForDlcPerPixel,
+                         pDP.data.daDLnc_,
+                         pDP.data.daRSqForDLnc_,
+                         pDP.data.daStdErrForDLnc_,
+                         pDP.data.daYInterceptForDLnc_});
+  }
+
+  /**
+   * Writes one band per passed array. Each band is written one row at a
+   * time, so memory is needed for the pixel list and one row, not for the
+   * whole raster.
+   *
+   * @param pFile File to write, replaced if it exists
+   * @param pd2dDlcPix x coordinates at [0] and y coordinates at [1] of each
+   * pixel, as stored by the scan
+   * @param piBorder border added to the coordinates during the scan; half of
+   * it is taken off, as in the text files
+   * @param pd2dBands value of each pixel in each band, [band][pixel]
+   * @throws IOException if the file cannot be written, or a band would be
+   * bigger than {@link #MAX_BAND_BYTES}
+   */
+  public static void write(File pFile,
+                           double[][] pd2dDlcPix,
+                           int piBorder,
+                           double[][] pd2dBands) throws IOException
+  {
+    PixelRows lRows = new PixelRows(pd2dDlcPix[0],
+                                    pd2dDlcPix[1]);
+    if (4L * lRows.iWidth * lRows.iHeight > MAX_BAND_BYTES) {
+      throw new IOException("A " + lRows.iWidth + " x " + lRows.iHeight
+          + " band is too big for " + pFile);
+    }
+    float[] lfaRow = new float[lRows.iWidth];
+    RandomAccessFile lRaf = new RandomAccessFile(pFile,
+                                                 "rw");
+    try {
+      lRaf.setLength(0);
+      FileChannel lChannel = lRaf.getChannel();
+      ByteBuffer lBuffer = ByteBuffer.allocateDirect(TextImageFile.BUFFER_BYTES);
+      lBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      lBuffer.putInt(MAGIC).putInt(VERSION).putInt(lRows.iWidth)
+          .putInt(lRows.iHeight).putInt(pd2dBands.length)
+          .putInt(lRows.iMinX - piBorder / 2).putInt(lRows.iMinY - piBorder / 2)
+          .putInt(0);
+      for (double[] ldaBand : pd2dBands) {
+        for (int y = 0; y < lRows.iHeight; y++) {
+          Arrays.fill(lfaRow,
+                      Float.NaN);
+          for (int j = lRows.iaRowStart[y]; j < lRows.iaRowStart[y + 1]; j++) {
+            int i = lRows.iaPixels[j];
+            lfaRow[lRows.column(i)] = (float) ldaBand[i];
+          }
+          for (int x = 0; x < lRows.iWidth; x++) {
+            if (lBuffer.remaining() < 4) {
+              TextImageFile.drain(lChannel,
+                                  lBuffer);
+            }
+            lBuffer.putFloat(lfaRow[x]);
+          }
+        }
+      }
+      TextImageFile.drain(lChannel,
+                          lBuffer);
+    } finally {
+      lRaf.close();
+    }
+  }
+
+  // ===========================================================================
+  //                              READING
+  // ===========================================================================
+  /**
+   * Reads the header of the passed file and maps each band into memory.
+   *
+   * @param pFile File written by {@link #write}
+   * @return DlcRasterFile to read the bands from
+   * @throws IOException if the file cannot be read, is not a DLC raster, or
+   * its size does not match its header
+   */
+  public static DlcRasterFile open(File pFile) throws IOException
+  {
+    RandomAccessFile lRaf = new RandomAccessFile(pFile,
+                                                 "r");
+    try {
+      FileChannel lChannel = lRaf.getChannel();
+      ByteBuffer lHeader = ByteBuffer.allocate(HEADER_BYTES);
+      lHeader.order(ByteOrder.LITTLE_ENDIAN);
+      while (lHeader.hasRemaining()) {
+        if (lChannel.read(lHeader,
+                          lHeader.position()) <= 0) {
+          break;
+        }
+      }
+      if (lHeader.hasRemaining() || (lHeader.getInt(0) != MAGIC)
+          || (lHeader.getInt(4) != VERSION)) {
+        throw new IOException(pFile + " is not a DLC raster file");
+      }
+      int liWidth = lHeader.getInt(8);
+      int liHeight = lHeader.getInt(12);
+      int liNumBands = lHeader.getInt(16);
+      if ((liWidth < 0) || (liHeight < 0) || (liNumBands < 0)) {
+        throw new IOException(pFile + " has a bad header: " + liWidth + " x "
+            + liHeight + " x " + liNumBands + " bands");
+      }
+      long llBandBytes = 4L * liWidth * liHeight;
+      if (llBandBytes > MAX_BAND_BYTES) {
+        throw new IOException(pFile + " has bands too big to map");
+      }
+      long llExpected = HEADER_BYTES + liNumBands * llBandBytes;
+      if (lChannel.size() != llExpected) {
+        throw new IOException(pFile + " holds " + lChannel.size()
+            + " bytes, but its header says " + llExpected);
+      }
+      MappedByteBuffer[] lMaps = new MappedByteBuffer[liNumBands];
+      for (int b = 0; b < liNumBands; b++) {
+        lMaps[b] = lChannel.map(FileChannel.MapMode.READ_ONLY,
+                                HEADER_BYTES + b * llBandBytes,
+                                llBandBytes);
+        lMaps[b].order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return new DlcRasterFile(lHeader,
+                               lMaps);
+    } finally {
+      lRaf.close();
+    }
+  }
+
+  /**
+   * @return int number of columns
+   */
+  public int getWidth()
+  {
+    return iWidth;
+  }
+
+  /**
+   * @return int number of rows
+   */
+  public int getHeight()
+  {
+    return iHeight;
+  }
+
+  /**
+   * @return int number of bands
+   */
+  public int getNumBands()
+  {
+    return iNumBands;
+  }
+
+  /**
+   * @return int x coordinate of column 0
+   */
+  public int getOriginX()
+  {
+    return iOriginX;
+  }
+
+  /**
+   * @return int y coordinate of row 0
+   */
+  public int getOriginY()
+  {
+    return iOriginY;
+  }
+
+  /**
+   * Returns one band as floats read straight from the mapped file, row by
+   * row.
+   *
+   * @param piBand int index of the band, in the order of {@link #BAND_NAMES}
+   * @return FloatBuffer of width &times; height values
+   */
+  public FloatBuffer band(int piBand)
+  {
+    return maps[piBand].duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        .asFloatBuffer();
+  }
+
+  /**
+   * Returns the value of one band at the passed coordinates.
+   *
+   * @param piBand int index of the band
+   * @param piX int x coordinate, as in the text files
+   * @param piY int y coordinate, as in the text files
+   * @return float value, NaN if no pixel was scanned there
+   * @throws IndexOutOfBoundsException if the coordinates are outside the
+   * raster
+   */
+  public float value(int piBand,
+                     int piX,
+                     int piY)
+  {
+    long llX = (long) piX - iOriginX;
+    long llY = (long) piY - iOriginY;
+    if ((llX < 0) || (llX >= iWidth) || (llY < 0) || (llY >= iHeight)) {
+      throw new IndexOutOfBoundsException("(" + piX + ", " + piY
+          + ") is outside the raster");
+    }
+    return maps[piBand].getFloat((int) (4 * (llY * iWidth + llX)));
+  }
+}
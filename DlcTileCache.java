@@ -0,0 +1,538 @@
+package fraclac.writers;
+
+import fraclac.analyzer.Calculator;
+import static fraclac.utilities.Symbols.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the per-pixel results of a local connected fractal dimension scan
+ * from one run to the next, in square tiles of the image, so that when a
+ * region of interest is changed only the tiles whose input changed are
+ * regressed and formatted again.
+ * <p>
+ * Each tile is {@link #TILE_SIDE} pixels on a side and remembers a
+ * fingerprint of its input: the border, the sizes and, for each of its
+ * pixels in order, the coordinates and the masses at every size. A pixel's
+ * masses depend on the pixels around it, so an edit changes the fingerprint
+ * of every tile whose pixels' neighbourhoods overlap it, and only those tiles
+ * are done again by {@link #update}; the others reuse their regression
+ * results and formatted rows. A caller that knows the changed region can
+ * also {@link #invalidate} the tiles it reaches.
+ * <p>
+ * Only the regressions and formatting are saved. The tiles are keyed on the
+ * masses, not on the region of interest or the image's pixels, so the scan
+ * must still find the masses of every pixel before each update, and
+ * {@link #writeSummaryRows} still writes every row of the file, not just the
+ * changed ones. Nothing in this package makes a cache yet; the scan that
+ * owns the masses must keep one per image and call {@link #update}.
+ * <p>
+ * Formatted rows are kept for at most {@link #DEFAULT_MAX_CACHED_CHARS}
+ * characters, or the number passed to the constructor; rows of the other
+ * tiles are formatted again from the kept results each time they are
+ * written. Rows are always written in the order of the pixel list, as by
+ * {@link DlcTiles#writeSummaryRows}, wherever the tiles lie.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class DlcTileCache
+{
+
+  /**
+   * Pixels on each side of a tile. {@value}
+   */
+  public static final int TILE_SIDE = 64;
+
+  /**
+   * Most characters of formatted rows a cache made with no limit keeps,
+   * about 32 MB. {@value}
+   */
+  public static final long DEFAULT_MAX_CACHED_CHARS = 1L << 24;
+
+  /**
+   * The results for one tile.
+   */
+  private static final class Tile
+  {
+
+    final long lTileX, lTileY;
+    /**
+     * Place of the tile in this run's list of tiles.
+     */
+    int iIndex;
+    long lFingerprint;
+    /**
+     * Indices, in this run's pixel list, of the tile's pixels, in order.
+     */
+    int[] iaPixels;
+    int iNumPixels;
+    /**
+     * Results of each of the tile's pixels, [band][position in tile].
+     */
+    double[][] d2dBands;
+    /**
+     * Formatted rows of the tile's pixels, one after another, with the end of
+     * each row in iaRowEnds; null if they were not kept.
+     */
+    String sRows;
+    int[] iaRowEnds;
+
+    Tile(long plTileX,
+         long plTileY)
+    {
+      lTileX = plTileX;
+      lTileY = plTileY;
+      iaPixels = new int[16];
+    }
+
+    void add(int piPixel)
+    {
+      if (iNumPixels == iaPixels.length) {
+        int[] lia = new int[2 * iNumPixels];
+        System.arraycopy(iaPixels,
+                         0,
+                         lia,
+                         0,
+                         iNumPixels);
+        iaPixels = lia;
+      }
+      iaPixels[iNumPixels++] = piPixel;
+    }
+  }
+
+  private final HashMap<Long, Tile> mapTiles = new HashMap<Long, Tile>();
+  private final long lMaxCachedChars;
+  private double[][] d2dBands;
+  /**
+   * Coordinates and border of the last update, for formatting the rows that
+   * were not kept.
+   */
+  private double[][] d2dDlcPix;
+  private int iBorder;
+  private int[] iaTileOfPixel;
+  private Tile[] tilesInUse = new Tile[0];
+  private int iNumRecomputed;
+
+  /**
+   * Makes a cache that keeps at most {@link #DEFAULT_MAX_CACHED_CHARS}
+   * characters of formatted rows.
+   */
+  public DlcTileCache()
+  {
+    this(DEFAULT_MAX_CACHED_CHARS);
+  }
+
+  /**
+   * @param plMaxCachedChars most characters of formatted rows kept; 0 keeps
+   * only the regression results
+   */
+  public DlcTileCache(long plMaxCachedChars)
+  {
+    lMaxCachedChars = plMaxCachedChars;
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Brings the results up to date with the passed scan, regressing and
+   * formatting only the tiles whose fingerprint changed, on piThreads worker
+   * threads. Tiles no longer holding any pixel are dropped. The coordinates
+   * are kept until the next update or {@link #clear}, to format the rows
+   * that were not kept.
+   *
+   * @param pd2dDlcPix x and y coordinates of each pixel
+   * @param piBorder border added to the coordinates during the scan
+   * @param pi2dSIZEs sizes; those at [0] are used for every pixel
+   * @param pd2dMatchedConnectedMassAtPixandSIZE mass in matched connected sets
+   * @param pd2dTotalMassAtPixandSIZE total mass
+   * @param piThreads int number of worker threads
+   * @return int number of tiles done again
+   * @throws IOException if a task fails
+   */
+  public int update(final double[][] pd2dDlcPix,
+                    final int piBorder,
+                    int[][] pi2dSIZEs,
+                    final double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+                    final double[][] pd2dTotalMassAtPixandSIZE,
+                    int piThreads) throws IOException
+  {
+    int liNumPixels = pd2dDlcPix[0].length;
+    final double[] ldaSIZEs = new double[pi2dSIZEs[0].length];
+    for (int i = 0; i < ldaSIZEs.length; i++) {
+      ldaSIZEs[i] = pi2dSIZEs[0][i];
+    }
+    // .........................................................................
+    // Sort this run's pixels into tiles, keeping the old results.
+    // .........................................................................
+    HashMap<Long, Tile> lmapThisRun = new HashMap<Long, Tile>();
+    ArrayList<Tile> lalTiles = new ArrayList<Tile>();
+    int[] liaTileOfPixel = new int[liNumPixels];
+    for (int i = 0; i < liNumPixels; i++) {
+      long llTileX = floorDiv((long) pd2dDlcPix[0][i],
+                              TILE_SIDE);
+      long llTileY = floorDiv((long) pd2dDlcPix[1][i],
+                              TILE_SIDE);
+      Long lKey = key(llTileX,
+                      llTileY);
+      Tile lTile = lmapThisRun.get(lKey);
+      if (lTile == null) {
+        lTile = new Tile(llTileX,
+                         llTileY);
+        lTile.iIndex = lalTiles.size();
+        Tile lOld = mapTiles.get(lKey);
+        if (lOld != null) {
+          lTile.lFingerprint = lOld.lFingerprint;
+          lTile.d2dBands = lOld.d2dBands;
+          lTile.sRows = lOld.sRows;
+          lTile.iaRowEnds = lOld.iaRowEnds;
+        }
+        lmapThisRun.put(lKey,
+                        lTile);
+        lalTiles.add(lTile);
+      }
+      liaTileOfPixel[i] = lTile.iIndex;
+      lTile.add(i);
+    }
+    // .........................................................................
+    // Compare fingerprints, and regress and format the tiles that changed.
+    // .........................................................................
+    final double[][] ld2dBands
+        = new double[DlcRasterFile.BAND_NAMES.length][liNumPixels];
+    // Kept rows of unchanged tiles are counted first; changed tiles keep
+    // theirs while there is room left.
+    final AtomicLong lRoom = new AtomicLong(lMaxCachedChars);
+    ArrayList<Tile> lalChanged = new ArrayList<Tile>();
+    for (Tile lTile : lalTiles) {
+      long llFingerprint = fingerprint(lTile,
+                                       pd2dDlcPix,
+                                       piBorder,
+                                       ldaSIZEs,
+                                       pd2dMatchedConnectedMassAtPixandSIZE,
+                                       pd2dTotalMassAtPixandSIZE);
+      if ((lTile.d2dBands == null) || (llFingerprint != lTile.lFingerprint)) {
+        lTile.lFingerprint = llFingerprint;
+        lalChanged.add(lTile);
+      } else {
+        if ((lTile.sRows != null)
+            && (lRoom.addAndGet(-lTile.sRows.length()) < 0)) {
+          lTile.sRows = null;
+          lTile.iaRowEnds = null;
+        }
+        for (int b = 0; b < ld2dBands.length; b++) {
+          for (int j = 0; j < lTile.iNumPixels; j++) {
+            ld2dBands[b][lTile.iaPixels[j]] = lTile.d2dBands[b][j];
+          }
+        }
+      }
+    }
+    ArrayList<Callable<Object>> lalTasks = new ArrayList<Callable<Object>>();
+    for (final Tile lTile : lalChanged) {
+      lalTasks.add(new Callable<Object>()
+      {
+        @Override
+        public Object call() throws IOException
+        {
+          redo(lTile,
+               pd2dDlcPix,
+               piBorder,
+               ldaSIZEs,
+               pd2dMatchedConnectedMassAtPixandSIZE,
+               pd2dTotalMassAtPixandSIZE,
+               ld2dBands,
+               lRoom);
+          return null;
+        }
+      });
+    }
+    runAll(lalTasks,
+           piThreads);
+    // .........................................................................
+    mapTiles.clear();
+    mapTiles.putAll(lmapThisRun);
+    d2dBands = ld2dBands;
+    d2dDlcPix = pd2dDlcPix;
+    iBorder = piBorder;
+    iaTileOfPixel = liaTileOfPixel;
+    tilesInUse = lalTiles.toArray(new Tile[lalTiles.size()]);
+    iNumRecomputed = lalChanged.size();
+    return iNumRecomputed;
+  }
+
+  /**
+   * Drops the results of every tile within piRadius pixels of the passed
+   * rectangle, so the next {@link #update} does them again whatever their
+   * fingerprint. The radius is typically the largest size scanned, the
+   * farthest a change can reach.
+   *
+   * @param piX x of the changed rectangle
+   * @param piY y of the changed rectangle
+   * @param piWidth width of the changed rectangle
+   * @param piHeight height of the changed rectangle
+   * @param piRadius int pixels a change reaches beyond the rectangle
+   * @return int number of tiles dropped
+   */
+  public int invalidate(int piX,
+                        int piY,
+                        int piWidth,
+                        int piHeight,
+                        int piRadius)
+  {
+    long llMinX = floorDiv((long) piX - piRadius,
+                           TILE_SIDE);
+    long llMaxX = floorDiv((long) piX + piWidth - 1 + piRadius,
+                           TILE_SIDE);
+    long llMinY = floorDiv((long) piY - piRadius,
+                           TILE_SIDE);
+    long llMaxY = floorDiv((long) piY + piHeight - 1 + piRadius,
+                           TILE_SIDE);
+    int liDropped = 0;
+    for (Iterator<Map.Entry<Long, Tile>> lIt = mapTiles.entrySet().iterator();
+        lIt.hasNext();) {
+      Tile lTile = lIt.next().getValue();
+      if ((lTile.lTileX >= llMinX) && (lTile.lTileX <= llMaxX)
+          && (lTile.lTileY >= llMinY) && (lTile.lTileY <= llMaxY)) {
+        lIt.remove();
+        liDropped++;
+      }
+    }
+    return liDropped;
+  }
+
+  /**
+   * Returns the results of the last {@link #update}.
+   *
+   * @return double [band][pixel] in the order of
+   * {@link DlcRasterFile#BAND_NAMES}, null before the first update
+   */
+  public double[][] getBands()
+  {
+    return d2dBands;
+  }
+
+  /**
+   * @return int number of tiles done again by the last {@link #update}
+   */
+  public int getNumRecomputed()
+  {
+    return iNumRecomputed;
+  }
+
+  /**
+   * @return int number of tiles holding pixels in the last {@link #update}
+   */
+  public int getNumTiles()
+  {
+    return tilesInUse.length;
+  }
+
+  /**
+   * Writes the same rows as {@link DlcTiles#writeSummaryRows} for the last
+   * {@link #update}, from the formatted rows kept for each tile, formatting
+   * those that were not kept.
+   *
+   * @param pOut Appendable the rows are written to, in pixel order
+   * @throws IOException if pOut throws it
+   */
+  public void writeSummaryRows(Appendable pOut) throws IOException
+  {
+    if (iaTileOfPixel == null) {
+      return;
+    }
+    int[] liaNextRow = new int[tilesInUse.length];
+    StringBuilder lsbRow = new StringBuilder(256);
+    for (int i = 0; i < iaTileOfPixel.length; i++) {
+      int t = iaTileOfPixel[i];
+      Tile lTile = tilesInUse[t];
+      int liRow = liaNextRow[t]++;
+      if (lTile.sRows == null) {
+        lsbRow.setLength(0);
+        DLCWriter.appendTabbedRowOfDlcSummaryByPixel(lsbRow,
+                                                     i,
+                                                     iBorder,
+                                                     d2dDlcPix,
+                                                     d2dBands)
+            .append(newline);
+        pOut.append(lsbRow);
+        continue;
+      }
+      pOut.append(lTile.sRows,
+                  (liRow == 0) ? 0 : lTile.iaRowEnds[liRow - 1],
+                  lTile.iaRowEnds[liRow]);
+    }
+  }
+
+  /**
+   * Drops every tile.
+   */
+  public void clear()
+  {
+    mapTiles.clear();
+    d2dBands = null;
+    d2dDlcPix = null;
+    iaTileOfPixel = null;
+    tilesInUse = new Tile[0];
+    iNumRecomputed = 0;
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Returns the tile holding the passed coordinate, rounding down so that
+   * negative coordinates fall in negative tiles.
+   */
+  private static long floorDiv(long plCoordinate,
+                               int piSide)
+  {
+    long llTile = plCoordinate / piSide;
+    return ((plCoordinate % piSide) < 0) ? llTile - 1 : llTile;
+  }
+
+  private static Long key(long plTileX,
+                          long plTileY)
+  {
+    return (plTileX << 32) ^ (plTileY & 0xffffffffL);
+  }
+
+  /**
+   * Regresses one tile, filling its own results and its pixels' places in
+   * the bands, and formats its rows if pRoom is not yet used up. Runs on
+   * worker threads, so rows are formatted by an encoder rather than fnum.
+   */
+  private static void redo(Tile pTile,
+                           double[][] pd2dDlcPix,
+                           int piBorder,
+                           double[] pdaSIZEs,
+                           double[][] pd2dMatchedMass,
+                           double[][] pd2dTotalMass,
+                           double[][] pd2dBands,
+                           AtomicLong pRoom) throws IOException
+  {
+    Calculator lCalculator = new Calculator();
+    int liNumBands = pd2dBands.length;
+    pTile.d2dBands = new double[liNumBands][pTile.iNumPixels];
+    boolean lbFormat = pRoom.get() > 0;
+    pTile.iaRowEnds = lbFormat ? new int[pTile.iNumPixels] : null;
+    StringBuilder lsb = lbFormat
+        ? new StringBuilder(pTile.iNumPixels * 100) : null;
+    TabbedRecordEncoder lEncoder = lbFormat
+        ? new TabbedRecordEncoder() : null;
+    for (int j = 0; j < pTile.iNumPixels; j++) {
+      int i = pTile.iaPixels[j];
+      DlcTiles.regressPixel(lCalculator,
+                            i,
+                            pdaSIZEs,
+                            pd2dMatchedMass,
+                            pd2dTotalMass,
+                            pd2dBands);
+      for (int b = 0; b < liNumBands; b++) {
+        pTile.d2dBands[b][j] = pd2dBands[b][i];
+      }
+      if (lbFormat) {
+        lEncoder.clear();
+        DLCWriter.encodeTabbedRowOfDlcSummaryByPixel(lEncoder,
+                                                     i,
+                                                     piBorder,
+                                                     pd2dDlcPix,
+                                                     pd2dBands).newline();
+        lsb.append(lEncoder.toString());
+        pTile.iaRowEnds[j] = lsb.length();
+      }
+    }
+    if (lbFormat && (pRoom.addAndGet(-lsb.length()) >= 0)) {
+      pTile.sRows = lsb.toString();
+    } else {
+      pTile.sRows = null;
+      pTile.iaRowEnds = null;
+    }
+  }
+
+  /**
+   * Returns a 64-bit hash of everything a tile's results depend on.
+   */
+  private static long fingerprint(Tile pTile,
+                                  double[][] pd2dDlcPix,
+                                  int piBorder,
+                                  double[] pdaSIZEs,
+                                  double[][] pd2dMatchedMass,
+                                  double[][] pd2dTotalMass)
+  {
+    long llHash = mix(0x9E3779B97F4A7C15L + piBorder);
+    llHash = mix(llHash ^ pdaSIZEs.length);
+    for (double ld : pdaSIZEs) {
+      llHash = mix(llHash ^ Double.doubleToLongBits(ld));
+    }
+    llHash = mix(llHash ^ pTile.iNumPixels);
+    for (int j = 0; j < pTile.iNumPixels; j++) {
+      int i = pTile.iaPixels[j];
+      llHash = mix(llHash ^ Double.doubleToLongBits(pd2dDlcPix[0][i]));
+      llHash = mix(llHash ^ Double.doubleToLongBits(pd2dDlcPix[1][i]));
+      for (double ld : pd2dMatchedMass[i]) {
+        llHash = mix(llHash ^ Double.doubleToLongBits(ld));
+      }
+      for (double ld : pd2dTotalMass[i]) {
+        llHash = mix(llHash ^ Double.doubleToLongBits(ld));
+      }
+    }
+    return llHash;
+  }
+
+  /**
+   * Scrambles the bits of a long, as the finalizer of the SplitMix64
+   * generator does.
+   */
+  private static long mix(long pl)
+  {
+    pl = (pl ^ (pl >>> 30)) * 0xBF58476D1CE4E5B9L;
+    pl = (pl ^ (pl >>> 27)) * 0x94D049BB133111EBL;
+    return pl ^ (pl >>> 31);
+  }
+
+  private static void runAll(ArrayList<Callable<Object>> palTasks,
+                             int piThreads) throws IOException
+  {
+    int liThreads = Math.max(1,
+                             Math.min(piThreads,
+                                      palTasks.size()));
+    if (liThreads == 1) {
+      for (Callable<Object> lTask : palTasks) {
+        try {
+          lTask.call();
+        } catch (Exception ex) {
+          throw new IOException(ex.toString());
+        }
+      }
+      return;
+    }
+    List<Future<Object>> lalFutures = new ArrayList<Future<Object>>();
+    try {
+      ExecutorService lPool = DlcTiles.pool(piThreads);
+      for (Callable<Object> lTask : palTasks) {
+        lalFutures.add(lPool.submit(lTask));
+      }
+      for (Future<Object> lFuture : lalFutures) {
+        lFuture.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex.toString());
+    } catch (ExecutionException ex) {
+      throw new IOException(ex.getCause().toString());
+    } finally {
+      // Does nothing to tasks that are done.
+      for (Future<Object> lFuture : lalFutures) {
+        lFuture.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,401 @@
+package fraclac.writers;
+
+import fraclac.analyzer.Calculator;
+import static fraclac.utilities.Symbols.*;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes and writes per-pixel results of a local connected fractal
+ * dimension scan in tiles on a pool of worker threads.
+ * <p>
+ * Pixels are independent of each other, so the list of pixels is cut into
+ * tiles of {@link #TILE_PIXELS} consecutive pixels. Each tile is regressed or
+ * formatted by a worker into its own buffer, and the buffers are written in
+ * tile order, so the output is the same as that of the sequential
+ * {@link DLCWriter} methods. At most two tiles per thread are in memory at
+ * once.
+ * <p>
+ * Workers never call {@link fraclac.utilities.Utils#fnum}, which is not
+ * known to be safe to call from several threads. Each tile writes its rows
+ * with its own {@link TabbedRecordEncoder}, which writes numbers as fnum
+ * does. The workers are daemon threads of one pool shared by every call,
+ * made on first use.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class DlcTiles
+{
+
+  /**
+   * Pixels in each tile. {@value}
+   */
+  public static final int TILE_PIXELS = 4096;
+
+  /**
+   * Pool shared by every call to {@link #runInOrder} and by
+   * {@link DlcTileCache}; null until first used.
+   */
+  private static ExecutorService executor;
+  private static int iExecutorThreads;
+
+  /**
+   * Makes the threads of the pool daemons, so it does not keep the JVM
+   * running.
+   */
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable pRunnable)
+    {
+      Thread lThread = new Thread(pRunnable,
+                                  DlcTiles.class.getSimpleName());
+      lThread.setDaemon(true);
+      return lThread;
+    }
+  };
+
+  private DlcTiles()
+  {
+  }
+
+  /**
+   * Makes the text of the pixels in one tile.
+   */
+  interface TileFormatter
+  {
+
+    /**
+     * @param piStart first pixel of the tile
+     * @param piEnd pixel after the last
+     * @return CharSequence of the tile's rows
+     * @throws IOException if the rows cannot be encoded
+     */
+    CharSequence format(int piStart,
+                        int piEnd) throws IOException;
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Returns the number of tiles the passed number of pixels is cut into.
+   *
+   * @param piNumPixels int number of pixels
+   * @return int number of tiles
+   */
+  public static int numTiles(int piNumPixels)
+  {
+    return (piNumPixels + TILE_PIXELS - 1) / TILE_PIXELS;
+  }
+
+  /**
+   * Regresses the log of mass against the log of size at each pixel, as
+   * {@link Calculator#logVsLogPowerRegression} does, for the matched
+   * connected masses and for the total masses, one tile per task.
+   *
+   * @param pi2dSIZEs sizes; those at [0] are used for every pixel
+   * @param pd2dMatchedConnectedMassAtPixandSIZE mass in the matched connected
+   * set at [pixel][size]
+   * @param pd2dTotalMassAtPixandSIZE total mass at [pixel][size]
+   * @param piThreads int number of worker threads
+   * @return double [band][pixel] in the order of
+   * {@link DlcRasterFile#BAND_NAMES}: the slope, r&sup2;, standard error and
+   * y-intercept for the matched connected masses, then the same for the
+   * total masses
+   * @throws IOException if a task fails
+   */
+  public static double[][] regressPerPixel(
+      final int[][] pi2dSIZEs,
+      final double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+      final double[][] pd2dTotalMassAtPixandSIZE,
+      int piThreads) throws IOException
+  {
+    final int liNumPixels = pd2dTotalMassAtPixandSIZE.length;
+    final double[][] ld2dBands = new double[DlcRasterFile.BAND_NAMES.length][
+        liNumPixels];
+    final double[] ldaSIZEs = new double[pi2dSIZEs[0].length];
+    for (int i = 0; i < ldaSIZEs.length; i++) {
+      ldaSIZEs[i] = pi2dSIZEs[0][i];
+    }
+    // Each tile fills its own part of the bands, so nothing is written out.
+    runInOrder(null,
+               liNumPixels,
+               piThreads,
+               new TileFormatter()
+               {
+                 @Override
+                 public CharSequence format(int piStart,
+                                            int piEnd)
+                 {
+                   regressTile(piStart,
+                               piEnd,
+                               ldaSIZEs,
+                               pd2dMatchedConnectedMassAtPixandSIZE,
+                               pd2dTotalMassAtPixandSIZE,
+                               ld2dBands);
+                   return null;
+                 }
+               });
+    return ld2dBands;
+  }
+
+  /**
+   * Writes the same rows as {@link DLCWriter#tabbedRowOfDlcSummaryByPixel},
+   * each followed by a new line, formatting one tile per task.
+   *
+   * @param pOut Appendable the rows are written to, in pixel order
+   * @param pd2dDlcPix x and y coordinates of each pixel
+   * @param piBorder border added to the coordinates during the scan
+   * @param pd2dBands values of each pixel, as from {@link #regressPerPixel}
+   * @param piThreads int number of worker threads
+   * @throws IOException if pOut throws it or a task fails
+   */
+  public static void writeSummaryRows(Appendable pOut,
+                                      final double[][] pd2dDlcPix,
+                                      final int piBorder,
+                                      final double[][] pd2dBands,
+                                      int piThreads) throws IOException
+  {
+    runInOrder(pOut,
+               pd2dDlcPix[0].length,
+               piThreads,
+               new TileFormatter()
+               {
+                 @Override
+                 public CharSequence format(int piStart,
+                                            int piEnd) throws IOException
+                 {
+                   TabbedRecordEncoder lEncoder = new TabbedRecordEncoder();
+                   for (int i = piStart; i < piEnd; i++) {
+                     DLCWriter.encodeTabbedRowOfDlcSummaryByPixel(lEncoder,
+                                                                  i,
+                                                                  piBorder,
+                                                                  pd2dDlcPix,
+                                                                  pd2dBands)
+                         .newline();
+                   }
+                   return lEncoder.toString();
+                 }
+               });
+  }
+
+  /**
+   * Writes the same three sections as
+   * {@link DLCWriter#getDlcDataFileTabbedRowsEachGRIDThisSlice}, formatting
+   * one tile of each section per task.
+   *
+   * @param pOut Appendable the sections are written to
+   * @param pd2dDlcPix x and y coordinates of each pixel
+   * @param pi2dSIZEs sizes; the number at [0] is used for every pixel
+   * @param piBorder border added to the coordinates during the scan
+   * @param pd2dAllConnectedMassAtPixandSIZE mass in all connected sets
+   * @param pd2dMatchedConnectedMassAtPixandSIZE mass in matched connected sets
+   * @param pd2dTotalMassAtPixandSIZE total mass
+   * @param piThreads int number of worker threads
+   * @throws IOException if pOut throws it or a task fails
+   */
+  public static void writeMassRows(
+      Appendable pOut,
+      double[][] pd2dDlcPix,
+      int[][] pi2dSIZEs,
+      int piBorder,
+      double[][] pd2dAllConnectedMassAtPixandSIZE,
+      double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+      double[][] pd2dTotalMassAtPixandSIZE,
+      int piThreads) throws IOException
+  {
+    int liNumSIZEs = pi2dSIZEs[0].length;
+    pOut.append("Masses for Matched Connected Sets").append(newline);
+    runInOrder(pOut,
+               pd2dDlcPix[0].length,
+               piThreads,
+               massRows(pd2dDlcPix,
+                        liNumSIZEs,
+                        piBorder / 2d,
+                        pd2dMatchedConnectedMassAtPixandSIZE));
+    pOut.append("Masses for All Connected Sets").append(newline);
+    // The integer half border is kept from allDlcDataAtThisPixel.
+    runInOrder(pOut,
+               pd2dDlcPix[0].length,
+               piThreads,
+               massRows(pd2dDlcPix,
+                        liNumSIZEs,
+                        piBorder / 2,
+                        pd2dAllConnectedMassAtPixandSIZE));
+    pOut.append("Total Masses").append(newline);
+    runInOrder(pOut,
+               pd2dDlcPix[0].length,
+               piThreads,
+               massRows(pd2dDlcPix,
+                        liNumSIZEs,
+                        piBorder / 2d,
+                        pd2dTotalMassAtPixandSIZE));
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Fills the bands for the pixels of one tile. Uses its own Calculator, so
+   * tiles can run at the same time.
+   */
+  static void regressTile(int piStart,
+                          int piEnd,
+                          double[] pdaSIZEs,
+                          double[][] pd2dMatchedMass,
+                          double[][] pd2dTotalMass,
+                          double[][] pd2dBands)
+  {
+    Calculator lCalculator = new Calculator();
+    for (int i = piStart; i < piEnd; i++) {
+      regressPixel(lCalculator,
+                   i,
+                   pdaSIZEs,
+                   pd2dMatchedMass,
+                   pd2dTotalMass,
+                   pd2dBands);
+    }
+  }
+
+  /**
+   * Fills the bands for one pixel with the passed Calculator.
+   */
+  static void regressPixel(Calculator pCalculator,
+                           int i,
+                           double[] pdaSIZEs,
+                           double[][] pd2dMatchedMass,
+                           double[][] pd2dTotalMass,
+                           double[][] pd2dBands)
+  {
+    double[] ldaMatched = pCalculator.logVsLogPowerRegression(
+        pd2dMatchedMass[i],
+        pdaSIZEs,
+        pdaSIZEs.length);
+    double[] ldaTotal = pCalculator.logVsLogPowerRegression(
+        pd2dTotalMass[i],
+        pdaSIZEs,
+        pdaSIZEs.length);
+    pd2dBands[0][i] = ldaMatched[SLOPE_INDEX];
+    pd2dBands[1][i] = ldaMatched[R_SQ_INDEX];
+    pd2dBands[2][i] = ldaMatched[STD_ERR_INDEX];
+    pd2dBands[3][i] = ldaMatched[Y_INT_INDEX];
+    pd2dBands[4][i] = ldaTotal[SLOPE_INDEX];
+    pd2dBands[5][i] = ldaTotal[R_SQ_INDEX];
+    pd2dBands[6][i] = ldaTotal[STD_ERR_INDEX];
+    pd2dBands[7][i] = ldaTotal[Y_INT_INDEX];
+  }
+
+  private static TileFormatter massRows(final double[][] pd2dDlcPix,
+                                        final int piNumSIZEs,
+                                        final double pdHalfBorder,
+                                        final double[][] pd2dMass)
+  {
+    return new TileFormatter()
+    {
+      @Override
+      public CharSequence format(int piStart,
+                                 int piEnd) throws IOException
+      {
+        TabbedRecordEncoder lEncoder = new TabbedRecordEncoder();
+        for (int i = piStart; i < piEnd; i++) {
+          DLCWriter.encodeTabbedRowOfMassesAtPixel(lEncoder,
+                                                   i,
+                                                   piNumSIZEs,
+                                                   pd2dDlcPix,
+                                                   pdHalfBorder,
+                                                   pd2dMass).newline();
+        }
+        return lEncoder.toString();
+      }
+    };
+  }
+
+  /**
+   * Runs the formatter on every tile on the {@link #pool shared pool} of
+   * piThreads workers and appends the results to pOut, if it is not null, in
+   * tile order. Keeps at most two tiles per thread waiting, so memory is
+   * bounded; if a tile fails, the tiles still waiting are cancelled.
+   */
+  static void runInOrder(Appendable pOut,
+                         int piNumPixels,
+                         int piThreads,
+                         final TileFormatter pFormatter) throws IOException
+  {
+    int liNumTiles = numTiles(piNumPixels);
+    int liThreads = Math.max(1,
+                             Math.min(piThreads,
+                                      liNumTiles));
+    if (liThreads == 1) {
+      for (int t = 0; t < liNumTiles; t++) {
+        CharSequence lcs = pFormatter.format(t * TILE_PIXELS,
+                                             Math.min(piNumPixels,
+                                                      (t + 1) * TILE_PIXELS));
+        if (pOut != null) {
+          pOut.append(lcs);
+        }
+      }
+      return;
+    }
+    ExecutorService lPool = pool(piThreads);
+    ArrayDeque<Future<CharSequence>> lQueue
+        = new ArrayDeque<Future<CharSequence>>();
+    try {
+      int liNext = 0;
+      while ((liNext < liNumTiles) || !lQueue.isEmpty()) {
+        while ((liNext < liNumTiles) && (lQueue.size() < 2 * liThreads)) {
+          final int liStart = liNext * TILE_PIXELS;
+          final int liEnd = Math.min(piNumPixels,
+                                     liStart + TILE_PIXELS);
+          lQueue.add(lPool.submit(new Callable<CharSequence>()
+          {
+            @Override
+            public CharSequence call() throws IOException
+            {
+              return pFormatter.format(liStart,
+                                       liEnd);
+            }
+          }));
+          liNext++;
+        }
+        CharSequence lcs = lQueue.remove().get();
+        if (pOut != null) {
+          pOut.append(lcs);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex.toString());
+    } catch (ExecutionException ex) {
+      throw new IOException(ex.getCause().toString());
+    } finally {
+      for (Future<CharSequence> lFuture : lQueue) {
+        lFuture.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Returns the shared pool, made on first use. It is made again if a
+   * different number of threads is asked for; the old pool finishes the tasks
+   * it was given.
+   */
+  static synchronized ExecutorService pool(int piThreads)
+  {
+    if ((executor == null) || (iExecutorThreads != piThreads)) {
+      if (executor != null) {
+        executor.shutdown();
+      }
+      executor = Executors.newFixedThreadPool(piThreads,
+                                              DAEMON_THREADS);
+      iExecutorThreads = piThreads;
+    }
+    return executor;
+  }
+}
@@ -0,0 +1,301 @@
+package fraclac.writers;
+
+import fraclac.analyzer.DataProcessor;
+import static fraclac.utilities.Symbols.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the part 1 row of a box counting data file for one
+ * {@link fraclac.analyzer.Vars#iNumGrids GRID}, from maps that belong to the
+ * instance rather than to {@link DataStringFormatter}.
+ * <p>
+ * The maps are filled once, in the constructor, from the passed
+ * DataProcessor, which is only read. An instance is therefore not changed
+ * after it is made, and instances for different GRIDs can be made and
+ * formatted at the same time, as
+ * {@link DataStringFormatter#get2PartDataStringAndHeadsSlice} does with
+ * {@link #callInOrder}.
+ *
+ * @see DataStringFormatter#part1DataFileRowsThisGRID
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class GRIDRowFormatter
+{
+
+  final Map<Headings.EnumInfoData, Object> infoMap
+      = new EnumMap<Headings.EnumInfoData, Object>(
+          Headings.EnumInfoData.class);
+  final Map<Headings.EnumDataFile, Object> //
+      countMap = new EnumMap<Headings.EnumDataFile, Object>(
+          Headings.EnumDataFile.class),
+      massMap = new EnumMap<Headings.EnumDataFile, Object>(
+          Headings.EnumDataFile.class),
+      ssMap = new EnumMap<Headings.EnumDataFile, Object>(
+          Headings.EnumDataFile.class),
+      sbMap = new EnumMap<Headings.EnumDataFile, Object>(
+          Headings.EnumDataFile.class);
+  final Map<Headings.EnumLacData, Object> //
+      lacMap = new EnumMap<Headings.EnumLacData, Object>(
+          Headings.EnumLacData.class),
+      probMap = new EnumMap<Headings.EnumLacData, Object>(
+          Headings.EnumLacData.class),
+      pdMap = new EnumMap<Headings.EnumLacData, Object>(
+          Headings.EnumLacData.class);
+
+  /**
+   * Pool shared by every call to {@link #callInOrder}; null until first used.
+   */
+  private static ExecutorService executor;
+  private static int iExecutorThreads;
+
+  /**
+   * Makes the threads of the pool daemons, so it does not keep the JVM
+   * running.
+   */
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable pRunnable)
+    {
+      Thread lThread = new Thread(pRunnable,
+                                  GRIDRowFormatter.class.getSimpleName());
+      lThread.setDaemon(true);
+      return lThread;
+    }
+  };
+
+  /**
+   * Loads the maps for the passed GRID, as
+   * {@link DataStringFormatter#loadMaps} does for the static maps.
+   *
+   * @param piGRID int for the {@link fraclac.analyzer.Vars#iNumGrids GRID}
+   * @param psImageInfo String for the file information column
+   * @param psScanType String for the type of scan
+   * @param pDP {@link DataProcessor} containing preprocessed statistics
+   */
+  public GRIDRowFormatter(int piGRID,
+                          String psImageInfo,
+                          String psScanType,
+                          DataProcessor pDP)
+  {
+    infoMap.put(Headings.EnumInfoData.INFO,
+                psImageInfo);
+
+    countMap.put(Headings.EnumDataFile.SCAN_TYPE,
+                 psScanType
+                 + " at " + sGSetMember + (piGRID + 1));
+
+    DataStringFormatter.loadCountMap(countMap,
+                                     piGRID,
+                                     pDP);
+    DataStringFormatter.loadMassMap(massMap,
+                                    piGRID,
+                                    pDP);
+
+    if (pDP.scan.vars.bDoSmoothed) {
+      DataStringFormatter.loadSSMap(ssMap,
+                                    piGRID,
+                                    pDP);
+      DataStringFormatter.loadSBMap(sbMap,
+                                    piGRID,
+                                    pDP);
+    } else {
+      DataStringFormatter.primeSmoothedMaps(ssMap,
+                                            sbMap);
+    }
+
+    DataStringFormatter.loadLacunarityMap(lacMap,
+                                          piGRID,
+                                          pDP);
+
+    if (pDP.scan.vars.iMaxFrequencies > 0) {
+      DataStringFormatter.loadProbabilityMaps(probMap,
+                                              piGRID,
+                                              pDP);
+      DataStringFormatter.loadPDMaps(pdMap,
+                                     piGRID,
+                                     pDP);
+    } else {
+      DataStringFormatter.primeProbMaps(probMap,
+                                        pdMap);
+    }
+
+    DataStringFormatter.loadCountVsOMEGADataInDataString(infoMap,
+                                                         piGRID,
+                                                         pDP);
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Appends the tabbed row of data for this GRID.
+   *
+   * @param psb StringBuilder appended to
+   * @return the passed StringBuilder
+   */
+  public StringBuilder appendData(StringBuilder psb)
+  {
+    psb.append(infoMap.get(Headings.EnumInfoData.INFO)).append(TAB)
+        .append(WriteUtilities.appendTabbedData(countMap))
+        .append(WriteUtilities.appendTabbedData(massMap))
+        .append(WriteUtilities.appendTabbedData(ssMap))
+        .append(WriteUtilities.appendTabbedData(sbMap))
+        .append(WriteUtilities.appendTabbedData(lacMap))
+        .append(WriteUtilities.appendTabbedData(probMap))
+        .append(WriteUtilities.appendTabbedData(pdMap));
+    return psb;
+  }
+
+  /**
+   * Writes the same row as {@link #appendData} to the passed encoder. Numbers
+   * in the maps are rounded as fnum rounds them, and most are written with no
+   * String made for them.
+   *
+   * @param pEncoder encoder written to
+   * @return the passed encoder
+   * @throws IOException if pEncoder throws it
+   */
+  public TabbedRecordEncoder encodeData(TabbedRecordEncoder pEncoder)
+      throws IOException
+  {
+    pEncoder.field(infoMap.get(Headings.EnumInfoData.INFO));
+    encodeValues(pEncoder,
+                 countMap);
+    encodeValues(pEncoder,
+                 massMap);
+    encodeValues(pEncoder,
+                 ssMap);
+    encodeValues(pEncoder,
+                 sbMap);
+    encodeValues(pEncoder,
+                 lacMap);
+    encodeValues(pEncoder,
+                 probMap);
+    encodeValues(pEncoder,
+                 pdMap);
+    return pEncoder;
+  }
+
+  /**
+   * Appends the tabbed headings for the row made by {@link #appendData}.
+   *
+   * @param psb StringBuilder appended to
+   * @return the passed StringBuilder
+   */
+  public StringBuilder appendHeadings(StringBuilder psb)
+  {
+    psb.append(Headings.EnumInfoData.INFO).append(TAB)
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                countMap.get(Headings.EnumDataFile.NAME).toString(),
+                countMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                massMap.get(Headings.EnumDataFile.NAME).toString(),
+                massMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                ssMap.get(Headings.EnumDataFile.NAME).toString(),
+                ssMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                sbMap.get(Headings.EnumDataFile.NAME).toString(),
+                sbMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                lacMap.get(Headings.EnumLacData.NAME).toString(),
+                lacMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                probMap.get(Headings.EnumLacData.NAME).toString(),
+                probMap.keySet()))
+        .append(WriteUtilities.appendTabbedHeadingsForSingleGrid(
+                pdMap.get(Headings.EnumLacData.NAME).toString(),
+                pdMap.keySet()));
+    return psb;
+  }
+
+  /**
+   * Runs the passed tasks on a pool of at most piThreads workers and returns
+   * their results in the order of the tasks. With one thread or one task,
+   * they run on the calling thread. The pool is made on first use and kept
+   * for later calls.
+   * <p>
+   * An exception thrown by a task is thrown again here, as it would be if
+   * the tasks had been run one after another.
+   *
+   * @param <T> type of result
+   * @param palTasks tasks, e.g., one per GRID
+   * @param piThreads int number of worker threads
+   * @return List of results, in the order of the tasks
+   */
+  public static <T> List<T> callInOrder(List<Callable<T>> palTasks,
+                                        int piThreads)
+  {
+    List<T> lalResults = new ArrayList<T>(palTasks.size());
+    int liThreads = Math.max(1,
+                             Math.min(piThreads,
+                                      palTasks.size()));
+    try {
+      if (liThreads == 1) {
+        for (Callable<T> lTask : palTasks) {
+          lalResults.add(lTask.call());
+        }
+        return lalResults;
+      }
+      for (Future<T> lFuture : pool(piThreads).invokeAll(palTasks)) {
+        lalResults.add(lFuture.get());
+      }
+      return lalResults;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      throw unchecked(ex.getCause());
+    } catch (Exception ex) {
+      throw unchecked(ex);
+    }
+  }
+
+  /**
+   * Returns the shared pool, made on first use. It is made again if a
+   * different number of threads is asked for; the old pool finishes the tasks
+   * it was given.
+   */
+  private static synchronized ExecutorService pool(int piThreads)
+  {
+    if ((executor == null) || (iExecutorThreads != piThreads)) {
+      if (executor != null) {
+        executor.shutdown();
+      }
+      executor = Executors.newFixedThreadPool(piThreads,
+                                              DAEMON_THREADS);
+      iExecutorThreads = piThreads;
+    }
+    return executor;
+  }
+
+  private static void encodeValues(TabbedRecordEncoder pEncoder,
+                                   Map<?, Object> pMap) throws IOException
+  {
+    for (Object lValue : pMap.values()) {
+      pEncoder.field(lValue);
+    }
+  }
+
+  private static RuntimeException unchecked(Throwable pThrown)
+  {
+    if (pThrown instanceof RuntimeException) {
+      return (RuntimeException) pThrown;
+    }
+    if (pThrown instanceof Error) {
+      throw (Error) pThrown;
+    }
+    return new IllegalStateException(pThrown);
+  }
+}
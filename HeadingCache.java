@@ -0,0 +1,268 @@
+package fraclac.writers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-rendered heading strings for data and summary files, made once for each
+ * set of options they depend on and then handed out.
+ * <p>
+ * A heading is found by a key of the kind of heading, the number of
+ * {@link fraclac.analyzer.Vars#iNumGrids GRIDs}, whether
+ * {@link fraclac.analyzer.Vars#iMaxFrequencies bins} were used, and the
+ * phrases it is made from, if any. Those are the only options the headings
+ * written by this package change with; gray or binary scans, filters,
+ * smoothing and the type of scan choose which files and columns are written,
+ * not the text of their headings. Strings are immutable, so one copy is
+ * shared by every caller and thread; methods that return a StringBuilder in
+ * the rest of the package return a new one made from the cached String.
+ * <p>
+ * The cache is {@link #clear cleared} if it grows past {@link #MAX_ENTRIES},
+ * so keys made from changing phrases cannot fill memory.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class HeadingCache
+{
+
+  /**
+   * Most headings kept before the cache is cleared. {@value}
+   */
+  public static final int MAX_ENTRIES = 512;
+  /**
+   * Kinds of heading.
+   */
+  static final String MF_SPECTRA = "MF spectra",
+      SLAC_DATA_FILE = "SLAC data file",
+      DATA_FILE_PART_1 = "data file part 1",
+      NUMBERED = "numbered",
+      REPEATED = "repeated";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final ConcurrentHashMap<List<Object>, String> mapHeadings
+      = new ConcurrentHashMap<List<Object>, String>();
+  private static final ConcurrentHashMap<String, ByteBuffer> mapBytes
+      = new ConcurrentHashMap<String, ByteBuffer>();
+
+  private HeadingCache()
+  {
+  }
+
+  /**
+   * Makes the heading for a key that is not in the cache.
+   */
+  interface Renderer
+  {
+
+    /**
+     * @return String heading
+     */
+    String render();
+  }
+
+  // ===========================================================================
+  //                              HEADINGS
+  // ===========================================================================
+  /**
+   * @return String of {@link Headings#headingsForMFSpectra multifractal
+   * spectra headings}
+   */
+  public static String headingsForMFSpectra()
+  {
+    return get(key(MF_SPECTRA,
+                   0,
+                   false,
+                   null),
+               new Renderer()
+               {
+                 @Override
+                 public String render()
+                 {
+                   return Headings.renderHeadingsForMFSpectra();
+                 }
+               });
+  }
+
+  /**
+   * @param pColumns columns of a sliding box lacunarity data file; their
+   * headings do not change, so they are only read if the heading is not held
+   * @return String of the {@link SLACWriter#sbTabbedSLacDataFileHeadings
+   * sliding box lacunarity data file headings}
+   */
+  public static String slacDataFileHeadings(final SLacColumns pColumns)
+  {
+    return get(key(SLAC_DATA_FILE,
+                   0,
+                   false,
+                   null),
+               new Renderer()
+               {
+                 @Override
+                 public String render()
+                 {
+                   return SLACWriter.renderSLacDataFileHeadings(pColumns);
+                 }
+               });
+  }
+
+  /**
+   * @param pbBins true if {@link fraclac.analyzer.Vars#iMaxFrequencies bins}
+   * were used, which adds a probability column
+   * @param pFormatter formatter for any GRID of a slice scanned with the same
+   * bins setting
+   * @return String of {@link GRIDRowFormatter#appendHeadings part 1 data file
+   * headings}
+   */
+  public static String dataFilePart1Headings(boolean pbBins,
+                                             final GRIDRowFormatter pFormatter)
+  {
+    return get(key(DATA_FILE_PART_1,
+                   0,
+                   pbBins,
+                   null),
+               new Renderer()
+               {
+                 @Override
+                 public String render()
+                 {
+                   return pFormatter.appendHeadings(new StringBuilder())
+                       .toString();
+                 }
+               });
+  }
+
+  /**
+   * @param psaHeadings String [] of headings
+   * @return String made by {@link WriteUtilities#toTabbedAndNumberedString}
+   */
+  public static String tabbedAndNumbered(final String[] psaHeadings)
+  {
+    return get(key(NUMBERED,
+                   0,
+                   false,
+                   psaHeadings),
+               new Renderer()
+               {
+                 @Override
+                 public String render()
+                 {
+                   return WriteUtilities.renderTabbedAndNumberedString(
+                       psaHeadings);
+                 }
+               });
+  }
+
+  /**
+   * @param psaPhrases String [] of phrases
+   * @param piGRIDs int number of times to repeat each phrase, one per GRID
+   * @param psPrefix String to include with the number
+   * @return String made by
+   * {@link WriteUtilities#numberTabAndRepeatEachElementXTimes}
+   */
+  public static String numberTabAndRepeatEachElementXTimes(
+      final String[] psaPhrases,
+      final int piGRIDs,
+      final String psPrefix)
+  {
+    String[] lsaParts = Arrays.copyOf(psaPhrases,
+                                      psaPhrases.length + 1);
+    lsaParts[psaPhrases.length] = psPrefix;
+    return get(key(REPEATED,
+                   piGRIDs,
+                   false,
+                   lsaParts),
+               new Renderer()
+               {
+                 @Override
+                 public String render()
+                 {
+                   return WriteUtilities.renderNumberTabAndRepeat(psaPhrases,
+                                                                  piGRIDs,
+                                                                  psPrefix);
+                 }
+               });
+  }
+
+  /**
+   * Returns the UTF-8 bytes of the passed heading, encoded once per heading.
+   *
+   * @param psHeadings String heading, e.g., one returned by this class
+   * @return read-only ByteBuffer of the bytes, positioned at 0
+   */
+  public static ByteBuffer bytes(String psHeadings)
+  {
+    ByteBuffer lBytes = mapBytes.get(psHeadings);
+    if (lBytes == null) {
+      if (mapBytes.size() >= MAX_ENTRIES) {
+        mapBytes.clear();
+      }
+      lBytes = ByteBuffer.wrap(psHeadings.getBytes(UTF_8)).asReadOnlyBuffer();
+      mapBytes.put(psHeadings,
+                   lBytes);
+    }
+    return lBytes.duplicate();
+  }
+
+  /**
+   * Removes every heading, e.g., after symbols used in headings are changed.
+   */
+  public static void clear()
+  {
+    mapHeadings.clear();
+    mapBytes.clear();
+  }
+
+  /**
+   * @return int number of headings held
+   */
+  public static int size()
+  {
+    return mapHeadings.size();
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Returns a key of the option tuple. The phrases are copied, so changing the
+   * passed array later does not change the key.
+   */
+  static List<Object> key(String psKind,
+                          int piGRIDs,
+                          boolean pbBins,
+                          String[] psaParts)
+  {
+    List<Object> lalKey = new ArrayList<Object>(4);
+    lalKey.add(psKind);
+    lalKey.add(piGRIDs);
+    lalKey.add(pbBins);
+    lalKey.add(psaParts == null ? Collections.emptyList()
+        : Collections.unmodifiableList(Arrays.asList(psaParts.clone())));
+    return lalKey;
+  }
+
+  /**
+   * Returns the heading for the key, rendering and keeping it if it is not
+   * held. Two threads may render the same heading at once; both get equal
+   * Strings.
+   */
+  static String get(List<Object> pKey,
+                    Renderer pRenderer)
+  {
+    String lsHeadings = mapHeadings.get(pKey);
+    if (lsHeadings == null) {
+      if (mapHeadings.size() >= MAX_ENTRIES) {
+        mapHeadings.clear();
+      }
+      lsHeadings = pRenderer.render();
+      mapHeadings.putIfAbsent(pKey,
+                              lsHeadings);
+    }
+    return lsHeadings;
+  }
+}
@@ -209,11 +209,23 @@ public class Headings extends AllGsHeadings
    * </ul>
    * <!-- Update the above strings manually in the javadoc. -->
    *
+   * The string is made once and then {@link HeadingCache cached}.
+   *
    * @return String
    *
    * @see ENUM_MULTIFRACTAL_HEADINGS
    */
   public static StringBuilder headingsForMFSpectra()
+  {
+    return new StringBuilder(HeadingCache.headingsForMFSpectra());
+  }
+
+  /**
+   * Makes the string returned by {@link #headingsForMFSpectra}.
+   *
+   * @return String
+   */
+  static String renderHeadingsForMFSpectra()
   {
 
     StringBuilder lsbHeadings = new StringBuilder("");
@@ -224,7 +236,7 @@ public class Headings extends AllGsHeadings
           .append(lval.sAllGRIDs())
           .append(TAB);
     }
-    return lsbHeadings;
+    return lsbHeadings.toString();
   }
 
   // ...........................................................................
@@ -345,7 +357,33 @@ public class Headings extends AllGsHeadings
     CIRCLE_MAX_OVER_MIN(s_CIRCLE_MAX_OVER_MIN),
     CIRCLE_CV_RADII(s_CIRCLE_CV_RADII),
     CIRCLE_MEAN_RADIUS(s_CIRCLE_MEAN_RADIUS),
-    CIRCLE_METHOD(s_CIRCLE_METHOD);
+    CIRCLE_METHOD(s_CIRCLE_METHOD),
+    /**
+     * Median over all rotations of the mean fractal dimension at each slice,
+     * from a {@link QuantileSketch}.
+     */
+    ROTATION_MEDIAN_DB("Median over rotations of MEAN FRACTAL DIMENSION"),
+    /**
+     * 5th percentile over all rotations of the mean fractal dimension.
+     */
+    ROTATION_P05_DB("5th percentile over rotations of MEAN FRACTAL DIMENSION"),
+    /**
+     * 95th percentile over all rotations of the mean fractal dimension.
+     */
+    ROTATION_P95_DB("95th percentile over rotations of MEAN FRACTAL DIMENSION"),
+    /**
+     * Median over all rotations of the mean lacunarity (mean of &lambda; over
+     * all sizes) at each slice, from a {@link QuantileSketch}.
+     */
+    ROTATION_MEDIAN_LAC("Median over rotations of MEAN LACUNARITY"),
+    /**
+     * 5th percentile over all rotations of the mean lacunarity.
+     */
+    ROTATION_P05_LAC("5th percentile over rotations of MEAN LACUNARITY"),
+    /**
+     * 95th percentile over all rotations of the mean lacunarity.
+     */
+    ROTATION_P95_LAC("95th percentile over rotations of MEAN LACUNARITY");
 
     // .........................................................................
     //                       Fields and Constructors
@@ -0,0 +1,88 @@
+package fraclac.writers;
+
+/**
+ * A list of pixel coordinates, bucketed by row with a counting sort, so that
+ * a map of the pixels can be written one row at a time without a matrix the
+ * size of their bounding rectangle.
+ *
+ * @see TextImageFile
+ * @see DlcRasterFile
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+final class PixelRows
+{
+
+  /**
+   * Smallest coordinates, and the size of the bounding rectangle; the width
+   * and height are 0 if there are no pixels.
+   */
+  final int iMinX, iMinY, iWidth, iHeight;
+  /**
+   * Index of each pixel in the coordinate arrays, grouped by row; the pixels
+   * of row y are at [iaRowStart[y], iaRowStart[y + 1]), in the order they
+   * are listed.
+   */
+  final int[] iaPixels;
+  final int[] iaRowStart;
+  final double[] daX;
+
+  /**
+   * @param pdaX x coordinate of each pixel
+   * @param pdaY y coordinate of each pixel
+   */
+  PixelRows(double[] pdaX,
+            double[] pdaY)
+  {
+    daX = pdaX;
+    double ldMinX = Double.MAX_VALUE, ldMaxX = -Double.MAX_VALUE;
+    double ldMinY = Double.MAX_VALUE, ldMaxY = -Double.MAX_VALUE;
+    int liN = pdaX.length;
+    for (int i = 0; i < liN; i++) {
+      ldMinX = Math.min(ldMinX,
+                        pdaX[i]);
+      ldMaxX = Math.max(ldMaxX,
+                        pdaX[i]);
+      ldMinY = Math.min(ldMinY,
+                        pdaY[i]);
+      ldMaxY = Math.max(ldMaxY,
+                        pdaY[i]);
+    }
+    iMinX = (liN == 0) ? 0 : (int) ldMinX;
+    iMinY = (liN == 0) ? 0 : (int) ldMinY;
+    iWidth = (liN == 0) ? 0 : (int) ldMaxX - iMinX + 1;
+    iHeight = (liN == 0) ? 0 : (int) ldMaxY - iMinY + 1;
+    // .........................................................................
+    // Counting sort of the pixels by row.
+    // .........................................................................
+    iaRowStart = new int[iHeight + 1];
+    for (int i = 0; i < liN; i++) {
+      iaRowStart[(int) pdaY[i] - iMinY + 1]++;
+    }
+    for (int y = 0; y < iHeight; y++) {
+      iaRowStart[y + 1] += iaRowStart[y];
+    }
+    iaPixels = new int[liN];
+    int[] liaNext = new int[iHeight];
+    System.arraycopy(iaRowStart,
+                     0,
+                     liaNext,
+                     0,
+                     iHeight);
+    for (int i = 0; i < liN; i++) {
+      int y = (int) pdaY[i] - iMinY;
+      iaPixels[liaNext[y]++] = i;
+    }
+  }
+
+  /**
+   * Returns the column of the pixel at the passed index in the coordinate
+   * arrays, from 0 at the left of the bounding rectangle.
+   *
+   * @param piPixel int index of the pixel
+   * @return int column
+   */
+  int column(int piPixel)
+  {
+    return (int) daX[piPixel] - iMinX;
+  }
+}
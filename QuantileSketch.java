@@ -0,0 +1,345 @@
+package fraclac.writers;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution of doubles that answers quantile
+ * queries (e.g., medians and percentiles) without keeping every value.
+ * <p>
+ * The sketch follows the KLL scheme: values go into a stack of compactors,
+ * where an item at level <i>h</i> stands for 2<sup>h</sup> original values.
+ * When a level is full it is sorted and every other item is promoted to the
+ * next level, alternating between the odd and even items so that the result
+ * is deterministic for the same input. Capacities shrink geometrically going
+ * down from the top level, so the memory used is bounded by about
+ * <code>3k</code> doubles plus one small array per level, regardless of how
+ * many values are added. With the default <code>k</code> of 200 the rank error
+ * is roughly 1%.
+ * <p>
+ * Two sketches are merged by appending the items of each level and then
+ * compacting, which costs about as much as adding the items of the smaller
+ * sketch; so partial results from several workers can be combined cheaply.
+ * The count, minimum and maximum are always exact.
+ * <p>
+ * Instances are not thread safe; give each worker its own sketch and
+ * {@link #merge merge} them afterwards.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class QuantileSketch
+{
+
+  /**
+   * Default accuracy parameter. {@value}
+   */
+  public static final int DEFAULT_K = 200;
+  /**
+   * Smallest capacity of any level. {@value}
+   */
+  static final int MIN_CAPACITY = 8;
+  /**
+   * Ratio by which the capacity of each level shrinks going down from the top
+   * level.
+   */
+  static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+  /**
+   * Accuracy parameter; capacity of the top level.
+   */
+  final int k;
+  /**
+   * Items held at each level. Only the first {@link #iaSizes sizes} entries of
+   * each level are used.
+   */
+  double[][] d2dLevels;
+  /**
+   * Number of items used in each level.
+   */
+  int[] iaSizes;
+  /**
+   * Number of levels in use.
+   */
+  int iNumLevels;
+  /**
+   * Alternates between 0 and 1 to choose which items are promoted.
+   */
+  private int iOffset;
+  /**
+   * Number of values added, including merged values.
+   */
+  long lCount;
+  /**
+   * Exact smallest and largest values added.
+   */
+  double dMin = Double.POSITIVE_INFINITY, dMax = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Makes a sketch with the {@link #DEFAULT_K default} accuracy.
+   */
+  public QuantileSketch()
+  {
+    this(DEFAULT_K);
+  }
+
+  /**
+   * Makes a sketch with the passed accuracy parameter; larger values are more
+   * accurate and use proportionately more memory.
+   *
+   * @param piK int accuracy parameter, at least {@link #MIN_CAPACITY}
+   */
+  public QuantileSketch(int piK)
+  {
+    if (piK < MIN_CAPACITY) {
+      throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY
+          + ": " + piK);
+    }
+    k = piK;
+    d2dLevels = new double[1][];
+    iaSizes = new int[1];
+    d2dLevels[0] = new double[capacity(0)];
+    iNumLevels = 1;
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Adds a value. NaN values are ignored.
+   *
+   * @param pdValue double
+   */
+  public void add(double pdValue)
+  {
+    if (Double.isNaN(pdValue)) {
+      return;
+    }
+    lCount++;
+    if (pdValue < dMin) {
+      dMin = pdValue;
+    }
+    if (pdValue > dMax) {
+      dMax = pdValue;
+    }
+    append(0,
+           pdValue);
+    if (iaSizes[0] >= capacity(0)) {
+      compress();
+    }
+  }
+
+  /**
+   * Adds every value in the passed array. NaN values are ignored.
+   *
+   * @param pdaValues double []; null is ignored
+   */
+  public void addAll(double[] pdaValues)
+  {
+    if (pdaValues == null) {
+      return;
+    }
+    for (double ld : pdaValues) {
+      add(ld);
+    }
+  }
+
+  /**
+   * Merges the passed sketch into this one. The passed sketch is not changed.
+   *
+   * @param pOther QuantileSketch; null is ignored
+   */
+  public void merge(QuantileSketch pOther)
+  {
+    if ((pOther == null) || (pOther.lCount == 0)) {
+      return;
+    }
+    while (iNumLevels < pOther.iNumLevels) {
+      addLevel();
+    }
+    for (int liLevel = 0; liLevel < pOther.iNumLevels; liLevel++) {
+      for (int i = 0; i < pOther.iaSizes[liLevel]; i++) {
+        append(liLevel,
+               pOther.d2dLevels[liLevel][i]);
+      }
+    }
+    lCount += pOther.lCount;
+    dMin = Math.min(dMin,
+                    pOther.dMin);
+    dMax = Math.max(dMax,
+                    pOther.dMax);
+    compress();
+  }
+
+  /**
+   * Returns the approximate value at the passed quantile.
+   *
+   * @param pdQuantile double from 0 to 1; 0.5 returns the median
+   * @return double value at that quantile, or NaN if the sketch is empty
+   */
+  public double quantile(double pdQuantile)
+  {
+    if ((pdQuantile < 0) || (pdQuantile > 1)) {
+      throw new IllegalArgumentException("Quantile must be from 0 to 1: "
+          + pdQuantile);
+    }
+    if (lCount == 0) {
+      return Double.NaN;
+    }
+    if (pdQuantile == 0) {
+      return dMin;
+    }
+    if (pdQuantile == 1) {
+      return dMax;
+    }
+    // -------------------------------------------------------------------------
+    // Sort a copy of each level, then walk all levels in value order,
+    // adding the weight of each item until the wanted rank is reached.
+    // Items at level h stand for 2^h values.
+    // -------------------------------------------------------------------------
+    double[][] ld2dSorted = new double[iNumLevels][];
+    for (int liLevel = 0; liLevel < iNumLevels; liLevel++) {
+      ld2dSorted[liLevel] = Arrays.copyOf(d2dLevels[liLevel],
+                                          iaSizes[liLevel]);
+      Arrays.sort(ld2dSorted[liLevel]);
+    }
+    int[] liaNext = new int[iNumLevels];
+    double ldTarget = pdQuantile * lCount;
+    long llCumulative = 0;
+    while (true) {
+      int liLowest = -1;
+      for (int liLevel = 0; liLevel < iNumLevels; liLevel++) {
+        if ((liaNext[liLevel] < ld2dSorted[liLevel].length)
+            && ((liLowest < 0)
+            || (ld2dSorted[liLevel][liaNext[liLevel]]
+            < ld2dSorted[liLowest][liaNext[liLowest]]))) {
+          liLowest = liLevel;
+        }
+      }
+      if (liLowest < 0) {
+        return dMax;
+      }
+      double ldValue = ld2dSorted[liLowest][liaNext[liLowest]++];
+      llCumulative += 1L << liLowest;
+      if (llCumulative >= ldTarget) {
+        return ldValue;
+      }
+    }
+  }
+
+  /**
+   * Returns the approximate median.
+   *
+   * @return double, or NaN if the sketch is empty
+   */
+  public double median()
+  {
+    return quantile(0.5);
+  }
+
+  /**
+   * Returns the approximate value at the passed percentile.
+   *
+   * @param pdPercentile double from 0 to 100
+   * @return double, or NaN if the sketch is empty
+   */
+  public double percentile(double pdPercentile)
+  {
+    return quantile(pdPercentile / 100d);
+  }
+
+  /**
+   * Returns the number of values added, including merged values.
+   *
+   * @return long
+   */
+  public long getCount()
+  {
+    return lCount;
+  }
+
+  /**
+   * Returns the exact smallest value added, or NaN if the sketch is empty.
+   *
+   * @return double
+   */
+  public double getMin()
+  {
+    return lCount == 0 ? Double.NaN : dMin;
+  }
+
+  /**
+   * Returns the exact largest value added, or NaN if the sketch is empty.
+   *
+   * @return double
+   */
+  public double getMax()
+  {
+    return lCount == 0 ? Double.NaN : dMax;
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Returns the capacity of the passed level, given the number of levels in
+   * use: the top level holds {@link #k} items and each level below holds
+   * {@link #CAPACITY_RATIO} times as many, but never fewer than
+   * {@link #MIN_CAPACITY}.
+   */
+  int capacity(int piLevel)
+  {
+    int liDepth = iNumLevels - piLevel - 1;
+    return Math.max(MIN_CAPACITY,
+                    (int) Math.ceil(k * Math.pow(CAPACITY_RATIO,
+                                                 liDepth)));
+  }
+
+  private void append(int piLevel,
+                      double pdValue)
+  {
+    if (iaSizes[piLevel] == d2dLevels[piLevel].length) {
+      d2dLevels[piLevel] = Arrays.copyOf(d2dLevels[piLevel],
+                                         Math.max(MIN_CAPACITY,
+                                                  d2dLevels[piLevel].length
+                                                  * 2));
+    }
+    d2dLevels[piLevel][iaSizes[piLevel]++] = pdValue;
+  }
+
+  private void addLevel()
+  {
+    d2dLevels = Arrays.copyOf(d2dLevels,
+                              iNumLevels + 1);
+    iaSizes = Arrays.copyOf(iaSizes,
+                            iNumLevels + 1);
+    d2dLevels[iNumLevels] = new double[MIN_CAPACITY];
+    iNumLevels++;
+  }
+
+  /**
+   * Compacts every level that is over its capacity, from the bottom up.
+   */
+  private void compress()
+  {
+    for (int liLevel = 0; liLevel < iNumLevels; liLevel++) {
+      if (iaSizes[liLevel] < capacity(liLevel)) {
+        continue;
+      }
+      if (liLevel == iNumLevels - 1) {
+        addLevel();
+      }
+      double[] lda = d2dLevels[liLevel];
+      int liSize = iaSizes[liLevel];
+      Arrays.sort(lda,
+                  0,
+                  liSize);
+      // Keep a leftover item at this level when the size is odd.
+      int liStart = (liSize % 2 == 1) ? 1 : 0;
+      for (int i = liStart + iOffset; i < liSize; i += 2) {
+        append(liLevel + 1,
+               lda[i]);
+      }
+      iOffset = 1 - iOffset;
+      iaSizes[liLevel] = liStart;
+    }
+  }
+}
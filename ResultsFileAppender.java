@@ -0,0 +1,527 @@
+package fraclac.writers;
+
+import ij.IJ;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps results files open between writes, so that appending a line to a
+ * file does not open and close it each time.
+ * <p>
+ * Each file appended to gets a channel, opened at its end, and a buffer. Text
+ * is encoded as UTF-8 into the buffer, which is written to the file when
+ * <ul>
+ * <li>it holds {@link #FLUSH_BYTES} bytes,
+ * <li>it has held data for {@link #FLUSH_MILLIS} milliseconds (checked on
+ * each append and by a background timer, so quiet files are written too),
+ * <li>the file is {@link #close(String) closed}, or {@link #flushAll} or
+ * {@link #closeAll} is called, e.g., at the end of a batch,
+ * <li>or the Java virtual machine shuts down.
+ * </ul>
+ * Files named with {@link #GZIP_SUFFIX} are written gzip compressed, as one
+ * gzip member for as long as the file is kept open. Each time the buffer is
+ * written the compressor is flushed, so what is on disk can be decompressed
+ * up to that point; the member is finished, and the compressor's native
+ * memory freed, when the file is closed.
+ * <p>
+ * At most {@link #MAX_OPEN_FILES} files are kept open; when another is opened,
+ * the one written least recently is flushed and closed. A file not written
+ * for {@link #IDLE_CLOSE_MILLIS} milliseconds is closed by the background
+ * timer, so outside a batch, where nothing calls {@link #closeAll}, files do
+ * not stay open until the Java virtual machine shuts down; the timer stops
+ * once no file is open.
+ * <p>
+ * All methods are static and synchronized, like the other writers in this
+ * package, so analysis threads can share one appender.
+ *
+ * @see ResultsFilesWriter#writeToEndOfTextFile
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class ResultsFileAppender
+{
+
+  /**
+   * Bytes held for a file before they are written. {@value}
+   */
+  public static final int FLUSH_BYTES = 64 * 1024;
+  /**
+   * Longest time, in milliseconds, data is held before it is written.
+   * {@value}
+   */
+  public static final long FLUSH_MILLIS = 2000;
+  /**
+   * Most files kept open at once. {@value}
+   */
+  public static final int MAX_OPEN_FILES = 64;
+  /**
+   * Time, in milliseconds, after which a file not written to is closed.
+   * {@value}
+   */
+  public static final long IDLE_CLOSE_MILLIS = 5 * FLUSH_MILLIS;
+  /**
+   * Files whose names end with this are written gzip compressed, one gzip
+   * member each time the file is opened for appending. {@value}
+   */
+  public static final String GZIP_SUFFIX = ".gz";
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Open files by path, least recently written first.
+   */
+  private static final LinkedHashMap<String, Sink> mapOpen
+      = new LinkedHashMap<String, Sink>(16,
+                                        0.75f,
+                                        true);
+  private static Timer timer;
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread()
+    {
+      @Override
+      public void run()
+      {
+        closeAll();
+      }
+    });
+  }
+
+  private ResultsFileAppender()
+  {
+  }
+
+  /**
+   * An open file and the bytes waiting to be written to it.
+   */
+  private static final class Sink
+  {
+
+    final RandomAccessFile rafFile;
+    final FileChannel channel;
+    final ByteBuffer buffer = ByteBuffer.allocate(FLUSH_BYTES);
+    /**
+     * True if the file is written gzip compressed.
+     */
+    final boolean bGzip;
+    /**
+     * Compresses everything written while the file is open into one gzip
+     * member; made on the first write, so a file truncated after it is opened
+     * does not lose the gzip header, and null until then or if the file is
+     * not compressed.
+     */
+    GZIPOutputStream gzip;
+    /**
+     * Time the oldest byte in the buffer was added; 0 if the buffer is empty.
+     */
+    long lHeldSince;
+    /**
+     * Time the file was opened or last appended to.
+     */
+    long lLastUsed = System.currentTimeMillis();
+
+    Sink(String psPath) throws IOException
+    {
+      rafFile = new RandomAccessFile(psPath,
+                                     "rw");
+      channel = rafFile.getChannel();
+      channel.position(channel.size());
+      bGzip = psPath.endsWith(GZIP_SUFFIX);
+    }
+
+    void append(byte[] pba) throws IOException
+    {
+      append(ByteBuffer.wrap(pba));
+    }
+
+    /**
+     * Appends the remaining bytes of the passed buffer, moving its position
+     * to its limit.
+     */
+    void append(ByteBuffer pBytes) throws IOException
+    {
+      lLastUsed = System.currentTimeMillis();
+      int liBytes = pBytes.remaining();
+      if (liBytes > buffer.remaining()) {
+        flush();
+      }
+      if (liBytes >= buffer.capacity()) {
+        if (!pBytes.hasArray()) {
+          ByteBuffer lCopy = ByteBuffer.allocate(liBytes);
+          lCopy.put(pBytes).flip();
+          pBytes = lCopy;
+        }
+        write(pBytes);
+        return;
+      }
+      if (buffer.position() == 0) {
+        lHeldSince = System.currentTimeMillis();
+      }
+      buffer.put(pBytes);
+    }
+
+    /**
+     * Appends the bytes as one {@link AtomicResultsFiles segment}: their
+     * length and checksum, then the bytes.
+     */
+    void appendSegment(byte[] pba) throws IOException
+    {
+      lLastUsed = System.currentTimeMillis();
+      ByteBuffer lHeader = AtomicResultsFiles.segmentHeader(pba);
+      int liBytes = lHeader.remaining() + pba.length;
+      if (liBytes > buffer.remaining()) {
+        flush();
+      }
+      if (liBytes >= buffer.capacity()) {
+        write(lHeader);
+        write(ByteBuffer.wrap(pba));
+        return;
+      }
+      if (buffer.position() == 0) {
+        lHeldSince = System.currentTimeMillis();
+      }
+      buffer.put(lHeader);
+      buffer.put(pba);
+    }
+
+    void flush() throws IOException
+    {
+      if (buffer.position() == 0) {
+        return;
+      }
+      buffer.flip();
+      write(buffer);
+      buffer.clear();
+      lHeldSince = 0;
+    }
+
+    /**
+     * Writes the passed bytes to the file, compressing them if it is gzipped.
+     * The compressor is flushed after each write, so the compressed bytes
+     * reach the file now rather than when it is closed.
+     */
+    void write(ByteBuffer pBuffer) throws IOException
+    {
+      if (!bGzip) {
+        while (pBuffer.hasRemaining()) {
+          channel.write(pBuffer);
+        }
+        return;
+      }
+      if (gzip == null) {
+        gzip = new GZIPOutputStream(new ChannelStream(channel),
+                                    8192,
+                                    true);
+      }
+      gzip.write(pBuffer.array(),
+                 pBuffer.arrayOffset() + pBuffer.position(),
+                 pBuffer.remaining());
+      pBuffer.position(pBuffer.limit());
+      gzip.flush();
+    }
+
+    boolean isDue(long plNow)
+    {
+      return (lHeldSince != 0) && (plNow - lHeldSince >= FLUSH_MILLIS);
+    }
+
+    boolean isIdle(long plNow)
+    {
+      return plNow - lLastUsed >= IDLE_CLOSE_MILLIS;
+    }
+
+    void close() throws IOException
+    {
+      try {
+        flush();
+        if (gzip != null) {
+          // Writes the gzip trailer and ends the compressor; the channel is
+          // left open by the ChannelStream and closed below.
+          gzip.close();
+        }
+      } finally {
+        gzip = null;
+        rafFile.close();
+      }
+    }
+  }
+
+  /**
+   * Writes to a channel without closing it when the stream is closed, so the
+   * gzip stream over it can be closed, freeing its compressor, while the
+   * {@link Sink} closes the file.
+   */
+  private static final class ChannelStream extends OutputStream
+  {
+
+    final FileChannel channel;
+
+    ChannelStream(FileChannel pChannel)
+    {
+      channel = pChannel;
+    }
+
+    @Override
+    public void write(int pi) throws IOException
+    {
+      write(new byte[]{(byte) pi},
+            0,
+            1);
+    }
+
+    @Override
+    public void write(byte[] pba,
+                      int piOffset,
+                      int piLength) throws IOException
+    {
+      ByteBuffer lBytes = ByteBuffer.wrap(pba,
+                                          piOffset,
+                                          piLength);
+      while (lBytes.hasRemaining()) {
+        channel.write(lBytes);
+      }
+    }
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Appends the passed text to the end of the file at the passed path, as
+   * UTF-8, creating the file if it does not exist. The text may be held in
+   * memory until the file is next flushed.
+   *
+   * @param psPath path of the file
+   * @param psText text to append
+   * @throws IOException if the file cannot be opened or written
+   */
+  public static synchronized void append(String psPath,
+                                         String psText) throws IOException
+  {
+    Sink lSink = open(psPath);
+    lSink.append(psText.getBytes(UTF8));
+    if (lSink.isDue(System.currentTimeMillis())) {
+      lSink.flush();
+    }
+  }
+
+  /**
+   * Appends the remaining bytes of the passed buffer to the end of the file at
+   * the passed path, creating the file if it does not exist, without making a
+   * String of them first; e.g., the bytes of a {@link TabbedRecordEncoder} or
+   * of a {@link HeadingCache#bytes cached heading}. The buffer's position is
+   * moved to its limit. The bytes may be held in memory until the file is
+   * next flushed.
+   *
+   * @param psPath path of the file
+   * @param pBytes UTF-8 bytes to append
+   * @throws IOException if the file cannot be opened or written
+   */
+  public static synchronized void append(String psPath,
+                                         ByteBuffer pBytes)
+      throws IOException
+  {
+    Sink lSink = open(psPath);
+    lSink.append(pBytes);
+    if (lSink.isDue(System.currentTimeMillis())) {
+      lSink.flush();
+    }
+  }
+
+  /**
+   * Appends the passed text to the file at the passed path as one
+   * length-prefixed, checksummed {@link AtomicResultsFiles segment}, so that a
+   * segment cut off by a crash can be detected when the file is read.
+   *
+   * @param psPath path of the file
+   * @param psText text to append
+   * @throws IOException if the file cannot be opened or written
+   */
+  public static synchronized void appendSegment(String psPath,
+                                                String psText)
+      throws IOException
+  {
+    Sink lSink = open(psPath);
+    lSink.appendSegment(psText.getBytes(UTF8));
+    if (lSink.isDue(System.currentTimeMillis())) {
+      lSink.flush();
+    }
+  }
+
+  /**
+   * Replaces the contents of the file at the passed path with the passed
+   * text, as UTF-8, and keeps the file open for appending.
+   *
+   * @param psPath path of the file
+   * @param psText new contents of the file
+   * @throws IOException if the file cannot be opened or written
+   */
+  public static synchronized void replace(String psPath,
+                                          String psText) throws IOException
+  {
+    close(psPath);
+    Sink lSink = open(psPath);
+    lSink.channel.truncate(0);
+    lSink.append(psText.getBytes(UTF8));
+    lSink.flush();
+  }
+
+  /**
+   * Writes any text held for the file at the passed path.
+   *
+   * @param psPath path of the file
+   * @throws IOException if the file cannot be written
+   */
+  public static synchronized void flush(String psPath) throws IOException
+  {
+    Sink lSink = mapOpen.get(key(psPath));
+    if (lSink != null) {
+      lSink.flush();
+    }
+  }
+
+  /**
+   * Writes any text held for every open file; the files stay open. Call at
+   * the end of each batch so the files on disk are complete.
+   */
+  public static synchronized void flushAll()
+  {
+    for (Map.Entry<String, Sink> lEntry : mapOpen.entrySet()) {
+      try {
+        lEntry.getValue().flush();
+      } catch (IOException ex) {
+        log(ex,
+            lEntry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Writes any text held for the file at the passed path and closes it. Call
+   * before the file is replaced, read or deleted by other code.
+   *
+   * @param psPath path of the file
+   * @throws IOException if the file cannot be written
+   */
+  public static synchronized void close(String psPath) throws IOException
+  {
+    Sink lSink = mapOpen.remove(key(psPath));
+    if (lSink != null) {
+      lSink.close();
+    }
+  }
+
+  /**
+   * Writes any text held for every open file and closes them all.
+   */
+  public static synchronized void closeAll()
+  {
+    for (Map.Entry<String, Sink> lEntry
+        : new ArrayList<Map.Entry<String, Sink>>(mapOpen.entrySet())) {
+      try {
+        lEntry.getValue().close();
+      } catch (IOException ex) {
+        log(ex,
+            lEntry.getKey());
+      }
+    }
+    mapOpen.clear();
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  private static Sink open(String psPath) throws IOException
+  {
+    String lsKey = key(psPath);
+    Sink lSink = mapOpen.get(lsKey);
+    if (lSink != null) {
+      return lSink;
+    }
+    if (mapOpen.size() >= MAX_OPEN_FILES) {
+      Map.Entry<String, Sink> lEldest = mapOpen.entrySet().iterator().next();
+      mapOpen.remove(lEldest.getKey());
+      lEldest.getValue().close();
+    }
+    lSink = new Sink(psPath);
+    mapOpen.put(lsKey,
+                lSink);
+    startTimer();
+    return lSink;
+  }
+
+  /**
+   * Starts the daemon timer that writes text held too long in files that are
+   * not being appended to, and closes files that are idle.
+   */
+  private static void startTimer()
+  {
+    if (timer != null) {
+      return;
+    }
+    timer = new Timer(ResultsFileAppender.class.getSimpleName(),
+                      true);
+    timer.schedule(new TimerTask()
+    {
+      @Override
+      public void run()
+      {
+        flushDueAndCloseIdle();
+      }
+    },
+                   FLUSH_MILLIS,
+                   FLUSH_MILLIS);
+  }
+
+  private static synchronized void flushDueAndCloseIdle()
+  {
+    long llNow = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Sink>> lIt = mapOpen.entrySet().iterator();
+        lIt.hasNext();) {
+      Map.Entry<String, Sink> lEntry = lIt.next();
+      Sink lSink = lEntry.getValue();
+      try {
+        if (lSink.isIdle(llNow)) {
+          lIt.remove();
+          lSink.close();
+        } else if (lSink.isDue(llNow)) {
+          lSink.flush();
+        }
+      } catch (IOException ex) {
+        log(ex,
+            lEntry.getKey());
+      }
+    }
+    if (mapOpen.isEmpty() && (timer != null)) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  private static String key(String psPath)
+  {
+    return new File(psPath).getAbsolutePath();
+  }
+
+  private static void log(IOException pEx,
+                          String psPath)
+  {
+    IJ.log(pEx.toString() + " Error writing " + psPath + " "
+        + ResultsFileAppender.class.getSimpleName()
+        + (pEx.getStackTrace()[0].getLineNumber()));
+  }
+}
@@ -11,6 +11,15 @@ import ij.io.DirectoryChooser;
 import ij.io.OpenDialog;
 import ij.text.TextWindow;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -42,6 +51,113 @@ public class ResultsFilesWriter extends AllGsHeadings
        */
       bIsFirstLCFDWrite = true;
 
+  /**
+   * If true, results files are written on a background thread by the
+   * {@link ResultsWriteQueue} instead of on the calling thread;
+   * {@link #finishBatch} waits for it at the end of the batch. Set before a
+   * batch starts, not during it. Errors are then logged rather than shown.
+   */
+  public static boolean bWriteInBackground = false;
+
+  /**
+   * If true, files written whole are replaced by an atomic rename of a
+   * temporary file, and appends are written as checksummed segments, by
+   * {@link AtomicResultsFiles}; a crash then cannot leave a half-written file
+   * that looks complete. Takes precedence over {@link #bWriteInBackground}.
+   */
+  public static boolean bWriteAtomically = false;
+
+  /**
+   * If true, during a batch the files every image appends to, saved by
+   * {@link #writeGridStringToBatchFile} and {@link #showOrSaveBatchFile}, are
+   * written as one {@link BatchShards shard} per image, so images analyzed in
+   * parallel do not wait on each other; {@link #finishBatch} merges the
+   * shards into the files, so the batch driver must call {@link #startBatch}
+   * and {@link #finishImage}. Files written for one image, such as data and
+   * multifractal files, are never sharded.
+   */
+  public static boolean bShardBatchFiles = false;
+
+  /**
+   * If true, {@link #saveTextImageFile} saves the colour-coded map as a
+   * binary {@link TextImageFile#writeRaster raster} instead of text.
+   */
+  public static boolean bSaveTextImageAsRaster = false;
+
+  /**
+   * If true, {@link #writeDlcByPixel(Vars, double[][], DataProcessor)} also
+   * saves the per-pixel DLC results as a binary {@link DlcRasterFile}.
+   */
+  public static boolean bSaveDlcRaster = false;
+
+  /**
+   * Worker threads {@link #streamDlcDataFile} formats the DLC data file with,
+   * in {@link DlcTiles tiles}; 1, the default, formats on the calling thread.
+   * The workers format numbers with {@link TabbedRecordEncoder encoders}, not
+   * with fnum, which is not known to be safe to call from several threads.
+   */
+  public static int iDlcWorkerThreads = 1;
+
+  /**
+   * If true, {@link #streamMassesFile} and {@link #streamDlcDataFile} write
+   * their rows with a {@link TabbedRecordEncoder} straight into UTF-8 bytes
+   * for the {@link ResultsFileAppender}, instead of as Strings, when files
+   * are written neither {@link #bWriteAtomically atomically} nor
+   * {@link #bWriteInBackground in the background}. The text is the same.
+   */
+  public static boolean bEncodeRows = false;
+
+  /**
+   * Kinds of results file that can be saved compressed.
+   *
+   * @see #eSetCompressedOutput
+   */
+  public enum EnumOutputType
+  {
+
+    /**
+     * Long summary files, including the rotation summaries.
+     */
+    SUMMARY,
+    /**
+     * DLC by pixel files.
+     */
+    DLC_BY_PIXEL,
+    /**
+     * Raw masses files.
+     */
+    MASSES,
+    /**
+     * Batch files.
+     */
+    BATCH,
+    /**
+     * Every other results file.
+     */
+    OTHER
+  }
+
+  /**
+   * Kinds of results file saved gzip compressed, with
+   * {@link ResultsFileAppender#GZIP_SUFFIX} added to the name. Each time the
+   * {@link ResultsFileAppender} opens such a file it starts a new gzip member,
+   * finished when the file is closed, so the file can still be appended to
+   * and reads back, with any gzip reader, as the same text it would have held
+   * uncompressed. Ignored
+   * when {@link #bWriteAtomically} is set. Empty by default.
+   */
+  public static final EnumSet<EnumOutputType> eSetCompressedOutput
+      = EnumSet.noneOf(EnumOutputType.class);
+
+  /**
+   * If true, {@link #recordRawData} also saves the masses from every GRID in
+   * one {@link BinaryMassFile}, as floats if {@link #bSaveMassesAsFloat} and
+   * deflated if {@link #bCompressBinaryMasses}.
+   */
+  public static boolean bSaveMassesAsBinary = false,
+      bSaveMassesAsFloat = false,
+      bCompressBinaryMasses = false;
+
   /**
    * TextWindow for displaying results of analyses in FracLac for ImageJ. The
    * FracLac TextWindows generally need UTF-8 encoding because they contain
@@ -55,6 +171,28 @@ public class ResultsFilesWriter extends AllGsHeadings
       lcfdWindow,
       dataFileWindow;
 
+  /**
+   * Receives the results that would be shown in TextWindows when results are
+   * not being saved, so no TextWindow is made; null, the default, shows them
+   * as usual. Set once before a run, e.g., to {@link ResultsSink#DISCARD} for
+   * a headless batch, in which case the text for the windows is not built at
+   * all.
+   *
+   * @see #isDiscarding
+   */
+  public static ResultsSink headlessSink = null;
+
+  /**
+   * Names of the files known to exist in each directory written to, keyed by
+   * the directory's path, so that deciding whether to write headings does not
+   * list the directory each time. A name is added when a file is found or
+   * written, and the cache is only consulted for files this class writes.
+   *
+   * @see #fileExists
+   */
+  static final ConcurrentHashMap<String, Set<String>> mapKnownFiles
+      = new ConcurrentHashMap<String, Set<String>>();
+
   // ==========================================================================
   //                              Methods 
   // ==========================================================================
@@ -69,6 +207,9 @@ public class ResultsFilesWriter extends AllGsHeadings
    */
   public static void showOrSaveDataFileForSmoothedBoxCount(Vars pVars)
   {
+    if (isDiscarding(pVars)) {
+      return;
+    }
     String lsFileName = RESULTS_WINDOW_TITLE_SMOOTHED_BOX_COUNT_DATA;
     StringBuilder lsbData = pVars.sbDataFileBoxCountSmoothed;
     String lsHeadings = Headings.S_TABBED_DATA_FILE_HEADINGS_SMOOTHED;
@@ -78,6 +219,10 @@ public class ResultsFilesWriter extends AllGsHeadings
                            lsFileName + pVars.getsDotXlsOrTxt(),
                            lsHeadings,
                            lsbData);
+    } else if (headlessSink != null) {
+      headlessSink.accept(lsFileName,
+                          lsHeadings,
+                          lsbData);
     } else {
       dataFileWindow = new TextWindow(lsFileName,
                                       lsHeadings,
@@ -149,6 +294,9 @@ public class ResultsFilesWriter extends AllGsHeadings
                                                      DataProcessor pDP,
                                                      Vars pVars)
   {
+    if (isDiscarding(pVars)) {
+      return;
+    }
     StringBuilder lsbHeadings = new StringBuilder(ELEMENT_SIZE_SIZE + TAB
         + epsilon + TAB + MEAN_PROB);
 
@@ -169,6 +317,10 @@ public class ResultsFilesWriter extends AllGsHeadings
                            + pVars.getsDotXlsOrTxt(),
                            lsbHeadings.toString(),
                            lsbDataToWrite);
+    } else if (headlessSink != null) {
+      headlessSink.accept(lsName,
+                          lsbHeadings,
+                          lsbDataToWrite);
     } else {
       TextWindow lTW = new TextWindow(lsName,
                                       lsbHeadings.toString(),
@@ -277,6 +429,9 @@ public class ResultsFilesWriter extends AllGsHeadings
    */
   public static void writeDlcByPixel(Vars pVars)
   {
+    if (isDiscarding(pVars)) {
+      return;
+    }
     String lsFileName = Dlc_PIXEL_RESULTS_TITLE + " "
         + pVars.getsTitleAndSliceLabelAndSliceNumber();
     String lsHeadings = WriteUtilities
@@ -288,6 +443,10 @@ public class ResultsFilesWriter extends AllGsHeadings
                            lsFileName + pVars.getsDotXlsOrTxt(),
                            lsHeadings,
                            lsbData);
+    } else if (headlessSink != null) {
+      headlessSink.accept(lsFileName,
+                          lsHeadings,
+                          lsbData);
     } else {
 
       lcfdSummarizedDataWindow = new TextWindow(lsFileName,
@@ -300,6 +459,70 @@ public class ResultsFilesWriter extends AllGsHeadings
     }
   }
 
+  /**
+   * Shows or saves the per-pixel DLC results as {@link #writeDlcByPixel(Vars)}
+   * does and, if they are saved and {@link #bSaveDlcRaster} is set, also
+   * {@link #saveDlcRasterFile saves} them as a binary raster.
+   *
+   * @param pVars Vars
+   * @param pd2dDlcPix x and y coordinates of each pixel, as stored by the scan
+   * @param pDP DataProcessor holding the per-pixel results
+   */
+  public static void writeDlcByPixel(Vars pVars,
+                                     double[][] pd2dDlcPix,
+                                     DataProcessor pDP)
+  {
+    writeDlcByPixel(pVars);
+    if (bSaveDlcRaster && pVars.bSaveResults && !isDiscarding(pVars)) {
+      saveDlcRasterFile(pVars,
+                        pd2dDlcPix,
+                        pDP);
+    }
+  }
+
+  /**
+   * Saves the per-pixel DLC results as a binary {@link DlcRasterFile}, beside
+   * or instead of the text that {@link #writeDlcByPixel(Vars)} saves, named
+   * as that file is but with {@link DlcRasterFile#SUFFIX}. {@link IJ#log logs}
+   * SecurityException and IOException. Called by
+   * {@link #writeDlcByPixel(Vars, double[][], DataProcessor)} when
+   * {@link #bSaveDlcRaster} is set.
+   *
+   * @param pVars Vars for the directory, title and border
+   * @param pd2dDlcPix x and y coordinates of each pixel, as stored by the scan
+   * @param pDP DataProcessor holding the per-pixel results
+   * @return true if no error was detected
+   */
+  public static boolean saveDlcRasterFile(Vars pVars,
+                                          double[][] pd2dDlcPix,
+                                          DataProcessor pDP)
+  {
+    String lsPath = pVars.getDirectoryForSavingResults();
+    String lsName = Dlc_PIXEL_RESULTS_TITLE + " "
+        + pVars.getsTitleAndSliceLabelAndSliceNumber() + DlcRasterFile.SUFFIX;
+    try {
+      File lfDirectory = new File(lsPath);
+      if (!lfDirectory.isDirectory()) {
+        lfDirectory.mkdirs();
+      }
+      DlcRasterFile.write(new File(lsPath + lsName),
+                          pd2dDlcPix,
+                          pVars.iBorder,
+                          pDP);
+      addKnownFile(lsPath,
+                   lsName);
+      return true;
+    } catch (SecurityException s) {
+      IJ.log("Sorry, but security says no to " + lsPath + lsName);
+    } catch (IOException ioe) {
+      IJ.log(ioe.toString() + " Cannot write " + lsPath + lsName + " "
+          + ResultsFilesWriter.class.getSimpleName()
+          + (ioe.getStackTrace()[0].getLineNumber()));
+    }
+    return false;
+  }
+
+
   /**
    * Shows or saves
    * {@link fraclac.analyzer.Vars#sbDataFileForEachGridOnThisSlice data} for
@@ -318,6 +541,9 @@ public class ResultsFilesWriter extends AllGsHeadings
     if (pVars.sbDataFileForEachGridOnThisSlice.length() == 0) {
       return;
     }
+    if (isDiscarding(pVars)) {
+      return;
+    }
     // .....................................................................
     // Adjust the headings string to match the number of grid orientations.
     // It is always 1 for sliding box lacunarity.
@@ -336,6 +562,11 @@ public class ResultsFilesWriter extends AllGsHeadings
                            lsFileName + pVars.getsDotXlsOrTxt(),
                            lsbHeadings.toString(),
                            lsbData);
+    } else if (headlessSink != null) //
+    {
+      headlessSink.accept(lsFileName,
+                          lsbHeadings,
+                          lsbData);
     } else //
     {
       dataFileWindow = new TextWindow(lsFileName,
@@ -349,6 +580,10 @@ public class ResultsFilesWriter extends AllGsHeadings
   }
 
   /**
+   * Saves or shows the text image already built in {@link Vars#sbTextImage}.
+   * To save one without building the whole string first, use
+   * {@link #saveTextImageFile} instead.
+   *
    * @param pVars
    */
   public static void writeImageTxtFile(Vars pVars)
@@ -365,28 +600,49 @@ public class ResultsFilesWriter extends AllGsHeadings
                              "",
                              pVars.sbTextImage);
       } else {
-
-        String lsHeadings = "";
-        // int end = pVars.sbTextImage.indexOf("");//"\n");
-        //
-        // for (int i = 0; i < end; i++)
-        // {
-        // lsHeadings += TAB;
-        // }2014 jan ak removed because now text image was
-        // throwing null pointer exception when it got here
-        // and tried to write the file but it works
-        // without the starting line
-        TextWindow lRWtxt = new TextWindow("textImage"
-            + pVars.getsTitleAndSliceLabelAndSliceNumber(),
-                                           lsHeadings,
-                                           pVars.sbTextImage.toString(),
-                                           textWindowWidth,
-                                           textWindowHeight);
-        lRWtxt.setVisible(true);
+        showTextImage(pVars,
+                      pVars.sbTextImage);
       }
     }
   }
 
+  /**
+   * Passes the text image to the {@link #headlessSink} if there is one, or
+   * else shows it in a TextWindow.
+   *
+   * @param pVars Vars for the title
+   * @param psbTextImage text of the image
+   */
+  static void showTextImage(Vars pVars,
+                            StringBuilder psbTextImage)
+  {
+    if (headlessSink != null) {
+      headlessSink.accept("textImage"
+          + pVars.getsTitleAndSliceLabelAndSliceNumber(),
+                          "",
+                          psbTextImage);
+    } else {
+
+      String lsHeadings = "";
+      // int end = pVars.sbTextImage.indexOf("");//"\n");
+      //
+      // for (int i = 0; i < end; i++)
+      // {
+      // lsHeadings += TAB;
+      // }2014 jan ak removed because now text image was
+      // throwing null pointer exception when it got here
+      // and tried to write the file but it works
+      // without the starting line
+      TextWindow lRWtxt = new TextWindow("textImage"
+          + pVars.getsTitleAndSliceLabelAndSliceNumber(),
+                                         lsHeadings,
+                                         psbTextImage.toString(),
+                                         textWindowWidth,
+                                         textWindowHeight);
+      lRWtxt.setVisible(true);
+    }
+  }
+
   /**
    * @param pVars
    */
@@ -400,7 +656,7 @@ public class ResultsFilesWriter extends AllGsHeadings
     StringBuilder lsbData = new StringBuilder(pVars.sbShortSummaryFileLine);
     String lsTitle = FracLacV + " Scan Types";
 
-    showOrSaveDataFile(lsbData,
+    showOrSaveBatchFile(lsbData,
                        lsHeadings,
                        lsTitle,
                        pVars);
@@ -420,7 +676,10 @@ public class ResultsFilesWriter extends AllGsHeadings
    *
    * @return a string that can be saved as a file and opened as an image showing
    * colour coding according to the passed values
+   * @deprecated builds the whole map, then the whole string, in memory; use
+   * {@link #saveTextImageFile}, which saves or shows the same text
    */
+  @Deprecated
   public static StringBuilder makeTextImageString(double[][] pd2dPixelXY,
                                                   double[] pdaFractalDimensions,
                                                   int piUserForeground)
@@ -455,6 +714,145 @@ public class ResultsFilesWriter extends AllGsHeadings
 
   }
 
+  /**
+   * Saves or shows the colour-coded map that {@link #makeTextImageString}
+   * makes, as {@link #writeImageTxtFile} does, without building the whole
+   * string when saving. The text is {@link TextImageFile#writeText appended}
+   * one row at a time to the file, through {@link #writeToEndOfTextFile}, so
+   * it is compressed or written in the background as the other results files
+   * are; if {@link #bWriteAtomically} is set, the rows go to an
+   * {@link AtomicResultsFiles.SegmentWriter} and are added as one segment
+   * once complete. If {@link #bSaveTextImageAsRaster} is set, a binary
+   * raster is {@link #saveTextImageRaster saved} instead. If results are not
+   * being saved, the text is built and passed to the {@link #headlessSink} or
+   * shown, or not built at all if the sink discards it. {@link IJ#log logs}
+   * SecurityException and IOException.
+   *
+   * @param pVars Vars for the directory and title
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1]
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black
+   * @return true if no error was detected
+   */
+  public static boolean saveTextImageFile(Vars pVars,
+                                          double[][] pd2dPixelXY,
+                                          double[] pdaFractalDimensions,
+                                          int piUserForeground)
+  {
+    if (!pVars.bSaveResults) {
+      if (isDiscarding(pVars)) {
+        return true;
+      }
+      StringBuilder lsbText = new StringBuilder();
+      try {
+        TextImageFile.writeText(lsbText,
+                                pd2dPixelXY,
+                                pdaFractalDimensions,
+                                piUserForeground);
+      } catch (IOException ex) {
+        // A StringBuilder never throws it.
+        throw new IllegalStateException(ex);
+      }
+      showTextImage(pVars,
+                    lsbText);
+      return true;
+    }
+    String lsPath = pVars.getDirectoryForSavingResults();
+    String lsName = outputFileName("TxtImg" + fnum(System.currentTimeMillis())
+        + pVars.getsTitleAndSliceLabelAndSliceNumber()
+        + (bSaveTextImageAsRaster ? ".raw" : ".txt"));
+    String lsFile = lsPath + lsName;
+    AtomicResultsFiles.SegmentWriter lSegment = null;
+    try {
+      File lfDirectory = new File(lsPath);
+      if (!lfDirectory.isDirectory()) {
+        lfDirectory.mkdirs();
+      }
+      if (bSaveTextImageAsRaster) {
+        saveTextImageRaster(new File(lsFile),
+                            pd2dPixelXY,
+                            pdaFractalDimensions,
+                            piUserForeground);
+      } else {
+        if (bWriteAtomically) {
+          lSegment = new AtomicResultsFiles.SegmentWriter(lsFile);
+        }
+        Appendable lOut = (lSegment != null) ? lSegment
+            : new FileAppendable(lsFile);
+        TextImageFile.writeText(lOut,
+                                pd2dPixelXY,
+                                pdaFractalDimensions,
+                                piUserForeground);
+        if (lSegment != null) {
+          lSegment.commit();
+        }
+      }
+      addKnownFile(lsPath,
+                   lsName);
+      return true;
+    } catch (SecurityException s) {
+      IJ.log("Sorry, but security says no to " + lsFile);
+    } catch (IOException ioe) {
+      IJ.log(ioe.toString() + " Cannot write " + lsFile + " "
+          + ResultsFilesWriter.class.getSimpleName()
+          + (ioe.getStackTrace()[0].getLineNumber()));
+    } finally {
+      closeQuietly(lSegment,
+                   lsFile);
+    }
+    return false;
+  }
+
+  /**
+   * Writes the colour-coded map as a binary {@link TextImageFile#writeRaster
+   * raster} to the passed file, gzip compressed if its name ends with
+   * {@link ResultsFileAppender#GZIP_SUFFIX}. If {@link #bWriteAtomically} is
+   * set, the raster is written to a temporary file that is then
+   * {@link AtomicResultsFiles#replaceWith renamed} over the file. The raster
+   * is written on the calling thread even when results are written in the
+   * {@link #bWriteInBackground background}, since it is a new file that
+   * nothing queued is written to.
+   *
+   * @param pFile File to save
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1]
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black
+   * @throws IOException if the file cannot be written
+   */
+  static void saveTextImageRaster(File pFile,
+                                  double[][] pd2dPixelXY,
+                                  double[] pdaFractalDimensions,
+                                  int piUserForeground) throws IOException
+  {
+    File lfWrite = bWriteAtomically ? AtomicResultsFiles.newTempFile(pFile)
+        : pFile;
+    boolean lbWritten = false;
+    try {
+      OutputStream lStream = new FileOutputStream(lfWrite);
+      try {
+        if (pFile.getName().endsWith(ResultsFileAppender.GZIP_SUFFIX)) {
+          lStream = new GZIPOutputStream(lStream,
+                                         8192);
+        }
+        TextImageFile.writeRaster(Channels.newChannel(lStream),
+                                  pd2dPixelXY,
+                                  pdaFractalDimensions,
+                                  piUserForeground);
+      } finally {
+        lStream.close();
+      }
+      if (lfWrite != pFile) {
+        AtomicResultsFiles.replaceWith(lfWrite,
+                                       pFile);
+      }
+      lbWritten = true;
+    } finally {
+      if (!lbWritten && (lfWrite != pFile)) {
+        lfWrite.delete();
+      }
+    }
+  }
+
   /**
    * Shows or saves data currently stored in the data StringBuffer for a
    * {@link Vars#sbDataFileBoxCountFMinCover} minimum cover box count. To save,
@@ -467,6 +865,9 @@ public class ResultsFilesWriter extends AllGsHeadings
    */
   public static void showOrSaveDataFileForFMinCoverBoxCount(Vars pVars)
   {
+    if (isDiscarding(pVars)) {
+      return;
+    }
     String lsFileName = RESULTS_WINDOW_TITLE_MINIMUM_COVER_DATA;
     String lsHeadings = Headings.S_TABBED_DATA_FILE_HEADINGS_MIN_COVER;
     StringBuilder lsbData = new StringBuilder(
@@ -479,6 +880,10 @@ public class ResultsFilesWriter extends AllGsHeadings
                            lsHeadings,
                            lsbData);
 
+    } else if (headlessSink != null) {
+      headlessSink.accept(lsFileName,
+                          lsHeadings,
+                          lsbData);
     } else {
 
       dataFileWindow = new TextWindow(lsFileName,
@@ -539,21 +944,13 @@ public class ResultsFilesWriter extends AllGsHeadings
                                              StringBuilder psbNewData)
   {
     boolean lbError = false;
+    String lsFileName = outputFileName(psNewFileName);
     try {
 
       File lfDirectory = new File(psPath);
 
-      String[] lsaListOfFiles = lfDirectory.list();
-
-      boolean lbNewFileExists = false;
-
-      if (!(lsaListOfFiles == null)) {
-        for (String lsNameOfNextFileFound : lsaListOfFiles) {
-          if (lsNameOfNextFileFound.equals(psNewFileName)) {
-            lbNewFileExists = true;
-          }
-        }
-      }
+      boolean lbNewFileExists = fileExists(psPath,
+                                           lsFileName);
 
       StringBuilder lsbNewData = new StringBuilder(psbNewData);
 
@@ -565,7 +962,7 @@ public class ResultsFilesWriter extends AllGsHeadings
         lsbNewData = new StringBuilder(psHeadings).append(
             psHeadings == "" ? "" : newline).append(psbNewData);
 
-        if (lsaListOfFiles == null) {
+        if (!lfDirectory.isDirectory()) {
 
           if (!lfDirectory.mkdirs()) {
             IJ.showMessage("There may be an error "
@@ -574,19 +971,21 @@ public class ResultsFilesWriter extends AllGsHeadings
         }
       }
 
-      writeToEndOfTextFile(psPath + psNewFileName,
+      writeToEndOfTextFile(psPath + lsFileName,
                            lsbNewData.toString());
+      addKnownFile(psPath,
+                   lsFileName);
 
     } catch (SecurityException s) {
 
       IJ.showMessage("Sorry, but security says no to " + psPath
-          + psNewFileName);
+          + lsFileName);
       lbError = true;
 
     } catch (IOException ioe) {
 
       IJ.showMessage("Sorry, but I cannot write " + psPath
-          + psNewFileName);
+          + lsFileName);
       lbError = true;
     }
     return !lbError;
@@ -613,22 +1012,14 @@ public class ResultsFilesWriter extends AllGsHeadings
   {
     // .........................................................................
     boolean lbFileWasWritten = true;
+    String lsFileName = outputFileName(psNewFileName);
     // .........................................................................
     try {
 
       File lfDirectory = new File(psPath);
 
-      String[] lsaListOfFiles = lfDirectory.list();
-
-      boolean lbNewFileExists = false;
-
-      if (!(lsaListOfFiles == null)) {
-        for (String lsNameOfNextFileFound : lsaListOfFiles) {
-          if (lsNameOfNextFileFound.equals(psNewFileName)) {
-            lbNewFileExists = true;
-          }
-        }
-      }
+      boolean lbNewFileExists = fileExists(psPath,
+                                           lsFileName);
 
       StringBuilder lsbNewData = new StringBuilder(psbNewData);
 
@@ -639,25 +1030,27 @@ public class ResultsFilesWriter extends AllGsHeadings
         lsbNewData = new StringBuilder(psHeadings).append(
             psHeadings == "" ? "" : newline).append(psbNewData);
 
-        if (lsaListOfFiles == null) {
+        if (!lfDirectory.isDirectory()) {
           if (!lfDirectory.mkdirs()) {
             IJ.showMessage("There may be an error "
                 + "in the directories created.");
           }
         }
       }
-      lbFileWasWritten = writeToStartOfTextFile(psPath + psNewFileName,
+      lbFileWasWritten = writeToStartOfTextFile(psPath + lsFileName,
                                                 lsbNewData.toString());
+      addKnownFile(psPath,
+                   lsFileName);
 
     } catch (SecurityException ex) {
       IJ.showMessage("Sorry, but security says no to " + psPath
-          + psNewFileName);
+          + lsFileName);
       IJ.log(ex.toString() + ResultsFilesWriter.class.getSimpleName()
           + " " + (ex.getStackTrace()[0].getLineNumber()));
       lbFileWasWritten = false;
     } catch (IOException ex) {
       IJ.showMessage("Sorry, but I cannot write " + psPath
-          + psNewFileName);
+          + lsFileName);
       IJ.log(ex.toString() + ResultsFilesWriter.class.getSimpleName()
           + " " + (ex.getStackTrace()[0].getLineNumber()));
       lbFileWasWritten = false;
@@ -668,6 +1061,129 @@ public class ResultsFilesWriter extends AllGsHeadings
 
   }
 
+  /**
+   * Returns true if results are not being saved and the {@link #headlessSink}
+   * drops them, so the text for them need not be built.
+   *
+   * @param pVars Vars
+   * @return boolean true if nothing is to be shown or saved
+   */
+  static boolean isDiscarding(Vars pVars)
+  {
+    return !pVars.bSaveResults && (headlessSink == ResultsSink.DISCARD);
+  }
+
+  /**
+   * Returns the {@link EnumOutputType kind} of results file the passed name is
+   * for.
+   *
+   * @param psFileName name of the file
+   * @return EnumOutputType
+   */
+  static EnumOutputType outputTypeOf(String psFileName)
+  {
+    if (psFileName.startsWith(Dlc_PIXEL_RESULTS_TITLE)) {
+      return EnumOutputType.DLC_BY_PIXEL;
+    }
+    if (psFileName.startsWith("Masses")) {
+      return EnumOutputType.MASSES;
+    }
+    if (psFileName.contains(BC_SUMMARY_FILE_TITLE)
+        || psFileName.contains(SLAC_SUMMARY_FILE_TITLE)) {
+      return EnumOutputType.SUMMARY;
+    }
+    if (psFileName.contains("Batch")) {
+      return EnumOutputType.BATCH;
+    }
+    return EnumOutputType.OTHER;
+  }
+
+  /**
+   * Returns the name a results file is saved under: the passed name, with
+   * {@link ResultsFileAppender#GZIP_SUFFIX} added if its kind is in
+   * {@link #eSetCompressedOutput}.
+   *
+   * @param psFileName name of the file
+   * @return String name to save under
+   */
+  static String outputFileName(String psFileName)
+  {
+    if (bWriteAtomically || eSetCompressedOutput.isEmpty()
+        || !eSetCompressedOutput.contains(outputTypeOf(psFileName))) {
+      return psFileName;
+    }
+    return psFileName + ResultsFileAppender.GZIP_SUFFIX;
+  }
+
+  /**
+   * Returns true if the named file is in the passed directory. Each file is
+   * checked directly, so the cost does not depend on how many files the
+   * directory holds. A file that is {@link #mapKnownFiles known} but is no
+   * longer there, e.g., because it was moved or deleted outside FracLac, is
+   * forgotten, so it is made again with its headings. When files are written
+   * {@link #bWriteInBackground in the background}, a known file may not be
+   * written yet, so it is not checked again until the known files are
+   * {@link #clearKnownFiles cleared}, at the start and end of each batch.
+   *
+   * @param psPath path of the directory
+   * @param psName name of the file
+   * @return boolean true if the file exists
+   */
+  static boolean fileExists(String psPath,
+                            String psName)
+  {
+    Set<String> lsetKnown = mapKnownFiles.get(psPath);
+    if ((lsetKnown != null) && lsetKnown.contains(psName)) {
+      if (bWriteInBackground || new File(psPath,
+                                         psName).isFile()) {
+        return true;
+      }
+      lsetKnown.remove(psName);
+      return false;
+    }
+    if (new File(psPath,
+                 psName).isFile()) {
+      addKnownFile(psPath,
+                   psName);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records that the named file exists in the passed directory.
+   *
+   * @param psPath path of the directory
+   * @param psName name of the file
+   */
+  static void addKnownFile(String psPath,
+                           String psName)
+  {
+    Set<String> lsetKnown = mapKnownFiles.get(psPath);
+    if (lsetKnown == null) {
+      Set<String> lsetNew = Collections.newSetFromMap(
+          new ConcurrentHashMap<String, Boolean>());
+      lsetKnown = mapKnownFiles.putIfAbsent(psPath,
+                                             lsetNew);
+      if (lsetKnown == null) {
+        lsetKnown = lsetNew;
+      }
+    }
+    lsetKnown.add(psName);
+  }
+
+  /**
+   * Forgets every file {@link #mapKnownFiles known} to exist, e.g., after
+   * files have been moved or deleted outside FracLac. Called by
+   * {@link #startBatch} and {@link #finishBatch}; when files are written in
+   * the background, call it only once the {@link ResultsWriteQueue} has been
+   * flushed.
+   */
+  public static void clearKnownFiles()
+  {
+    mapKnownFiles.clear();
+  }
+
   public static String getTimeStampedDirectoryToSaveSettingsTo()
   {
     String lsDirectoryWithFileSeparator = OpenDialog.getDefaultDirectory();
@@ -733,7 +1249,7 @@ public class ResultsFilesWriter extends AllGsHeadings
       String lsFileName = pVars.isSLAC()
           ? SLAC_SUMMARY_FILE_TITLE
           : BC_SUMMARY_FILE_TITLE;
-      showOrSaveDataFile(lsbData,
+      showOrSaveBatchFile(lsbData,
                          lsHeadings,
                          lsFileName,
                          pVars);
@@ -745,7 +1261,7 @@ public class ResultsFilesWriter extends AllGsHeadings
       String lsFileNameRotate = pVars.isSLAC()
           ? SLAC_SUMMARY_FILE_TITLE
           : "ROT" + BC_SUMMARY_FILE_TITLE;
-      showOrSaveDataFile(lsbDataRotate,
+      showOrSaveBatchFile(lsbDataRotate,
                          lsHeadings,
                          lsFileNameRotate,
                          pVars);
@@ -791,11 +1307,96 @@ public class ResultsFilesWriter extends AllGsHeadings
     if (pVars.bDoCircleAndHullCalculations) {
       writeCirc(pVars);
     }
+    // -------------------------------------------------------------------------
+    // The summary files are the last written for a slice. Write out what the
+    // appender holds, so no more than the slice being analyzed is lost if the
+    // program is stopped. The files are finished by finishImage or
+    // finishBatch, when the batch driver says the batch is over.
+    // -------------------------------------------------------------------------
+    ResultsFileAppender.flushAll();
+  }
+
+  /**
+   * Images of the batch started by {@link #startBatch} not yet
+   * {@link #finishImage finished}.
+   */
+  private static final AtomicInteger aiImagesLeftInBatch = new AtomicInteger();
+
+  /**
+   * Call before the first image of a batch is analyzed, with the number of
+   * images in the batch, so that {@link #finishBatch} is called when the last
+   * of them is {@link #finishImage finished}, whatever order they finish in.
+   * Also {@link #clearKnownFiles forgets} the files known to exist, so any
+   * moved or deleted since the last run are made again with headings.
+   *
+   * @param piImages int number of images in the batch
+   */
+  public static void startBatch(int piImages)
+  {
+    if (bWriteInBackground) {
+      ResultsWriteQueue.flush();
+    }
+    clearKnownFiles();
+    aiImagesLeftInBatch.set(piImages);
+  }
+
+  /**
+   * Call when every slice of an image of the batch begun by
+   * {@link #startBatch} has been analyzed and written. When the last image
+   * is finished, calls {@link #finishBatch}, so batch file shards are merged
+   * only after every image has stopped writing to them.
+   */
+  public static void finishImage()
+  {
+    if (aiImagesLeftInBatch.decrementAndGet() == 0) {
+      finishBatch();
+    }
+  }
+
+  /**
+   * Returns true if batch files are being {@link #bShardBatchFiles sharded}
+   * for the passed run, which must be a batch, so that {@link #finishBatch}
+   * is called to merge the shards.
+   *
+   * @param pVars Vars holding the batch files
+   * @return boolean
+   */
+  static boolean isShardingBatch(Vars pVars)
+  {
+    return bShardBatchFiles && (pVars.getSaBatchFiles() != null);
+  }
+
+  /**
+   * Finishes the results files at the end of a batch:
+   * {@link BatchShards#mergeAll merges} any batch file shards, waits for the
+   * {@link ResultsWriteQueue} if files are written in the background, then
+   * writes out and closes every file the {@link ResultsFileAppender} holds
+   * open. Called by {@link #finishImage} for the last image of a batch; call
+   * it directly when a batch ends any other way, e.g., is cancelled, but only
+   * once no image is still being analyzed. Calling it more than once is
+   * harmless, as files are opened again when next written.
+   */
+  public static void finishBatch()
+  {
+    // Merged rows may be queued, so merge before waiting for the queue.
+    BatchShards.mergeAll();
+    if (bWriteInBackground) {
+      ResultsWriteQueue.flush();
+    }
+    ResultsFileAppender.closeAll();
+    // The files may be moved or deleted now, so check them again when next
+    // written.
+    clearKnownFiles();
   }
 
   /**
    * Writes the passed string to the end of the passed file using UTF-8 encoding
    * Assumes the file already exists.
+   * <p>
+   * The file is kept open by the {@link ResultsFileAppender} and the string
+   * may be held in memory until the appender flushes; it is flushed at the
+   * end of each slice and closed by {@link #finishBatch}. If
+   * {@link #bWriteInBackground} is set, the string is queued instead.
    *
    * @param pFileName string for the new file's name
    * @param psToWrite string for what is being written to the file
@@ -807,27 +1408,46 @@ public class ResultsFilesWriter extends AllGsHeadings
                                           String psToWrite)
       throws IOException
   {
+    if (bWriteAtomically) {
+      ResultsFileAppender.appendSegment(pFileName,
+                                        psToWrite);
+      return;
+    }
+    if (bWriteInBackground) {
+      ResultsWriteQueue.append(pFileName,
+                               psToWrite);
+      return;
+    }
+    ResultsFileAppender.append(pFileName,
+                               psToWrite);
+  }
 
-    final Writer lwriterOut
-        = new OutputStreamWriter(new FileOutputStream(pFileName,
-                                                      true),
-                                 "UTF-8");
-    try {
-
-      lwriterOut.write(psToWrite);
-
-    } catch (IOException i) {
-
-      IJ.log("Error writing file. "
-          + ResultsFilesWriter.class.getSimpleName()
-          + (new Exception().getStackTrace()[0].getLineNumber()));
-      // if (lwriterOut != null) lwriterOut.close();
-
-    } finally {
-      if (lwriterOut != null) {
-        lwriterOut.close();
-      }
+  /**
+   * Writes the bytes held by the passed encoder to the end of the passed file,
+   * as {@link #writeToEndOfTextFile(String, String)} does for a String. When
+   * files are written neither {@link #bWriteAtomically atomically} nor
+   * {@link #bWriteInBackground in the background}, the bytes go to the
+   * {@link ResultsFileAppender} as they are, with no String made of them;
+   * otherwise they are decoded and written as a String. The encoder is not
+   * cleared, so the caller can {@link TabbedRecordEncoder#clear clear} and
+   * reuse it for the next rows.
+   *
+   * @param pFileName string for the file's name
+   * @param pEncoder encoder holding the rows to write
+   *
+   * @throws IOException
+   */
+  public static void writeToEndOfTextFile(String pFileName,
+                                          TabbedRecordEncoder pEncoder)
+      throws IOException
+  {
+    if (bWriteAtomically || bWriteInBackground) {
+      writeToEndOfTextFile(pFileName,
+                           pEncoder.toString());
+      return;
     }
+    ResultsFileAppender.append(pFileName,
+                               pEncoder.bytes());
   }
 
   /**
@@ -847,9 +1467,25 @@ public class ResultsFilesWriter extends AllGsHeadings
       String psToWrite) throws IOException
   {
     boolean lbWorked = true;
+    if (bWriteAtomically) {
+      AtomicResultsFiles.replace(pFileName,
+                                 psToWrite);
+      return lbWorked;
+    }
+    if (bWriteInBackground) {
+      ResultsWriteQueue.replace(pFileName,
+                                psToWrite);
+      return lbWorked;
+    }
+    // Write out and close anything still being appended to this file.
+    ResultsFileAppender.close(pFileName);
 
+    OutputStream lStream = new FileOutputStream(pFileName);
+    if (pFileName.endsWith(ResultsFileAppender.GZIP_SUFFIX)) {
+      lStream = new GZIPOutputStream(lStream);
+    }
     final Writer lwriterOut
-        = new OutputStreamWriter(new FileOutputStream(pFileName),
+        = new OutputStreamWriter(lStream,
                                  "UTF-8");
     try {
       lwriterOut.write(psToWrite);
@@ -886,52 +1522,84 @@ public class ResultsFilesWriter extends AllGsHeadings
                                     String psName,
                                     StringBuffer psbufferData)
   {
+    String lsName = outputFileName(psName);
     try {
 
       File lFile = new File(psPath);
-      String[] lsaArray = lFile.list();
-      boolean lbFileExists = false;
+      boolean lbFileExists = fileExists(psPath,
+                                        lsName);
 
-      if (!(lsaArray == null)) {
-        for (String lStringInArray : lsaArray) {
-          if (lStringInArray.equals(psName)) {
-            lbFileExists = true;
-          }
-        }
-      }
       if (!lbFileExists) {
         lFile.mkdirs();
       }
 
-      writeToEndOfTextFile(psPath + psName,
+      writeToEndOfTextFile(psPath + lsName,
                            psbufferData.toString());
+      addKnownFile(psPath,
+                   lsName);
 
     } catch (SecurityException s) {
 
-      IJ.log(s.toString() + "Error writing" + psPath + psName
+      IJ.log(s.toString() + "Error writing" + psPath + lsName
           + ResultsFilesWriter.class.getSimpleName()
           + (new Exception().getStackTrace()[0].getLineNumber()));
 
     } catch (IOException ioe) {
 
-      IJ.log(ioe.toString() + "Error2 writing" + psPath + psName
+      IJ.log(ioe.toString() + "Error2 writing" + psPath + lsName
           + ResultsFilesWriter.class.getSimpleName()
           + (new Exception().getStackTrace()[0].getLineNumber()));
     }
   }
 
   /**
+   * Shows or saves the multifractal spectra; returns before copying the
+   * spectra or building the headings if results are being
+   * {@link #isDiscarding discarded}.
    *
    * @param pVars
    */
   public static void writeMF(Vars pVars)
   {
+    if (isDiscarding(pVars)) {
+      return;
+    }
     showOrSaveDataFile(new StringBuilder(pVars.sbMultifractalSpectraFile),
                        Headings.headingsForMFSpectra(),
                        MULTIFRACTAL_RESULTS_TITLE,
                        pVars);
   }
 
+  /**
+   * As {@link #showOrSaveDataFile}, for a file that every image of a batch
+   * appends to, e.g., a summary file: when the rows are saved and
+   * {@link #isShardingBatch batch files are sharded}, they are appended to
+   * the image's {@link BatchShards shard} of the file instead.
+   *
+   * @param psbDataTabSeparated
+   * @param psbHeadingsTabSeparated
+   * @param psFileName
+   * @param pVars
+   */
+  public static void showOrSaveBatchFile(
+      StringBuilder psbDataTabSeparated,
+      StringBuilder psbHeadingsTabSeparated,
+      String psFileName,
+      Vars pVars)
+  {
+    if (pVars.bSaveResults && isShardingBatch(pVars)) {
+      saveToBatchShard(pVars,
+                       psFileName + pVars.getsDotXlsOrTxt(),
+                       psbHeadingsTabSeparated.toString(),
+                       psbDataTabSeparated);
+      return;
+    }
+    showOrSaveDataFile(psbDataTabSeparated,
+                       psbHeadingsTabSeparated,
+                       psFileName,
+                       pVars);
+  }
+
   /**
    * Writes a {@link #saveDataFileOrAppend file} or shows on screen a TextWindow
    * from the passed strings.
@@ -960,6 +1628,12 @@ public class ResultsFilesWriter extends AllGsHeadings
 
       return;
     }
+    if (headlessSink != null) {
+      headlessSink.accept(psFileName,
+                          psbHeadingsTabSeparated,
+                          psbDataTabSeparated);
+      return;
+    }
     // ======================================================================
     // If not saving, append the data to the window if it exists or
     // ======================================================================
@@ -1081,37 +1755,35 @@ public class ResultsFilesWriter extends AllGsHeadings
 
       }
 
-      StringBuffer masses = new StringBuffer("");
+      double[][] ld2dMasses = fl.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs[liGRID];
 
-      double longestlist = ArrayMethods
-          .sizeOfLongestArray(fl.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs[liGRID]);
+      int liLongestList = (int) ArrayMethods.sizeOfLongestArray(ld2dMasses);
 
-      StringBuffer lsbRowOfMasses;
+      int liNumSIZEs = fl.gridSet.i2dSizes[liGRID].length;
 
       showProgress("Writing box masses for location " + liGRID);
 
-      for (int liRow = 0; liRow < longestlist; liRow++) {
-
-        lsbRowOfMasses = new StringBuffer("");
-        for (int b = 0; b < fl.gridSet.i2dSizes[liGRID].length; b++) {
-
-          if (fl.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs[liGRID][b].length
-              > liRow) {
-            lsbRowOfMasses
-                .append(
-                    fl.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs[liGRID][b][liRow])
-                .append(TAB);
-          } else {
-            lsbRowOfMasses.append(" ").append(TAB);
-          }
-        }
-        masses.append(newline).append(lsbRowOfMasses);
-      }
-
       String lsTitle = "Masses at " + liGRID + " (" + lsType + ")"
           + fl.sbaTitles[liGRID];
 
+      if (isDiscarding(fl.vars)) {
+        continue;
+      }
       if (!fl.vars.bSaveResults) {
+        StringBuilder masses = new StringBuilder("");
+        for (int liRow = 0; liRow < liLongestList; liRow++) {
+          masses.append(newline);
+          appendRowOfMasses(masses,
+                            ld2dMasses,
+                            liNumSIZEs,
+                            liRow);
+        }
+        if (headlessSink != null) {
+          headlessSink.accept(lsTitle,
+                              lsbSIZEs,
+                              masses);
+          continue;
+        }
         TextWindow tw = new TextWindow(lsTitle,
                                        lsbSIZEs.toString(),
                                        masses.toString(),
@@ -1128,16 +1800,422 @@ public class ResultsFilesWriter extends AllGsHeadings
                                                lig)
               + fl.vars.getsDotXlsOrTxt();
 
-          StringBuffer sb = lsbSIZEs.append(masses);
+          streamMassesFile(fl.vars.getDirectoryForSavingResults(),
+                           sg,
+                           lsbSIZEs.toString(),
+                           ld2dMasses,
+                           liNumSIZEs,
+                           liLongestList);
+        }
+      }
+    }
+    if (fl.vars.bSaveResults && bSaveMassesAsBinary) {
+      saveBinaryMassesFile(fl);
+    }
+  }
+
+  /**
+   * Saves the masses from every GRID in the passed {@link Scan} to one
+   * {@link BinaryMassFile}, with the width of each box as its SIZE.
+   * {@link IJ#log logs} SecurityException and IOException.
+   *
+   * @param fl Scan preloaded with box counting data and flags
+   */
+  static void saveBinaryMassesFile(Scan fl)
+  {
+    String lsPath = fl.vars.getDirectoryForSavingResults();
+    String lsName = "Masses" + fl.vars.getsTitleAndSliceLabelAndSliceNumber()
+        + BinaryMassFile.SUFFIX;
+    int liNumGrids = fl.vars.iNumGrids;
+    int[][] li2dSIZEs = new int[liNumGrids][];
+    double[][][] ld3dMasses = new double[liNumGrids][][];
+    for (int liGRID = 0; liGRID < liNumGrids; liGRID++) {
+      // The SIZEs are Dimensions; the file keeps the width of each box.
+      li2dSIZEs[liGRID] = new int[fl.gridSet.i2dSizes[liGRID].length];
+      for (int liSIZE = 0; liSIZE < li2dSIZEs[liGRID].length; liSIZE++) {
+        li2dSIZEs[liGRID][liSIZE] = fl.gridSet.i2dSizes[liGRID][liSIZE].width;
+      }
+      ld3dMasses[liGRID] = fl.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs[liGRID];
+    }
+    try {
+      new File(lsPath).mkdirs();
+      BinaryMassFile.write(new File(lsPath,
+                                    lsName),
+                           li2dSIZEs,
+                           ld3dMasses,
+                           bSaveMassesAsFloat ? BinaryMassFile.FLOAT
+                               : BinaryMassFile.DOUBLE,
+                           bCompressBinaryMasses);
+      addKnownFile(lsPath,
+                   lsName);
+    } catch (SecurityException s) {
+      IJ.log(s.toString() + "Error writing" + lsPath + lsName
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+    } catch (IOException ioe) {
+      IJ.log(ioe.toString() + "Error2 writing" + lsPath + lsName
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+    }
+  }
 
-          saveMassesFile(fl.vars.getDirectoryForSavingResults(),
-                         sg,
-                         sb);
+  /**
+   * Appends one transposed row of masses to the passed StringBuilder: the
+   * mass at the passed index for each SIZE, each followed by a TAB, with a
+   * space where a SIZE has fewer masses.
+   *
+   * @param psbRow StringBuilder to append to
+   * @param pd2dMasses masses at each SIZE on one GRID
+   * @param piNumSIZEs number of SIZEs on the GRID
+   * @param piRow int index of the row
+   */
+  static void appendRowOfMasses(StringBuilder psbRow,
+                                double[][] pd2dMasses,
+                                int piNumSIZEs,
+                                int piRow)
+  {
+    for (int b = 0; b < piNumSIZEs; b++) {
+      if (pd2dMasses[b].length > piRow) {
+        psbRow.append(pd2dMasses[b][piRow]).append(TAB);
+      } else {
+        psbRow.append(" ").append(TAB);
+      }
+    }
+  }
+
+  /**
+   * Writes the masses for one GRID to a file as {@link #saveMassesFile} does,
+   * but one transposed row at a time, straight to the buffered
+   * {@link #writeToEndOfTextFile file}, so that only one row is held in
+   * memory however many boxes there are. {@link IJ#log logs}
+   * SecurityException and IOException.
+   * <p>
+   * If {@link #bWriteAtomically} is set, the rows are streamed to an
+   * {@link AtomicResultsFiles.SegmentWriter} and added as one segment once
+   * complete, as {@link #streamDlcDataFile} does, rather than one segment per
+   * row, so a crash cannot leave a cut-off file that reads as complete.
+   * Otherwise, if {@link #bEncodeRows} is set, the rows are
+   * {@link #encodeRowOfMasses encoded} straight into bytes.
+   *
+   * @param psPath path of the directory
+   * @param psName name of the file
+   * @param psSIZEs String of the SIZEs, each followed by a TAB
+   * @param pd2dMasses masses at each SIZE
+   * @param piNumSIZEs number of SIZEs on the GRID
+   * @param piNumRows number of rows, the length of the longest array of masses
+   */
+  static void streamMassesFile(String psPath,
+                               String psName,
+                               String psSIZEs,
+                               double[][] pd2dMasses,
+                               int piNumSIZEs,
+                               int piNumRows)
+  {
+    String lsName = outputFileName(psName);
+    String lsFile = psPath + lsName;
+    AtomicResultsFiles.SegmentWriter lSegment = null;
+    try {
+      if (!fileExists(psPath,
+                      lsName)) {
+        new File(psPath).mkdirs();
+      }
+      if (bWriteAtomically) {
+        lSegment = new AtomicResultsFiles.SegmentWriter(lsFile);
+      }
+      if (lSegment == null && encodesRows()) {
+        AppenderChannel lChannel = new AppenderChannel(lsFile);
+        TabbedRecordEncoder lEncoder = new TabbedRecordEncoder(
+            TabbedRecordEncoder.DEFAULT_DECIMALS,
+            lChannel);
+        lEncoder.append(psSIZEs);
+        for (int liRow = 0; liRow < piNumRows; liRow++) {
+          lEncoder.newline();
+          encodeRowOfMasses(lEncoder,
+                            pd2dMasses,
+                            piNumSIZEs,
+                            liRow);
+        }
+        lEncoder.drainTo(lChannel);
+      } else {
+        Appendable lOut = (lSegment != null) ? lSegment
+            : new FileAppendable(lsFile);
+        lOut.append(psSIZEs);
+        StringBuilder lsbRow = new StringBuilder();
+        for (int liRow = 0; liRow < piNumRows; liRow++) {
+          lsbRow.setLength(0);
+          lsbRow.append(newline);
+          appendRowOfMasses(lsbRow,
+                            pd2dMasses,
+                            piNumSIZEs,
+                            liRow);
+          lOut.append(lsbRow);
+        }
+        if (lSegment != null) {
+          lSegment.commit();
         }
       }
+      addKnownFile(psPath,
+                   lsName);
+
+    } catch (SecurityException s) {
+
+      IJ.log(s.toString() + "Error writing" + lsFile
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+
+    } catch (IOException ioe) {
+
+      IJ.log(ioe.toString() + "Error2 writing" + lsFile
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+    } finally {
+      closeQuietly(lSegment,
+                   lsFile);
+    }
+  }
+
+  /**
+   * Saves the three sections of a DLC data file, as
+   * {@link DLCWriter#getDlcDataFileTabbedRowsEachGRIDThisSlice} makes them, by
+   * {@link DLCWriter#writeDlcDataFileTabbedRowsEachGRIDThisSlice streaming}
+   * them to the end of the file in chunks, so the whole file is never held in
+   * memory. Writes the headings first if the file is new. {@link IJ#log logs}
+   * SecurityException and IOException.
+   * <p>
+   * If {@link #bWriteAtomically} is set, the headings and rows are streamed
+   * to a temporary file by an {@link AtomicResultsFiles.SegmentWriter} and
+   * added to the file as one segment once complete, so a crash cannot leave
+   * part of them in a segment that recovery would keep, and they are still
+   * not held in memory. Otherwise, if {@link #bEncodeRows} is set and there
+   * is one {@link #iDlcWorkerThreads worker thread}, the rows are
+   * {@link DLCWriter#encodeDlcDataFileTabbedRowsEachGRIDThisSlice encoded}
+   * straight into bytes.
+   *
+   * @param psPath path of the directory
+   * @param psName name of the file
+   * @param psHeadings headings for the file, or "" for none
+   * @param pd2dDlcPix x and y coordinates of each pixel
+   * @param pi2dSIZEs sizes at each GRID
+   * @param piBorder border added to the coordinates during the scan
+   * @param pd2dAllConnectedMassAtPixandSIZE mass in all connected sets
+   * @param pd2dMatchedConnectedMassAtPixandSIZE mass in matched connected sets
+   * @param pd2dTotalMassAtPixandSIZE total mass
+   */
+  public static void streamDlcDataFile(
+      String psPath,
+      String psName,
+      String psHeadings,
+      double[][] pd2dDlcPix,
+      int[][] pi2dSIZEs,
+      int piBorder,
+      double[][] pd2dAllConnectedMassAtPixandSIZE,
+      double[][] pd2dMatchedConnectedMassAtPixandSIZE,
+      double[][] pd2dTotalMassAtPixandSIZE)
+  {
+    String lsName = outputFileName(psName);
+    String lsFile = psPath + lsName;
+    AtomicResultsFiles.SegmentWriter lSegment = null;
+    try {
+      boolean lbNewFile = !fileExists(psPath,
+                                      lsName);
+      if (lbNewFile) {
+        File lfDirectory = new File(psPath);
+        if (!lfDirectory.isDirectory()) {
+          lfDirectory.mkdirs();
+        }
+      }
+      if (bWriteAtomically) {
+        lSegment = new AtomicResultsFiles.SegmentWriter(lsFile);
+      }
+      Appendable lOut = (lSegment != null) ? lSegment
+          : new FileAppendable(lsFile);
+      if (lbNewFile && !psHeadings.isEmpty()) {
+        lOut.append(psHeadings + newline);
+      }
+      if (lSegment == null && iDlcWorkerThreads <= 1 && encodesRows()) {
+        AppenderChannel lChannel = new AppenderChannel(lsFile);
+        TabbedRecordEncoder lEncoder = new TabbedRecordEncoder(
+            TabbedRecordEncoder.DEFAULT_DECIMALS,
+            lChannel);
+        DLCWriter.encodeDlcDataFileTabbedRowsEachGRIDThisSlice(
+            lEncoder,
+            pd2dDlcPix,
+            pi2dSIZEs,
+            piBorder,
+            pd2dAllConnectedMassAtPixandSIZE,
+            pd2dMatchedConnectedMassAtPixandSIZE,
+            pd2dTotalMassAtPixandSIZE);
+        lEncoder.drainTo(lChannel);
+      } else if (iDlcWorkerThreads > 1) {
+        DlcTiles.writeMassRows(lOut,
+                               pd2dDlcPix,
+                               pi2dSIZEs,
+                               piBorder,
+                               pd2dAllConnectedMassAtPixandSIZE,
+                               pd2dMatchedConnectedMassAtPixandSIZE,
+                               pd2dTotalMassAtPixandSIZE,
+                               iDlcWorkerThreads);
+      } else {
+        DLCWriter.writeDlcDataFileTabbedRowsEachGRIDThisSlice(
+            lOut,
+            pd2dDlcPix,
+            pi2dSIZEs,
+            piBorder,
+            pd2dAllConnectedMassAtPixandSIZE,
+            pd2dMatchedConnectedMassAtPixandSIZE,
+            pd2dTotalMassAtPixandSIZE);
+      }
+      if (lSegment != null) {
+        lSegment.commit();
+      }
+      addKnownFile(psPath,
+                   lsName);
+
+    } catch (SecurityException s) {
+
+      IJ.log(s.toString() + "Error writing" + lsFile
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+
+    } catch (IOException ioe) {
+
+      IJ.log(ioe.toString() + "Error2 writing" + lsFile
+          + ResultsFilesWriter.class.getSimpleName()
+          + (new Exception().getStackTrace()[0].getLineNumber()));
+    } finally {
+      closeQuietly(lSegment,
+                   lsFile);
+    }
+  }
+
+  /**
+   * Closes the passed segment writer, if not null, deleting its temporary
+   * file; {@link IJ#log logs} an IOException.
+   */
+  static void closeQuietly(AtomicResultsFiles.SegmentWriter pSegment,
+                           String psFile)
+  {
+    if (pSegment == null) {
+      return;
+    }
+    try {
+      pSegment.close();
+    } catch (IOException ioe) {
+      IJ.log(ioe.toString() + " Cannot delete the temporary file for "
+          + psFile + " " + ResultsFilesWriter.class.getSimpleName());
+    }
+  }
+
+  /**
+   * An Appendable that passes everything appended to it to
+   * {@link #writeToEndOfTextFile}, so it goes through the same appender,
+   * queue or atomic segments as the other results files.
+   */
+  static final class FileAppendable implements Appendable
+  {
+
+    final String sFile;
+
+    FileAppendable(String psFile)
+    {
+      sFile = psFile;
+    }
+
+    @Override
+    public Appendable append(CharSequence pcs) throws IOException
+    {
+      writeToEndOfTextFile(sFile,
+                           String.valueOf(pcs));
+      return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence pcs,
+                             int piStart,
+                             int piEnd) throws IOException
+    {
+      return append(String.valueOf(pcs).subSequence(piStart,
+                                                    piEnd));
+    }
+
+    @Override
+    public Appendable append(char pc) throws IOException
+    {
+      return append(String.valueOf(pc));
     }
   }
 
+  /**
+   * @return true if rows are to be written with a
+   * {@link TabbedRecordEncoder}, as {@link #bEncodeRows} describes
+   */
+  static boolean encodesRows()
+  {
+    return bEncodeRows && !bWriteAtomically && !bWriteInBackground;
+  }
+
+  /**
+   * Writes to the passed encoder the same row of masses as
+   * {@link #appendRowOfMasses}, with no new line.
+   *
+   * @param pEncoder encoder written to
+   * @param pd2dMasses masses at each SIZE
+   * @param piNumSIZEs number of SIZEs on the GRID
+   * @param piRow index of the row
+   * @throws IOException if the encoder throws it
+   */
+  static void encodeRowOfMasses(TabbedRecordEncoder pEncoder,
+                                double[][] pd2dMasses,
+                                int piNumSIZEs,
+                                int piRow) throws IOException
+  {
+    for (int liSIZE = 0; liSIZE < piNumSIZEs; liSIZE++) {
+      if (piRow < pd2dMasses[liSIZE].length) {
+        pEncoder.fieldAsAppended(pd2dMasses[liSIZE][piRow]);
+      } else {
+        pEncoder.append(" ").tab();
+      }
+    }
+  }
+
+  /**
+   * A channel that passes the bytes written to it to the
+   * {@link ResultsFileAppender} for one file, so a
+   * {@link TabbedRecordEncoder} made with it hands on its buffer each time
+   * the buffer is full.
+   */
+  static final class AppenderChannel implements WritableByteChannel
+  {
+
+    final String sFile;
+
+    AppenderChannel(String psFile)
+    {
+      sFile = psFile;
+    }
+
+    @Override
+    public int write(ByteBuffer pBytes) throws IOException
+    {
+      int liBytes = pBytes.remaining();
+      ResultsFileAppender.append(sFile,
+                                 pBytes);
+      return liBytes;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+
   /**
    *
    * @param pVars Vars
@@ -1167,7 +2245,7 @@ public class ResultsFilesWriter extends AllGsHeadings
     String lsFileName = "LCFDBatchFrequencies";
     StringBuilder lsbData = new StringBuilder(pVars.sbDlcFrequency);
 
-    showOrSaveDataFile(lsbData,
+    showOrSaveBatchFile(lsbData,
                        lsbHeadings,
                        lsFileName,
                        pVars);
@@ -1205,11 +2283,46 @@ public class ResultsFilesWriter extends AllGsHeadings
   public static void writeGridStringToBatchFile(String psGridString,
                                          Vars pVars)
   {
+    if (isShardingBatch(pVars)) {
+      saveToBatchShard(pVars,
+                       "BatchGridData.txt",
+                       gridDataFileHeadings(pVars).toString(),
+                       psGridString);
+      return;
+    }
     saveDataFileOrAppend(pVars.getDirectoryForSavingResults(),
                          "BatchGridData.txt",
                          gridDataFileHeadings(pVars).toString(),
                          new StringBuilder(psGridString));
   }
 
- 
+  /**
+   * Appends the passed data to the {@link BatchShards shard} of the named file
+   * for the image being analyzed. Shows a message if it cannot be written.
+   *
+   * @param pVars Vars for the directory and the image's number in the batch
+   * @param psFileName name of the batch file
+   * @param psHeadings headings for the batch file
+   * @param psData data rows to append
+   */
+  static void saveToBatchShard(Vars pVars,
+                               String psFileName,
+                               String psHeadings,
+                               CharSequence psData)
+  {
+    try {
+      BatchShards.append(pVars.getDirectoryForSavingResults(),
+                         psFileName,
+                         pVars.getiFileNumber(),
+                         psHeadings,
+                         psData);
+    } catch (SecurityException s) {
+      IJ.showMessage("Sorry, but security says no to "
+          + pVars.getDirectoryForSavingResults() + psFileName);
+    } catch (IOException ioe) {
+      IJ.showMessage("Sorry, but I cannot write "
+          + pVars.getDirectoryForSavingResults() + psFileName);
+    }
+  }
+
 }
@@ -0,0 +1,43 @@
+package fraclac.writers;
+
+/**
+ * Receives the results that would otherwise be shown in a TextWindow when
+ * results are not being saved, so that FracLac can run without a display.
+ * <p>
+ * Set one sink for a run in {@link ResultsFilesWriter#headlessSink}; when it
+ * is null, results are shown in TextWindows as usual. The sinks provided are
+ * {@link #DISCARD}, which drops everything and lets the writers skip building
+ * the text at all, {@link DirectorySink}, which saves to files as if results
+ * were being saved, and {@link ColumnStoreSink}, which keeps them in memory
+ * by column.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public interface ResultsSink
+{
+
+  /**
+   * Drops everything passed to it.
+   */
+  ResultsSink DISCARD = new ResultsSink()
+  {
+    @Override
+    public void accept(String psTitle,
+                       CharSequence pcsHeadings,
+                       CharSequence pcsData)
+    {
+    }
+  };
+
+  /**
+   * Receives the text for one window.
+   *
+   * @param psTitle title the window would have had
+   * @param pcsHeadings tab-separated headings; may be empty
+   * @param pcsData tab-separated rows, separated by new lines; must not be
+   * kept, since the caller may reuse it
+   */
+  void accept(String psTitle,
+              CharSequence pcsHeadings,
+              CharSequence pcsData);
+}
@@ -0,0 +1,309 @@
+package fraclac.writers;
+
+import ij.IJ;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes results files on a background thread, so that scanning does not wait
+ * on slow disks or network storage.
+ * <p>
+ * Analysis threads {@link #append append} or {@link #replace replace} text,
+ * which is put on a bounded queue as an immutable payload and written by a
+ * single daemon writer thread through the {@link ResultsFileAppender}. The
+ * writer takes everything waiting on the queue at once and joins the appends
+ * to each file into one write, keeping the order of the writes to any one
+ * file. When the queue holds {@link #CAPACITY} payloads, callers wait until
+ * the writer catches up.
+ * <p>
+ * Call {@link #flush} at the end of a batch: it returns once everything
+ * queued before it has been written to disk.
+ * <p>
+ * Errors are {@link IJ#log logged} by the writer thread, since the caller has
+ * moved on by the time the file is written. An exception from one write is
+ * logged and the writer goes on to the next. If the writer thread dies
+ * anyway, e.g., of an Error, it is started again by the next caller that
+ * finds it dead while waiting, so neither {@link #flush} nor a caller
+ * waiting on a full queue can wait forever.
+ *
+ * @see ResultsFilesWriter#bWriteInBackground
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class ResultsWriteQueue
+{
+
+  /**
+   * Most payloads waiting to be written before callers are made to wait.
+   * {@value}
+   */
+  public static final int CAPACITY = 1024;
+  /**
+   * Milliseconds callers wait at a time before checking that the writer is
+   * still alive. {@value}
+   */
+  static final long CHECK_WRITER_MS = 1000;
+
+  private static final BlockingQueue<Payload> queue
+      = new ArrayBlockingQueue<Payload>(CAPACITY);
+  private static Thread writer;
+
+  private ResultsWriteQueue()
+  {
+  }
+
+  /**
+   * One write, or a flush barrier if {@link #latch} is not null.
+   */
+  private static final class Payload
+  {
+
+    final String sPath;
+    final String sText;
+    final boolean bReplace;
+    final CountDownLatch latch;
+
+    Payload(String psPath,
+            String psText,
+            boolean pbReplace,
+            CountDownLatch pLatch)
+    {
+      sPath = psPath;
+      sText = psText;
+      bReplace = pbReplace;
+      latch = pLatch;
+    }
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Queues the passed text to be appended to the file at the passed path,
+   * waiting if the queue is full.
+   *
+   * @param psPath path of the file
+   * @param psText text to append
+   */
+  public static void append(String psPath,
+                            String psText)
+  {
+    put(new Payload(psPath,
+                    psText,
+                    false,
+                    null));
+  }
+
+  /**
+   * Queues the passed text to replace the contents of the file at the passed
+   * path, waiting if the queue is full.
+   *
+   * @param psPath path of the file
+   * @param psText new contents of the file
+   */
+  public static void replace(String psPath,
+                             String psText)
+  {
+    put(new Payload(psPath,
+                    psText,
+                    true,
+                    null));
+  }
+
+  /**
+   * Waits until everything queued so far has been written and flushed to the
+   * files. Returns at once if the writer has never been started.
+   */
+  public static void flush()
+  {
+    synchronized (ResultsWriteQueue.class) {
+      if (writer == null) {
+        return;
+      }
+    }
+    CountDownLatch lLatch = new CountDownLatch(1);
+    put(new Payload(null,
+                    null,
+                    false,
+                    lLatch));
+    try {
+      while (!lLatch.await(CHECK_WRITER_MS,
+                           TimeUnit.MILLISECONDS)) {
+        startWriter();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  private static void put(Payload pPayload)
+  {
+    startWriter();
+    try {
+      while (!queue.offer(pPayload,
+                          CHECK_WRITER_MS,
+                          TimeUnit.MILLISECONDS)) {
+        startWriter();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      IJ.log(ex.toString() + " Not written: " + pPayload.sPath + " "
+          + ResultsWriteQueue.class.getSimpleName());
+    }
+  }
+
+  /**
+   * Starts the writer thread if it has not been started or has died.
+   */
+  private static synchronized void startWriter()
+  {
+    if ((writer != null) && writer.isAlive()) {
+      return;
+    }
+    writer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          drain();
+        } catch (Error er) {
+          IJ.log(er.toString() + " The results writer stopped; text it held"
+              + " may not have been written. "
+              + ResultsWriteQueue.class.getSimpleName());
+          throw er;
+        }
+      }
+    },
+                        ResultsWriteQueue.class.getSimpleName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Runs on the writer thread: takes every payload waiting, joins the
+   * appends to each file, and writes them.
+   */
+  private static void drain()
+  {
+    ArrayList<Payload> lalBatch = new ArrayList<Payload>();
+    Map<String, StringBuilder> lmapPending
+        = new LinkedHashMap<String, StringBuilder>();
+    while (true) {
+      try {
+        lalBatch.add(queue.take());
+      } catch (InterruptedException ex) {
+        continue;
+      }
+      queue.drainTo(lalBatch);
+      try {
+        for (Payload lPayload : lalBatch) {
+          try {
+            write(lPayload,
+                  lmapPending);
+          } catch (RuntimeException ex) {
+            log(ex,
+                lPayload.sPath);
+          } finally {
+            if (lPayload.latch != null) {
+              lPayload.latch.countDown();
+            }
+          }
+        }
+        writePending(lmapPending);
+      } finally {
+        // Reached with payloads left only if an Error is ending the thread;
+        // no one is left waiting on them.
+        for (Payload lPayload : lalBatch) {
+          if (lPayload.latch != null) {
+            lPayload.latch.countDown();
+          }
+        }
+        lalBatch.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes one payload, or, for a flush barrier, everything pending.
+   */
+  private static void write(Payload pPayload,
+                            Map<String, StringBuilder> pmapPending)
+  {
+    if (pPayload.latch != null) {
+      writePending(pmapPending);
+      ResultsFileAppender.flushAll();
+    } else if (pPayload.bReplace) {
+      // Earlier appends to this file go first, then the file is replaced.
+      writePending(pmapPending,
+                   pPayload.sPath);
+      try {
+        ResultsFileAppender.replace(pPayload.sPath,
+                                    pPayload.sText);
+      } catch (IOException ex) {
+        log(ex,
+            pPayload.sPath);
+      }
+    } else {
+      StringBuilder lsb = pmapPending.get(pPayload.sPath);
+      if (lsb == null) {
+        pmapPending.put(pPayload.sPath,
+                        new StringBuilder(pPayload.sText));
+      } else {
+        lsb.append(pPayload.sText);
+      }
+    }
+  }
+
+  private static void writePending(Map<String, StringBuilder> pmapPending)
+  {
+    for (Map.Entry<String, StringBuilder> lEntry : pmapPending.entrySet()) {
+      try {
+        ResultsFileAppender.append(lEntry.getKey(),
+                                   lEntry.getValue().toString());
+      } catch (IOException ex) {
+        log(ex,
+            lEntry.getKey());
+      } catch (RuntimeException ex) {
+        log(ex,
+            lEntry.getKey());
+      }
+    }
+    pmapPending.clear();
+  }
+
+  private static void writePending(Map<String, StringBuilder> pmapPending,
+                                   String psPath)
+  {
+    StringBuilder lsb = pmapPending.remove(psPath);
+    if (lsb == null) {
+      return;
+    }
+    try {
+      ResultsFileAppender.append(psPath,
+                                 lsb.toString());
+    } catch (IOException ex) {
+      log(ex,
+          psPath);
+    } catch (RuntimeException ex) {
+      log(ex,
+          psPath);
+    }
+  }
+
+  private static void log(Exception pEx,
+                          String psPath)
+  {
+    IJ.log(pEx.toString() + " Error writing " + psPath + " "
+        + ResultsWriteQueue.class.getSimpleName()
+        + (pEx.getStackTrace()[0].getLineNumber()));
+  }
+}
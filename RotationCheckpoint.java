@@ -0,0 +1,348 @@
+package fraclac.writers;
+
+import ij.IJ;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A checkpoint file for a long rotation-averaging run, so that a run that
+ * stops part way through can be resumed at the next slice instead of slice 1.
+ * <p>
+ * The file holds a short header followed by one record per slice, each
+ * record being a {@link RotationSliceSnapshot} in its
+ * {@link RotationSliceSnapshot#writeTo binary form}, little-endian:
+ * <pre>
+ * header:  int MAGIC, int VERSION, int number of slices
+ * record:  int slice number, int n, n bytes of snapshot, int n
+ * </pre>
+ * The length is written again after the snapshot, last, so a record cut off
+ * by a crash is recognized and ignored when the file is read back.
+ * <p>
+ * Records are only ever appended, each with one positional write at the end
+ * of the file. The file is not forced to disk on every write; the operating
+ * system writes it back in the background, so checkpointing does not hold up
+ * scanning. It is forced to disk when it is {@link #force forced} or
+ * {@link #close closed}. The file is never mapped, so nothing keeps it open
+ * once it is closed, and it can be truncated when it is opened and
+ * {@link #delete deleted} at the end of a run on any system, e.g., Windows.
+ * <p>
+ * Slices are {@link #add added} as they are scanned and written every
+ * {@link #iSlicesPerWrite} slices.
+ *
+ * @see RotationStackAverager#openCheckpoint
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class RotationCheckpoint
+{
+
+  /**
+   * Marks a rotation checkpoint file. {@value}
+   */
+  static final int MAGIC = 0x464c4350;
+  /**
+   * Version of the file layout. {@value}
+   */
+  static final int VERSION = 1;
+  /**
+   * Bytes in the header. {@value}
+   */
+  static final int HEADER_BYTES = 12;
+  /**
+   * Bytes in a record besides the snapshot. {@value}
+   */
+  static final int RECORD_OVERHEAD_BYTES = 12;
+
+  final File fFile;
+  final int iNumSlices;
+  /**
+   * Number of slices collected before they are written.
+   */
+  final int iSlicesPerWrite;
+  private RandomAccessFile rafFile;
+  private FileChannel channel;
+  /**
+   * Offset of the end of the last complete record.
+   */
+  private long lEnd;
+  private final ArrayList<RotationSliceSnapshot> alPending
+      = new ArrayList<RotationSliceSnapshot>();
+  private final ArrayList<Integer> alPendingSliceNumbers
+      = new ArrayList<Integer>();
+
+  /**
+   * Opens the passed checkpoint file, or creates it if it does not exist. An
+   * existing file is kept only if it was written for the same number of
+   * slices; otherwise it is started again. Anything after the last complete
+   * record is dropped.
+   *
+   * @param pFile File for the checkpoint
+   * @param piNumSlices number of slices in the rotation stack
+   * @param piSlicesPerWrite number of slices to collect before writing; 1
+   * writes every slice as soon as it is added
+   * @throws IOException if the file cannot be opened or written
+   */
+  public RotationCheckpoint(File pFile,
+                            int piNumSlices,
+                            int piSlicesPerWrite) throws IOException
+  {
+    fFile = pFile;
+    iNumSlices = piNumSlices;
+    iSlicesPerWrite = Math.max(1,
+                               piSlicesPerWrite);
+    rafFile = new RandomAccessFile(pFile,
+                                   "rw");
+    channel = rafFile.getChannel();
+    lEnd = endOfLastCompleteRecord();
+    if (lEnd < HEADER_BYTES) {
+      startNewFile();
+    } else if (channel.size() > lEnd) {
+      channel.truncate(lEnd);
+    }
+  }
+
+  // ===========================================================================
+  //                              WRITING
+  // ===========================================================================
+  /**
+   * Adds the snapshot for a slice, writing it and any others collected once
+   * {@link #iSlicesPerWrite} have been collected.
+   *
+   * @param pSnapshot RotationSliceSnapshot for the slice
+   * @param piSliceNumber 1-based slice number
+   * @throws IOException if writing fails
+   */
+  public void add(RotationSliceSnapshot pSnapshot,
+                  int piSliceNumber) throws IOException
+  {
+    alPending.add(pSnapshot);
+    alPendingSliceNumbers.add(piSliceNumber);
+    if (alPending.size() >= iSlicesPerWrite) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes every slice collected so far to the end of the file, one record
+   * at a time. If a write fails, the records after the last complete one are
+   * cut off, so the file can still be read and written.
+   *
+   * @throws IOException if writing fails
+   */
+  public void flush() throws IOException
+  {
+    if (alPending.isEmpty()) {
+      return;
+    }
+    ByteBuffer lRecord = null;
+    try {
+      for (int i = 0; i < alPending.size(); i++) {
+        int liSize = alPending.get(i).byteSize();
+        int liBytes = RECORD_OVERHEAD_BYTES + liSize;
+        if ((lRecord == null) || (lRecord.capacity() < liBytes)) {
+          lRecord = ByteBuffer.allocate(liBytes);
+          lRecord.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        lRecord.clear();
+        lRecord.putInt(alPendingSliceNumbers.get(i));
+        lRecord.putInt(liSize);
+        alPending.get(i).writeTo(lRecord);
+        lRecord.putInt(liSize);
+        lRecord.flip();
+        long llPosition = lEnd;
+        while (lRecord.hasRemaining()) {
+          llPosition += channel.write(lRecord,
+                                      llPosition);
+        }
+        lEnd = llPosition;
+      }
+    } catch (IOException ex) {
+      channel.truncate(lEnd);
+      throw ex;
+    } finally {
+      alPending.clear();
+      alPendingSliceNumbers.clear();
+    }
+  }
+
+  /**
+   * Writes any slices collected and forces them, and every slice written
+   * before them, to disk, so that they survive a crash of the operating
+   * system and not just of the program.
+   *
+   * @throws IOException if writing fails
+   */
+  public void force() throws IOException
+  {
+    flush();
+    channel.force(true);
+  }
+
+  /**
+   * Writes any slices collected, {@link #force forces} the file to disk and
+   * closes it. Called at the end of a run, e.g., by
+   * {@link RotationStackAverager#calculateAverages}.
+   *
+   * @throws IOException if writing fails
+   */
+  public void close() throws IOException
+  {
+    try {
+      force();
+    } finally {
+      rafFile.close();
+    }
+  }
+
+  /**
+   * Closes and deletes the file; called when a run has finished and the
+   * checkpoint is no longer needed.
+   */
+  public void delete()
+  {
+    try {
+      alPending.clear();
+      alPendingSliceNumbers.clear();
+      rafFile.close();
+    } catch (IOException ex) {
+      IJ.log(ex.toString() + getClass().getSimpleName() + " "
+          + (ex.getStackTrace()[0].getLineNumber()));
+    }
+    if (!fFile.delete()) {
+      IJ.log(getClass().getSimpleName() + ": Could not delete "
+          + fFile.getPath());
+    }
+  }
+
+  // ===========================================================================
+  //                              READING
+  // ===========================================================================
+  /**
+   * Reads every complete record in the file, in the order written. When a
+   * slice was written more than once, the last one is kept.
+   *
+   * @return RotationSliceSnapshot [] indexed by (slice number - 1); slices not
+   * in the file are null
+   * @throws IOException if the file cannot be read
+   */
+  public RotationSliceSnapshot[] readSlices() throws IOException
+  {
+    flush();
+    RotationSliceSnapshot[] laSnapshots
+        = new RotationSliceSnapshot[iNumSlices];
+    if (lEnd <= HEADER_BYTES) {
+      return laSnapshots;
+    }
+    ByteBuffer lBytes = ByteBuffer.allocate((int) lEnd);
+    lBytes.order(ByteOrder.LITTLE_ENDIAN);
+    if (!readFully(lBytes,
+                   0)) {
+      return laSnapshots;
+    }
+    lBytes.position(HEADER_BYTES);
+    while (lBytes.position() < lEnd) {
+      int liSliceNumber = lBytes.getInt();
+      int liSize = lBytes.getInt();
+      int liStart = lBytes.position();
+      ByteBuffer lRecord = lBytes.slice();
+      lRecord.order(ByteOrder.LITTLE_ENDIAN);
+      lRecord.limit(liSize);
+      RotationSliceSnapshot lSnapshot = RotationSliceSnapshot.readFrom(
+          lRecord);
+      lBytes.position(liStart + liSize + 4);
+      if ((liSliceNumber >= 1) && (liSliceNumber <= iNumSlices)) {
+        laSnapshots[liSliceNumber - 1] = lSnapshot;
+      }
+    }
+    return laSnapshots;
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  private void startNewFile() throws IOException
+  {
+    channel.truncate(0);
+    ByteBuffer lHeader = ByteBuffer.allocate(HEADER_BYTES);
+    lHeader.order(ByteOrder.LITTLE_ENDIAN);
+    lHeader.putInt(MAGIC).putInt(VERSION).putInt(iNumSlices);
+    lHeader.flip();
+    while (lHeader.hasRemaining()) {
+      channel.write(lHeader,
+                    lHeader.position());
+    }
+    lEnd = HEADER_BYTES;
+  }
+
+  /**
+   * Checks the header and walks the records, returning the offset just after
+   * the last one whose closing length matches its opening length; returns 0 if
+   * the header is missing or is for a different layout or number of slices.
+   * <p>
+   * The file is read with positional reads, not a map, because the caller may
+   * truncate it next and a file cannot be truncated while it is mapped on
+   * some systems, e.g., Windows.
+   */
+  private long endOfLastCompleteRecord() throws IOException
+  {
+    long llSize = channel.size();
+    if (llSize < HEADER_BYTES) {
+      return 0;
+    }
+    ByteBuffer lInts = ByteBuffer.allocate(HEADER_BYTES);
+    lInts.order(ByteOrder.LITTLE_ENDIAN);
+    if (!readFully(lInts,
+                   0)
+        || (lInts.getInt() != MAGIC) || (lInts.getInt() != VERSION)
+        || (lInts.getInt() != iNumSlices)) {
+      return 0;
+    }
+    long llEnd = HEADER_BYTES;
+    while (llSize - llEnd >= RECORD_OVERHEAD_BYTES) {
+      lInts.clear();
+      lInts.limit(8);
+      if (!readFully(lInts,
+                     llEnd)) {
+        break;
+      }
+      lInts.getInt();
+      int liSize = lInts.getInt();
+      long llTrailer = llEnd + 8 + liSize;
+      if ((liSize < 0) || (llTrailer + 4 > llSize)) {
+        break;
+      }
+      lInts.clear();
+      lInts.limit(4);
+      if (!readFully(lInts,
+                     llTrailer) || (lInts.getInt() != liSize)) {
+        break;
+      }
+      llEnd = llTrailer + 4;
+    }
+    return llEnd;
+  }
+
+  /**
+   * Fills the passed buffer from the file at the passed offset and flips it;
+   * returns false if the file ends first.
+   */
+  private boolean readFully(ByteBuffer pBuffer,
+                            long plPosition) throws IOException
+  {
+    long llPosition = plPosition;
+    while (pBuffer.hasRemaining()) {
+      int liRead = channel.read(pBuffer,
+                                llPosition);
+      if (liRead < 0) {
+        return false;
+      }
+      llPosition += liRead;
+    }
+    pBuffer.flip();
+    return true;
+  }
+}
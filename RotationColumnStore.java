@@ -0,0 +1,456 @@
+package fraclac.writers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A binary, column-oriented file of the per-slice values from a rotation
+ * stack, for analysis outside FracLac without re-running the scans or parsing
+ * tab-delimited text.
+ * <p>
+ * Each {@link RotationSliceSnapshot.EnumScalar} becomes one column of doubles
+ * holding one value per slice, and each
+ * {@link RotationSliceSnapshot.EnumArray} becomes one column holding the
+ * arrays of every slice end to end, with an index of where each slice's array
+ * starts. Each {@link RotationSliceSnapshot.EnumMatrix} becomes one column
+ * holding the per-GRID rows of every slice end to end, with an index of the
+ * first row of each slice followed by an index of where each row starts.
+ * Columns are named by the key's {@link Enum#name() name}. The file is
+ * little-endian:
+ * <pre>
+ * header:    int MAGIC, int VERSION, int number of slices, int number of columns
+ * directory: for each column, short n, n bytes of UTF-8 name, int kind,
+ *            long offset of values, long number of values, long offset of index
+ * data:      each column's values (and index, for arrays and matrices),
+ *            8-byte aligned
+ * </pre>
+ * A value a slice did not produce is NaN in a scalar column, an array a slice
+ * did not produce has length 0 in an array column, and a matrix a slice did
+ * not produce has no rows in a matrix column.
+ * <p>
+ * The sizes and raw masses on each GRID that a snapshot shares with its scan
+ * are not written here; they are the largest values a slice holds and are
+ * written by {@link BinaryMassFile} instead.
+ * <p>
+ * {@link #open Opening} a file maps it into memory and reads only the
+ * directory; a column is a {@link DoubleBuffer} view onto the map, so loading
+ * even a very large file costs no more than reading its directory.
+ *
+ * @see RotationStackAverager#writeSliceColumns
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class RotationColumnStore
+{
+
+  /**
+   * Marks a rotation column file. {@value}
+   */
+  static final int MAGIC = 0x464c4343;
+  /**
+   * Version of the file layout. {@value}
+   */
+  static final int VERSION = 2;
+  /**
+   * Kind of a column holding one double per slice. {@value}
+   */
+  public static final int SCALAR = 0;
+  /**
+   * Kind of a column holding one array per slice. {@value}
+   */
+  public static final int ARRAY = 1;
+  /**
+   * Kind of a column holding per-GRID rows for each slice. {@value}
+   */
+  public static final int MATRIX = 2;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  final int iNumSlices;
+  final MappedByteBuffer map;
+  /**
+   * Columns by name, in the order they were written.
+   */
+  final Map<String, Column> mapColumns = new LinkedHashMap<String, Column>();
+
+  /**
+   * Where one column's values are in the file.
+   */
+  static class Column
+  {
+
+    int iKind;
+    long lValuesOffset, lNumValues, lIndexOffset;
+  }
+
+  private RotationColumnStore(MappedByteBuffer pMap)
+  {
+    map = pMap;
+    map.order(ByteOrder.LITTLE_ENDIAN);
+    if ((map.getInt() != MAGIC) || (map.getInt() != VERSION)) {
+      throw new IllegalArgumentException("Not a rotation column file.");
+    }
+    iNumSlices = map.getInt();
+    int liNumColumns = map.getInt();
+    for (int i = 0; i < liNumColumns; i++) {
+      byte[] lbaName = new byte[map.getShort()];
+      map.get(lbaName);
+      Column lColumn = new Column();
+      lColumn.iKind = map.getInt();
+      lColumn.lValuesOffset = map.getLong();
+      lColumn.lNumValues = map.getLong();
+      lColumn.lIndexOffset = map.getLong();
+      mapColumns.put(new String(lbaName,
+                                UTF8),
+                     lColumn);
+    }
+  }
+
+  // ===========================================================================
+  //                              WRITING
+  // ===========================================================================
+  /**
+   * Writes the passed slices to the passed file as columns, replacing the
+   * file if it exists.
+   *
+   * @param pFile File to write
+   * @param paSlices RotationSliceSnapshot [] in slice order; null entries are
+   * written as slices that produced nothing
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(File pFile,
+                           RotationSliceSnapshot[] paSlices) throws IOException
+  {
+    RotationSliceSnapshot.EnumScalar[] laScalars
+        = RotationSliceSnapshot.EnumScalar.values();
+    RotationSliceSnapshot.EnumArray[] laArrays
+        = RotationSliceSnapshot.EnumArray.values();
+    RotationSliceSnapshot.EnumMatrix[] laMatrices
+        = RotationSliceSnapshot.EnumMatrix.values();
+    int liNumSlices = paSlices.length;
+    int liFirstMatrix = laScalars.length + laArrays.length;
+    int liNumColumns = liFirstMatrix + laMatrices.length;
+    // -------------------------------------------------------------------------
+    // Lay out the file: header and directory first, then each column.
+    // -------------------------------------------------------------------------
+    byte[][] lbaNames = new byte[liNumColumns][];
+    long llDirectoryBytes = 16;
+    for (int i = 0; i < liNumColumns; i++) {
+      lbaNames[i] = ((i < laScalars.length) ? laScalars[i].name()
+          : (i < liFirstMatrix) ? laArrays[i - laScalars.length].name()
+              : laMatrices[i - liFirstMatrix].name()).getBytes(UTF8);
+      llDirectoryBytes += 2 + lbaNames[i].length + 4 + 8 + 8 + 8;
+    }
+    long[] llaValuesOffsets = new long[liNumColumns];
+    long[] llaNumValues = new long[liNumColumns];
+    long[] llaIndexOffsets = new long[liNumColumns];
+    long llEnd = align(llDirectoryBytes);
+    for (int i = 0; i < liNumColumns; i++) {
+      if (i < laScalars.length) {
+        llaNumValues[i] = liNumSlices;
+        llaIndexOffsets[i] = -1;
+      } else if (i >= liFirstMatrix) {
+        long llNumRows = 0;
+        for (RotationSliceSnapshot lSlice : paSlices) {
+          double[][] ld2d = (lSlice == null) ? null
+              : lSlice.get(laMatrices[i - liFirstMatrix]);
+          if (ld2d == null) {
+            continue;
+          }
+          llNumRows += ld2d.length;
+          for (double[] lda : ld2d) {
+            llaNumValues[i] += (lda == null) ? 0 : lda.length;
+          }
+        }
+        llaIndexOffsets[i] = llEnd;
+        llEnd = align(llEnd + 4L * (liNumSlices + 1) + 4L * (llNumRows + 1));
+      } else {
+        for (RotationSliceSnapshot lSlice : paSlices) {
+          double[] lda = (lSlice == null) ? null
+              : lSlice.get(laArrays[i - laScalars.length]);
+          llaNumValues[i] += (lda == null) ? 0 : lda.length;
+        }
+        llaIndexOffsets[i] = llEnd;
+        llEnd = align(llEnd + 4L * (liNumSlices + 1));
+      }
+      llaValuesOffsets[i] = llEnd;
+      llEnd += 8 * llaNumValues[i];
+    }
+    // -------------------------------------------------------------------------
+    // Write everything through one map of the whole file.
+    // -------------------------------------------------------------------------
+    RandomAccessFile lFile = new RandomAccessFile(pFile,
+                                                  "rw");
+    try {
+      FileChannel lChannel = lFile.getChannel();
+      lChannel.truncate(0);
+      MappedByteBuffer lMap = lChannel.map(FileChannel.MapMode.READ_WRITE,
+                                           0,
+                                           llEnd);
+      lMap.order(ByteOrder.LITTLE_ENDIAN);
+      lMap.putInt(MAGIC).putInt(VERSION).putInt(liNumSlices).putInt(
+          liNumColumns);
+      for (int i = 0; i < liNumColumns; i++) {
+        lMap.putShort((short) lbaNames[i].length);
+        lMap.put(lbaNames[i]);
+        lMap.putInt((i < laScalars.length) ? SCALAR
+            : (i < liFirstMatrix) ? ARRAY : MATRIX);
+        lMap.putLong(llaValuesOffsets[i]);
+        lMap.putLong(llaNumValues[i]);
+        lMap.putLong(llaIndexOffsets[i]);
+      }
+      for (int i = 0; i < liNumColumns; i++) {
+        lMap.position((int) llaValuesOffsets[i]);
+        DoubleBuffer lValues = lMap.asDoubleBuffer();
+        if (i < laScalars.length) {
+          for (RotationSliceSnapshot lSlice : paSlices) {
+            lValues.put((lSlice == null) ? Double.NaN
+                : lSlice.get(laScalars[i]));
+          }
+          continue;
+        }
+        lMap.position((int) llaIndexOffsets[i]);
+        IntBuffer lIndex = lMap.asIntBuffer();
+        if (i >= liFirstMatrix) {
+          putMatrix(paSlices,
+                    laMatrices[i - liFirstMatrix],
+                    lIndex,
+                    lValues);
+          continue;
+        }
+        int liStart = 0;
+        for (RotationSliceSnapshot lSlice : paSlices) {
+          lIndex.put(liStart);
+          double[] lda = (lSlice == null) ? null
+              : lSlice.get(laArrays[i - laScalars.length]);
+          if (lda != null) {
+            lValues.put(lda);
+            liStart += lda.length;
+          }
+        }
+        lIndex.put(liStart);
+      }
+      lMap.force();
+    } finally {
+      lFile.close();
+    }
+  }
+
+  /**
+   * Puts the first row of each slice, then the first value of each row, into
+   * the passed index, and every row into the passed values.
+   */
+  private static void putMatrix(RotationSliceSnapshot[] paSlices,
+                                RotationSliceSnapshot.EnumMatrix pKey,
+                                IntBuffer pIndex,
+                                DoubleBuffer pValues)
+  {
+    int liRow = 0;
+    for (RotationSliceSnapshot lSlice : paSlices) {
+      pIndex.put(liRow);
+      double[][] ld2d = (lSlice == null) ? null : lSlice.get(pKey);
+      liRow += (ld2d == null) ? 0 : ld2d.length;
+    }
+    pIndex.put(liRow);
+    int liStart = 0;
+    for (RotationSliceSnapshot lSlice : paSlices) {
+      double[][] ld2d = (lSlice == null) ? null : lSlice.get(pKey);
+      if (ld2d == null) {
+        continue;
+      }
+      for (double[] lda : ld2d) {
+        pIndex.put(liStart);
+        if (lda != null) {
+          pValues.put(lda);
+          liStart += lda.length;
+        }
+      }
+    }
+    pIndex.put(liStart);
+  }
+
+  // ===========================================================================
+  //                              READING
+  // ===========================================================================
+  /**
+   * Maps the passed file into memory and reads its directory.
+   *
+   * @param pFile File written by {@link #write}
+   * @return RotationColumnStore
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if the file is not a rotation column file
+   */
+  public static RotationColumnStore open(File pFile) throws IOException
+  {
+    RandomAccessFile lFile = new RandomAccessFile(pFile,
+                                                  "r");
+    try {
+      FileChannel lChannel = lFile.getChannel();
+      return new RotationColumnStore(lChannel.map(
+          FileChannel.MapMode.READ_ONLY,
+          0,
+          lChannel.size()));
+    } finally {
+      // The map stays valid after the file is closed.
+      lFile.close();
+    }
+  }
+
+  /**
+   * Returns the number of slices in the file.
+   *
+   * @return int
+   */
+  public int getNumSlices()
+  {
+    return iNumSlices;
+  }
+
+  /**
+   * Returns the names of the columns, in the order they were written.
+   *
+   * @return Set of names that cannot be changed
+   */
+  public Set<String> getColumnNames()
+  {
+    return Collections.unmodifiableSet(mapColumns.keySet());
+  }
+
+  /**
+   * Returns the {@link #SCALAR kind} of the named column, or -1 if there is no
+   * such column.
+   *
+   * @param psName name of the column
+   * @return int kind
+   */
+  public int getKind(String psName)
+  {
+    Column lColumn = mapColumns.get(psName);
+    return (lColumn == null) ? -1 : lColumn.iKind;
+  }
+
+  /**
+   * Returns every value of the named column without copying. For a scalar
+   * column there is one value per slice; for an array or matrix column the
+   * arrays or rows of every slice are end to end.
+   *
+   * @param psName name of the column
+   * @return read-only DoubleBuffer onto the file, or null if there is no such
+   * column
+   */
+  public DoubleBuffer column(String psName)
+  {
+    Column lColumn = mapColumns.get(psName);
+    if (lColumn == null) {
+      return null;
+    }
+    return doubles(lColumn.lValuesOffset,
+                   lColumn.lNumValues);
+  }
+
+  /**
+   * Returns the values of the passed key's column, one per slice.
+   *
+   * @param pKey RotationSliceSnapshot.EnumScalar
+   * @return read-only DoubleBuffer, or null if the file has no such column
+   */
+  public DoubleBuffer column(RotationSliceSnapshot.EnumScalar pKey)
+  {
+    return column(pKey.name());
+  }
+
+  /**
+   * Returns the array that one slice has in the passed key's column, without
+   * copying.
+   *
+   * @param pKey RotationSliceSnapshot.EnumArray
+   * @param piSlice 0-based index of the slice
+   * @return read-only DoubleBuffer of length 0 if the slice did not produce
+   * the array, or null if the file has no such column
+   */
+  public DoubleBuffer arrayAt(RotationSliceSnapshot.EnumArray pKey,
+                              int piSlice)
+  {
+    Column lColumn = mapColumns.get(pKey.name());
+    if ((lColumn == null) || (lColumn.iKind != ARRAY)) {
+      return null;
+    }
+    int liStart = map.getInt((int) (lColumn.lIndexOffset + 4L * piSlice));
+    int liEnd = map.getInt((int) (lColumn.lIndexOffset + 4L * (piSlice + 1)));
+    return doubles(lColumn.lValuesOffset + 8L * liStart,
+                   liEnd - liStart);
+  }
+
+  /**
+   * Returns the number of per-GRID rows one slice has in the passed key's
+   * column.
+   *
+   * @param pKey RotationSliceSnapshot.EnumMatrix
+   * @param piSlice 0-based index of the slice
+   * @return int number of rows, 0 if the slice did not produce the matrix, or
+   * -1 if the file has no such column
+   */
+  public int getNumRows(RotationSliceSnapshot.EnumMatrix pKey,
+                        int piSlice)
+  {
+    Column lColumn = mapColumns.get(pKey.name());
+    if ((lColumn == null) || (lColumn.iKind != MATRIX)) {
+      return -1;
+    }
+    return map.getInt((int) (lColumn.lIndexOffset + 4L * (piSlice + 1)))
+        - map.getInt((int) (lColumn.lIndexOffset + 4L * piSlice));
+  }
+
+  /**
+   * Returns one per-GRID row that one slice has in the passed key's column,
+   * without copying.
+   *
+   * @param pKey RotationSliceSnapshot.EnumMatrix
+   * @param piSlice 0-based index of the slice
+   * @param piRow 0-based index of the row, less than
+   * {@link #getNumRows getNumRows}
+   * @return read-only DoubleBuffer of length 0 if the row was null, or null if
+   * the file has no such column
+   */
+  public DoubleBuffer rowAt(RotationSliceSnapshot.EnumMatrix pKey,
+                            int piSlice,
+                            int piRow)
+  {
+    Column lColumn = mapColumns.get(pKey.name());
+    if ((lColumn == null) || (lColumn.iKind != MATRIX)) {
+      return null;
+    }
+    long llRowIndex = lColumn.lIndexOffset + 4L * (iNumSlices + 1);
+    int liRow = map.getInt((int) (lColumn.lIndexOffset + 4L * piSlice))
+        + piRow;
+    int liStart = map.getInt((int) (llRowIndex + 4L * liRow));
+    int liEnd = map.getInt((int) (llRowIndex + 4L * (liRow + 1)));
+    return doubles(lColumn.lValuesOffset + 8L * liStart,
+                   liEnd - liStart);
+  }
+
+  private DoubleBuffer doubles(long plOffset,
+                               long plCount)
+  {
+    ByteBuffer lView = map.duplicate();
+    lView.position((int) plOffset);
+    lView.limit((int) (plOffset + 8 * plCount));
+    return lView.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer()
+        .asReadOnlyBuffer();
+  }
+
+  private static long align(long plOffset)
+  {
+    return (plOffset + 7) & ~7L;
+  }
+}
@@ -0,0 +1,860 @@
+package fraclac.writers;
+
+import fraclac.analyzer.DataProcessor;
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable, primitive-backed record of the values from one slice of a
+ * rotation stack that the {@link RotationStackAverager} reads.
+ * <p>
+ * Unlike {@link RotationStackData}, which copies fields one at a time into a
+ * fully set up {@link DataProcessor}, this class reads every value it needs
+ * from the passed DataProcessor in one pass and stores scalars in a single
+ * double array indexed by {@link EnumScalar}, single arrays in an array
+ * indexed by {@link EnumArray}, and per-GRID arrays in an array indexed by
+ * {@link EnumMatrix}. Every array, including the sizes and masses of each
+ * GRID, is copied, down to the innermost level, so later changes the scan
+ * makes to the DataProcessor do not reach the snapshot. Every field is final
+ * and nothing is changed after construction, so an instance can be handed to
+ * other threads without synchronization. The arrays returned by the
+ * accessors are the internal ones and must be treated as read-only.
+ * <p>
+ * Each key carries the pair of field names that
+ * {@link RotationStackAverager#getStatsForAllOccurrencesOfField(String, String, boolean, long)}
+ * is called with, so the averager can look values up by the same names it
+ * always used.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class RotationSliceSnapshot
+{
+
+  /**
+   * Keys for the single values held by a snapshot. The first string is the
+   * name of the outer field holding the value (null if the value is directly
+   * in the data or vars object), and the second is the name of the value.
+   */
+  public enum EnumScalar
+  {
+
+    D_MEAN_SIZES(null, "dMeanSIZEs"),
+    I_MIN_SIZE(null, "iMinSIZE"),
+    I_MAX_SIZE(null, "iMaxSIZE"),
+    D_TOTAL_FOREGROUND_PIXELS(null, "dTotalForegroundPixels"),
+    I_PIXELS_TO_SLIDE_HORIZONTALLY(null, "iPixelsToSlideHorizontally"),
+    I_PIXELS_TO_SLIDE_VERTICALLY(null, "iPixelsToSlideVertically"),
+    // .........................................................................
+    STATS_CV_FOR_COUNTS_OR_SUMS("statsCVForCountsOrSumsdeltaIAllGRIDs"),
+    STATS_CV_FOR_OMEGA_COUNT("statsCVForOMEGACountAllGRIDs"),
+    // .........................................................................
+    STATS_DB_AT_SLICE("statsDBAtSlice"),
+    OPTIMIZED_DB(null, "optimizedDB"),
+    OPTIMIZED_RSQ_FOR_DB(null, "optimizedRSqForDB"),
+    OPTIMIZED_SE_FOR_DB(null, "optimizedSEForDB"),
+    OPTIMIZED_YINT_FOR_DB(null, "optimizedYintForDB"),
+    D_LL_PREFACTOR_DB(null, "dLLPrefactorDBForSlice"),
+    // .........................................................................
+    STATS_DM_AT_SLICE("statsDmAtSlice"),
+    OPTIMIZED_DM(null, "optimizedDm"),
+    OPTIMIZED_RSQ_FOR_DM(null, "optimizedRSqForDm"),
+    OPTIMIZED_SE_FOR_DM(null, "optimizedSEForDm"),
+    OPTIMIZED_YINT_FOR_DM(null, "optimizedYintForDm"),
+    D_LL_PREFACTOR_DM(null, "dLLPrefactorDmForSlice"),
+    // .........................................................................
+    STATS_DB_FSB_FOR_SLICE("statsDB_FSB_ForSlice"),
+    OPTIMIZED_DB_FSB(null, "optimizedDB_FSB_"),
+    OPTIMIZED_RSQ_FOR_DB_FSB(null, "optimizedRSqForDB_FSB_"),
+    OPTIMIZED_SE_FOR_DB_FSB(null, "optimizedSEForDB_FSB_"),
+    OPTIMIZED_YINT_FOR_DB_FSB(null, "optimizedYintForDB_FSB_"),
+    STATS_LL_MEAN_CVSQS_FSB("statsLLMeanCvSqsFsBForSlice"),
+    STATS_LL_SLOPE_CVSQ_PLUS1_FSB("statsLLSlopeCvSqPlus1FsBForSlice"),
+    // .........................................................................
+    STATS_DB_FSS_FOR_SLICE("statsDB_FSS_ForSlice"),
+    OPTIMIZED_DB_FSS(null, "optimizedDB_FSS_"),
+    OPTIMIZED_RSQ_FOR_DB_FSS(null, "optimizedRSqForDB_FSS_"),
+    OPTIMIZED_SE_FOR_DB_FSS(null, "optimizedSEForDB_FSS_"),
+    OPTIMIZED_YINT_FOR_DB_FSS(null, "optimizedYintForDB_FSS_"),
+    STATS_LL_MEAN_CVSQS_FSS("statsLLMeanCvSqsF_SS_ForSlice"),
+    STATS_LL_SLOPE_CVSQ_PLUS1_FSS("statsLLSlopeCvSqPlus1F_SS_ForSlice"),
+    // .........................................................................
+    STATS_DB_FS_FOR_SLICE("statsDB_FS_ForSlice"),
+    OPTIMIZED_DB_FS(null, "optimizedDBFS"),
+    OPTIMIZED_RSQ_FOR_DB_FS(null, "optimizedRSqForDB_FS"),
+    OPTIMIZED_SE_FOR_DB_FS(null, "optimizedSEForDB_FS"),
+    OPTIMIZED_YINT_FOR_DB_FS(null, "optimizedYintForDB_FS"),
+    STATS_LL_MEAN_CVSQS_FS("statsLLMeanCvSqsFSForSlice"),
+    STATS_LL_SLOPE_CVSQ_PLUS1_FS("statsLLSlopeCvSqPlus1FSForSlice"),
+    // .........................................................................
+    FS_COUNTS_DAVG_DB("fsCountsDavg", "dFractalDimension"),
+    STATS_LL_LAMBDA_FAVG_COVER(
+        "statsLLisAlsoLAMBDAFromlambdaCvSqsForPixAtSIZEsFAvgCover"),
+    FS_LL_SLOPE_FAVG_COVER_DB("fsLLisLAMBDASlopeCvSqPlus1VsSIZEFAvgCover",
+                              "dFractalDimension"),
+    // .........................................................................
+    CFMAX_DB_F_SB("cFMaxCover", "dDB_F_SB"),
+    CFMAX_PREFACTOR_DB_F_SB("cFMaxCover", "dPrefactorDB_F_SB"),
+    CFMAX_DB_F_SS("cFMaxCover", "dDB_F_SS"),
+    CFMAX_PREFACTOR_DB_F_SS("cFMaxCover", "dPrefactorForDB_F_SS"),
+    CFMIN_DB_F_SB("cFMinCover", "dDB_F_SB"),
+    CFMIN_PREFACTOR_DB_F_SB("cFMinCover", "dPrefactorDB_F_SB"),
+    CFMIN_DB_F_SS("cFMinCover", "dDB_F_SS"),
+    CFMIN_PREFACTOR_DB_F_SS("cFMinCover", "dPrefactorForDB_F_SS"),
+    D_SLOPE_CVSQ_PLUS1_FMAX_SB(null, "dSlopeCvSqPlus1FMaxsB"),
+    D_SLOPE_CVSQ_PLUS1_FMAX_SS(null, "dSlopeCvSqPlus1FMaxss"),
+    D_SLOPE_CVSQ_PLUS1_FMIN_SB(null, "dSlopeCvSqPlus1FMinsB"),
+    D_SLOPE_CVSQ_PLUS1_FMIN_SS(null, "dSlopeCvSqPlus1FMinss"),
+    // .........................................................................
+    STATS_LL_MEAN_CVSQS_AT_SLICE("statsLLMeanCvSqsAtSlice"),
+    STATS_LL_SLOPES_CVSQ_PLUS1_AT_SLICE("statsLLSlopesCvSqPlus1VsSIZEAtSlice"),
+    STATS_LL_MEAN_CVSQ_OMEGA("statsLLMeanCVSqForOMEGAPixOrdeltaIAllGRID"),
+    // .........................................................................
+    STATS_PROB("statsLLMeanCvSqsUnweightedProbAtSlice"),
+    STATS_PD("statsLLMeanCvSqsWeightedPDAtSlice"),
+    STATS_PROB_OVER_BINS("statsLLMeanCvSqsOverBinsUnweightedProbAtSlice"),
+    STATS_PD_OVER_BINS("statsLLMeanCvSqsOverBinsWeightedPDAtSlice"),
+    STATS_PROB_OMEGA("statsLLMeanCvSqsUnweightedProbOMEGAAtSlice"),
+    STATS_PD_OMEGA("statsLLMeanCvSqsWeightedPDOMEGAAtSlice"),
+    STATS_PROB_OVER_BINS_OMEGA(
+        "statsLLMeanCvSqsOverBinsUnweightedProbOMEGAAtSlice"),
+    STATS_PD_OVER_BINS_OMEGA("statsLLMeanCvSqsOverBinsWeightedPDOMEGAAtSlice");
+
+    /**
+     * Makes a key for the mean of the named {@link
+     * fraclac.utilities.Statistics} field.
+     *
+     * @param psStatistics name of the Statistics field
+     */
+    EnumScalar(String psStatistics)
+    {
+      this(psStatistics,
+           "dMean");
+    }
+
+    EnumScalar(String psOuterField,
+               String psField)
+    {
+      sOuterField = psOuterField;
+      sField = psField;
+    }
+    /**
+     * Name of the field holding the value, or null.
+     */
+    public final String sOuterField;
+    /**
+     * Name of the value.
+     */
+    public final String sField;
+  }
+
+  /**
+   * Keys for the single arrays held by a snapshot. The names have the same
+   * meaning as for {@link EnumScalar}.
+   */
+  public enum EnumArray
+  {
+
+    FS_COUNTS_DAVG_SIZES("fsCountsDavg", "daSizes"),
+    CFMAX_F_SB_CVSQ("cFMaxCover", "daF_SB_CvSq"),
+    CFMAX_F_SB_SIZES("cFMaxCover", "daF_SB_SIZEs"),
+    CFMAX_F_SS_CVSQ("cFMaxCover", "daF_SS_CvSq"),
+    CFMAX_F_SS_SIZES("cFMaxCover", "daF_SS_SIZEs"),
+    CFMIN_F_SB_CVSQ("cFMinCover", "daF_SB_CvSq"),
+    CFMIN_F_SB_SIZES("cFMinCover", "daF_SB_SIZEs"),
+    CFMIN_F_SS_CVSQ("cFMinCover", "daF_SS_CvSq"),
+    CFMIN_F_SS_SIZES("cFMinCover", "daF_SS_SIZEs"),
+    LAMBDA_D_AT_GRID(null, "daLambdaDAtGrid");
+
+    EnumArray(String psOuterField,
+              String psField)
+    {
+      sOuterField = psOuterField;
+      sField = psField;
+    }
+    /**
+     * Name of the field holding the array, or null.
+     */
+    public final String sOuterField;
+    /**
+     * Name of the array.
+     */
+    public final String sField;
+  }
+
+  /**
+   * Keys for the per-GRID arrays of sizes held by a snapshot.
+   */
+  public enum EnumMatrix
+  {
+
+    SIZES_FOR_FSS("d2dSIZEsForF_SS_AtSIZEOnGRID"),
+    SIZES_FOR_FS("d2dSizesForFSAtSizeOnGRID"),
+    SIZES_FOR_FSB("d2dSIZEsForFsBAtSIZEOnGRID");
+
+    EnumMatrix(String psField)
+    {
+      sField = psField;
+    }
+    /**
+     * Name of the 2d array.
+     */
+    public final String sField;
+  }
+
+  // ===========================================================================
+  //                              FIELDS
+  // ===========================================================================
+  /**
+   * Every single value, indexed by {@link EnumScalar#ordinal()}. Values that
+   * the scan type does not produce are {@link Double#NaN}.
+   */
+  private final double[] daScalars;
+  /**
+   * Every single array, indexed by {@link EnumArray#ordinal()}; null where the
+   * scan type does not produce the array.
+   */
+  private final double[][] d2dArrays;
+  /**
+   * Every per-GRID array, indexed by {@link EnumMatrix#ordinal()}; null where
+   * the scan type does not produce the array.
+   */
+  private final double[][][] d3dMatrices;
+  /**
+   * The sizes used on each GRID; a copy of the scan's.
+   */
+  final Dimension[][] gridSizes;
+  /**
+   * The masses at each size on each GRID; a copy of the scan's.
+   */
+  final double[][][] d3dMasses;
+
+  // ===========================================================================
+  //                              CONSTRUCTORS
+  // ===========================================================================
+  /**
+   * Reads every value the {@link RotationStackAverager} uses from the passed
+   * DataProcessor. Only the values that the scan type in the DataProcessor's
+   * vars produces are read; the same conditions as in
+   * {@link RotationStackData} decide which ones.
+   *
+   * @param pDp DataProcessor holding the results for one slice
+   */
+  public RotationSliceSnapshot(final DataProcessor pDp)
+  {
+    double[] ldaScalars = new double[EnumScalar.values().length];
+    java.util.Arrays.fill(ldaScalars,
+                          Double.NaN);
+    double[][] ld2dArrays = new double[EnumArray.values().length][];
+    double[][][] ld3dMatrices = new double[EnumMatrix.values().length][][];
+
+    final boolean lbGray = pDp.scan.vars.isGray();
+    final boolean lbMvsD = pDp.scan.vars.isMvsD();
+    final boolean lbDlc = pDp.scan.vars.isDlc();
+    final boolean lbSlac = pDp.scan.vars.isSLAC();
+    // .........................................................................
+    ldaScalars[EnumScalar.D_MEAN_SIZES.ordinal()] = pDp.data.dMeanSIZEs;
+    ldaScalars[EnumScalar.I_MIN_SIZE.ordinal()] = pDp.data.iMinSIZE;
+    ldaScalars[EnumScalar.I_MAX_SIZE.ordinal()] = pDp.data.iMaxSIZE;
+    ldaScalars[EnumScalar.D_TOTAL_FOREGROUND_PIXELS.ordinal()]
+        = pDp.scan.vars.dTotalForegroundPixels;
+
+    if (!lbGray && !lbMvsD && !lbDlc) {
+      ldaScalars[EnumScalar.STATS_CV_FOR_COUNTS_OR_SUMS.ordinal()]
+          = pDp.data.statsCVForCountsOrSumsdeltaIAllGRIDs.dMean;
+      ldaScalars[EnumScalar.STATS_CV_FOR_OMEGA_COUNT.ordinal()]
+          = pDp.data.statsCVForOMEGACountAllGRIDs.dMean;
+    }
+    if (lbSlac || lbDlc) {
+      ldaScalars[EnumScalar.I_PIXELS_TO_SLIDE_HORIZONTALLY.ordinal()]
+          = pDp.scan.vars.iPixelsToSlideHorizontally;
+      ldaScalars[EnumScalar.I_PIXELS_TO_SLIDE_VERTICALLY.ordinal()]
+          = pDp.scan.vars.iPixelsToSlideVertically;
+    }
+    // .........................................................................
+    if (!lbSlac && !lbMvsD) {
+      ldaScalars[EnumScalar.FS_COUNTS_DAVG_DB.ordinal()]
+          = pDp.data.fsCountsDavg.dFractalDimension;
+      ldaScalars[EnumScalar.STATS_LL_LAMBDA_FAVG_COVER.ordinal()]
+          = pDp.data.statsLLisAlsoLAMBDAFromlambdaCvSqsForPixAtSIZEsFAvgCover.dMean;
+      ld2dArrays[EnumArray.FS_COUNTS_DAVG_SIZES.ordinal()]
+          = copy(pDp.data.fsCountsDavg.daSizes);
+    }
+    if (!lbMvsD) {
+      ldaScalars[EnumScalar.FS_LL_SLOPE_FAVG_COVER_DB.ordinal()]
+          = pDp.data.fsLLisLAMBDASlopeCvSqPlus1VsSIZEFAvgCover.dFractalDimension;
+    }
+    if (!lbMvsD && !lbDlc) {
+      ldaScalars[EnumScalar.STATS_LL_SLOPES_CVSQ_PLUS1_AT_SLICE.ordinal()]
+          = pDp.data.statsLLSlopesCvSqPlus1VsSIZEAtSlice.dMean;
+    }
+    // .........................................................................
+    if (!(lbMvsD && !lbGray)) {
+      ldaScalars[EnumScalar.STATS_DB_AT_SLICE.ordinal()]
+          = pDp.data.statsDBAtSlice.dMean;
+      ldaScalars[EnumScalar.OPTIMIZED_DB.ordinal()] = pDp.data.optimizedDB;
+      ldaScalars[EnumScalar.OPTIMIZED_RSQ_FOR_DB.ordinal()]
+          = pDp.data.optimizedRSqForDB;
+      ldaScalars[EnumScalar.OPTIMIZED_SE_FOR_DB.ordinal()]
+          = pDp.data.optimizedSEForDB;
+      ldaScalars[EnumScalar.OPTIMIZED_YINT_FOR_DB.ordinal()]
+          = pDp.data.optimizedYintForDB;
+      if (!lbDlc) {
+        ldaScalars[EnumScalar.D_LL_PREFACTOR_DB.ordinal()]
+            = pDp.data.dLLPrefactorDBForSlice;
+      }
+    }
+    // .........................................................................
+    ldaScalars[EnumScalar.STATS_DM_AT_SLICE.ordinal()]
+        = pDp.data.statsDmAtSlice.dMean;
+    ldaScalars[EnumScalar.OPTIMIZED_DM.ordinal()] = pDp.data.optimizedDm;
+    ldaScalars[EnumScalar.OPTIMIZED_RSQ_FOR_DM.ordinal()]
+        = pDp.data.optimizedRSqForDm;
+    ldaScalars[EnumScalar.OPTIMIZED_SE_FOR_DM.ordinal()]
+        = pDp.data.optimizedSEForDm;
+    ldaScalars[EnumScalar.OPTIMIZED_YINT_FOR_DM.ordinal()]
+        = pDp.data.optimizedYintForDm;
+    if (!lbDlc) {
+      ldaScalars[EnumScalar.D_LL_PREFACTOR_DM.ordinal()]
+          = pDp.data.dLLPrefactorDmForSlice;
+    }
+    ldaScalars[EnumScalar.STATS_LL_MEAN_CVSQS_AT_SLICE.ordinal()]
+        = pDp.data.statsLLMeanCvSqsAtSlice.dMean;
+    // .........................................................................
+    if (pDp.scan.vars.bDoSmoothed) {
+      ldaScalars[EnumScalar.STATS_DB_FSB_FOR_SLICE.ordinal()]
+          = pDp.data.statsDB_FSB_ForSlice.dMean;
+      ldaScalars[EnumScalar.OPTIMIZED_DB_FSB.ordinal()]
+          = pDp.data.optimizedDB_FSB_;
+      ldaScalars[EnumScalar.OPTIMIZED_RSQ_FOR_DB_FSB.ordinal()]
+          = pDp.data.optimizedRSqForDB_FSB_;
+      ldaScalars[EnumScalar.OPTIMIZED_SE_FOR_DB_FSB.ordinal()]
+          = pDp.data.optimizedSEForDB_FSB_;
+      ldaScalars[EnumScalar.OPTIMIZED_YINT_FOR_DB_FSB.ordinal()]
+          = pDp.data.optimizedYintForDB_FSB_;
+      ldaScalars[EnumScalar.STATS_LL_MEAN_CVSQS_FSB.ordinal()]
+          = pDp.data.statsLLMeanCvSqsFsBForSlice.dMean;
+      ldaScalars[EnumScalar.STATS_LL_SLOPE_CVSQ_PLUS1_FSB.ordinal()]
+          = pDp.data.statsLLSlopeCvSqPlus1FsBForSlice.dMean;
+      ld3dMatrices[EnumMatrix.SIZES_FOR_FSB.ordinal()]
+          = copy(pDp.data.d2dSIZEsForFsBAtSIZEOnGRID);
+      // .......................................................................
+      ldaScalars[EnumScalar.STATS_DB_FSS_FOR_SLICE.ordinal()]
+          = pDp.data.statsDB_FSS_ForSlice.dMean;
+      ldaScalars[EnumScalar.OPTIMIZED_DB_FSS.ordinal()]
+          = pDp.data.optimizedDB_FSS_;
+      ldaScalars[EnumScalar.OPTIMIZED_RSQ_FOR_DB_FSS.ordinal()]
+          = pDp.data.optimizedRSqForDB_FSS_;
+      ldaScalars[EnumScalar.OPTIMIZED_SE_FOR_DB_FSS.ordinal()]
+          = pDp.data.optimizedSEForDB_FSS_;
+      ldaScalars[EnumScalar.OPTIMIZED_YINT_FOR_DB_FSS.ordinal()]
+          = pDp.data.optimizedYintForDB_FSS_;
+      ldaScalars[EnumScalar.STATS_LL_MEAN_CVSQS_FSS.ordinal()]
+          = pDp.data.statsLLMeanCvSqsF_SS_ForSlice.dMean;
+      ldaScalars[EnumScalar.STATS_LL_SLOPE_CVSQ_PLUS1_FSS.ordinal()]
+          = pDp.data.statsLLSlopeCvSqPlus1F_SS_ForSlice.dMean;
+      ld3dMatrices[EnumMatrix.SIZES_FOR_FSS.ordinal()]
+          = copy(pDp.data.d2dSIZEsForF_SS_AtSIZEOnGRID);
+      // .......................................................................
+      ldaScalars[EnumScalar.STATS_DB_FS_FOR_SLICE.ordinal()]
+          = pDp.data.statsDB_FS_ForSlice.dMean;
+      ldaScalars[EnumScalar.OPTIMIZED_DB_FS.ordinal()]
+          = pDp.data.optimizedDBFS;
+      ldaScalars[EnumScalar.OPTIMIZED_RSQ_FOR_DB_FS.ordinal()]
+          = pDp.data.optimizedRSqForDB_FS;
+      ldaScalars[EnumScalar.OPTIMIZED_SE_FOR_DB_FS.ordinal()]
+          = pDp.data.optimizedSEForDB_FS;
+      ldaScalars[EnumScalar.OPTIMIZED_YINT_FOR_DB_FS.ordinal()]
+          = pDp.data.optimizedYintForDB_FS;
+      ldaScalars[EnumScalar.STATS_LL_MEAN_CVSQS_FS.ordinal()]
+          = pDp.data.statsLLMeanCvSqsFSForSlice.dMean;
+      ldaScalars[EnumScalar.STATS_LL_SLOPE_CVSQ_PLUS1_FS.ordinal()]
+          = pDp.data.statsLLSlopeCvSqPlus1FSForSlice.dMean;
+      ld3dMatrices[EnumMatrix.SIZES_FOR_FS.ordinal()]
+          = copy(pDp.data.d2dSizesForFSAtSizeOnGRID);
+    }
+    // .........................................................................
+    if (pDp.scan.vars.bDoFilterMinCover && pDp.scan.vars.bDoSmoothed) {
+      ldaScalars[EnumScalar.CFMAX_DB_F_SB.ordinal()]
+          = pDp.data.cFMaxCover.dDB_F_SB;
+      ldaScalars[EnumScalar.CFMAX_PREFACTOR_DB_F_SB.ordinal()]
+          = pDp.data.cFMaxCover.dPrefactorDB_F_SB;
+      ldaScalars[EnumScalar.CFMAX_DB_F_SS.ordinal()]
+          = pDp.data.cFMaxCover.dDB_F_SS;
+      ldaScalars[EnumScalar.CFMAX_PREFACTOR_DB_F_SS.ordinal()]
+          = pDp.data.cFMaxCover.dPrefactorForDB_F_SS;
+      ldaScalars[EnumScalar.CFMIN_DB_F_SB.ordinal()]
+          = pDp.data.cFMinCover.dDB_F_SB;
+      ldaScalars[EnumScalar.CFMIN_PREFACTOR_DB_F_SB.ordinal()]
+          = pDp.data.cFMinCover.dPrefactorDB_F_SB;
+      ldaScalars[EnumScalar.CFMIN_DB_F_SS.ordinal()]
+          = pDp.data.cFMinCover.dDB_F_SS;
+      ldaScalars[EnumScalar.CFMIN_PREFACTOR_DB_F_SS.ordinal()]
+          = pDp.data.cFMinCover.dPrefactorForDB_F_SS;
+      ldaScalars[EnumScalar.D_SLOPE_CVSQ_PLUS1_FMAX_SB.ordinal()]
+          = pDp.data.dSlopeCvSqPlus1FMaxsB;
+      ldaScalars[EnumScalar.D_SLOPE_CVSQ_PLUS1_FMAX_SS.ordinal()]
+          = pDp.data.dSlopeCvSqPlus1FMaxss;
+      ldaScalars[EnumScalar.D_SLOPE_CVSQ_PLUS1_FMIN_SB.ordinal()]
+          = pDp.data.dSlopeCvSqPlus1FMinsB;
+      ldaScalars[EnumScalar.D_SLOPE_CVSQ_PLUS1_FMIN_SS.ordinal()]
+          = pDp.data.dSlopeCvSqPlus1FMinss;
+      // .......................................................................
+      ld2dArrays[EnumArray.CFMAX_F_SB_CVSQ.ordinal()]
+          = copy(pDp.data.cFMaxCover.daF_SB_CvSq);
+      ld2dArrays[EnumArray.CFMAX_F_SB_SIZES.ordinal()]
+          = copy(pDp.data.cFMaxCover.daF_SB_SIZEs);
+      ld2dArrays[EnumArray.CFMAX_F_SS_CVSQ.ordinal()]
+          = copy(pDp.data.cFMaxCover.daF_SS_CvSq);
+      ld2dArrays[EnumArray.CFMAX_F_SS_SIZES.ordinal()]
+          = copy(pDp.data.cFMaxCover.daF_SS_SIZEs);
+      ld2dArrays[EnumArray.CFMIN_F_SB_CVSQ.ordinal()]
+          = copy(pDp.data.cFMinCover.daF_SB_CvSq);
+      ld2dArrays[EnumArray.CFMIN_F_SB_SIZES.ordinal()]
+          = copy(pDp.data.cFMinCover.daF_SB_SIZEs);
+      ld2dArrays[EnumArray.CFMIN_F_SS_CVSQ.ordinal()]
+          = copy(pDp.data.cFMinCover.daF_SS_CvSq);
+      ld2dArrays[EnumArray.CFMIN_F_SS_SIZES.ordinal()]
+          = copy(pDp.data.cFMinCover.daF_SS_SIZEs);
+    }
+    // ........................ LOAD EMPTY PLUS MASS INFO.......................
+    if (!lbMvsD && !lbGray && !lbDlc) {
+      ldaScalars[EnumScalar.STATS_LL_MEAN_CVSQ_OMEGA.ordinal()]
+          = pDp.data.statsLLMeanCVSqForOMEGAPixOrdeltaIAllGRID.dMean;
+    }
+    if (!lbGray && !lbDlc) {
+      ld2dArrays[EnumArray.LAMBDA_D_AT_GRID.ordinal()]
+          = copy(pDp.data.daLambdaDAtGrid);
+    }
+    if (pDp.scan.vars.iMaxFrequencies > 0) {
+      ldaScalars[EnumScalar.STATS_PROB.ordinal()]
+          = pDp.data.statsLLMeanCvSqsUnweightedProbAtSlice.dMean;
+      ldaScalars[EnumScalar.STATS_PD.ordinal()]
+          = pDp.data.statsLLMeanCvSqsWeightedPDAtSlice.dMean;
+      ldaScalars[EnumScalar.STATS_PROB_OVER_BINS.ordinal()]
+          = pDp.data.statsLLMeanCvSqsOverBinsUnweightedProbAtSlice.dMean;
+      ldaScalars[EnumScalar.STATS_PD_OVER_BINS.ordinal()]
+          = pDp.data.statsLLMeanCvSqsOverBinsWeightedPDAtSlice.dMean;
+      if (!lbGray) {
+        ldaScalars[EnumScalar.STATS_PROB_OMEGA.ordinal()]
+            = pDp.data.statsLLMeanCvSqsUnweightedProbOMEGAAtSlice.dMean;
+        ldaScalars[EnumScalar.STATS_PD_OMEGA.ordinal()]
+            = pDp.data.statsLLMeanCvSqsWeightedPDOMEGAAtSlice.dMean;
+        ldaScalars[EnumScalar.STATS_PROB_OVER_BINS_OMEGA.ordinal()]
+            = pDp.data.statsLLMeanCvSqsOverBinsUnweightedProbOMEGAAtSlice.dMean;
+        ldaScalars[EnumScalar.STATS_PD_OVER_BINS_OMEGA.ordinal()]
+            = pDp.data.statsLLMeanCvSqsOverBinsWeightedPDOMEGAAtSlice.dMean;
+      }
+    }
+    // .........................................................................
+    daScalars = ldaScalars;
+    d2dArrays = ld2dArrays;
+    d3dMatrices = ld3dMatrices;
+    gridSizes = copy(pDp.scan.gridSet.i2dSizes);
+    d3dMasses = copy(pDp.scan.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs);
+  }
+
+  /**
+   * Makes a snapshot directly from already read values. Used when slices are
+   * restored from storage rather than from a DataProcessor. The passed arrays
+   * are taken over, not copied, so the caller must not keep them.
+   *
+   * @param pdaScalars values indexed by {@link EnumScalar#ordinal()}
+   * @param pd2dArrays arrays indexed by {@link EnumArray#ordinal()}
+   * @param pd3dMatrices arrays indexed by {@link EnumMatrix#ordinal()}
+   * @param pGridSizes sizes on each GRID, or null
+   * @param pd3dMasses masses at each size on each GRID, or null
+   */
+  RotationSliceSnapshot(double[] pdaScalars,
+                        double[][] pd2dArrays,
+                        double[][][] pd3dMatrices,
+                        Dimension[][] pGridSizes,
+                        double[][][] pd3dMasses)
+  {
+    daScalars = pdaScalars;
+    d2dArrays = pd2dArrays;
+    d3dMatrices = pd3dMatrices;
+    gridSizes = pGridSizes;
+    d3dMasses = pd3dMasses;
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Returns the value for the passed key, or {@link Double#NaN} if the scan
+   * type did not produce it.
+   *
+   * @param pKey EnumScalar
+   * @return double value
+   */
+  public double get(EnumScalar pKey)
+  {
+    return daScalars[pKey.ordinal()];
+  }
+
+  /**
+   * Returns the read-only array for the passed key, or null if the scan type
+   * did not produce it.
+   *
+   * @param pKey EnumArray
+   * @return double [] that must not be modified
+   */
+  public double[] get(EnumArray pKey)
+  {
+    return d2dArrays[pKey.ordinal()];
+  }
+
+  /**
+   * Returns the read-only per-GRID array for the passed key, or null if the
+   * scan type did not produce it.
+   *
+   * @param pKey EnumMatrix
+   * @return double [][] that must not be modified
+   */
+  public double[][] get(EnumMatrix pKey)
+  {
+    return d3dMatrices[pKey.ordinal()];
+  }
+
+  /**
+   * Returns the {@link EnumScalar} matching the passed field names, or null if
+   * there is none.
+   *
+   * @param psOuterField name of the field holding the value, or null
+   * @param psField name of the value
+   * @return EnumScalar or null
+   */
+  public static EnumScalar scalarFor(String psOuterField,
+                                     String psField)
+  {
+    for (EnumScalar lKey : EnumScalar.values()) {
+      if (lKey.sField.equals(psField)
+          && sameName(lKey.sOuterField,
+                      psOuterField)) {
+        return lKey;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the {@link EnumArray} matching the passed field names, or null if
+   * there is none.
+   *
+   * @param psOuterField name of the field holding the array, or null
+   * @param psField name of the array
+   * @return EnumArray or null
+   */
+  public static EnumArray arrayFor(String psOuterField,
+                                   String psField)
+  {
+    for (EnumArray lKey : EnumArray.values()) {
+      if (lKey.sField.equals(psField)
+          && sameName(lKey.sOuterField,
+                      psOuterField)) {
+        return lKey;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the {@link EnumMatrix} matching the passed field name, or null if
+   * there is none.
+   *
+   * @param psField name of the 2d array
+   * @return EnumMatrix or null
+   */
+  public static EnumMatrix matrixFor(String psField)
+  {
+    for (EnumMatrix lKey : EnumMatrix.values()) {
+      if (lKey.sField.equals(psField)) {
+        return lKey;
+      }
+    }
+    return null;
+  }
+
+  // ===========================================================================
+  //                              BINARY FORM
+  // ===========================================================================
+  /**
+   * Returns the number of bytes {@link #writeTo} puts into a buffer.
+   *
+   * @return int number of bytes
+   */
+  public int byteSize()
+  {
+    int liBytes = 4 + 8 * daScalars.length;
+    liBytes += 4;
+    for (double[] lda : d2dArrays) {
+      liBytes += byteSize(lda);
+    }
+    liBytes += 4;
+    for (double[][] ld2d : d3dMatrices) {
+      liBytes += byteSize(ld2d);
+    }
+    liBytes += 4;
+    if (gridSizes != null) {
+      for (Dimension[] lda : gridSizes) {
+        liBytes += 4 + ((lda == null) ? 0 : 8 * lda.length);
+      }
+    }
+    liBytes += 4;
+    if (d3dMasses != null) {
+      for (double[][] ld2d : d3dMasses) {
+        liBytes += byteSize(ld2d);
+      }
+    }
+    return liBytes;
+  }
+
+  /**
+   * Writes the snapshot into the passed buffer, at its position, in the
+   * buffer's byte order. Each array is written as its length (-1 for null)
+   * followed by its values, and the number of keys of each kind is written
+   * first so that {@link #readFrom} can reject data written by a version with
+   * different keys.
+   *
+   * @param pBuffer ByteBuffer with at least {@link #byteSize()} bytes
+   * remaining
+   */
+  public void writeTo(ByteBuffer pBuffer)
+  {
+    pBuffer.putInt(daScalars.length);
+    for (double ld : daScalars) {
+      pBuffer.putDouble(ld);
+    }
+    pBuffer.putInt(d2dArrays.length);
+    for (double[] lda : d2dArrays) {
+      put(pBuffer,
+          lda);
+    }
+    pBuffer.putInt(d3dMatrices.length);
+    for (double[][] ld2d : d3dMatrices) {
+      put(pBuffer,
+          ld2d);
+    }
+    if (gridSizes == null) {
+      pBuffer.putInt(-1);
+    } else {
+      pBuffer.putInt(gridSizes.length);
+      for (Dimension[] lda : gridSizes) {
+        if (lda == null) {
+          pBuffer.putInt(-1);
+          continue;
+        }
+        pBuffer.putInt(lda.length);
+        for (Dimension lSize : lda) {
+          pBuffer.putInt(lSize.width);
+          pBuffer.putInt(lSize.height);
+        }
+      }
+    }
+    if (d3dMasses == null) {
+      pBuffer.putInt(-1);
+    } else {
+      pBuffer.putInt(d3dMasses.length);
+      for (double[][] ld2d : d3dMasses) {
+        put(pBuffer,
+            ld2d);
+      }
+    }
+  }
+
+  /**
+   * Reads a snapshot written by {@link #writeTo} from the passed buffer, at
+   * its position, in the buffer's byte order.
+   *
+   * @param pBuffer ByteBuffer
+   * @return RotationSliceSnapshot
+   * @throws IllegalArgumentException if the numbers of keys do not match this
+   * version
+   */
+  public static RotationSliceSnapshot readFrom(ByteBuffer pBuffer)
+  {
+    int liScalars = pBuffer.getInt();
+    if (liScalars != EnumScalar.values().length) {
+      throw new IllegalArgumentException("Snapshot has " + liScalars
+          + " values; expected " + EnumScalar.values().length);
+    }
+    double[] ldaScalars = new double[liScalars];
+    for (int i = 0; i < liScalars; i++) {
+      ldaScalars[i] = pBuffer.getDouble();
+    }
+    int liArrays = pBuffer.getInt();
+    if (liArrays != EnumArray.values().length) {
+      throw new IllegalArgumentException("Snapshot has " + liArrays
+          + " arrays; expected " + EnumArray.values().length);
+    }
+    double[][] ld2dArrays = new double[liArrays][];
+    for (int i = 0; i < liArrays; i++) {
+      ld2dArrays[i] = getArray(pBuffer);
+    }
+    int liMatrices = pBuffer.getInt();
+    if (liMatrices != EnumMatrix.values().length) {
+      throw new IllegalArgumentException("Snapshot has " + liMatrices
+          + " 2d arrays; expected " + EnumMatrix.values().length);
+    }
+    double[][][] ld3dMatrices = new double[liMatrices][][];
+    for (int i = 0; i < liMatrices; i++) {
+      ld3dMatrices[i] = getMatrix(pBuffer);
+    }
+    Dimension[][] lGridSizes = null;
+    int liGrids = pBuffer.getInt();
+    if (liGrids >= 0) {
+      lGridSizes = new Dimension[liGrids][];
+      for (int i = 0; i < liGrids; i++) {
+        int liSizes = pBuffer.getInt();
+        if (liSizes < 0) {
+          continue;
+        }
+        lGridSizes[i] = new Dimension[liSizes];
+        for (int j = 0; j < liSizes; j++) {
+          lGridSizes[i][j] = new Dimension(pBuffer.getInt(),
+                                           pBuffer.getInt());
+        }
+      }
+    }
+    double[][][] ld3dMasses = null;
+    int liMassGrids = pBuffer.getInt();
+    if (liMassGrids >= 0) {
+      ld3dMasses = new double[liMassGrids][][];
+      for (int i = 0; i < liMassGrids; i++) {
+        ld3dMasses[i] = getMatrix(pBuffer);
+      }
+    }
+    return new RotationSliceSnapshot(ldaScalars,
+                                     ld2dArrays,
+                                     ld3dMatrices,
+                                     lGridSizes,
+                                     ld3dMasses);
+  }
+
+  private static int byteSize(double[] pda)
+  {
+    return 4 + ((pda == null) ? 0 : 8 * pda.length);
+  }
+
+  private static int byteSize(double[][] pd2d)
+  {
+    int liBytes = 4;
+    if (pd2d != null) {
+      for (double[] lda : pd2d) {
+        liBytes += byteSize(lda);
+      }
+    }
+    return liBytes;
+  }
+
+  private static void put(ByteBuffer pBuffer,
+                          double[] pda)
+  {
+    if (pda == null) {
+      pBuffer.putInt(-1);
+      return;
+    }
+    pBuffer.putInt(pda.length);
+    pBuffer.asDoubleBuffer().put(pda);
+    pBuffer.position(pBuffer.position() + 8 * pda.length);
+  }
+
+  private static void put(ByteBuffer pBuffer,
+                          double[][] pd2d)
+  {
+    if (pd2d == null) {
+      pBuffer.putInt(-1);
+      return;
+    }
+    pBuffer.putInt(pd2d.length);
+    for (double[] lda : pd2d) {
+      put(pBuffer,
+          lda);
+    }
+  }
+
+  private static double[] getArray(ByteBuffer pBuffer)
+  {
+    int liLength = pBuffer.getInt();
+    if (liLength < 0) {
+      return null;
+    }
+    double[] lda = new double[liLength];
+    pBuffer.asDoubleBuffer().get(lda);
+    pBuffer.position(pBuffer.position() + 8 * liLength);
+    return lda;
+  }
+
+  private static double[][] getMatrix(ByteBuffer pBuffer)
+  {
+    int liLength = pBuffer.getInt();
+    if (liLength < 0) {
+      return null;
+    }
+    double[][] ld2d = new double[liLength][];
+    for (int i = 0; i < liLength; i++) {
+      ld2d[i] = getArray(pBuffer);
+    }
+    return ld2d;
+  }
+
+  /**
+   * Treats null and empty outer field names as the same.
+   */
+  private static boolean sameName(String psA,
+                                  String psB)
+  {
+    boolean lbANone = (psA == null) || psA.isEmpty();
+    boolean lbBNone = (psB == null) || psB.isEmpty();
+    return (lbANone && lbBNone) || (!lbANone && psA.equals(psB));
+  }
+
+  private static double[] copy(double[] pda)
+  {
+    return (pda == null) ? null : pda.clone();
+  }
+
+  /**
+   * Copies the outer array and every inner array.
+   */
+  private static double[][] copy(double[][] pd2d)
+  {
+    if (pd2d == null) {
+      return null;
+    }
+    double[][] ld2d = new double[pd2d.length][];
+    for (int i = 0; i < pd2d.length; i++) {
+      ld2d[i] = copy(pd2d[i]);
+    }
+    return ld2d;
+  }
+
+  private static double[][][] copy(double[][][] pd3d)
+  {
+    if (pd3d == null) {
+      return null;
+    }
+    double[][][] ld3d = new double[pd3d.length][][];
+    for (int i = 0; i < pd3d.length; i++) {
+      ld3d[i] = copy(pd3d[i]);
+    }
+    return ld3d;
+  }
+
+  private static Dimension[][] copy(Dimension[][] p2d)
+  {
+    if (p2d == null) {
+      return null;
+    }
+    Dimension[][] l2d = new Dimension[p2d.length][];
+    for (int i = 0; i < p2d.length; i++) {
+      if (p2d[i] != null) {
+        l2d[i] = new Dimension[p2d[i].length];
+        for (int j = 0; j < p2d[i].length; j++) {
+          l2d[i][j] = (p2d[i][j] == null) ? null : new Dimension(p2d[i][j]);
+        }
+      }
+    }
+    return l2d;
+  }
+}
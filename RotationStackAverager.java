@@ -5,9 +5,13 @@ import fraclac.utilities.Statistics;
 import fraclac.utilities.Symbols;
 import ij.IJ;
 import ij.gui.Roi;
-import static java.lang.System.out;
-import java.lang.reflect.Array;
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * FracLacProject
@@ -23,8 +27,8 @@ public class RotationStackAverager extends Symbols
 
   /**
    * Constructor that initializes the {@link #iNumSlices number of slices} and
-   * the local {@link #aRotationData array} of {@link RotationStackData} to an
-   * array holding the passed number of slices.
+   * the local {@link #aRotationData array} of {@link RotationSliceSnapshot}
+   * to an array holding the passed number of slices.
    *
    * @param piNumberOfSlices
    * @param pDp
@@ -35,28 +39,95 @@ public class RotationStackAverager extends Symbols
                                Roi pMotherRoi)
   {
     iNumSlices = piNumberOfSlices;
-    aRotationData = new RotationStackData[piNumberOfSlices];
+    aRotationData = new RotationSliceSnapshot[piNumberOfSlices];
     dataProcessor = new DataProcessor();
     dataProcessor.setUpToReceiveRotationData(pDp);
     roiMotherRoi = pMotherRoi;
 
   }
+
+  /**
+   * Constructor that also {@link #openCheckpoint opens} the passed checkpoint
+   * file, restoring any slices saved in it by an earlier run that stopped
+   * part way through; {@link #getFirstSliceToScan} then says which slice to
+   * scan next. If the file cannot be opened, the error is logged and the run
+   * is not checkpointed.
+   *
+   * @param piNumberOfSlices
+   * @param pDp
+   * @param pMotherRoi
+   * @param pfCheckpoint File for the checkpoint
+   */
+  public RotationStackAverager(int piNumberOfSlices,
+                               DataProcessor pDp,
+                               Roi pMotherRoi,
+                               File pfCheckpoint)
+  {
+    this(piNumberOfSlices,
+         pDp,
+         pMotherRoi);
+    try {
+      openCheckpoint(pfCheckpoint,
+                     SLICES_PER_CHECKPOINT_WRITE);
+    } catch (IOException ex) {
+      IJ.log(ex.toString() + getClass().getSimpleName()
+          + (ex.getStackTrace()[0].getLineNumber()));
+      checkpoint = null;
+    }
+  }
   int iNumSlices;
-  RotationStackData[] aRotationData;
+  RotationSliceSnapshot[] aRotationData;
   public DataProcessor dataProcessor;
   public Roi roiMotherRoi;
+  /**
+   * The per-slice values for which a {@link QuantileSketch} is kept, so that
+   * medians and percentiles over all rotations can be reported: the mean
+   * fractal dimension and the mean lacunarity at each slice.
+   */
+  public static final EnumSet<RotationSliceSnapshot.EnumScalar> eSetSketched
+      = EnumSet.of(RotationSliceSnapshot.EnumScalar.STATS_DB_AT_SLICE,
+                   RotationSliceSnapshot.EnumScalar.STATS_LL_MEAN_CVSQS_AT_SLICE);
+  /**
+   * A {@link QuantileSketch} for each value in {@link #eSetSketched}, updated
+   * as each slice is added.
+   */
+  final Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> mapQuantileSketches
+      = newQuantileSketches();
+  /**
+   * The sketches of each averager, keyed by the {@link #dataProcessor} its
+   * averages were {@link #calculateAverages calculated} into, so that a
+   * {@link SummaryStringDataMapper} made for those averages finds them. Held
+   * weakly, so they go when the DataProcessor does.
+   */
+  private static final Map<DataProcessor, Map<RotationSliceSnapshot.EnumScalar, QuantileSketch>> mapSketchesOfAverages
+      = Collections.synchronizedMap(
+          new WeakHashMap<DataProcessor, Map<RotationSliceSnapshot.EnumScalar, QuantileSketch>>());
+  /**
+   * Optional checkpoint file to which each slice is written as it is added;
+   * null if the run is not being checkpointed.
+   */
+  RotationCheckpoint checkpoint;
+  /**
+   * Slices collected by a checkpoint opened by the constructor before they
+   * are written. {@value}
+   */
+  public static final int SLICES_PER_CHECKPOINT_WRITE = 4;
+  /**
+   * 1-based number of the first slice not restored from a checkpoint.
+   */
+  private int iFirstSliceToScan = 1;
 
   //======================================================================
   //                            METHODS
   //======================================================================
   /**
-   * Makes an internal instance of a {@link RotationStackData} from the passed
+   * Makes an internal {@link RotationSliceSnapshot} from the passed
    * {@link DataProcessor}, then adds it to the class {@link #aRotationData
-   * array} of {@link RotationStackData} at an index calculated as
+   * array} of snapshots at an index calculated as
    * <code>(piSliceNumber - 1)</code>.
    *
-   * @param pDp DataProcessor used to create a RotationStackData that will be
-   * added to a class array of them
+   * @param pDp DataProcessor used to create a RotationSliceSnapshot that will
+   * be added to a class array of them
    * @param piSliceNumber int for the slice number; it is used to determine the
    * index at which to add the new data (i.e., the index is piSliceNumber - 1)
    */
@@ -73,14 +144,272 @@ public class RotationStackAverager extends Symbols
       return;
     }
     // ---------------------------------------------------------------------
-    // Make a local RotationStackData based on the passed DataProcessor.
-    // This constructor copies specific fields from the passed instance.
+    // Make a snapshot of the passed DataProcessor. The snapshot reads 
+    // only the values used for averaging, in one pass.
     // ---------------------------------------------------------------------
-    RotationStackData lRotationStackData = new RotationStackData(pDp);
+    RotationSliceSnapshot lSnapshot = new RotationSliceSnapshot(pDp);
+    storeSnapshot(lSnapshot,
+                  piSliceNumber);
+    // ----------------------------------------------------------------------
+    //  Write the slice to the checkpoint, if there is one. A failure stops
+    //  checkpointing but not the run.
+    // ----------------------------------------------------------------------
+    if (checkpoint != null) {
+      try {
+        checkpoint.add(lSnapshot,
+                       piSliceNumber);
+      } catch (IOException ex) {
+        IJ.log(ex.toString() + getClass().getSimpleName()
+            + (ex.getStackTrace()[0].getLineNumber()));
+        checkpoint = null;
+      }
+    }
+  }
+
+  /**
+   * Adds the passed snapshot to the class {@link #aRotationData array} at
+   * index <code>(piSliceNumber - 1)</code> and adds its values to the running
+   * quantile sketches.
+   * <p>
+   * A sketch cannot take a value out, so if the slice was already added, the
+   * sketches are made again from the slices now held instead of counting the
+   * slice twice. Sketches {@link #mergeQuantileSketches merged} from another
+   * averager are dropped when that happens, so merge after all slices are
+   * added.
+   */
+  void storeSnapshot(RotationSliceSnapshot pSnapshot,
+                     int piSliceNumber)
+  {
+    boolean lbReplaced = aRotationData[piSliceNumber - 1] != null;
     // ----------------------------------------------------------------------
     //  Always add the new instance to the class array.
     // ----------------------------------------------------------------------
-    aRotationData[piSliceNumber - 1] = lRotationStackData;
+    aRotationData[piSliceNumber - 1] = pSnapshot;
+    // ----------------------------------------------------------------------
+    //  Add the slice's values to the running quantile sketches.
+    // ----------------------------------------------------------------------
+    if (lbReplaced) {
+      rebuildQuantileSketches();
+      return;
+    }
+    for (RotationSliceSnapshot.EnumScalar lKey : eSetSketched) {
+      mapQuantileSketches.get(lKey).add(pSnapshot.get(lKey));
+    }
+  }
+
+  /**
+   * Makes the quantile sketches again from every slice held in the class
+   * {@link #aRotationData array}.
+   */
+  void rebuildQuantileSketches()
+  {
+    mapQuantileSketches.putAll(newQuantileSketches());
+    for (RotationSliceSnapshot lSnapshot : aRotationData) {
+      if (lSnapshot == null) {
+        continue;
+      }
+      for (RotationSliceSnapshot.EnumScalar lKey : eSetSketched) {
+        mapQuantileSketches.get(lKey).add(lSnapshot.get(lKey));
+      }
+    }
+  }
+
+  /**
+   * Sets the {@link RotationCheckpoint} to which each slice is written as it
+   * is {@link #addNewDataProcessor added}.
+   *
+   * @param pCheckpoint RotationCheckpoint for this stack, or null to stop
+   * checkpointing
+   */
+  public void setCheckpoint(RotationCheckpoint pCheckpoint)
+  {
+    checkpoint = pCheckpoint;
+  }
+
+  /**
+   * Writes any slices the {@link RotationCheckpoint} is still holding, forces
+   * it to disk and closes it. Called at the end of a run by
+   * {@link #calculateAverages}; a checkpoint is kept until the caller deletes
+   * it, so a run whose results were not saved can still be resumed.
+   */
+  public void closeCheckpoint()
+  {
+    if (checkpoint == null) {
+      return;
+    }
+    try {
+      checkpoint.close();
+    } catch (IOException ex) {
+      IJ.log(ex.toString() + getClass().getSimpleName()
+          + (ex.getStackTrace()[0].getLineNumber()));
+    }
+    checkpoint = null;
+  }
+
+  /**
+   * Restores the slices saved in the passed {@link RotationCheckpoint} and
+   * then keeps writing new slices to it. Slices restored are not written
+   * again.
+   *
+   * @param pCheckpoint RotationCheckpoint made for the same number of slices
+   * @return int 1-based number of the first slice not in the checkpoint, which
+   * is the slice to scan next; {@link #iNumSlices} + 1 if every slice was
+   * restored
+   * @throws IOException if the checkpoint cannot be read
+   */
+  public int resumeFromCheckpoint(RotationCheckpoint pCheckpoint)
+      throws IOException
+  {
+    RotationSliceSnapshot[] laSaved = pCheckpoint.readSlices();
+    int liNext = 0;
+    for (int i = 0; i < Math.min(laSaved.length,
+                                 iNumSlices); i++) {
+      if (laSaved[i] == null) {
+        break;
+      }
+      storeSnapshot(laSaved[i],
+                    i + 1);
+      liNext = i + 1;
+    }
+    checkpoint = pCheckpoint;
+    iFirstSliceToScan = liNext + 1;
+    return iFirstSliceToScan;
+  }
+
+  /**
+   * Opens the passed checkpoint file, or creates it, and
+   * {@link #resumeFromCheckpoint resumes} from it.
+   *
+   * @param pfCheckpoint File for the checkpoint
+   * @param piSlicesPerWrite number of slices to collect before writing
+   * @return int 1-based number of the slice to scan next
+   * @throws IOException if the checkpoint cannot be opened or read
+   */
+  public int openCheckpoint(File pfCheckpoint,
+                            int piSlicesPerWrite) throws IOException
+  {
+    return resumeFromCheckpoint(new RotationCheckpoint(pfCheckpoint,
+                                                       iNumSlices,
+                                                       piSlicesPerWrite));
+  }
+
+  /**
+   * @return int 1-based number of the first slice not restored from a
+   * checkpoint, the slice to scan next; 1 if none was restored
+   */
+  public int getFirstSliceToScan()
+  {
+    return iFirstSliceToScan;
+  }
+
+  /**
+   * Returns the {@link QuantileSketch} of the passed per-slice value, or null
+   * if it is not one of the {@link #eSetSketched sketched} values.
+   *
+   * @param pKey RotationSliceSnapshot.EnumScalar
+   * @return QuantileSketch holding every slice added so far
+   */
+  public QuantileSketch getQuantileSketch(RotationSliceSnapshot.EnumScalar pKey)
+  {
+    return mapQuantileSketches.get(pKey);
+  }
+
+  /**
+   * Returns the map of {@link QuantileSketch sketches} for all of the
+   * {@link #eSetSketched sketched} values, e.g., to pass to a
+   * {@link SummaryStringDataMapper}.
+   *
+   * @return Map of the sketches; not a copy
+   */
+  public Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> getQuantileSketches()
+  {
+    return mapQuantileSketches;
+  }
+
+  /**
+   * Returns the sketches of the averager whose averages were
+   * {@link #calculateAverages calculated} into the passed DataProcessor, or
+   * null if there is none.
+   *
+   * @param pDp DataProcessor that may hold the averages of an averager
+   * @return Map of the sketches, or null
+   */
+  public static Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> getQuantileSketchesOfAverages(
+      DataProcessor pDp)
+  {
+    return mapSketchesOfAverages.get(pDp);
+  }
+
+  /**
+   * Makes the {@link SummaryStringDataMapper} for the averaged results in the
+   * class {@link #dataProcessor}, with the medians and percentiles over all
+   * rotations from this averager's {@link #getQuantileSketches sketches}.
+   * Call after {@link #calculateAverages}.
+   *
+   * @param pbRotateToIndividualFile true if each rotation is written to its
+   * own file
+   * @param psRotationSummaryType String describing the rotation summary
+   * @return SummaryStringDataMapper whose
+   * {@link SummaryStringDataMapper#stringFormatter formatter} holds the
+   * summary strings
+   */
+  public SummaryStringDataMapper makeSummaryStringDataMapper(
+      boolean pbRotateToIndividualFile,
+      String psRotationSummaryType)
+  {
+    return new SummaryStringDataMapper(dataProcessor,
+                                       pbRotateToIndividualFile,
+                                       iNumSlices,
+                                       psRotationSummaryType,
+                                       roiMotherRoi,
+                                       mapQuantileSketches);
+  }
+
+  /**
+   * Merges the quantile sketches from another averager into this one's, so
+   * that slices added to separate averagers (e.g., by parallel workers) are
+   * reported together. The other averager is not changed.
+   *
+   * @param pOther RotationStackAverager holding other slices of the same stack
+   */
+  public void mergeQuantileSketches(RotationStackAverager pOther)
+  {
+    for (RotationSliceSnapshot.EnumScalar lKey : eSetSketched) {
+      mapQuantileSketches.get(lKey).merge(pOther.mapQuantileSketches.get(lKey));
+    }
+  }
+
+  /**
+   * Writes the values of every slice added so far to a
+   * {@link RotationColumnStore} file, one column per value, so that they can
+   * be analyzed without re-running the scans.
+   *
+   * @param pFile File to write; replaced if it exists
+   * @return boolean true if the file was written
+   */
+  public boolean writeSliceColumns(File pFile)
+  {
+    try {
+      RotationColumnStore.write(pFile,
+                                aRotationData);
+      return true;
+    } catch (IOException ex) {
+      IJ.log(ex.toString() + getClass().getSimpleName()
+          + (ex.getStackTrace()[0].getLineNumber()));
+      return false;
+    }
+  }
+
+  static Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> newQuantileSketches()
+  {
+    Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> lMap
+        = new EnumMap<RotationSliceSnapshot.EnumScalar, QuantileSketch>(
+            RotationSliceSnapshot.EnumScalar.class);
+    for (RotationSliceSnapshot.EnumScalar lKey : eSetSketched) {
+      lMap.put(lKey,
+               new QuantileSketch());
+    }
+    return lMap;
   }
 
   /**
@@ -164,24 +493,31 @@ public class RotationStackAverager extends Symbols
   /**
    *
    * Returns a {@link fraclac.utilities.Statistics} object created from all of
-   * the entries for the passed field, currently in the array of data objects
-   * ({@link #aRotationData}).
+   * the entries for the passed field, currently in the array of slice
+   * snapshots ({@link #aRotationData}).
    *
    * Assumes that the aRotationData array has been filled previously using
    * {@link #addNewDataProcessor}, to the number of slices in the passed int
    * (<code>liNumSlices</code>).
+   * <p>
+   * The names are looked up in the keys of {@link RotationSliceSnapshot}. For a
+   * single value, the value from each slice goes into the returned
+   * Statistics, and the slice holding the largest value is remembered in
+   * {@link #iSliceHoldingMax}. For an array, the mean of each slice's array
+   * goes into the returned Statistics and the arrays are stored in
+   * {@link #d2dElongated}. For a per-GRID array, the arrays from all slices
+   * are joined into {@link #d2dElongated} and null is returned.
    *
-   * @param liNumSlices
-   * @param psNameOfOuterFieldContainingField
+   * @param psNameOfOuterFieldContainingField the field holding the field to be
+   * tallied (e.g., a {@link Statistics}, {@link FracStats}, or
+   * {@link Calculator} field), or null
    * @param psFieldName the field to be tallied, entered as a string (e.g.,
-   * "field" not "someClass.field"); the string must be the name of a public
-   * double field in the {@link RotationStackData} class. It can also be in one
-   * of the {@link Statistics}, {@link FracStats}, or {@link Calculator} class
-   * instances within that class.
-   * @param pbisVars true if the field is within the {@link Vars} in the
-   * RotationStackData class; false if it is in the outer class or within the
-   * {@link DataProcessor} object.
-   * @param pbIsDouble true if the field is a double; false for an int
+   * "field" not "someClass.field")
+   * @param pbisVars true if the field is within the {@link Vars}; false if it
+   * is within the {@link DataProcessor} data object; kept for callers, as the
+   * snapshot keys are unique across both
+   * @param pdIsDouble {@link #DOUBLE} if the field is a double; {@link #INT}
+   * for an int
    * @return Statistics instance
    */
   Statistics getStatsForAllOccurrencesOfField(
@@ -194,194 +530,66 @@ public class RotationStackAverager extends Symbols
     // Make the array that will be used to store data and 
     // be the basis for the Statistics instance returned.
     // -------------------------------------------------------------
-    boolean lbIsDouble = (pdIsDouble == DOUBLE);
     daMeanOfArrayOrValueForThisField = new double[iNumSlices];
-    String lsErrorID = "Error string not initialized yet for " + psFieldName
-        + " class=" + psNameOfOuterFieldContainingField;
-    Field lFieldForSecondStringMeaningDesiredFinalField = null;
-    double ldFieldValue = INF;
-
-    Statistics lStatistics;
-    Calculator lCalculator;
-    FracStats lFracStats;
-    // -----------------------------------------------------------------
-    for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
-      // ---------------------------------------------------------------
-      // Go through the array of RotationStackData instances
-      // and store in an array the value of the passed field from each.
-      //----------------------------------------------------------------
-      // Get the data instance for this slice.
-      RotationStackData lRotationDataForThisSlice = aRotationData[liSlice];
-      Class lClassEitherVarsOrData = pbisVars
-          ? lRotationDataForThisSlice.Dp.scan.vars.getClass()
-          : lRotationDataForThisSlice.Dp.data.getClass();
-      // --------------------------------------------------------------
-      // Get the value in the right form, convert it to a double, 
-      // and store it in a local array or else do the array function.
-      // --------------------------------------------------------------
-      // We need the object from which to extract the value.
-      // The object is the class that directly holds the field.
-      // --------------------------------------------------------------
-      Object lVarsOrDataObjectToGetValueOfFieldFrom = pbisVars
-          ? lRotationDataForThisSlice.Dp.scan.vars
-          : lRotationDataForThisSlice.Dp.data;
-      if (psFieldName.contains("scan.")) {
-        lVarsOrDataObjectToGetValueOfFieldFrom
-            = lRotationDataForThisSlice.Dp.scan;
-      }
-      try {
-        // ------------------------------------------------------------------
-        // If there is a first string, get the object that it specifies,
-        // for this slice, because the field is in that object.
-        // ------------------------------------------------------------------
-        if ((!(psNameOfOuterFieldContainingField == null))
-            && (!psNameOfOuterFieldContainingField.isEmpty())) {
-          // --------------------------------------------------------------
-          Field lOuterFieldContainingField = lClassEitherVarsOrData.getField(
-              psNameOfOuterFieldContainingField);
-          String lsTypeOfContainingField
-              = lOuterFieldContainingField.getType().getCanonicalName();
-          // -----------------------------------------------------------------
-          // To cast the object, we need to know its type.
-          // Assume the possible types for the first string 
-          // are Statistics, FracStats, or Calculator.
-          // -----------------------------------------------------------------
-          if ((lsTypeOfContainingField.contains("Statistics"))) {
-            // --------------------------------------------------------------
-            lVarsOrDataObjectToGetValueOfFieldFrom
-                = lStatistics
-                = (Statistics) lOuterFieldContainingField.get(
-                    lVarsOrDataObjectToGetValueOfFieldFrom);
-            lFieldForSecondStringMeaningDesiredFinalField
-                = lStatistics.getClass().getField(psFieldName);
-          } else if ((lsTypeOfContainingField.contains("FracStats"))) {
-            // --------------------------------------------------------------
-            lVarsOrDataObjectToGetValueOfFieldFrom
-                = lFracStats
-                = (FracStats) lOuterFieldContainingField.get(
-                    lVarsOrDataObjectToGetValueOfFieldFrom);
-            lFieldForSecondStringMeaningDesiredFinalField
-                = lFracStats.getClass().getField(psFieldName);
-          } else {
-            // ---------------------------------------------------------------
-            lVarsOrDataObjectToGetValueOfFieldFrom
-                = lCalculator
-                = (Calculator) lOuterFieldContainingField.get(
-                    lVarsOrDataObjectToGetValueOfFieldFrom);
-            lFieldForSecondStringMeaningDesiredFinalField
-                = lCalculator.getClass().getField(psFieldName);
-          }
-        }// ----------------------------------------------------------------
-        // But if there is no first string, get the field directly.
-        // ----------------------------------------------------------------
-        else {
-          lFieldForSecondStringMeaningDesiredFinalField
-              = lClassEitherVarsOrData.getField(psFieldName);
+    // -------------------------------------------------------------
+    // Single values.
+    // -------------------------------------------------------------
+    RotationSliceSnapshot.EnumScalar lScalar
+        = RotationSliceSnapshot.scalarFor(psNameOfOuterFieldContainingField,
+                                          psFieldName);
+    if (lScalar != null) {
+      for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
+        double ldFieldValue = aRotationData[liSlice].get(lScalar);
+        if ((liSlice == 0)) {
+          iSliceHoldingMax = 0;
+          dLastMax = ldFieldValue;
         }
-        // =================================================================
-        // Now we have the field, so we get its value.
-        // =================================================================
-        // -----------------------------------------------------------------
-        // If the field is an array, then run the array method.
-        // -----------------------------------------------------------------
-        if (lFieldForSecondStringMeaningDesiredFinalField.getType().isArray()) {
-          // ---------------------------------------------------------------
-          // Assume it is either a [][][], [][], or [] array.
-          // ---------------------------------------------------------------
-          Class lClassOfField = lFieldForSecondStringMeaningDesiredFinalField.
-              getType();
-          if (lClassOfField.toString().contains("[[[")) {
-            double[][][] ld3d
-                = (double[][][]) (lFieldForSecondStringMeaningDesiredFinalField.
-                get(lVarsOrDataObjectToGetValueOfFieldFrom));
-            ldFieldValue = sizeOfLongestArray(ld3d);
-            store3dArraysInLocald3dArray(liSlice,
-                                         ld3d);
-
-          }
-          // ---------------------------------------------------------------
-          // If it is a 2d array, load each slice's 2d array into  
-          // a class level 3d array.
-          // ---------------------------------------------------------------
-          if (lClassOfField.toString().contains("[[")) {
-
-            double[][] ld2d
-                = (double[][]) (lFieldForSecondStringMeaningDesiredFinalField.
-                get(lVarsOrDataObjectToGetValueOfFieldFrom));
-
-            ldFieldValue = meanOfArray(ld2d);
-
-            store2dArraysInLocald3dArray(liSlice,
-                                         ld2d);
-            // ---------------------------------------------------
-            // When the last array is added, write a new array
-            // consisting of the 2d arrays in sequence. We now
-            // have a 3d array and a long 2d array.
-            // ---------------------------------------------------
-            if (liSlice == (iNumSlices - 1)) {
-              d2dElongated = convert3dArrayTo2dArray(d3d);
-              return null;
-            }
-
-          } // -----------------------------------------------------------------
-          // If it is a [] array
-          // -----------------------------------------------------------------
-          else {
-            if ((liSlice == 0)) {
-              d2dElongated = new double[iNumSlices][];
-            }
-            d2dElongated[liSlice]
-                = (double[]) (lFieldForSecondStringMeaningDesiredFinalField.
-                get(lVarsOrDataObjectToGetValueOfFieldFrom));
-            // Get the mean of the array and store it in the main data processor. 
-            ldFieldValue = meanOfArray(d2dElongated[liSlice]);
-            if ((liSlice == iNumSlices)) {
-              // on the last slice, rewrite the array
-              convert2DArrayToDoubleArray(d2dElongated);
-            }
-          }
-        } else//
-        // -----------------------------------------------------------------
-        // If it is not an array, cast it to a double. Assume it is int or
-        // double if not array.
-        // -----------------------------------------------------------------
-        {
-          ldFieldValue = lbIsDouble
-              ? lFieldForSecondStringMeaningDesiredFinalField.getDouble(
-                  lVarsOrDataObjectToGetValueOfFieldFrom)
-              : (double) (lFieldForSecondStringMeaningDesiredFinalField.getInt(
-                  lVarsOrDataObjectToGetValueOfFieldFrom));
-
-          if ((liSlice == 0)) {
-            dLastMax = ldFieldValue;
-          }
-
-          if (ldFieldValue > dLastMax) {
-            iSliceHoldingMax = liSlice;
-            dLastMax = ldFieldValue;
-          }
+        if (ldFieldValue > dLastMax) {
+          iSliceHoldingMax = liSlice;
+          dLastMax = ldFieldValue;
         }
-        // -----------------------------------------------------------------
-      } catch (NoSuchFieldException ex) {
-        IJ.log(getClass().getSimpleName() + ": " + ex.getMessage() + lsErrorID
-            + new Exception().getStackTrace()[0].getLineNumber());
-      } catch (SecurityException ex) {
-        IJ.log(getClass().getSimpleName() + ": " + ex.getMessage() + lsErrorID
-            + new Exception().getStackTrace()[0].getLineNumber());
-      } catch (IllegalArgumentException ex) {
-        IJ.log(getClass().getSimpleName() + ": " + lsErrorID + ex.getMessage()
-            + new Exception().getStackTrace()[0].getLineNumber());
-      } catch (IllegalAccessException ex) {
-        IJ.log(ex.getMessage() + getClass().getSimpleName() + ": " + lsErrorID
-            + new Exception().getStackTrace()[0].getLineNumber());
+        daMeanOfArrayOrValueForThisField[liSlice] = ldFieldValue;
       }
-      // -------------------------------------------------------------------
-      daMeanOfArrayOrValueForThisField[liSlice] = ldFieldValue;
+      return new Statistics(daMeanOfArrayOrValueForThisField,
+                            psNameOfOuterFieldContainingField);
     }
-    // ---------------------------------------------------------------------
-    // Return a new Statistics instance based on the array
-    // of all values this field holds from all of the rotation data.
-    // ---------------------------------------------------------------------
+    // -------------------------------------------------------------
+    // Single arrays: the mean of each slice's array is tallied.
+    // -------------------------------------------------------------
+    RotationSliceSnapshot.EnumArray lArray
+        = RotationSliceSnapshot.arrayFor(psNameOfOuterFieldContainingField,
+                                         psFieldName);
+    if (lArray != null) {
+      d2dElongated = new double[iNumSlices][];
+      for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
+        d2dElongated[liSlice] = aRotationData[liSlice].get(lArray);
+        daMeanOfArrayOrValueForThisField[liSlice]
+            = meanOfArray(d2dElongated[liSlice]);
+      }
+      return new Statistics(daMeanOfArrayOrValueForThisField,
+                            psNameOfOuterFieldContainingField);
+    }
+    // -------------------------------------------------------------
+    // Per-GRID arrays: load each slice's 2d array into a class
+    // level 3d array, then write a new array consisting of the 
+    // 2d arrays in sequence.
+    // -------------------------------------------------------------
+    RotationSliceSnapshot.EnumMatrix lMatrix
+        = RotationSliceSnapshot.matrixFor(psFieldName);
+    if (lMatrix != null) {
+      for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
+        store2dArraysInLocald3dArray(liSlice,
+                                     aRotationData[liSlice].get(lMatrix));
+      }
+      d2dElongated = convert3dArrayTo2dArray(d3d);
+      return null;
+    }
+    // -------------------------------------------------------------
+    // Not a field the snapshots hold.
+    // -------------------------------------------------------------
+    IJ.log(getClass().getSimpleName() + ": No slice data for " + psFieldName
+        + " class=" + psNameOfOuterFieldContainingField + " "
+        + new Exception().getStackTrace()[0].getLineNumber());
     return new Statistics(daMeanOfArrayOrValueForThisField,
                           psNameOfOuterFieldContainingField);
   }
@@ -476,71 +684,6 @@ public class RotationStackAverager extends Symbols
 
   }
 
-  /**
-   *
-   * @param args
-   */
-  public static void main(String... args)
-  {
-//    int[] x = {5};
-//    Array.newInstance(componentType,                      x);
-    int rows = 3, cols = 2;
-    Object matrix = Array.newInstance(int.class,
-                                      rows,
-                                      cols);
-    Object row0 = Array.get(matrix,
-                            0);
-    Object row2 = Array.get(matrix,
-                            2);
-
-    Array.setInt(row0,
-
-                 0,
-                 1);
-    Array.setInt(row0,
-
-                 1,
-                 2);
-    //Array.setInt(row2,
-    //0,
-    //3);
-    Array.setInt(row2,
-
-                 1,
-                 4);
-
-    for (int row = 0;
-        row < rows;
-        row++) {
-      for (int col = 0; col < cols; col++) {
-        out.format("matrix[%d][%d] = %d%n",
-                   row,
-                   col,
-                   ((int[][]) matrix)[row][col]);
-      }
-    }
-  }
-
-  /**
-   *
-   * @param pClass
-   * @param psFieldName
-   * @return
-   */
-  boolean hasField(Class pClass,
-                   String psFieldName)
-  {
-    // Iterate through all fields in class and 
-    // and find the passed Field.
-    Field[] fields = pClass.getDeclaredFields();
-
-    for (Field field : fields) {
-      if (field.getName() == psFieldName) {
-        return true;
-      }
-    }
-    return false;
-  }
   /**
    *
    */
@@ -563,6 +706,13 @@ public class RotationStackAverager extends Symbols
   public void calculateAverages()
   {
     //---------------------------------------------------------------
+    // Every slice has been added; write and close the checkpoint.
+    //---------------------------------------------------------------
+    closeCheckpoint();
+    // So the summary of these averages reports the quantiles as well.
+    mapSketchesOfAverages.put(dataProcessor,
+                              mapQuantileSketches);
+    //---------------------------------------------------------------
     // Calculate averages and load them into the class data processor.
     //---------------------------------------------------------------
     Statistics lStats = getStatsForAllOccurrencesOfField("dMeanSIZEs");
@@ -680,11 +830,10 @@ public class RotationStackAverager extends Symbols
   {
     double[][][][] li4d = new double[iNumSlices][][][];
     for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
-      int liLength = aRotationData[liSlice].//
-          Dp.scan.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs.length;
+      int liLength = aRotationData[liSlice].d3dMasses.length;
       li4d[liSlice] = new double[liLength][][];
       System.arraycopy(
-          aRotationData[liSlice].Dp.scan.d3dPixOrDeltaIInSampleAtSIZEsOnGRIDs,
+          aRotationData[liSlice].d3dMasses,
           srcPos,
           li4d[liSlice],
           destPos,
@@ -701,9 +850,9 @@ public class RotationStackAverager extends Symbols
   {
     int[][][] li3d = new int[iNumSlices][][];
     for (int liSlice = 0; liSlice < iNumSlices; liSlice++) {
-      int length = aRotationData[liSlice].Dp.scan.gridSet.i2dSizes.length;
+      int length = aRotationData[liSlice].gridSizes.length;
       li3d[liSlice] = new int[length][];
-      System.arraycopy(aRotationData[liSlice].Dp.scan.gridSet.i2dSizes,
+      System.arraycopy(aRotationData[liSlice].gridSizes,
                        srcPos,
                        li3d[liSlice],
                        destPos,
@@ -825,13 +974,17 @@ public class RotationStackAverager extends Symbols
     Statistics lStats = getStatsForAllOccurrencesOfField(
         "optimizedRSqForDB_FSS_");
     dataProcessor.data.optimizedDB_FSS_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedDB_FSS_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_DB_FSS);
     dataProcessor.data.optimizedRSqForDB_FSS_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedRSqForDB_FSS_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_RSQ_FOR_DB_FSS);
     dataProcessor.data.optimizedSEForDB_FSS_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedSEForDB_FSS_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_SE_FOR_DB_FSS);
     dataProcessor.data.optimizedYintForDB_FSS_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedYintForDB_FSS_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_YINT_FOR_DB_FSS);
     // =========================================================================    
     dataProcessor.data.statsLLMeanCvSqsF_SS_ForSlice
         = getStatsForAllOccurrencesOfField(
@@ -876,13 +1029,17 @@ public class RotationStackAverager extends Symbols
     // =========================================================================
     getStatsForAllOccurrencesOfField("optimizedRSqForDB_FS");
     dataProcessor.data.optimizedDBFS
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedDBFS;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_DB_FS);
     dataProcessor.data.optimizedRSqForDB_FS
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedRSqForDB_FS;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_RSQ_FOR_DB_FS);
     dataProcessor.data.optimizedSEForDB_FS
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedSEForDB_FS;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_SE_FOR_DB_FS);
     dataProcessor.data.optimizedYintForDB_FS
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedYintForDB_FS;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_YINT_FOR_DB_FS);
     // =========================================================================    
     dataProcessor.data.statsLLMeanCvSqsFSForSlice
         = getStatsForAllOccurrencesOfField(
@@ -912,13 +1069,17 @@ public class RotationStackAverager extends Symbols
     // -----------------------------------------------------------------------
     getStatsForAllOccurrencesOfField("optimizedRSqForDB_FSB_");
     dataProcessor.data.optimizedDB_FSB_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedDB_FSB_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_DB_FSB);
     dataProcessor.data.optimizedRSqForDB_FSB_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedRSqForDB_FSB_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_RSQ_FOR_DB_FSB);
     dataProcessor.data.optimizedSEForDB_FSB_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedSEForDB_FSB_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_SE_FOR_DB_FSB);
     dataProcessor.data.optimizedYintForDB_FSB_
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedYintForDB_FSB_;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_YINT_FOR_DB_FSB);
     // =========================================================================
     // The number of sizes to report for the average of average covers.
     // -------------------------------------------------------------------------
@@ -961,13 +1122,17 @@ public class RotationStackAverager extends Symbols
     // =========================================================================
     getStatsForAllOccurrencesOfField("optimizedRSqForDm");
     dataProcessor.data.optimizedDm
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedDm;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_DM);
     dataProcessor.data.optimizedRSqForDm
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedRSqForDm;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_RSQ_FOR_DM);
     dataProcessor.data.optimizedSEForDm
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedSEForDm;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_SE_FOR_DM);
     dataProcessor.data.optimizedYintForDm
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedYintForDm;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_YINT_FOR_DM);
     // =========================================================================
     dataProcessor.data.statsLLMeanCvSqsAtSlice
         = getStatsForAllOccurrencesOfField(
@@ -1040,13 +1205,17 @@ public class RotationStackAverager extends Symbols
     // .........................................................................
     getStatsForAllOccurrencesOfField("optimizedRSqForDB");
     dataProcessor.data.optimizedRSqForDB
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedRSqForDB;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_RSQ_FOR_DB);
     dataProcessor.data.optimizedDB
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedDB;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_DB);
     dataProcessor.data.optimizedSEForDB
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedSEForDB;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_SE_FOR_DB);
     dataProcessor.data.optimizedYintForDB
-        = aRotationData[iSliceHoldingMax].Dp.data.optimizedYintForDB;
+        = aRotationData[iSliceHoldingMax].get(
+            RotationSliceSnapshot.EnumScalar.OPTIMIZED_YINT_FOR_DB);
     // .....................................................................
     // Load the prefactor lacunarity value; lacunarity for other types
     // of lacunarity calculations are loaded in the lac map; this one is
@@ -13,7 +13,10 @@ import java.awt.Dimension;
  * @version Revision $Id: SummaryStringDataMapper.java 54 2013-02-03 08:45:01Z
  * audrey $
  *
+ * @deprecated The {@link RotationStackAverager} reads each slice into a
+ * {@link RotationSliceSnapshot} instead; nothing uses this class.
  */
+@Deprecated
 public class RotationStackData extends AllGsHeadings
 {
 
@@ -4,6 +4,7 @@ import fraclac.analyzer.DataProcessor;
 import fraclac.analyzer.GridSet;
 import fraclac.analyzer.Vars;
 import fraclac.utilities.Utils;
+import java.io.IOException;
 
 /**
  * Methods for creating StringBuilders from processed data from<!-->
@@ -257,6 +258,45 @@ public class SLACWriter extends DataStringFormatter
                                                       DataProcessor pDP,
                                                       int[][] pi2dSIZEs,
                                                       double[][] pd2dEpsilons)
+  {
+    StringBuilder lsbData = new StringBuilder(
+        (pi2dSIZEs[0].length + 12) * 16 * 10);
+    try {
+      writeSLacDataFileAndMakeHeadings(lsbData,
+                                       psTitle,
+                                       pVars,
+                                       pDP,
+                                       pi2dSIZEs,
+                                       pd2dEpsilons);
+    } catch (IOException ex) {
+      // A StringBuilder does not throw.
+    }
+    return lsbData.toString();
+  }
+
+  /**
+   * Writes the same text as {@link #getSLacDataFileAndMakeHeadings} to the
+   * passed Appendable, one row at a time, from the
+   * {@link #loadColumnsAndHeadingsForSLacDataFile columns}, so neither the
+   * whole string nor copies of the derived columns are made. Also updates the
+   * {@link #sbTabbedSLacDataFileHeadings headings}.
+   *
+   * @param pOut Appendable written to, e.g., a Writer on the data file
+   * @param psTitle String of information about the image
+   * @param pVars Vars with fields prefilled
+   * @param pDP DataProcessor with data arrays prefilled
+   * @param pi2dSIZEs int [][] of SIZEs; only the array at index 0 is accessed
+   * @param pd2dEpsilons double [][] of SIZE/larger dimension of image; only the
+   * array at index 0 is accessed
+   * @throws IOException if pOut throws it
+   */
+  public static void writeSLacDataFileAndMakeHeadings(Appendable pOut,
+                                                      String psTitle,
+                                                      Vars pVars,
+                                                      DataProcessor pDP,
+                                                      int[][] pi2dSIZEs,
+                                                      double[][] pd2dEpsilons)
+      throws IOException
   {
     String[] lsaInformationPhrasesFor1stColumn
         = informationPhrasesFor1stColumnInSLacDataFile(
@@ -264,66 +304,51 @@ public class SLACWriter extends DataStringFormatter
             pDP,
             pVars);
 
-    double[][] ld2d16DataTypesToPrintIn2ndAndGreaterColumns
-        = loadDataArraysAndHeadingsForSLacDataFile(
-            pVars,
-            pi2dSIZEs[0],
-            pd2dEpsilons[0],
-            pDP);
+    SLacColumns lColumns = loadColumnsAndHeadingsForSLacDataFile(
+        pVars,
+        pi2dSIZEs[0],
+        pd2dEpsilons[0],
+        pDP);
 
     // .........................................................................
     // .....Print a newline then rows so that several aligned columns
     // .....appear. The first is a column of the phrases in the
     // .....string array of info or when all of those phrases are
     // .....printed, just a blank space and a TAB. The rest are from
-    // dataTypes.
-    // .....Each row aligns with the row beneath, each column containing its
-    // own
-    // .....array's corresponding elements (e.g., if the array is
-    // {1,2,3}{a,b,c}
-    // .....the printout is a column of 1,2,3 beside a column of a,b,c).
+    // .....the columns, each holding its own array's corresponding elements.
     // .........................................................................
     int liGreaterOfInfoPhrasesOrSIZEsLength
         = Math.max(pi2dSIZEs[0].length,
                    lsaInformationPhrasesFor1stColumn.length);
 
-    String lsData = "";
-
     for (int liRowIndex = 0;
         liRowIndex < liGreaterOfInfoPhrasesOrSIZEsLength; liRowIndex++) //
     {
-
-      lsData = lsData
-          + newline
-          + (liRowIndex < lsaInformationPhrasesFor1stColumn.length
-              ? lsaInformationPhrasesFor1stColumn[liRowIndex]
-              + TAB
-              : "" + TAB)
-          + (liRowIndex < pi2dSIZEs[0].length
-              ? stringOfNthElementsFromAllArrays(
-                  ld2d16DataTypesToPrintIn2ndAndGreaterColumns,
-                  liRowIndex) : " ");
+      pOut.append(newline);
+      if (liRowIndex < lsaInformationPhrasesFor1stColumn.length) {
+        pOut.append(lsaInformationPhrasesFor1stColumn[liRowIndex]);
+      }
+      pOut.append(TAB);
+      if (liRowIndex < pi2dSIZEs[0].length) {
+        lColumns.appendRow(pOut,
+                           liRowIndex);
+      } else {
+        pOut.append(" ");
+      }
     }
 
-    // .....Below the columns made from the datatypes array,
-    // .....print a row of the slope of each column against
-    // .....the epsilons array. They will line up because
-    // .....the datatypes array includes a copy of the epsilons array
-    // .....at the start, so that it makes the first column
-    // .....which lies beneath the info column and will have a slope of 1
-    lsData = lsData
-        + newline
-        + "lim [ln Data Type vs ln "
-        + epsilon
-        + "]"
-        + newline
-        + " = Slopes (from power regressions)"
-        + TAB
-        + stringOfSlopeYVsEpsilonForYArrays(
-            ld2d16DataTypesToPrintIn2ndAndGreaterColumns,
-            pd2dEpsilons);
-
-    return lsData;
+    // .....Below the columns, print a row of the slope of each column
+    // .....against the epsilons array. They line up because the first
+    // .....columns are the SIZEs and epsilons.
+    pOut.append(newline)
+        .append("lim [ln Data Type vs ln ")
+        .append(epsilon)
+        .append("]")
+        .append(newline)
+        .append(" = Slopes (from power regressions)")
+        .append(TAB);
+    lColumns.appendSlopes(pOut,
+                          pd2dEpsilons[0]);
   }
 
   /**
@@ -381,6 +406,9 @@ public class SLACWriter extends DataStringFormatter
    * under each heading. The heading string has one extra column at the
    * beginning, so the headings align with the arrays using DataIndex =
    * HeadingsIndex+1.
+   * <p>
+   * Copies the derived columns; {@link #loadColumnsAndHeadingsForSLacDataFile}
+   * does not.
    *
    * @param pVars
    * @param piaSIZEs
@@ -395,109 +423,102 @@ public class SLACWriter extends DataStringFormatter
       double[] pdaEpsilons,
       DataProcessor pDP)
   {
+    return loadColumnsAndHeadingsForSLacDataFile(pVars,
+                                                 piaSIZEs,
+                                                 pdaEpsilons,
+                                                 pDP).toArrays();
+  }
 
-    sbTabbedSLacDataFileHeadings = new StringBuilder(17);
-    sbTabbedSLacDataFileHeadings.append(FILE_INFO_STRING).append(
-        " & Summary Information");
-
-    double[][] ld2d16DataTypesToPrintIn2ndAndGreaterColumns = new double[16][];
+  /**
+   * Loads headings into a local variable for headings for sliding box
+   * lacunarity data files and returns the 16 {@link SLacColumns columns} to
+   * print under them. The heading string has one extra column at the
+   * beginning, so the headings align with the columns using ColumnIndex =
+   * HeadingsIndex+1.
+   * <p>
+   * The columns refer to the arrays in the passed DataProcessor; the
+   * (&sigma;/&mu;)&sup2; + 1 columns add 1 as they are written. The
+   * {@value fraclac.writers.AllGsHeadings#PROB} and
+   * {@value fraclac.writers.AllGsHeadings#PD} columns have no data unless
+   * {@link fraclac.analyzer.Vars#iMaxFrequencies bins} is &gt; 0.
+   *
+   * @param pVars
+   * @param piaSIZEs
+   * @param pdaEpsilons
+   * @param pDP DataProcessor
+   *
+   * @return SLacColumns
+   */
+  static SLacColumns loadColumnsAndHeadingsForSLacDataFile(
+      Vars pVars,
+      int[] piaSIZEs,
+      double[] pdaEpsilons,
+      DataProcessor pDP)
+  {
+    boolean lbBins = pVars.iMaxFrequencies > 0;
 
-    int liDataIndex = 0;
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = intToDoubleArray(piaSIZEs);
-    sbTabbedSLacDataFileHeadings.append(TAB).append(ELEMENT_SIZE_SIZE);// 1
+    SLacColumns lColumns = new SLacColumns()
+        .add(ELEMENT_SIZE_SIZE,
+             intToDoubleArray(piaSIZEs))// 1
+        .add(epsilon + " = " + ELEMENT_SIZE_SIZE + "/Larger Image Dimension",
+             pdaEpsilons)// 2
+        .add("Mean (" + mu + ") Foreground pixels per box (" + FMASS + ")",
+             pDP.data.d2dMeanPixOrDeltaIPerSampleAtSIZEOnGRID[0])// 3
+        .add("Standard deviation (" + sigma + ")" + FMASS,
+             pDP.data.d2dStdDevPixOrdeltaIPerSampleAtSIZEOnGRID[0])// 4
+        .add(COUNT,
+             pDP.data.d2dCountAtSIZEOnGRID[0])// 5
+        .addPlus1(sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS,
+                  pDP.data.d2dlambdaCvSqPixOrDeltaIPerSampleAtSIZEOnGRID[0])// 6
+        .add(mu + FMASS + FOR + LLOMEGA,
+             pDP.data.d2dMeanOMEGAPixOrdeltaIAtSIZEOnGRID[0])// 7
+        .add(sigma + FMASS + FOR + LLOMEGA,
+             pDP.data.d2dStdDevsForOMEGAPixOrdeltaIAtSIZEOnGRID[0])// 8
+        .add("Total count of samples for " + LLOMEGA,
+             pDP.data.d2dOMEGACountAtSIZEOnGRID[0])// 9
+        .addPlus1(sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS + FOR + LLOMEGA,
+                  pDP.data.d2dlambdaCvSqsOMEGAPixOrdeltaIAtSIZEOnGRID[0])// 10
+        .add(mu + FMASS + FOR + PROB,
+             lbBins ? pDP.data.d2dMeanOfUnweightedProbAtSIZEOnGRID[0]
+                 : null)// 11
+        .add(sigma + FMASS + FOR + PROB,
+             lbBins ? pDP.data.d2dStdDevOfUnweightedProbAtSIZEOnGRID[0]
+                 : null)// 12
+        .addPlus1(sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS + FOR + OVER_BINS
+            + FOR + PROB,
+                  lbBins
+                      ? pDP.data.d2dlambdaUnweightedProbCvSqOverBinsAtSIZEOnGRID[0]
+                      : null)// 13
+        .add(mu + FMASS + FOR + PD + FOR + LLOMEGA,
+             lbBins ? pDP.data.d2dMeanWeightedPDForOMEGAAtSIZEOnGRID[0]
+                 : null)// 14
+        .add(sigma + FMASS + FOR + LLOMEGA + FOR + PD,
+             lbBins ? pDP.data.d2dStdDevWeightedPDForOMEGAAtSIZEOnGRID[0]
+                 : null)// 15
+        .addPlus1(OVER_BINS + " + 1" + FOR + PD + FOR + LLOMEGA,
+                  lbBins
+                      ? pDP.data.d2dlambdaOMEGAWeightedPDCvSqOverBinsAtSIZEOnGRID[0]
+                      : null);// 16
 
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++] = pdaEpsilons;
+    sbTabbedSLacDataFileHeadings = new StringBuilder(
+        HeadingCache.slacDataFileHeadings(lColumns));
 
-    sbTabbedSLacDataFileHeadings.append(TAB).append(epsilon + " = ")
-        .append(ELEMENT_SIZE_SIZE).append("/Larger Image Dimension");
-    // 2
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dMeanPixOrDeltaIPerSampleAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB + "Mean (" + mu
-        + ") Foreground pixels per box (" + FMASS + ")");
-    // 3
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dStdDevPixOrdeltaIPerSampleAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB + "Standard deviation ("
-        + sigma + ")" + FMASS);
-    // 4
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dCountAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB).append(COUNT);
-    // 5
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = plus1(pDP.data.d2dlambdaCvSqPixOrDeltaIPerSampleAtSIZEOnGRID[0]);
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS);
-    // 6
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dMeanOMEGAPixOrdeltaIAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        mu + FMASS + FOR + LLOMEGA);
-    // 7
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dStdDevsForOMEGAPixOrdeltaIAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sigma + FMASS + FOR + LLOMEGA);
-    // 8
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = pDP.data.d2dOMEGACountAtSIZEOnGRID[0];
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        "Total count of samples for " + LLOMEGA);
-    // 9
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = plus1(pDP.data.d2dlambdaCvSqsOMEGAPixOrdeltaIAtSIZEOnGRID[0]);
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS + FOR + LLOMEGA);
-    // 10
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? pDP.data.d2dMeanOfUnweightedProbAtSIZEOnGRID[0]
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB)
-        .append(mu + FMASS + FOR + PROB);
-    // 11
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? pDP.data.d2dStdDevOfUnweightedProbAtSIZEOnGRID[0]
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sigma + FMASS + FOR + PROB);
-    // 12
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? plus1(pDP.data.d2dlambdaUnweightedProbCvSqOverBinsAtSIZEOnGRID[0])
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sSIGMA_OVER_MU_SQ_PLUS_1 + FOR + FMASS + FOR + OVER_BINS + FOR
-        + PROB);
-    // 13
-    //
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? pDP.data.d2dMeanWeightedPDForOMEGAAtSIZEOnGRID[0]
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        mu + FMASS + FOR + PD + FOR + LLOMEGA);
-    // 14
-    //
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? pDP.data.d2dStdDevWeightedPDForOMEGAAtSIZEOnGRID[0]
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        sigma + FMASS + FOR + LLOMEGA + FOR + PD);
-    // 15
-    ld2d16DataTypesToPrintIn2ndAndGreaterColumns[liDataIndex++]
-        = (pVars.iMaxFrequencies > 0)
-            ? plus1(pDP.data.d2dlambdaOMEGAWeightedPDCvSqOverBinsAtSIZEOnGRID[0])
-            : null;
-    sbTabbedSLacDataFileHeadings.append(TAB).append(
-        OVER_BINS + " + 1" + FOR + PD + FOR + LLOMEGA);
-    // 16
+    return lColumns;
+  }
 
-    return ld2d16DataTypesToPrintIn2ndAndGreaterColumns;
+  /**
+   * Makes the {@link #sbTabbedSLacDataFileHeadings headings} for the passed
+   * columns, which are {@link HeadingCache cached} because they do not
+   * change.
+   *
+   * @param pColumns SLacColumns
+   * @return String of tabbed headings
+   */
+  static String renderSLacDataFileHeadings(SLacColumns pColumns)
+  {
+    StringBuilder lsbHeadings = new StringBuilder(17 * 40);
+    lsbHeadings.append(FILE_INFO_STRING).append(" & Summary Information");
+    return pColumns.appendHeadings(lsbHeadings).toString();
   }
 
 }
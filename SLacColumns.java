@@ -0,0 +1,263 @@
+package fraclac.writers;
+
+import fraclac.analyzer.Calculator;
+import static fraclac.utilities.Symbols.*;
+import static fraclac.utilities.Utils.fnum;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The data columns of a sliding box lacunarity data file, each a heading and
+ * the data array it shows, in the order they are written.
+ * <p>
+ * A column refers to its data array rather than copying it. A derived column,
+ * such as (&sigma;/&mu;)&sup2; + 1, keeps the array it is derived from and an
+ * amount to add, which is added to each value as it is written. A column
+ * whose data were not gathered, e.g., probability columns when there are no
+ * bins, has no array and is written as
+ * {@value fraclac.utilities.Symbols#NC} without further work.
+ * <p>
+ * {@link #appendRow} and {@link #appendSlopes} write the same text as
+ * {@link WriteUtilities#stringOfNthElementsFromAllArrays} and
+ * {@link WriteUtilities#stringOfSlopeYVsEpsilonForYArrays} do for the
+ * equivalent double [][], one row at a time. Passed a
+ * {@link TabbedRecordEncoder}, they write numbers straight into its bytes
+ * instead, rounded as fnum rounds them.
+ *
+ * @see SLACWriter#loadColumnsAndHeadingsForSLacDataFile
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class SLacColumns
+{
+
+  /**
+   * One column of the data file.
+   */
+  public static final class Column
+  {
+
+    final String sHeading;
+    final double[] daValues;
+    final double dAdded;
+
+    Column(String psHeading,
+           double[] pdaValues,
+           double pdAdded)
+    {
+      sHeading = psHeading;
+      daValues = pdaValues;
+      dAdded = pdAdded;
+    }
+
+    /**
+     * @return String heading of the column
+     */
+    public String getHeading()
+    {
+      return sHeading;
+    }
+
+    /**
+     * @return boolean true if the column has data
+     */
+    public boolean isPresent()
+    {
+      return daValues != null;
+    }
+
+    /**
+     * @return int number of values, 0 if there are no data
+     */
+    public int length()
+    {
+      return (daValues == null) ? 0 : daValues.length;
+    }
+
+    /**
+     * Returns the value shown at the passed row, with any derived amount
+     * added.
+     *
+     * @param piRow int row
+     * @return double value
+     */
+    public double value(int piRow)
+    {
+      return daValues[piRow] + dAdded;
+    }
+  }
+
+  private final ArrayList<Column> alColumns = new ArrayList<Column>(16);
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Adds a column showing the passed array as it is.
+   *
+   * @param psHeading heading of the column
+   * @param pdaValues values, or null if they were not gathered
+   * @return this, so calls can be chained
+   */
+  public SLacColumns add(String psHeading,
+                         double[] pdaValues)
+  {
+    alColumns.add(new Column(psHeading,
+                             pdaValues,
+                             0d));
+    return this;
+  }
+
+  /**
+   * Adds a column showing each value in the passed array plus 1, e.g.,
+   * (&sigma;/&mu;)&sup2; + 1 from (&sigma;/&mu;)&sup2;, without copying the
+   * array.
+   *
+   * @param psHeading heading of the column
+   * @param pdaValues values before 1 is added, or null if they were not
+   * gathered
+   * @return this, so calls can be chained
+   */
+  public SLacColumns addPlus1(String psHeading,
+                              double[] pdaValues)
+  {
+    alColumns.add(new Column(psHeading,
+                             pdaValues,
+                             1d));
+    return this;
+  }
+
+  /**
+   * @return int number of columns
+   */
+  public int size()
+  {
+    return alColumns.size();
+  }
+
+  /**
+   * @param piColumn int index of a column
+   * @return Column at the index
+   */
+  public Column get(int piColumn)
+  {
+    return alColumns.get(piColumn);
+  }
+
+  /**
+   * Appends the headings of every column, each after a TAB.
+   *
+   * @param psb StringBuilder appended to
+   * @return the passed StringBuilder
+   */
+  public StringBuilder appendHeadings(StringBuilder psb)
+  {
+    for (Column lColumn : alColumns) {
+      psb.append(TAB).append(lColumn.sHeading);
+    }
+    return psb;
+  }
+
+  /**
+   * Appends the formatted value of every column at the passed row, each
+   * followed by a TAB, or {@value fraclac.utilities.Symbols#NC} for a column
+   * with no data or too few values.
+   *
+   * @param pOut Appendable appended to
+   * @param piRow int row
+   * @throws IOException if pOut throws it
+   */
+  public void appendRow(Appendable pOut,
+                        int piRow) throws IOException
+  {
+    if (pOut instanceof TabbedRecordEncoder) {
+      encodeRow((TabbedRecordEncoder) pOut,
+                piRow);
+      return;
+    }
+    for (Column lColumn : alColumns) {
+      if (piRow >= lColumn.length()) {
+        pOut.append(NC).append(TAB);
+      } else {
+        pOut.append(fnum(lColumn.value(piRow))).append(TAB);
+      }
+    }
+  }
+
+  /**
+   * Writes the same row as {@link #appendRow} to the passed encoder, with no
+   * String made for any value.
+   *
+   * @param pEncoder encoder written to
+   * @param piRow int row
+   * @throws IOException if pEncoder throws it
+   */
+  public void encodeRow(TabbedRecordEncoder pEncoder,
+                        int piRow) throws IOException
+  {
+    for (Column lColumn : alColumns) {
+      if (piRow >= lColumn.length()) {
+        pEncoder.nc();
+      } else {
+        pEncoder.field(lColumn.value(piRow));
+      }
+    }
+  }
+
+  /**
+   * Appends the {@link Calculator#slopeOfPowerRegression log vs log slope} of
+   * every column against the passed &epsilon;s, each followed by a TAB, or
+   * {@value fraclac.utilities.Symbols#NC} for a column with no data. The
+   * slopes are found together by
+   * {@link Calculator#slopesOfPowerRegressions}, which takes the logs of the
+   * &epsilon;s once for every column.
+   *
+   * @param pOut Appendable appended to
+   * @param pdaEpsilons double [] of &epsilon;s
+   * @throws IOException if pOut throws it
+   */
+  public void appendSlopes(Appendable pOut,
+                           double[] pdaEpsilons) throws IOException
+  {
+    double[] ldaSlopes = Calculator.slopesOfPowerRegressions(
+        toArrays(),
+        pdaEpsilons,
+        pdaEpsilons.length);
+    for (int c = 0; c < ldaSlopes.length; c++) {
+      if (!alColumns.get(c).isPresent()) {
+        pOut.append(NC + TAB);
+        continue;
+      }
+      double ldSlope = ldaSlopes[c];
+      if (pOut instanceof TabbedRecordEncoder) {
+        ((TabbedRecordEncoder) pOut).field(ldSlope);
+      } else {
+        pOut.append(fnum(ldSlope)).append(TAB);
+      }
+    }
+  }
+
+  /**
+   * Returns the columns as arrays, in the form
+   * {@link WriteUtilities#stringOfNthElementsFromAllArrays} takes. Derived
+   * columns are copied with their amount added; columns with no data are
+   * null.
+   *
+   * @return double [column][row]
+   */
+  public double[][] toArrays()
+  {
+    double[][] ld2d = new double[alColumns.size()][];
+    for (int c = 0; c < ld2d.length; c++) {
+      Column lColumn = alColumns.get(c);
+      if (!lColumn.isPresent() || (lColumn.dAdded == 0d)) {
+        ld2d[c] = lColumn.daValues;
+      } else {
+        ld2d[c] = new double[lColumn.length()];
+        for (int i = 0; i < ld2d[c].length; i++) {
+          ld2d[c][i] = lColumn.value(i);
+        }
+      }
+    }
+    return ld2d;
+  }
+}
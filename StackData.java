@@ -142,10 +142,9 @@
 package fraclac.writers;
 
 import fraclac.analyzer.DataProcessor;
-import fraclac.utilities.ArrayMethods;
-import fraclac.utilities.Statistics;
 import fraclac.utilities.Symbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * FracLacProject
@@ -155,7 +154,43 @@ import java.util.ArrayList;
 public class StackData extends Symbols
 {
 
-  public ArrayList<Slice> slices;
+  /**
+   * @deprecated filled only by the deprecated {@link #loadSlice(int,
+   * DataProcessor)}; use the per-slice arrays filled by
+   * {@link #loadSlice(DataProcessor)}
+   */
+  @Deprecated
+  public ArrayList<Slice> slices = new ArrayList<Slice>();
+  /**
+   * Indices of the statistics in each block of {@link #summarize} results and
+   * of the per-slice arrays filled by {@link #loadSlice(DataProcessor)}.
+   */
+  public static final int MIN = 0, MAX = 1, MEAN = 2, STD_DEV = 3,
+      NUM_STATS = 4;
+  /**
+   * Number of slices loaded by {@link #loadSlice(DataProcessor)}.
+   */
+  int iNumSlicesLoaded;
+  /**
+   * Fractal dimension at each GRID, one row per slice loaded by
+   * {@link #loadSlice(DataProcessor)}.
+   */
+  double[][] d2dDimensionsAtGRID = new double[8][];
+  /**
+   * Lacunarity at each GRID, one row per slice.
+   */
+  double[][] d2dLacunarityAtGRID = new double[8][];
+  /**
+   * {@link #NUM_STATS} statistics of the dimensions for each slice, slice after
+   * slice: the statistics of slice <i>s</i> start at
+   * <code>s * NUM_STATS</code>.
+   */
+  double[] daDimensionStats = new double[8 * NUM_STATS];
+  /**
+   * Statistics of the lacunarity for each slice, laid out as for
+   * {@link #daDimensionStats}.
+   */
+  double[] daLacunarityStats = new double[8 * NUM_STATS];
 
   public class Slice
   {
@@ -180,34 +215,251 @@ public class StackData extends Symbols
     }
     int iGrids;
     double[] values;
+    /**
+     * Min, max, mean and standard deviation, found together in one pass the
+     * first time any of them is asked for.
+     */
+    private double[] daStats;
+
+    private double[] stats()
+    {
+      if (daStats == null) {
+        daStats = new double[NUM_STATS];
+        summarize(values,
+                  daStats,
+                  0);
+      }
+      return daStats;
+    }
 
     public double min()
     {
-      return ArrayMethods.minArray(values);
+      return stats()[MIN];
     }
 
     public double max()
     {
-      return ArrayMethods.maxInArray(values);
+      return stats()[MAX];
     }
 
     public double stdDev()
     {
-      Statistics lStatistics = new Statistics(values,
-                                              "");
-      return lStatistics.dStdDev;
+      return stats()[STD_DEV];
     }
 
     public double mean()
     {
-      return ArrayMethods.meanOfArray(values);
+      return stats()[MEAN];
+    }
+
+    /**
+     * Returns a {@link QuantileSketch} of the values, made the first time it
+     * is asked for. Sketches from several slices can be
+     * {@link QuantileSketch#merge merged} to find quantiles over a whole stack.
+     *
+     * @return QuantileSketch; not a copy
+     */
+    public QuantileSketch sketch()
+    {
+      if (quantileSketch == null) {
+        quantileSketch = new QuantileSketch();
+        quantileSketch.addAll(values);
+      }
+      return quantileSketch;
     }
+    private QuantileSketch quantileSketch;
 
+    public double median()
+    {
+      return sketch().median();
+    }
+
+    /**
+     * @param pdPercentile double from 0 to 100
+     * @return approximate value at the passed percentile
+     */
+    public double percentile(double pdPercentile)
+    {
+      return sketch().percentile(pdPercentile);
+    }
+
+  }
+
+  /**
+   * Returns a {@link QuantileSketch} of the fractal dimensions from every GRID
+   * of every slice loaded.
+   *
+   * @return new QuantileSketch
+   */
+  public QuantileSketch sketchOfDimensions()
+  {
+    return sketchOf(d2dDimensionsAtGRID);
+  }
+
+  /**
+   * Returns a {@link QuantileSketch} of the lacunarities from every GRID of
+   * every slice loaded.
+   *
+   * @return new QuantileSketch
+   */
+  public QuantileSketch sketchOfLacunarity()
+  {
+    return sketchOf(d2dLacunarityAtGRID);
+  }
+
+  /**
+   * Returns a {@link QuantileSketch} of the values in the rows of the passed
+   * per-slice array that belong to slices loaded.
+   */
+  private QuantileSketch sketchOf(double[][] pd2dAtGRID)
+  {
+    QuantileSketch lSketch = new QuantileSketch();
+    for (int s = 0; s < iNumSlicesLoaded; s++) {
+      lSketch.addAll(pd2dAtGRID[s]);
+    }
+    return lSketch;
+  }
+
+  /**
+   * Finds the minimum, maximum, mean and sample standard deviation of the
+   * passed values in a single pass, and puts them into the passed array at
+   * the passed offset, in the order {@link #MIN}, {@link #MAX}, {@link #MEAN},
+   * {@link #STD_DEV}.
+   * <p>
+   * The sums are taken about the first value rather than about zero, which
+   * keeps the one-pass variance accurate when the values are large relative
+   * to their spread, as fractal dimensions are. The loop has no branches
+   * besides the min and max, so the JIT can unroll it.
+   * <p>
+   * NaN values are skipped when finding the minimum and maximum, as the
+   * comparisons in ArrayMethods.minArray and maxInArray skip them, so those
+   * are NaN only if every value is; as with ArrayMethods.meanOfArray, any NaN
+   * makes the mean and standard deviation NaN.
+   *
+   * @param pdaValues double [] of values; if empty, every statistic is NaN
+   * @param pdaOut double [] to fill
+   * @param piOffset int index in pdaOut of the minimum
+   */
+  public static void summarize(double[] pdaValues,
+                               double[] pdaOut,
+                               int piOffset)
+  {
+    int liN = (pdaValues == null) ? 0 : pdaValues.length;
+    if (liN == 0) {
+      for (int i = 0; i < NUM_STATS; i++) {
+        pdaOut[piOffset + i] = Double.NaN;
+      }
+      return;
+    }
+    double ldShift = pdaValues[0];
+    double ldMin = Double.POSITIVE_INFINITY, ldMax = Double.NEGATIVE_INFINITY;
+    double ldSum = 0, ldSumSq = 0;
+    for (int i = 0; i < liN; i++) {
+      double ld = pdaValues[i];
+      // Comparisons are false for NaN, so it is never taken as either.
+      if (ld < ldMin) {
+        ldMin = ld;
+      }
+      if (ld > ldMax) {
+        ldMax = ld;
+      }
+      double ldD = ld - ldShift;
+      ldSum += ldD;
+      ldSumSq += ldD * ldD;
+    }
+    boolean lbAllNaN = ldMin > ldMax;
+    pdaOut[piOffset + MIN] = lbAllNaN ? Double.NaN : ldMin;
+    pdaOut[piOffset + MAX] = lbAllNaN ? Double.NaN : ldMax;
+    pdaOut[piOffset + MEAN] = ldShift + ldSum / liN;
+    pdaOut[piOffset + STD_DEV] = (liN < 2)
+        ? (Double.isNaN(ldSum) ? Double.NaN : 0)
+        : Math.sqrt(Math.max(0,
+                             (ldSumSq - ldSum * ldSum / liN) / (liN - 1)));
+  }
+
+  /**
+   * Loads the dimension and lacunarity at every GRID of one slice at once,
+   * into the primitive per-slice arrays rather than a {@link Slice} object,
+   * and finds the statistics of each in one pass.
+   *
+   * @param pDP DataProcessor holding the results for the slice
+   * @return int 0-based index of the slice loaded
+   */
+  public int loadSlice(DataProcessor pDP)
+  {
+    int liSlice = iNumSlicesLoaded;
+    if (liSlice == d2dDimensionsAtGRID.length) {
+      int liLength = liSlice * 2;
+      d2dDimensionsAtGRID = Arrays.copyOf(d2dDimensionsAtGRID,
+                                          liLength);
+      d2dLacunarityAtGRID = Arrays.copyOf(d2dLacunarityAtGRID,
+                                          liLength);
+      daDimensionStats = Arrays.copyOf(daDimensionStats,
+                                       liLength * NUM_STATS);
+      daLacunarityStats = Arrays.copyOf(daLacunarityStats,
+                                        liLength * NUM_STATS);
+    }
+    double[] ldaDimensions = pDP.data.daDBFromCountOrSumdeltaIAtGRID;
+    double[] ldaLacunarity = pDP.data.daCVForLAMBDACvSqForPixOrdeltaIAtGRID;
+    d2dDimensionsAtGRID[liSlice] = (ldaDimensions == null) ? new double[0]
+        : ldaDimensions.clone();
+    d2dLacunarityAtGRID[liSlice] = (ldaLacunarity == null) ? new double[0]
+        : ldaLacunarity.clone();
+    summarize(d2dDimensionsAtGRID[liSlice],
+              daDimensionStats,
+              liSlice * NUM_STATS);
+    summarize(d2dLacunarityAtGRID[liSlice],
+              daLacunarityStats,
+              liSlice * NUM_STATS);
+    iNumSlicesLoaded++;
+    return liSlice;
+  }
+
+  /**
+   * Returns one statistic of the dimensions of a slice loaded by
+   * {@link #loadSlice(DataProcessor)}.
+   *
+   * @param piSlice int 0-based index of the slice
+   * @param piStat int {@link #MIN}, {@link #MAX}, {@link #MEAN} or
+   * {@link #STD_DEV}
+   * @return double
+   */
+  public double dimensionStat(int piSlice,
+                              int piStat)
+  {
+    return daDimensionStats[piSlice * NUM_STATS + piStat];
+  }
+
+  /**
+   * Returns one statistic of the lacunarity of a slice loaded by
+   * {@link #loadSlice(DataProcessor)}.
+   *
+   * @param piSlice int 0-based index of the slice
+   * @param piStat int {@link #MIN}, {@link #MAX}, {@link #MEAN} or
+   * {@link #STD_DEV}
+   * @return double
+   */
+  public double lacunarityStat(int piSlice,
+                               int piStat)
+  {
+    return daLacunarityStats[piSlice * NUM_STATS + piStat];
   }
 
+  /**
+   * Adds a {@link Slice} for the passed results to {@link #slices}, and loads
+   * them as {@link #loadSlice(DataProcessor)} does, so the
+   * {@link #dimensionStat statistics} and sketches cover them.
+   *
+   * @param piGRID int index in slices to insert the slice at
+   * @param pDP DataProcessor holding the results for the slice
+   * @deprecated keeps a second copy of every slice as objects; use
+   * {@link #loadSlice(DataProcessor)}
+   */
+  @Deprecated
   public void loadSlice(int piGRID,
                         DataProcessor pDP)
   {
+    loadSlice(pDP);
     Slice lSlice = new Slice();
     lSlice.dimensions = new SliceStats(pDP.data.daDBFromCountOrSumdeltaIAtGRID);
     lSlice.lacunarity = new SliceStats(
@@ -48,6 +48,9 @@ public class SummaryStringDataMapper extends AllGsHeadings
    * Constructor calls a function to generate maps of data for printing results
    * to Strings then creates a new stringFormatter instance which can be
    * accessed to retrieve enumStrings ready for printing.
+   * <p>
+   * If pDp holds the averages of a {@link RotationStackAverager}, the
+   * medians and percentiles over all rotations are taken from its sketches.
    *
    * @param pDp DataProcessor holding data arrays ready for printing to
    * enumStrings for results files.
@@ -63,14 +66,48 @@ public class SummaryStringDataMapper extends AllGsHeadings
                                  int piNumSlices,
                                  String psRotationSummaryType,
                                  Roi pRoiFromMotherImage)
+  {
+    this(pDp,
+         pbRotateToIndividualFile,
+         piNumSlices,
+         psRotationSummaryType,
+         pRoiFromMotherImage,
+         RotationStackAverager.getQuantileSketchesOfAverages(pDp));
+  }
+
+  /**
+   * Constructor as for
+   * {@link #SummaryStringDataMapper(fraclac.analyzer.DataProcessor, boolean, int, java.lang.String, ij.gui.Roi)},
+   * that also puts medians and percentiles over all rotations into the
+   * {@link #mapGeneralInfo general info map} from the passed sketches, which
+   * are usually from {@link RotationStackAverager#getQuantileSketches()}.
+   *
+   * @param pDp DataProcessor holding data arrays ready for printing
+   * @param pbRotateToIndividualFile
+   * @param piNumSlices
+   * @param psRotationSummaryType
+   * @param pRoiFromMotherImage
+   * @param pmapQuantileSketches sketches of per-slice values over all
+   * rotations; if null, the quantile columns of a rotation summary are
+   * written as {@value fraclac.utilities.Symbols#NC}
+   */
+  public SummaryStringDataMapper(DataProcessor pDp,
+                                 boolean pbRotateToIndividualFile,
+                                 int piNumSlices,
+                                 String psRotationSummaryType,
+                                 Roi pRoiFromMotherImage,
+                                 Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> pmapQuantileSketches)
   {
     roiMotherRoi = pRoiFromMotherImage;
-    boolean lbRotationSummary
+    bRotationSummary
         = ((!pbRotateToIndividualFile) && pDp.scan.vars.bRotate);
     makeMasterMap(pDp,
-                  lbRotationSummary,
+                  bRotationSummary,
                   psRotationSummaryType,
                   piNumSlices);
+    if (bRotationSummary) {
+      makeRotationQuantilesMap(pmapQuantileSketches);
+    }
     stringFormatter
         = new SummaryStringFormatter(pbRotateToIndividualFile,
                                      this,
@@ -88,6 +125,11 @@ public class SummaryStringDataMapper extends AllGsHeadings
    */
   public SummaryStringFormatter stringFormatter;
   private final Roi roiMotherRoi;
+  /**
+   * True if the maps are for the summary over all rotations of an image, the
+   * only rows that get the medians and percentiles over rotations.
+   */
+  final boolean bRotationSummary;
   /**
    * A set of enum values used for mapping data from filtered scans, such as
    * minimum and maximum cover and smoothed filters. The values in the set are
@@ -339,6 +381,55 @@ public class SummaryStringDataMapper extends AllGsHeadings
     // =======================================================================
   }
 
+  /**
+   * Puts medians and 5th and 95th percentiles over all rotations of the mean
+   * fractal dimension and mean lacunarity into the
+   * {@link #mapGeneralInfo general info map}. Every one of the six values is
+   * put in, as {@value fraclac.utilities.Symbols#NC} if its sketch is missing
+   * or empty, so that every rotation summary row has the same columns.
+   * Called only for a {@link #bRotationSummary rotation summary}.
+   *
+   * @param pmapQuantileSketches sketches keyed by per-slice value, or null
+   */
+  void makeRotationQuantilesMap(
+      Map<RotationSliceSnapshot.EnumScalar, QuantileSketch> pmapQuantileSketches)
+  {
+    putQuantiles(pmapQuantileSketches == null ? null
+        : pmapQuantileSketches.get(
+            RotationSliceSnapshot.EnumScalar.STATS_DB_AT_SLICE),
+                 EnumInfoData.ROTATION_MEDIAN_DB,
+                 EnumInfoData.ROTATION_P05_DB,
+                 EnumInfoData.ROTATION_P95_DB);
+    putQuantiles(pmapQuantileSketches == null ? null
+        : pmapQuantileSketches.get(
+            RotationSliceSnapshot.EnumScalar.STATS_LL_MEAN_CVSQS_AT_SLICE),
+                 EnumInfoData.ROTATION_MEDIAN_LAC,
+                 EnumInfoData.ROTATION_P05_LAC,
+                 EnumInfoData.ROTATION_P95_LAC);
+  }
+
+  private void putQuantiles(QuantileSketch pSketch,
+                            EnumInfoData pMedian,
+                            EnumInfoData pP05,
+                            EnumInfoData pP95)
+  {
+    if ((pSketch == null) || (pSketch.getCount() == 0)) {
+      mapGeneralInfo.put(pMedian,
+                         NC);
+      mapGeneralInfo.put(pP05,
+                         NC);
+      mapGeneralInfo.put(pP95,
+                         NC);
+      return;
+    }
+    mapGeneralInfo.put(pMedian,
+                       pSketch.median());
+    mapGeneralInfo.put(pP05,
+                       pSketch.percentile(5));
+    mapGeneralInfo.put(pP95,
+                       pSketch.percentile(95));
+  }
+
   /**
    * Puts data into the {@link #mapGeneralInfo map} for general information. The
    * headings keys are of type {@link fraclac.writers.Headings.EnumInfoData} and
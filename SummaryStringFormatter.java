@@ -1,6 +1,7 @@
 package fraclac.writers;
 
 import fraclac.utilities.Utils;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.Map;
@@ -176,7 +177,7 @@ public class SummaryStringFormatter extends AllGsHeadings
                                    Headings.EnumLacData.NAME,
                                    SummaryStringDataMapper.eSetProbLac);
     // Add general information about the scan.
-    storeLongSummaryString(
+    liCol = storeLongSummaryString(
         pbRotateToIndividualFile,
         pMaps.listGeneralInfo,
         liCol,
@@ -218,7 +219,21 @@ public class SummaryStringFormatter extends AllGsHeadings
             Headings.EnumInfoData.CIRCLE_MEAN_RADIUS,
             Headings.EnumInfoData.CIRCLE_METHOD
         ));
-
+    // Add medians and percentiles over all rotations, only to the summary of
+    // a rotated image, and last, so the other columns keep their places.
+    if (pMaps.bRotationSummary) {
+      storeLongSummaryString(
+          pbRotateToIndividualFile,
+          pMaps.listGeneralInfo,
+          liCol,
+          null,
+          EnumSet.of(Headings.EnumInfoData.ROTATION_MEDIAN_DB,
+                     Headings.EnumInfoData.ROTATION_P05_DB,
+                     Headings.EnumInfoData.ROTATION_P95_DB,
+                     Headings.EnumInfoData.ROTATION_MEDIAN_LAC,
+                     Headings.EnumInfoData.ROTATION_P05_LAC,
+                     Headings.EnumInfoData.ROTATION_P95_LAC));
+    }
   }
 
   
@@ -304,6 +319,42 @@ public class SummaryStringFormatter extends AllGsHeadings
 
   }
 
+  /**
+   * Writes to the passed encoder the same values that
+   * {@link #storeLongSummaryString} appends to a summary line for the passed
+   * maps and keys, with no String made for any number. Headings are not
+   * written; they do not change with the data and are made by
+   * {@link #storeLongSummaryString}.
+   *
+   * @param <T>
+   * @param pEncoder encoder written to
+   * @param pListOfDataMaps ArrayList holding data maps to write
+   * @param NAME a T (an Enum constant) whose value is skipped, or null
+   * @param pKeySet the values written are only and all of the values mapped to
+   * the keys in {@code keySet} except for any value mapped under {@code NAME}
+   *
+   * @return the passed encoder
+   *
+   * @throws IOException if pEncoder throws it
+   */
+  public static <T extends Enum<?>> TabbedRecordEncoder encodeLongSummaryValues(
+      TabbedRecordEncoder pEncoder,
+      ArrayList<Map<? extends DataTypesInterface, Object>> pListOfDataMaps,
+      T NAME,
+      Set<? extends DataTypesInterface> pKeySet) throws IOException
+  {
+    for (Map<? extends DataTypesInterface, Object> pListOfDataMap : pListOfDataMaps) {
+      Map<?, ?> thisMap = (Map) pListOfDataMap;
+      for (Object lKey : pKeySet) {
+        if (lKey.equals(NAME)) {
+          continue;
+        }
+        pEncoder.field(thisMap.get(lKey));
+      }
+    }
+    return pEncoder;
+  }
+
   /**
    * Calls a function repeatedly to append lines of data to the internal
    * StringBuilder for the
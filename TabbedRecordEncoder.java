@@ -0,0 +1,504 @@
+package fraclac.writers;
+
+import static fraclac.utilities.Symbols.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes tab separated records of text and numbers straight into a reusable
+ * buffer of UTF-8 bytes, without making a String for each number, a
+ * StringBuilder of each record, and a String and byte array of the whole
+ * text before it is written.
+ * <p>
+ * Numbers are written as a DecimalFormat with the ####.#### pattern of
+ * {@link fraclac.utilities.Utils#fnum} writes them, with a '.' separator: with
+ * at most {@link #DEFAULT_DECIMALS} decimals, rounded half even, and with
+ * trailing zeros dropped; 2.5 is written as "2.5", 3 as "3", 0.00005 as "0"
+ * and -0.00001 as "-0". Most are written straight into the bytes; NaN,
+ * infinite values, and values near a tie or too big to round that way are
+ * passed to the DecimalFormat itself. Values that are not formatted with
+ * fnum, e.g., the masses of a DLC data file, are written with
+ * {@link #fieldAsAppended} instead.
+ * <p>
+ * The encoder is an Appendable, so text can be written to it by any method
+ * that takes one, e.g.,
+ * {@link SLACWriter#writeSLacDataFileAndMakeHeadings}. The buffer grows as
+ * needed, or, if the encoder was made with a channel, is written to the
+ * channel when full. The bytes are handed out by {@link #bytes} and the
+ * buffer is reused after {@link #clear}.
+ * <p>
+ * An encoder is not safe to use from more than one thread; make one for
+ * each thread or {@link DlcTiles tile}.
+ *
+ * @see ResultsFilesWriter#writeToEndOfTextFile(String, TabbedRecordEncoder)
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class TabbedRecordEncoder implements Appendable
+{
+
+  /**
+   * Decimals numbers are written with unless another number is passed.
+   * {@value}
+   */
+  public static final int DEFAULT_DECIMALS = 4;
+  /**
+   * Bytes the buffer starts with. {@value}
+   */
+  public static final int INITIAL_BYTES = 64 * 1024;
+  /**
+   * Scaled values at or above this are written by the DecimalFormat, as the
+   * error of scaling them can be too big to tell which way they round.
+   * {@value}
+   */
+  static final double MAX_FAST = 1099511627776d;
+  /**
+   * Scaled values whose fraction is within this of one half are written by
+   * the DecimalFormat, which decides ties on the decimal digits of the double
+   * rather than on its scaled value. {@value}
+   */
+  static final double TIE_MARGIN = 1e-3;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int iDecimals;
+  private final long lScale;
+  private final WritableByteChannel channel;
+  private final byte[] baDigits = new byte[20];
+  private ByteBuffer buffer;
+  /**
+   * Made the first time a value is not a number, near a tie or too big.
+   */
+  private DecimalFormat format;
+
+  /**
+   * Makes an encoder with {@link #DEFAULT_DECIMALS} decimals whose buffer
+   * grows as needed.
+   */
+  public TabbedRecordEncoder()
+  {
+    this(DEFAULT_DECIMALS,
+         null);
+  }
+
+  /**
+   * @param piDecimals int number of decimals, 0 to 9
+   * @param pChannel channel the buffer is written to when it is full, or null
+   * to grow the buffer instead
+   */
+  public TabbedRecordEncoder(int piDecimals,
+                             WritableByteChannel pChannel)
+  {
+    if (piDecimals < 0 || piDecimals > 9) {
+      throw new IllegalArgumentException("decimals must be 0 to 9, not "
+          + piDecimals);
+    }
+    iDecimals = piDecimals;
+    long llScale = 1;
+    for (int i = 0; i < piDecimals; i++) {
+      llScale *= 10;
+    }
+    lScale = llScale;
+    channel = pChannel;
+    buffer = ByteBuffer.allocate(INITIAL_BYTES);
+  }
+
+  // ===========================================================================
+  //                              FIELDS
+  // ===========================================================================
+  /**
+   * Writes the passed number then a TAB.
+   *
+   * @param pdValue double
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder field(double pdValue) throws IOException
+  {
+    return number(pdValue).tab();
+  }
+
+  /**
+   * Writes the passed number as {@link StringBuilder#append(double)} writes
+   * it, e.g., "12.0", then a TAB, for values the text form of a file does not
+   * format with fnum.
+   *
+   * @param pdValue double
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder fieldAsAppended(double pdValue)
+      throws IOException
+  {
+    append(Double.toString(pdValue));
+    return tab();
+  }
+
+  /**
+   * Writes the passed number then a TAB.
+   *
+   * @param plValue long
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder field(long plValue) throws IOException
+  {
+    return number(plValue).tab();
+  }
+
+  /**
+   * Writes the passed value then a TAB: integers and other numbers as
+   * {@link #number numbers}, anything else as its text.
+   *
+   * @param pValue Object, e.g., a value from a data map
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder field(Object pValue) throws IOException
+  {
+    if (pValue instanceof Integer || pValue instanceof Long
+        || pValue instanceof Short || pValue instanceof Byte) {
+      number(((Number) pValue).longValue());
+    } else if (pValue instanceof Number) {
+      number(((Number) pValue).doubleValue());
+    } else {
+      append(String.valueOf(pValue));
+    }
+    return tab();
+  }
+
+  /**
+   * Writes the passed text then a TAB.
+   *
+   * @param pcsText CharSequence
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder field(CharSequence pcsText) throws IOException
+  {
+    append(pcsText);
+    return tab();
+  }
+
+  /**
+   * Writes {@value fraclac.utilities.Symbols#NC} then a TAB, for a value that
+   * was not calculated.
+   *
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder nc() throws IOException
+  {
+    append(NC);
+    return tab();
+  }
+
+  /**
+   * @return this encoder, after writing a TAB
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder tab() throws IOException
+  {
+    append(TAB);
+    return this;
+  }
+
+  /**
+   * @return this encoder, after writing a new line
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder newline() throws IOException
+  {
+    append(newline);
+    return this;
+  }
+
+  /**
+   * Writes the passed number rounded half even to the decimals of this
+   * encoder, with no TAB. A negative number that rounds to 0 is written as
+   * "-0", as DecimalFormat writes it.
+   *
+   * @param pdValue double
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder number(double pdValue) throws IOException
+  {
+    double ldScaled = Math.abs(pdValue) * lScale;
+    double ldFraction = ldScaled - Math.floor(ldScaled);
+    // NaN fails the first two tests and passes the last.
+    if ((ldScaled >= MAX_FAST) || (Math.abs(ldFraction - 0.5) < TIE_MARGIN)
+        || Double.isNaN(ldScaled)) {
+      // Not a number, or too big or too near a tie to round the scaled
+      // double.
+      if (format == null) {
+        StringBuilder lsbPattern = new StringBuilder("####");
+        if (iDecimals > 0) {
+          lsbPattern.append('.');
+        }
+        for (int i = 0; i < iDecimals; i++) {
+          lsbPattern.append('#');
+        }
+        format = new DecimalFormat(lsbPattern.toString(),
+                                   DecimalFormatSymbols.getInstance(
+                                       Locale.US));
+      }
+      append(format.format(pdValue));
+      return this;
+    }
+    boolean lbNegative = (pdValue < 0) || (1 / pdValue < 0);
+    long llScaled = (long) Math.floor(ldScaled) + (ldFraction > 0.5 ? 1 : 0);
+    ensure(32);
+    if (lbNegative) {
+      buffer.put((byte) '-');
+    }
+    putDigits(llScaled / lScale);
+    long llFraction = llScaled % lScale;
+    if (llFraction != 0) {
+      // Trailing zeros are dropped.
+      int liDecimals = iDecimals;
+      while (llFraction % 10 == 0) {
+        llFraction /= 10;
+        liDecimals--;
+      }
+      buffer.put((byte) '.');
+      int liPos = baDigits.length;
+      for (int i = 0; i < liDecimals; i++) {
+        baDigits[--liPos] = (byte) ('0' + (int) (llFraction % 10));
+        llFraction /= 10;
+      }
+      buffer.put(baDigits,
+                 liPos,
+                 baDigits.length - liPos);
+    }
+    return this;
+  }
+
+  /**
+   * Writes the passed whole number, with no TAB.
+   *
+   * @param plValue long
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  public TabbedRecordEncoder number(long plValue) throws IOException
+  {
+    if (plValue == Long.MIN_VALUE) {
+      append(Long.toString(plValue));
+      return this;
+    }
+    ensure(20);
+    if (plValue < 0) {
+      buffer.put((byte) '-');
+      plValue = -plValue;
+    }
+    putDigits(plValue);
+    return this;
+  }
+
+  // ===========================================================================
+  //                              APPENDABLE
+  // ===========================================================================
+  /**
+   * Writes the passed text as UTF-8.
+   *
+   * @param pcsText CharSequence; null is written as "null"
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  @Override
+  public TabbedRecordEncoder append(CharSequence pcsText) throws IOException
+  {
+    if (pcsText == null) {
+      pcsText = "null";
+    }
+    return append(pcsText,
+                  0,
+                  pcsText.length());
+  }
+
+  /**
+   * Writes part of the passed text as UTF-8.
+   *
+   * @param pcsText CharSequence; null is written as "null"
+   * @param piStart index of the first char
+   * @param piEnd index after the last char
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  @Override
+  public TabbedRecordEncoder append(CharSequence pcsText,
+                                    int piStart,
+                                    int piEnd) throws IOException
+  {
+    if (pcsText == null) {
+      pcsText = "null";
+    }
+    for (int i = piStart; i < piEnd; i++) {
+      char c = pcsText.charAt(i);
+      if (c < 0x80) {
+        if (!buffer.hasRemaining()) {
+          ensure(1);
+        }
+        buffer.put((byte) c);
+      } else if (Character.isHighSurrogate(c) && (i + 1 < piEnd)
+          && Character.isLowSurrogate(pcsText.charAt(i + 1))) {
+        putCodePoint(Character.toCodePoint(c,
+                                           pcsText.charAt(++i)));
+      } else if (Character.isSurrogate(c)) {
+        // An unpaired surrogate is replaced, as String.getBytes does.
+        putCodePoint('?');
+      } else {
+        putCodePoint(c);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Writes the passed char as UTF-8.
+   *
+   * @param c char
+   * @return this encoder
+   * @throws IOException if the buffer is written to the channel and that
+   * fails
+   */
+  @Override
+  public TabbedRecordEncoder append(char c) throws IOException
+  {
+    return append(String.valueOf(c));
+  }
+
+  // ===========================================================================
+  //                              BYTES
+  // ===========================================================================
+  /**
+   * @return int number of bytes held
+   */
+  public int size()
+  {
+    return buffer.position();
+  }
+
+  /**
+   * Returns the bytes held, from 0 to {@link #size}. The returned buffer
+   * shares its bytes with this encoder, so it must be used before the next
+   * record is written or the encoder is {@link #clear cleared}.
+   *
+   * @return ByteBuffer of the bytes held, backed by an array
+   */
+  public ByteBuffer bytes()
+  {
+    ByteBuffer lBytes = buffer.duplicate();
+    lBytes.flip();
+    return lBytes;
+  }
+
+  /**
+   * Empties the buffer so it can be reused.
+   */
+  public void clear()
+  {
+    buffer.clear();
+  }
+
+  /**
+   * Writes the bytes held to the passed channel and empties the buffer.
+   *
+   * @param pChannel channel written to
+   * @throws IOException if the channel cannot be written
+   */
+  public void drainTo(WritableByteChannel pChannel) throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      pChannel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * @return String of the bytes held, decoded from UTF-8
+   */
+  @Override
+  public String toString()
+  {
+    return new String(buffer.array(),
+                      buffer.arrayOffset(),
+                      buffer.position(),
+                      UTF_8);
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Makes room for the passed number of bytes, by writing the buffer to the
+   * channel if there is one, otherwise by growing it.
+   */
+  private void ensure(int piBytes) throws IOException
+  {
+    if (buffer.remaining() >= piBytes) {
+      return;
+    }
+    if (channel != null) {
+      drainTo(channel);
+      if (buffer.remaining() >= piBytes) {
+        return;
+      }
+    }
+    ByteBuffer lBigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(),
+                                                      buffer.position()
+                                                      + piBytes));
+    buffer.flip();
+    lBigger.put(buffer);
+    buffer = lBigger;
+  }
+
+  private void putDigits(long plValue)
+  {
+    int liPos = baDigits.length;
+    do {
+      baDigits[--liPos] = (byte) ('0' + (int) (plValue % 10));
+      plValue /= 10;
+    } while (plValue != 0);
+    buffer.put(baDigits,
+               liPos,
+               baDigits.length - liPos);
+  }
+
+  private void putCodePoint(int piCodePoint) throws IOException
+  {
+    ensure(4);
+    if (piCodePoint < 0x80) {
+      buffer.put((byte) piCodePoint);
+    } else if (piCodePoint < 0x800) {
+      buffer.put((byte) (0xc0 | (piCodePoint >> 6)));
+      buffer.put((byte) (0x80 | (piCodePoint & 0x3f)));
+    } else if (piCodePoint < 0x10000) {
+      buffer.put((byte) (0xe0 | (piCodePoint >> 12)));
+      buffer.put((byte) (0x80 | ((piCodePoint >> 6) & 0x3f)));
+      buffer.put((byte) (0x80 | (piCodePoint & 0x3f)));
+    } else {
+      buffer.put((byte) (0xf0 | (piCodePoint >> 18)));
+      buffer.put((byte) (0x80 | ((piCodePoint >> 12) & 0x3f)));
+      buffer.put((byte) (0x80 | ((piCodePoint >> 6) & 0x3f)));
+      buffer.put((byte) (0x80 | (piCodePoint & 0x3f)));
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package fraclac.writers;
+
+import static fraclac.utilities.Symbols.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes the colour-coded map of local fractal dimensions that
+ * {@link ResultsFilesWriter#makeTextImageString} makes, one row at a time,
+ * straight to a file, so that neither the whole string nor the whole matrix
+ * of colour codes is ever in memory.
+ * <p>
+ * The pixels are {@link PixelRows bucketed by row}, which needs memory for
+ * the list of pixels but not for the bounding rectangle, then each row is
+ * filled into one reusable row of colour codes and encoded into a direct
+ * buffer that is written to the file's channel when full.
+ * <p>
+ * {@link #writeText} writes the same text as makeTextImageString, readable
+ * by ImageJ as a text image, to a file or, row by row, to any Appendable.
+ * {@link #writeRaster} writes a binary raster instead, to a file or any
+ * channel: a header of
+ * <pre>
+ * int MAGIC, int width, int height, int minimum x, int minimum y
+ * </pre>
+ * then width &times; height ints, row by row, all little-endian.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public final class TextImageFile
+{
+
+  /**
+   * First int of a binary raster file, "FLTI" read as a little-endian int.
+   */
+  public static final int MAGIC = 0x49544C46;
+  /**
+   * Bytes before the colour codes in a binary raster file. {@value}
+   */
+  public static final int HEADER_BYTES = 20;
+  static final int BUFFER_BYTES = 1 << 20;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private TextImageFile()
+  {
+  }
+
+  /**
+   * The pixels of a map, bucketed by row, and their colour codes.
+   */
+  private static final class Rows
+  {
+
+    final PixelRows pixelRows;
+    final int iWidth, iHeight, iMinX, iMinY, iFiller;
+    final double[] daFractalDimensions;
+
+    Rows(double[][] pd2dPixelXY,
+         double[] pdaFractalDimensions,
+         int piUserForeground)
+    {
+      pixelRows = new PixelRows(pd2dPixelXY[0],
+                                pd2dPixelXY[1]);
+      iWidth = pixelRows.iWidth;
+      iHeight = pixelRows.iHeight;
+      iMinX = pixelRows.iMinX;
+      iMinY = pixelRows.iMinY;
+      iFiller = piUserForeground == 0 ? 255 : 0;
+      daFractalDimensions = pdaFractalDimensions;
+    }
+
+    /**
+     * Fills the passed array with the colour codes of row y. Where pixels
+     * repeat, the last one in the list wins, as in makeTextImageString.
+     */
+    void fillRow(int y,
+                 int[] piaRow)
+    {
+      Arrays.fill(piaRow,
+                  iFiller);
+      for (int j = pixelRows.iaRowStart[y]; j < pixelRows.iaRowStart[y + 1];
+          j++) {
+        int i = pixelRows.iaPixels[j];
+        piaRow[pixelRows.column(i)]
+            = (int) (255.0F * (daFractalDimensions[i] / 3.0F));
+      }
+    }
+  }
+
+  // ===========================================================================
+  //                              METHODS
+  // ===========================================================================
+  /**
+   * Writes the colour-coded map as text: each row of colour codes, each code
+   * followed by a TAB, and each row followed by a new line.
+   *
+   * @param pFile File to write, replaced if it exists
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1] of each
+   * pixel
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black, so the background
+   * is filled with 255
+   * @throws IOException if the file cannot be written
+   */
+  public static void writeText(File pFile,
+                               double[][] pd2dPixelXY,
+                               double[] pdaFractalDimensions,
+                               int piUserForeground) throws IOException
+  {
+    Rows lRows = new Rows(pd2dPixelXY,
+                          pdaFractalDimensions,
+                          piUserForeground);
+    byte[] lbaNewline = newline.getBytes(UTF8);
+    byte[] lbaDigits = new byte[11];
+    int[] liaRow = new int[lRows.iWidth];
+    RandomAccessFile lRaf = new RandomAccessFile(pFile,
+                                                 "rw");
+    try {
+      lRaf.setLength(0);
+      FileChannel lChannel = lRaf.getChannel();
+      ByteBuffer lBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+      for (int y = 0; y < lRows.iHeight; y++) {
+        lRows.fillRow(y,
+                      liaRow);
+        for (int x = 0; x < lRows.iWidth; x++) {
+          if (lBuffer.remaining() < lbaDigits.length + 1) {
+            drain(lChannel,
+                  lBuffer);
+          }
+          putInt(lBuffer,
+                 liaRow[x],
+                 lbaDigits);
+          lBuffer.put((byte) '\t');
+        }
+        if (lBuffer.remaining() < lbaNewline.length) {
+          drain(lChannel,
+                lBuffer);
+        }
+        lBuffer.put(lbaNewline);
+      }
+      drain(lChannel,
+            lBuffer);
+    } finally {
+      lRaf.close();
+    }
+  }
+
+  /**
+   * Appends the colour-coded map as text, as
+   * {@link #writeText(File, double[][], double[], int)} writes it, one row
+   * at a time, so that only one row of text is built at once.
+   *
+   * @param pOut Appendable to append each row to
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1] of each
+   * pixel
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black, so the background
+   * is filled with 255
+   * @throws IOException if the Appendable throws it
+   */
+  public static void writeText(Appendable pOut,
+                               double[][] pd2dPixelXY,
+                               double[] pdaFractalDimensions,
+                               int piUserForeground) throws IOException
+  {
+    Rows lRows = new Rows(pd2dPixelXY,
+                          pdaFractalDimensions,
+                          piUserForeground);
+    int[] liaRow = new int[lRows.iWidth];
+    StringBuilder lsbRow = new StringBuilder();
+    for (int y = 0; y < lRows.iHeight; y++) {
+      lRows.fillRow(y,
+                    liaRow);
+      lsbRow.setLength(0);
+      for (int x = 0; x < lRows.iWidth; x++) {
+        lsbRow.append(liaRow[x]).append(TAB);
+      }
+      lsbRow.append(newline);
+      pOut.append(lsbRow);
+    }
+  }
+
+  /**
+   * Writes the colour-coded map as a binary raster with a header, as
+   * described for this class.
+   *
+   * @param pFile File to write, replaced if it exists
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1] of each
+   * pixel
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black, so the background
+   * is filled with 255
+   * @throws IOException if the file cannot be written
+   */
+  public static void writeRaster(File pFile,
+                                 double[][] pd2dPixelXY,
+                                 double[] pdaFractalDimensions,
+                                 int piUserForeground) throws IOException
+  {
+    RandomAccessFile lRaf = new RandomAccessFile(pFile,
+                                                 "rw");
+    try {
+      lRaf.setLength(0);
+      writeRaster(lRaf.getChannel(),
+                  pd2dPixelXY,
+                  pdaFractalDimensions,
+                  piUserForeground);
+    } finally {
+      lRaf.close();
+    }
+  }
+
+  /**
+   * Writes the colour-coded map as a binary raster with a header, as
+   * described for this class, to the passed channel, which is left open.
+   *
+   * @param pChannel WritableByteChannel to write to
+   * @param pd2dPixelXY x coordinates at [0] and y coordinates at [1] of each
+   * pixel
+   * @param pdaFractalDimensions local fractal dimension of each pixel
+   * @param piUserForeground 0 if the foreground is black, so the background
+   * is filled with 255
+   * @throws IOException if the channel cannot be written
+   */
+  public static void writeRaster(WritableByteChannel pChannel,
+                                 double[][] pd2dPixelXY,
+                                 double[] pdaFractalDimensions,
+                                 int piUserForeground) throws IOException
+  {
+    Rows lRows = new Rows(pd2dPixelXY,
+                          pdaFractalDimensions,
+                          piUserForeground);
+    int[] liaRow = new int[lRows.iWidth];
+    ByteBuffer lBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    lBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    lBuffer.putInt(MAGIC).putInt(lRows.iWidth).putInt(lRows.iHeight)
+        .putInt(lRows.iMinX).putInt(lRows.iMinY);
+    for (int y = 0; y < lRows.iHeight; y++) {
+      lRows.fillRow(y,
+                    liaRow);
+      for (int x = 0; x < lRows.iWidth; x++) {
+        if (lBuffer.remaining() < 4) {
+          drain(pChannel,
+                lBuffer);
+        }
+        lBuffer.putInt(liaRow[x]);
+      }
+    }
+    drain(pChannel,
+          lBuffer);
+  }
+
+  // ===========================================================================
+  //                              INTERNAL
+  // ===========================================================================
+  /**
+   * Writes the passed int into the buffer as decimal ASCII, using the passed
+   * array as scratch space.
+   */
+  static void putInt(ByteBuffer pBuffer,
+                     int piValue,
+                     byte[] pbaScratch)
+  {
+    long llValue = piValue;
+    if (llValue < 0) {
+      pBuffer.put((byte) '-');
+      llValue = -llValue;
+    }
+    int liPos = pbaScratch.length;
+    do {
+      pbaScratch[--liPos] = (byte) ('0' + (int) (llValue % 10));
+      llValue /= 10;
+    } while (llValue != 0);
+    pBuffer.put(pbaScratch,
+                liPos,
+                pbaScratch.length - liPos);
+  }
+
+  static void drain(WritableByteChannel pChannel,
+                    ByteBuffer pBuffer) throws IOException
+  {
+    pBuffer.flip();
+    while (pBuffer.hasRemaining()) {
+      pChannel.write(pBuffer);
+    }
+    pBuffer.clear();
+  }
+}
@@ -99,18 +99,33 @@ public class WriteUtilities extends AllGsHeadings
    * starting from 1, with a ". " after the number. Thus, if {{cat}, {dog}} is
    * passed in, then "1. cat TAB 2. dog" is returned.
    *
+   * The string is made once for each array of headings and then
+   * {@link HeadingCache cached}.
+   *
    * @param psaHeadings
    *
    * @return numbered and tabbed StringBuilder
    */
   public static StringBuilder toTabbedAndNumberedString(String[] psaHeadings)
+  {
+    return new StringBuilder(HeadingCache.tabbedAndNumbered(psaHeadings));
+  }
+
+  /**
+   * Makes the string returned by {@link #toTabbedAndNumberedString}.
+   *
+   * @param psaHeadings
+   *
+   * @return numbered and tabbed String
+   */
+  static String renderTabbedAndNumberedString(String[] psaHeadings)
   {
     StringBuilder lsbHeadings = new StringBuilder();
     for (int i = 1; i < psaHeadings.length; i++) {
       lsbHeadings.append(i).append(". ").append(psaHeadings[i])
           .append(TAB);
     }
-    return lsbHeadings;
+    return lsbHeadings.toString();
   }
 
   /**
@@ -238,16 +253,38 @@ public class WriteUtilities extends AllGsHeadings
       int piTimesToRepeatEachElement,
       String psPrefix)
   {
-    String lsTabbedString = "";
+    return HeadingCache.numberTabAndRepeatEachElementXTimes(
+        psaPhrasesToNumberAndTabTogether,
+        piTimesToRepeatEachElement,
+        psPrefix);
+  }
+
+  /**
+   * Makes the string returned by {@link #numberTabAndRepeatEachElementXTimes},
+   * which is {@link HeadingCache cached}.
+   *
+   * @param psaPhrasesToNumberAndTabTogether String array to make into a tabbed
+   * string
+   * @param piTimesToRepeatEachElement int for number of times to repeat a
+   * heading
+   * @param psPrefix String to include with the number
+   * @return String of headings for printing data
+   */
+  static String renderNumberTabAndRepeat(
+      String[] psaPhrasesToNumberAndTabTogether,
+      int piTimesToRepeatEachElement,
+      String psPrefix)
+  {
+    StringBuilder lsbTabbedString = new StringBuilder();
 
     for (int p = 0; p < psaPhrasesToNumberAndTabTogether.length; p++) {
       String lsThisPhrase = psaPhrasesToNumberAndTabTogether[p];
       for (int liTimesRepeated = 1; liTimesRepeated <= piTimesToRepeatEachElement; liTimesRepeated++) {
-        lsTabbedString += lsThisPhrase + " (" + psPrefix
-            + liTimesRepeated + ")" + TAB;
+        lsbTabbedString.append(lsThisPhrase).append(" (").append(psPrefix)
+            .append(liTimesRepeated).append(")").append(TAB);
       }
     }
-    return lsTabbedString;
+    return lsbTabbedString.toString();
   }
 
   /**
@@ -409,19 +446,16 @@ public class WriteUtilities extends AllGsHeadings
       double pd2dCounts[][],
       double[][] pd2dEpsilons)
   {
-    Calculator lCalc = new Calculator();
+    double[] ldaSlopes = Calculator.slopesOfPowerRegressions(
+        pd2dCounts,
+        pd2dEpsilons[0],
+        pd2dEpsilons[0].length);
     StringBuilder lStrBuilder = new StringBuilder("");
     for (int i = 0; i < pd2dCounts.length; i++) {
       if (pd2dCounts[i] == null) {
         lStrBuilder.append(NC + TAB);
       } else {
-        lStrBuilder
-            .append(
-                fnum(lCalc
-                    .slopeOfPowerRegression(pd2dCounts[i],
-                                            pd2dEpsilons[0],
-                                            pd2dEpsilons[0].length))).
-            append(TAB);
+        lStrBuilder.append(fnum(ldaSlopes[i])).append(TAB);
       }
     }
     return lStrBuilder.toString();
@@ -528,7 +562,31 @@ public class WriteUtilities extends AllGsHeadings
                                    double[][] pd2dIndependentVariables)
   {
     int liNumberOfIndependentVariableArrays = pd2dIndependentVariables.length;
-    Calculator f = new Calculator();
+    // .........................................................................
+    // Find the slopes one grid at a time, in one batch for all data types,
+    // since they share that grid's independent variables.
+    // .........................................................................
+    int liGrids = 0;
+    for (double[][] ld2dGrids : pd3dDependentVariables) {
+      if (ld2dGrids != null) {
+        liGrids = Math.max(liGrids,
+                           ld2dGrids.length);
+      }
+    }
+    double[][] ld2dSlopesAtGrid = new double[liGrids][];
+    double[][] ld2dY = new double[pd3dDependentVariables.length][];
+    for (int liGrid = 0; liGrid < liGrids; liGrid++) {
+      for (int liDataType = 0; liDataType < ld2dY.length; liDataType++) {
+        double[][] ld2dGrids = pd3dDependentVariables[liDataType];
+        ld2dY[liDataType] = (ld2dGrids == null || liGrid >= ld2dGrids.length
+            || ld2dGrids[liGrid] == null || ld2dGrids[liGrid].length < 2)
+            ? null : ld2dGrids[liGrid];
+      }
+      ld2dSlopesAtGrid[liGrid] = Calculator.slopesOfPowerRegressions(
+          ld2dY,
+          pd2dIndependentVariables[liGrid],
+          pd2dIndependentVariables[liGrid].length);
+    }
     StringBuilder P = new StringBuilder("");
     for (int liDataType = 0; liDataType < pd3dDependentVariables.length; liDataType++) {
       if (pd3dDependentVariables[liDataType] == null) {
@@ -543,11 +601,7 @@ public class WriteUtilities extends AllGsHeadings
             P.append(NC).append(TAB);
           } // otherwise write the slope
           else {
-            P.append(
-                fnum(f.slopeOfPowerRegression(
-                        pd3dDependentVariables[liDataType][liGrid],
-                        pd2dIndependentVariables[liGrid],
-                        pd2dIndependentVariables[liGrid].length)))
+            P.append(fnum(ld2dSlopesAtGrid[liGrid][liDataType]))
                 .append(TAB);
           }
         }
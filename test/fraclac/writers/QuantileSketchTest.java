@@ -0,0 +1,112 @@
+package fraclac.writers;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks the rank error of {@link QuantileSketch} against its documented
+ * bound of about 1%, for one sketch and for sketches merged together.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class QuantileSketchTest
+{
+
+  /**
+   * Values added; 0 to N - 1, so a value is its own rank.
+   */
+  static final int N = 100000;
+  /**
+   * Largest rank error allowed, as a fraction of N: twice the documented
+   * error, so the test checks the bound, not the luck of one shuffle.
+   */
+  static final double MAX_RANK_ERROR = 0.02;
+
+  @Test
+  public void testRankErrorOfOneSketch()
+  {
+    QuantileSketch lSketch = new QuantileSketch();
+    for (double ld : shuffledRanks(1)) {
+      lSketch.add(ld);
+    }
+    assertRankError(lSketch);
+  }
+
+  @Test
+  public void testRankErrorOfMergedSketches()
+  {
+    QuantileSketch[] laSketches = new QuantileSketch[4];
+    for (int i = 0; i < laSketches.length; i++) {
+      laSketches[i] = new QuantileSketch();
+    }
+    double[] lda = shuffledRanks(2);
+    for (int i = 0; i < lda.length; i++) {
+      laSketches[i % laSketches.length].add(lda[i]);
+    }
+    QuantileSketch lMerged = new QuantileSketch();
+    for (QuantileSketch lSketch : laSketches) {
+      lMerged.merge(lSketch);
+    }
+    assertRankError(lMerged);
+    // The parts are not changed by being merged.
+    assertEquals(N / laSketches.length,
+                 laSketches[0].getCount());
+  }
+
+  @Test
+  public void testMergeKeepsCountMinAndMaxExact()
+  {
+    QuantileSketch lA = new QuantileSketch();
+    QuantileSketch lB = new QuantileSketch();
+    lA.addAll(new double[]{3, 1, 2});
+    lB.addAll(new double[]{-7, 40});
+    lA.merge(lB);
+    assertEquals(5,
+                 lA.getCount());
+    assertEquals(-7,
+                 lA.getMin(),
+                 0);
+    assertEquals(40,
+                 lA.getMax(),
+                 0);
+    assertEquals(2,
+                 lA.median(),
+                 0);
+  }
+
+  private static void assertRankError(QuantileSketch pSketch)
+  {
+    assertEquals(N,
+                 pSketch.getCount());
+    assertEquals(0,
+                 pSketch.getMin(),
+                 0);
+    assertEquals(N - 1,
+                 pSketch.getMax(),
+                 0);
+    for (int liPercent = 1; liPercent < 100; liPercent++) {
+      double ldRank = pSketch.percentile(liPercent) / N;
+      assertEquals("rank of percentile " + liPercent,
+                   liPercent / 100d,
+                   ldRank,
+                   MAX_RANK_ERROR);
+    }
+  }
+
+  private static double[] shuffledRanks(long plSeed)
+  {
+    double[] lda = new double[N];
+    for (int i = 0; i < N; i++) {
+      lda[i] = i;
+    }
+    Random lRandom = new Random(plSeed);
+    for (int i = N - 1; i > 0; i--) {
+      int j = lRandom.nextInt(i + 1);
+      double ld = lda[i];
+      lda[i] = lda[j];
+      lda[j] = ld;
+    }
+    return lda;
+  }
+}
@@ -0,0 +1,168 @@
+package fraclac.writers;
+
+import static fraclac.utilities.Symbols.newline;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks that {@link TabbedRecordEncoder} writes numbers exactly as the
+ * DecimalFormat of {@link fraclac.utilities.Utils#fnum} does, over values
+ * that round every way, and values as StringBuilder.append(double) does.
+ *
+ * @version FracLac 2014Jan $Rev: 243 $
+ */
+public class TabbedRecordEncoderTest
+{
+
+  /**
+   * Random values compared at {@link TabbedRecordEncoder#DEFAULT_DECIMALS}.
+   */
+  static final int N = 2000000;
+  /**
+   * Values that are ties, near ties, negative zeros or too big to round by
+   * scaling.
+   */
+  static final double[] daEDGES = {2.5, 3, -0.00001, 0.00005, 0.00015,
+    0.00025, -0.00025, 1.23445, 1.23455, 2.675, 0.0, -0.0, 1e15,
+    123456789.12345, -7.99995, 0.5, 1.5, 1e-10, -1e-10, 12.0, 9.99995,
+    1e13 + 0.00005, Double.MAX_VALUE, -Double.MIN_VALUE, Double.NaN,
+    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+  @Test
+  public void testDefaultDecimalsMatchDecimalFormat() throws IOException
+  {
+    assertMatchesDecimalFormat(TabbedRecordEncoder.DEFAULT_DECIMALS,
+                               N);
+  }
+
+  @Test
+  public void testOtherDecimalsMatchDecimalFormat() throws IOException
+  {
+    assertMatchesDecimalFormat(0,
+                               N / 10);
+    assertMatchesDecimalFormat(2,
+                               N / 10);
+    assertMatchesDecimalFormat(7,
+                               N / 10);
+  }
+
+  @Test
+  public void testFieldAsAppendedMatchesStringBuilder() throws IOException
+  {
+    TabbedRecordEncoder lEncoder = new TabbedRecordEncoder();
+    StringBuilder lsb = new StringBuilder();
+    for (double ld : new double[]{12.0, 1e-5, -0.0, 123456789.125,
+                                  Double.NaN, Double.NEGATIVE_INFINITY}) {
+      lEncoder.fieldAsAppended(ld);
+      lsb.append(ld).append('\t');
+    }
+    assertEquals(lsb.toString(),
+                 lEncoder.toString());
+  }
+
+  @Test
+  public void testChannelGetsEveryByte() throws IOException
+  {
+    ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+    TabbedRecordEncoder lEncoder = new TabbedRecordEncoder(
+        TabbedRecordEncoder.DEFAULT_DECIMALS,
+        Channels.newChannel(lOut));
+    StringBuilder lsb = new StringBuilder();
+    DecimalFormat lFormat = format(TabbedRecordEncoder.DEFAULT_DECIMALS);
+    // Enough rows to fill the buffer several times.
+    for (int i = 0; i < 100000; i++) {
+      double ld = i / 7d;
+      lEncoder.field(ld).field("µm").newline();
+      lsb.append(lFormat.format(ld)).append('\t').append("µm\t")
+          .append(newline);
+    }
+    lEncoder.drainTo(Channels.newChannel(lOut));
+    assertEquals(0,
+                 lEncoder.size());
+    assertEquals(lsb.toString(),
+                 new String(lOut.toByteArray(),
+                            "UTF-8"));
+  }
+
+  /**
+   * Compares the encoder made with the passed decimals to a DecimalFormat,
+   * for {@link #daEDGES} and the passed number of random values of five
+   * kinds: spread, near ties at the last decimal, whole numbers of
+   * hundred-thousandths, of widely varying size, and of twenty-thousandths.
+   */
+  static void assertMatchesDecimalFormat(int piDecimals,
+                                         int piValues) throws IOException
+  {
+    DecimalFormat lFormat = format(piDecimals);
+    TabbedRecordEncoder lEncoder = new TabbedRecordEncoder(piDecimals,
+                                                           null);
+    for (double ld : daEDGES) {
+      assertEncodes(lEncoder,
+                    lFormat,
+                    ld);
+    }
+    double ldHalfStep = 0.5 / Math.pow(10,
+                                       piDecimals);
+    Random lRandom = new Random(piDecimals + 1);
+    for (int i = 0; i < piValues; i++) {
+      double ld;
+      switch (i % 5) {
+        case 0:
+          ld = (lRandom.nextDouble() - 0.5) * 1000;
+          break;
+        case 1:
+          ld = Math.round(lRandom.nextDouble() * 1e7) / 1e4
+              + ldHalfStep * (lRandom.nextBoolean() ? 1 : -1);
+          break;
+        case 2:
+          ld = (lRandom.nextLong() % 100000000) / 100000.0;
+          break;
+        case 3:
+          ld = (lRandom.nextDouble() - 0.5)
+              * Math.pow(10,
+                         lRandom.nextInt(30) - 10);
+          break;
+        default:
+          ld = lRandom.nextInt(2000000) / 20000.0;
+      }
+      assertEncodes(lEncoder,
+                    lFormat,
+                    ld);
+    }
+  }
+
+  static void assertEncodes(TabbedRecordEncoder pEncoder,
+                            DecimalFormat pFormat,
+                            double pd) throws IOException
+  {
+    pEncoder.clear();
+    pEncoder.number(pd);
+    assertEquals("value " + pd,
+                 pFormat.format(pd),
+                 pEncoder.toString());
+  }
+
+  /**
+   * @return the ####.#### style DecimalFormat fnum uses, with the passed
+   * number of decimals and a '.' separator
+   */
+  static DecimalFormat format(int piDecimals)
+  {
+    StringBuilder lsbPattern = new StringBuilder("####");
+    if (piDecimals > 0) {
+      lsbPattern.append('.');
+    }
+    for (int i = 0; i < piDecimals; i++) {
+      lsbPattern.append('#');
+    }
+    return new DecimalFormat(lsbPattern.toString(),
+                             DecimalFormatSymbols.getInstance(Locale.US));
+  }
+}